@@ -0,0 +1,67 @@
+package org.shannon.ConstrainedQueue.benchmark;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shannon.ConstrainedQueue.CardinalityConstrainer;
+import org.shannon.ConstrainedQueue.ConcurrentCardinalityConstrainer;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ConstrainedQueue.Constrainer;
+
+/**
+ * A ConstrainedQueue used as an in flight limiter, limited by a CardinalityConstrainer or a
+ * ConcurrentCardinalityConstrainer, with several threads each offering an item, taking one and forgetting it.
+ *
+ * The same item is offered every time so that boxing doesn't show up in the numbers.
+ *
+ * @author Shannon
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(4)
+@Fork(1)
+public class CardinalityConstrainerBenchmark {
+  private static final Integer ITEM = 0;
+
+  @Param({"1", "16"})
+  public int maxReleased;
+
+  @Param({"CardinalityConstrainer", "ConcurrentCardinalityConstrainer"})
+  public String constrainer;
+
+  private ConstrainedQueue<Integer> queue;
+
+  @Setup(Level.Iteration)
+  public void setUpQueue() {
+    Constrainer<Integer> retval = "CardinalityConstrainer".equals(constrainer)
+        ? new CardinalityConstrainer<Integer>(1 << 20, maxReleased)
+        : new ConcurrentCardinalityConstrainer<Integer>(1 << 20, maxReleased);
+    queue = new ConstrainedQueue<Integer>(retval, new LinkedBlockingQueue<Integer>());
+  }
+
+  /**
+   * One trip through the limiter:  offer, then take whatever is free and forget it.
+   */
+  @Benchmark
+  public Integer offerPollForget() {
+    queue.offer(ITEM);
+    return queue.forget(queue.poll());
+  }
+}
@@ -0,0 +1,112 @@
+package org.shannon.ConstrainedQueue.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shannon.ConstrainedQueue.ConcurrentShardRelocationConstrainer;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ConstrainedQueue.Constrainer;
+import org.shannon.ConstrainedQueue.ShardRelocationConstrainer;
+import org.shannon.ShardAllocator.ShardRelocation;
+
+/**
+ * Time to push a batch of moves through a ConstrainedQueue limited by a ShardRelocationConstrainer, the same pairing SimpleAllocator plans into.
+ *
+ * Moves are between random pairs of nodes so the constrainer's wait lists fill up the way they do during a rebalance.
+ * Runs against both the single lock ShardRelocationConstrainer and the per node ConcurrentShardRelocationConstrainer.
+ *
+ * Each iteration is a single shot against a fresh queue.
+ *
+ * @author Shannon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ConstrainedQueueBenchmark {
+  @Param({"3", "100", "10000"})
+  public int nodes;
+
+  @Param({"1000", "100000"})
+  public int moves;
+
+  @Param({"1", "4"})
+  public int maxThreadsPerNode;
+
+  @Param({"ShardRelocationConstrainer", "ConcurrentShardRelocationConstrainer"})
+  public String constrainer;
+
+  private ArrayList<ShardRelocation<Integer, Integer>> relocations;
+  private ConstrainedQueue<ShardRelocation<Integer, Integer>> queue;
+
+  @Setup(Level.Trial)
+  public void setUpRelocations() {
+    Random rand = new Random(0);
+    relocations = new ArrayList<ShardRelocation<Integer, Integer>>(moves);
+    for (int shard = 0; shard < moves; ++shard) {
+      int from = rand.nextInt(nodes);
+      int to = (from + 1 + rand.nextInt(nodes - 1)) % nodes;
+      relocations.add(new ShardRelocation<Integer, Integer>(from, to, shard));
+    }
+  }
+
+  private ConstrainedQueue<ShardRelocation<Integer, Integer>> newQueue() {
+    Constrainer<ShardRelocation<Integer, Integer>> retval = "ShardRelocationConstrainer".equals(constrainer)
+        ? new ShardRelocationConstrainer<Integer, Integer>(maxThreadsPerNode)
+        : new ConcurrentShardRelocationConstrainer<Integer, Integer>(maxThreadsPerNode);
+    return new ConstrainedQueue<ShardRelocation<Integer, Integer>>(
+        retval,
+        new LinkedBlockingQueue<ShardRelocation<Integer, Integer>>()
+      );
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpQueue() {
+    queue = newQueue();
+  }
+
+  /**
+   * Planning side:  every move goes through the constrainer once.
+   */
+  @Benchmark
+  public ConstrainedQueue<ShardRelocation<Integer, Integer>> add() {
+    for (ShardRelocation<Integer, Integer> relocation : relocations) {
+      queue.add(relocation);
+    }
+    return queue;
+  }
+
+  /**
+   * Planning then dispatch:  add everything, then take and forget until the queue is empty, as the relocation loop does
+   * when every move finishes instantly.
+   */
+  @Benchmark
+  public int addTakeForget() throws InterruptedException {
+    for (ShardRelocation<Integer, Integer> relocation : relocations) {
+      queue.add(relocation);
+    }
+    int taken = 0;
+    while (!queue.isEmpty()) {
+      queue.forget(queue.take());
+      ++taken;
+    }
+    return taken;
+  }
+}
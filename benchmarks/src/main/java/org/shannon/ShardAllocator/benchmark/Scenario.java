@@ -0,0 +1,93 @@
+package org.shannon.ShardAllocator.benchmark;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * The cluster events we care about planning for.  Each one describes the universe after the event along with the
+ * distribution that was observed just before it.
+ *
+ * Nodes and shards are plain Integers; node n owns shard s when s % (owning nodes) == n.
+ *
+ * @author Shannon
+ *
+ */
+public enum Scenario {
+  /**
+   * Nobody owns anything yet.
+   */
+  COLD_START,
+  /**
+   * The cluster was balanced and then the last node joined with nothing.
+   */
+  NODE_JOIN,
+  /**
+   * The cluster was balanced with one more node than it has now.  That node left and its shards are unowned.
+   */
+  NODE_LEAVE,
+  /**
+   * The cluster is balanced, but every 100th shard is also claimed by the next node over.
+   */
+  SPLIT_BRAIN;
+
+  private static final int SPLIT_BRAIN_EVERY = 100;
+
+  public static ImmutableSet<Integer> ints(int startInclusive, int endExclusive) {
+    return IntStream.range(startInclusive, endExclusive)
+        .boxed()
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  private static HashMap<Integer, HashSet<Integer>> roundRobin(int nodeCount, int shardCount) {
+    HashMap<Integer, HashSet<Integer>> retval = new HashMap<Integer, HashSet<Integer>>();
+    for (int shard = 0; shard < shardCount; ++shard) {
+      retval.computeIfAbsent(shard % nodeCount, (node) -> { return new HashSet<Integer>(); }).add(shard);
+    }
+    return retval;
+  }
+
+  /**
+   * The distribution observed just before the event.
+   *
+   * @param nodeCount   Number of nodes in the universe after the event.
+   * @param shardCount  Number of shards in the universe.
+   * @return  Mapping of nodes to the shards that they control.
+   */
+  public HashMap<Integer, HashSet<Integer>> distribution(int nodeCount, int shardCount) {
+    switch(this) {
+      case COLD_START:
+        return new HashMap<Integer, HashSet<Integer>>();
+      case NODE_JOIN:
+        return roundRobin(Math.max(1, nodeCount - 1), shardCount);
+      case NODE_LEAVE:
+        return roundRobin(nodeCount + 1, shardCount);
+      case SPLIT_BRAIN:
+        HashMap<Integer, HashSet<Integer>> retval = roundRobin(nodeCount, shardCount);
+        for (int shard = 0; shard < shardCount; shard += SPLIT_BRAIN_EVERY) {
+          retval.computeIfAbsent((shard + 1) % nodeCount, (node) -> { return new HashSet<Integer>(); }).add(shard);
+        }
+        return retval;
+      default:
+        throw new IllegalStateException("Unknown scenario " + this);
+    }
+  }
+
+  /**
+   * A copy of the distribution deep enough that planning against it leaves the original alone.
+   *
+   * @param distribution  Mapping of nodes to the shards that they control.
+   * @return  A copy of the distribution.
+   */
+  public static HashMap<Integer, HashSet<Integer>> copy(Map<Integer, ? extends Collection<Integer>> distribution) {
+    HashMap<Integer, HashSet<Integer>> retval = new HashMap<Integer, HashSet<Integer>>();
+    for (Map.Entry<Integer, ? extends Collection<Integer>> entry : distribution.entrySet()) {
+      retval.put(entry.getKey(), new HashSet<Integer>(entry.getValue()));
+    }
+    return retval;
+  }
+}
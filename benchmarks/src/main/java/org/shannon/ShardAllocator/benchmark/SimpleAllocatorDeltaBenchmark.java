@@ -0,0 +1,110 @@
+package org.shannon.ShardAllocator.benchmark;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.Impl.SimpleAllocator;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Adding one shard to a settled allocator and taking it away again, either through addShards and removeShards or
+ * through notifyShardsChange with the whole universe.
+ *
+ * Each batch is a handful of shots.
+ *
+ * @author Shannon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 10)
+@Measurement(iterations = 20, batchSize = 10)
+@Fork(1)
+public class SimpleAllocatorDeltaBenchmark {
+  @Param({"100", "1000"})
+  public int nodes;
+
+  @Param({"10000", "300000"})
+  public int shards;
+
+  private HashSet<Integer> shardUniverse;
+  private HashMap<Integer, HashSet<Integer>> dist;
+  private SimpleAllocator<Integer, Integer> allocator;
+  private final Object sync = new Object();
+
+  private void relocate(ShardRelocation<Integer, Integer> relocation) {
+    synchronized(sync) {
+      if (relocation.getFromNode() != null) { dist.get(relocation.getFromNode()).remove(relocation.getShard()); }
+      if (relocation.getToNode() != null) {
+        dist.computeIfAbsent(relocation.getToNode(), (node) -> { return new HashSet<Integer>(); }).add(relocation.getShard());
+      }
+    }
+  }
+
+  private Map<Integer, Collection<Integer>> discover() {
+    synchronized(sync) {
+      return new HashMap<Integer, Collection<Integer>>(dist);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void settle() {
+    ImmutableSet<Integer> nodeUniverse = Scenario.ints(0, nodes);
+    shardUniverse = new HashSet<Integer>(Scenario.ints(0, shards));
+    //Just before the last node joins, the rest are evenly spread, so start with nothing to do
+    dist = Scenario.NODE_JOIN.distribution(nodes + 1, shards);
+    allocator = new SimpleAllocator<Integer, Integer>(
+        nodeUniverse,
+        ImmutableSet.copyOf(shardUniverse),
+        new HashMap<Integer, Collection<Integer>>(dist),
+        this::discover,
+        this::relocate,
+        (shard, claimants, nodesByShare) -> { return null; },
+        1
+      );
+    allocator.awaitRebalance();
+  }
+
+  @TearDown(Level.Trial)
+  public void close() {
+    allocator.close();
+  }
+
+  @Benchmark
+  public void delta() {
+    allocator.addShards(Collections.singleton(shards));
+    allocator.awaitRebalance();
+    allocator.removeShards(Collections.singleton(shards));
+    allocator.awaitRebalance();
+  }
+
+  @Benchmark
+  public void notifyUniverse() {
+    shardUniverse.add(shards);
+    allocator.notifyShardsChange(shardUniverse);
+    allocator.awaitRebalance();
+    shardUniverse.remove(shards);
+    allocator.notifyShardsChange(shardUniverse);
+    allocator.awaitRebalance();
+  }
+}
@@ -0,0 +1,113 @@
+package org.shannon.ShardAllocator.benchmark;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.Impl.SimpleAllocator;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Wall clock time for a whole rebalance:  planning, relocating through a relocator that just updates an in memory
+ * distribution, rediscovering and planning again until there is nothing left to do.
+ *
+ * Every invocation is a single shot since a rebalance can't be repeated without resetting the world.
+ *
+ * @author Shannon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SimpleAllocatorRebalanceBenchmark {
+  @Param({"3", "100", "1000"})
+  public int nodes;
+
+  @Param({"10", "10000", "200000"})
+  public int shards;
+
+  @Param({"COLD_START", "NODE_JOIN", "NODE_LEAVE", "SPLIT_BRAIN"})
+  public Scenario scenario;
+
+  private ImmutableSet<Integer> nodeUniverse;
+  private ImmutableSet<Integer> shardUniverse;
+  private HashMap<Integer, HashSet<Integer>> observed;
+  private HashMap<Integer, HashSet<Integer>> dist;
+  private final Object sync = new Object();
+
+  @Setup(Level.Trial)
+  public void setUpUniverse() {
+    nodeUniverse = Scenario.ints(0, nodes);
+    shardUniverse = Scenario.ints(0, shards);
+    observed = scenario.distribution(nodes, shards);
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpDistribution() {
+    dist = Scenario.copy(observed);
+  }
+
+  private void relocate(ShardRelocation<Integer, Integer> relocation) {
+    synchronized(sync) {
+      if (relocation.getFromNode() != null) {
+        HashSet<Integer> owned = dist.get(relocation.getFromNode());
+        if (owned != null) { owned.remove(relocation.getShard()); }
+      }
+      if (relocation.getToNode() != null) {
+        dist.computeIfAbsent(relocation.getToNode(), (node) -> { return new HashSet<Integer>(); }).add(relocation.getShard());
+      }
+    }
+  }
+
+  private Map<Integer, Collection<Integer>> discover() {
+    synchronized(sync) {
+      //Assumption: nodes in the distribution but not in nodes will fall off as they are unreachable.
+      dist.keySet().retainAll(nodeUniverse);
+      return new HashMap<Integer, Collection<Integer>>(dist);
+    }
+  }
+
+  @Benchmark
+  public Map<Integer, HashSet<Integer>> rebalance() {
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator<Integer, Integer>(
+        nodeUniverse,
+        shardUniverse,
+        new HashMap<Integer, Collection<Integer>>(dist),
+        this::discover,
+        this::relocate,
+        (shard, claimants, nodesByCount) -> {
+          return claimants.stream()
+              .skip(1)
+              .map((node) -> { return new ShardRelocation<Integer, Integer>(node, null, shard); })
+              .collect(Collectors.toList());
+        },
+        1
+      );
+    try {
+      allocator.awaitRebalance();
+    } finally {
+      allocator.close();
+    }
+    return dist;
+  }
+}
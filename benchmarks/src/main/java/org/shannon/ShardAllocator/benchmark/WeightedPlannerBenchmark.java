@@ -0,0 +1,96 @@
+package org.shannon.ShardAllocator.benchmark;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardWeigher;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+import org.shannon.ShardAllocator.Impl.WeightedPlanner;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Time spent working out a weighted plan with no relocation at all.  The counterpart of {@link SimplePlannerBenchmark}.
+ *
+ * Shard weights are spread 1 to 100 so that a count balanced distribution is still far from weight balanced.
+ *
+ * Each iteration is a single plan against a fresh copy of the distribution.
+ *
+ * @author Shannon
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class WeightedPlannerBenchmark {
+  @Param({"3", "100", "1000", "10000"})
+  public int nodes;
+
+  @Param({"10", "1000", "200000", "1000000"})
+  public int shards;
+
+  @Param({"0.05"})
+  public double tolerance;
+
+  @Param({"COLD_START", "NODE_JOIN", "NODE_LEAVE", "SPLIT_BRAIN"})
+  public Scenario scenario;
+
+  private ImmutableSet<Integer> nodeUniverse;
+  private ImmutableSet<Integer> shardUniverse;
+  private HashMap<Integer, HashSet<Integer>> observed;
+  private HashMap<Integer, HashSet<Integer>> working;
+  private ShardWeigher<Integer> weigher;
+
+  //Keep the first claimant and have everyone else let go.
+  private final SplitBrainResolver<Integer, Integer> splitBrainResolver = (shard, claimants, nodesByCount) -> {
+    return claimants.stream()
+        .skip(1)
+        .map((node) -> { return new ShardRelocation<Integer, Integer>(node, null, shard); })
+        .collect(Collectors.toList());
+  };
+
+  @Setup(Level.Trial)
+  public void setUpUniverse() {
+    nodeUniverse = Scenario.ints(0, nodes);
+    shardUniverse = Scenario.ints(0, shards);
+    observed = scenario.distribution(nodes, shards);
+    Random rand = new Random(0);
+    double[] weights = new double[shards];
+    for (int i = 0; i < shards; ++i) {
+      weights[i] = 1 + rand.nextInt(100);
+    }
+    weigher = (shard) -> { return weights[shard]; };
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpDistribution() {
+    //Planning eats the distribution it is given
+    working = Scenario.copy(observed);
+  }
+
+  @Benchmark
+  public ConstrainedQueue<ShardRelocation<Integer, Integer>> determineMoves() {
+    return new WeightedPlanner<Integer, Integer>(nodeUniverse, shardUniverse, working, splitBrainResolver, 1
+        , weigher, tolerance).determineMoves();
+  }
+}
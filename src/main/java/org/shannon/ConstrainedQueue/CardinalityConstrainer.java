@@ -53,6 +53,11 @@ public class CardinalityConstrainer<T> implements Constrainer<T> {
     }
   }
 
+  @Override
+  public void adopt(T t) {
+    released.incrementAndGet();
+  }
+
   @Override
   public Collection<T> notifyReleased(T t) {
     released.decrementAndGet();
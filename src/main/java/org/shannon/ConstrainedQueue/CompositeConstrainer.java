@@ -0,0 +1,309 @@
+package org.shannon.ConstrainedQueue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Applies several keyed limits at once, e.g. moves per node, per rack, per tenant and across the whole cluster.  An item
+ * is only let out when every key it has is under its limit, and then counts against all of them until it is released.
+ *
+ * Each limit is a maximum and one or two functions that pull a key out of an item.  Two functions are for items with
+ * two ends, like a relocation's from and to nodes, without building a collection per item.  A limit with a key that
+ * always comes back the same is a global limit.  Null keys are not limited, and an item whose keys are the same for a
+ * limit only counts once against it.
+ *
+ * <pre>
+ * new CompositeConstrainer.Builder&lt;ShardRelocation&lt;Node, Shard&gt;&gt;()
+ *   .limit(2, ShardRelocation::getFromNode, ShardRelocation::getToNode)
+ *   .limit(8, (move) -&gt; { return rackOf(move.getFromNode()); }, (move) -&gt; { return rackOf(move.getToNode()); })
+ *   .limit(64, (move) -&gt; { return "cluster"; })
+ *   .build();
+ * </pre>
+ *
+ * Every item that is held back waits on one key that was full when it was last looked at.  When that key frees up
+ * the item is looked at again and either let out or moved to wait on whichever key is full now, so releasing only looks
+ * at items that could possibly use what was freed.  Items waiting on the same key go out first in first out.
+ *
+ * Keys that have nothing out and nothing waiting are forgotten, so keys that come and go don't pile up.
+ *
+ * Looking up an item's keys reuses one array for as long as the constrainer lives, so only items that are held back
+ * cost an allocation.
+ *
+ * @author Shannon
+ *
+ * @param <T> That which is being constrained
+ */
+public class CompositeConstrainer<T> implements Constrainer<T> {
+  private final ArrayList<Limit<T>> limits;
+  //The counts of whatever item is being looked at, one slot per key of every limit
+  private final Count[] scratch;
+  //Equal items may be held back more than once
+  private final HashMap<Object, ArrayDeque<Waiter<T>>> waiters = new HashMap<Object, ArrayDeque<Waiter<T>>>();
+  private int waiting = 0;
+
+  private CompositeConstrainer(Builder<T> builder) {
+    Preconditions.checkArgument(!builder.limits.isEmpty(), "Must have at least one limit");
+    this.limits = new ArrayList<Limit<T>>(builder.limits);
+    int keys = 0;
+    for (Limit<T> limit : limits) {
+      keys += limit.keys.size();
+    }
+    this.scratch = new Count[keys];
+  }
+
+  private static final class Limit<T> {
+    private final int max;
+    private final List<Function<? super T, ?>> keys;
+    private final HashMap<Object, Count> counts = new HashMap<Object, Count>();
+
+    private Limit(int max, List<Function<? super T, ?>> keys) {
+      this.max = max;
+      this.keys = keys;
+    }
+  }
+
+  private static final class Count {
+    private final Limit<?> limit;
+    private final Object key;
+    private int active = 0;
+    //Waiters with this key, whether or not they are waiting on it
+    private int referenced = 0;
+    private final ArrayDeque<Waiter<?>> parked = new ArrayDeque<Waiter<?>>();
+
+    private Count(Limit<?> limit, Object key) {
+      this.limit = limit;
+      this.key = key;
+    }
+
+    private boolean full() {
+      return active >= limit.max;
+    }
+
+    private void forgetIfIdle() {
+      if (active == 0 && referenced == 0 && parked.isEmpty()) {
+        limit.counts.remove(key);
+      }
+    }
+  }
+
+  private static final class Waiter<T> {
+    private final T item;
+    private final Count[] counts;
+    private Count parkedOn;
+
+    private Waiter(T item, Count[] counts) {
+      this.item = item;
+      this.counts = counts;
+    }
+  }
+
+  /*
+   * Puts the counts of t's keys at the front of scratch and returns how many there are.  A count belongs to one limit
+   * and a limit has no more than two keys, so the only repeat to look for is the one just before.
+   */
+  private int counts(T t) {
+    int retval = 0;
+    for (int i = 0; i < limits.size(); ++i) {
+      Limit<T> limit = limits.get(i);
+      int first = retval;
+      for (int k = 0; k < limit.keys.size(); ++k) {
+        Object key = limit.keys.get(k).apply(t);
+        if (key == null) { continue; }
+        Count count = limit.counts.get(key);
+        if (count == null) {
+          count = new Count(limit, key);
+          limit.counts.put(key, count);
+        }
+        if (retval == first || scratch[retval - 1] != count) {
+          scratch[retval++] = count;
+        }
+      }
+    }
+    return retval;
+  }
+
+  private static Count firstFull(Count[] counts, int length) {
+    for (int i = 0; i < length; ++i) {
+      if (counts[i].full()) { return counts[i]; }
+    }
+    return null;
+  }
+
+  private static void activate(Count[] counts, int length) {
+    for (int i = 0; i < length; ++i) {
+      ++counts[i].active;
+    }
+  }
+
+  private static void park(Waiter<?> waiter, Count on) {
+    waiter.parkedOn = on;
+    on.parked.add(waiter);
+  }
+
+  //Stops counting a waiter against its keys once it is let out or removed
+  private void unreference(Waiter<T> waiter) {
+    --waiting;
+    for (Count count : waiter.counts) {
+      --count.referenced;
+      count.forgetIfIdle();
+    }
+  }
+
+  private void unindex(Waiter<T> waiter) {
+    ArrayDeque<Waiter<T>> same = waiters.get(waiter.item);
+    same.remove(waiter);
+    if (same.isEmpty()) {
+      waiters.remove(waiter.item);
+    }
+  }
+
+  @Override
+  public synchronized boolean constrained(T t) {
+    int length = counts(t);
+    Count full = firstFull(scratch, length);
+    if (full == null) {
+      activate(scratch, length);
+      return false;
+    }
+    Count[] counts = Arrays.copyOf(scratch, length);
+    Waiter<T> waiter = new Waiter<T>(t, counts);
+    for (Count count : counts) {
+      ++count.referenced;
+    }
+    park(waiter, full);
+    waiters.computeIfAbsent(t, (key) -> { return new ArrayDeque<Waiter<T>>(); }).add(waiter);
+    ++waiting;
+    return true;
+  }
+
+  @Override
+  public boolean constrained(T t, long time, TimeUnit unit) {
+    return constrained(t);
+  }
+
+  @Override
+  public synchronized void adopt(T t) {
+    activate(scratch, counts(t));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void wake(Count count, ArrayList<T> released) {
+    while(!count.full() && !count.parked.isEmpty()) {
+      Waiter<T> waiter = (Waiter<T>) count.parked.poll();
+      Count full = firstFull(waiter.counts, waiter.counts.length);
+      if (full == null) {
+        activate(waiter.counts, waiter.counts.length);
+        unindex(waiter);
+        unreference(waiter);
+        released.add(waiter.item);
+      } else {
+        park(waiter, full);
+      }
+    }
+  }
+
+  @Override
+  public synchronized Collection<T> notifyReleased(T t) {
+    ArrayList<T> retval = new ArrayList<T>();
+    int length = counts(t);
+    for (int i = 0; i < length; ++i) {
+      //Anything let out before a clear() no longer counts
+      if (scratch[i].active > 0) {
+        --scratch[i].active;
+      }
+    }
+    //Waking only looks at waiters' own counts, so scratch holds still
+    for (int i = 0; i < length; ++i) {
+      wake(scratch[i], retval);
+      scratch[i].forgetIfIdle();
+    }
+    return retval;
+  }
+
+  @Override
+  public synchronized void clear() {
+    limits.forEach((limit) -> { limit.counts.clear(); });
+    waiters.clear();
+    waiting = 0;
+  }
+
+  @Override
+  public synchronized boolean isEmpty() {
+    return waiting == 0;
+  }
+
+  @Override
+  public synchronized boolean remove(Object o) {
+    ArrayDeque<Waiter<T>> same = waiters.get(o);
+    if (same == null) { return false; }
+    Waiter<T> waiter = same.peekLast();
+    unindex(waiter);
+    waiter.parkedOn.parked.remove(waiter);
+    unreference(waiter);
+    return true;
+  }
+
+  @Override
+  public synchronized int size() {
+    return waiting;
+  }
+
+  @Override
+  public synchronized boolean contains(Object o) {
+    return waiters.containsKey(o);
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * Builds a {@link CompositeConstrainer}.
+   *
+   * @param <T> That which is being constrained
+   */
+  public static final class Builder<T> {
+    private final ArrayList<Limit<T>> limits = new ArrayList<Limit<T>>();
+
+    /**
+     * @param max   How many items may be out at once for any one key.
+     * @param key   Pulls the key out of an item.  Items with a null key are not limited by this.
+     * @return  this
+     */
+    public Builder<T> limit(int max, Function<? super T, ?> key) {
+      Preconditions.checkArgument(max > 0, "Limits must be positive");
+      Preconditions.checkNotNull(key, "Must have a key");
+      limits.add(new Limit<T>(max, Collections.singletonList(key)));
+      return this;
+    }
+
+    /**
+     * @param max       How many items may be out at once for any one key.
+     * @param key       Pulls one key out of an item, e.g. where a relocation is from.
+     * @param otherKey  Pulls another key out of an item, e.g. where a relocation is to.  An item with the same key for
+     *                  both only counts once.
+     * @return  this
+     */
+    public Builder<T> limit(int max, Function<? super T, ?> key, Function<? super T, ?> otherKey) {
+      Preconditions.checkArgument(max > 0, "Limits must be positive");
+      Preconditions.checkNotNull(key, "Must have a key");
+      Preconditions.checkNotNull(otherKey, "Must have an otherKey");
+      limits.add(new Limit<T>(max, Arrays.asList(key, otherKey)));
+      return this;
+    }
+
+    public CompositeConstrainer<T> build() {
+      return new CompositeConstrainer<T>(this);
+    }
+  }
+}
@@ -0,0 +1,299 @@
+package org.shannon.ConstrainedQueue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The same limits as {@link CardinalityConstrainer}, at most maxReleased out at once and at most maxConstrained held
+ * back, without any locks.  For when a ConstrainedQueue is used as a general in flight limiter on a hot path.
+ *
+ * Released items are counted with a single atomic counter.  Held items go in a bounded ring where every slot carries a
+ * sequence number saying whether it is ready to be written or read, so producers and consumers each claim a slot with
+ * one compare and set.  Removing an item from the middle of the ring swaps it for a marker that is skipped when it
+ * reaches the front, or written over by the next item held back if the ring fills up before then.  Nothing is allocated
+ * on the way in, short of waiting for room, and only the one item list on the way out.
+ *
+ * When maxConstrained are already held back, the thread holding back another parks until one of them goes out or is
+ * removed, and whoever frees the place wakes the longest waiting.  Waiting costs a queue node and taking a place that
+ * was freed may lose out to a thread that never waited, so maxConstrained is best kept well above how much should ever
+ * be held back.
+ *
+ * Worst cases:  holding back an item finds the ring full only while a consumer is between claiming the front slot and
+ * clearing it, or while removed markers fill it.  Markers are written over, trying where the last one was left before
+ * looking through the ring.  Waiting on a consumer yields a bounded number of times and then parks for longer and longer,
+ * up to a millisecond, so a consumer that was descheduled mid-claim costs the producer no more than a millisecond past
+ * when it runs again.  Taking from the front skips at most as many markers as have been left in the ring.
+ *
+ * This queue is unfair.  In that FIFO is not guaranteed.
+ *
+ * @author Shannon
+ *
+ * @param <T> That which is being constrained
+ */
+public class ConcurrentCardinalityConstrainer<T> implements Constrainer<T> {
+  private static final Object REMOVED = new Object();
+  private static final int SPINS = 64;
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private final AtomicReferenceArray<Object> items;
+  //slot i is ready to be written for position p when it holds p, ready to be read when it holds p + 1
+  private final AtomicLongArray sequences;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong(0);
+  private final AtomicLong tail = new AtomicLong(0);
+  private final AtomicInteger held = new AtomicInteger(0);
+  private final AtomicInteger released = new AtomicInteger(0);
+  //Markers in the ring, and where one was last left
+  private final AtomicInteger removed = new AtomicInteger(0);
+  private final AtomicLong lastRemoved = new AtomicLong(0);
+  //Threads parked until there is room to hold back their item
+  private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+  private final int maxConstrained;
+  private final int maxReleased;
+
+  public ConcurrentCardinalityConstrainer(int maxConstrained, int maxReleased) {
+    Preconditions.checkArgument(maxConstrained > 0 && maxConstrained <= 1 << 30, "maxConstrained must be from 1 to 2^30");
+    int slots = Integer.highestOneBit(maxConstrained);
+    slots = slots == maxConstrained ? slots : slots << 1;
+    this.items = new AtomicReferenceArray<Object>(slots);
+    this.sequences = new AtomicLongArray(slots);
+    for (int i = 0; i < slots; ++i) {
+      sequences.set(i, i);
+    }
+    this.mask = slots - 1;
+    this.maxConstrained = maxConstrained;
+    this.maxReleased = maxReleased;
+  }
+
+  private static boolean increment(AtomicInteger counter, int max) {
+    int current;
+    while((current = counter.get()) < max) {
+      if (counter.compareAndSet(current, current + 1)) { return true; }
+    }
+    return false;
+  }
+
+  private boolean constrained() {
+    return !increment(released, maxReleased);
+  }
+
+  //Only called holding one of maxConstrained places, so the ring can only be full of removed items or of ones a
+  //consumer has claimed but not yet cleared
+  private void enqueue(T t) {
+    int full = 0;
+    while(true) {
+      long pos = tail.get();
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          items.lazySet(index, t);
+          sequences.lazySet(index, pos + 1);
+          return;
+        }
+      } else if (diff < 0) {
+        if (removed.get() > 0 && reuse(t)) { return; }
+        backOff(full++);
+      }
+    }
+  }
+
+  //Yields for a while, then parks longer each time up to MAX_PARK_NANOS
+  private static void backOff(int attempt) {
+    if (attempt < SPINS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1L << Math.min(attempt - SPINS + 10, 30)));
+    }
+  }
+
+  //Writes t over a removed item, where the last one was left or wherever else it is.  A consumer that has already
+  //claimed the slot gets t instead
+  private boolean reuse(T t) {
+    if (replace((int) lastRemoved.get() & mask, t)) { return true; }
+    for(long pos = head.get(), end = tail.get(); pos < end; ++pos) {
+      if (replace((int) pos & mask, t)) { return true; }
+    }
+    return false;
+  }
+
+  private boolean replace(int index, T t) {
+    if (items.get(index) == REMOVED && items.compareAndSet(index, REMOVED, t)) {
+      removed.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  private Object dequeue() {
+    while(true) {
+      long pos = head.get();
+      int index = (int) pos & mask;
+      long diff = sequences.get(index) - (pos + 1);
+      if (diff < 0) { return null; }
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          Object retval = items.getAndSet(index, null);
+          sequences.lazySet(index, pos + mask + 1);
+          return retval;
+        }
+      }
+    }
+  }
+
+  //Each marker at the front is skipped with one compare and set, so this goes no further than the markers in the ring
+  @SuppressWarnings("unchecked")
+  private T poll() {
+    Object retval;
+    while((retval = dequeue()) == REMOVED) {
+      removed.decrementAndGet();
+    }
+    if (retval != null) {
+      held.decrementAndGet();
+      signal();
+    }
+    return (T) retval;
+  }
+
+  //A held place was given up, so the longest waiting gets a go at it
+  private void signal() {
+    Thread waiter = waiters.poll();
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+  }
+
+  //Parks until a held place is given up and this thread gets it
+  private void awaitRoom(boolean timed, long deadline) throws InterruptedException, TimeoutException {
+    Thread me = Thread.currentThread();
+    while(true) {
+      waiters.add(me);
+      //A place given up before this was there to be woken is taken here
+      if (increment(held, maxConstrained)) {
+        waiters.remove(me);
+        return;
+      }
+      long remaining = timed ? deadline - System.nanoTime() : 1;
+      if (Thread.interrupted() || remaining <= 0) {
+        //Woken for a place it won't take, so whoever is next gets it
+        if (!waiters.remove(me)) { signal(); }
+        if (remaining <= 0) { throw new TimeoutException(); }
+        throw new InterruptedException();
+      }
+      if (timed) {
+        LockSupport.parkNanos(this, remaining);
+      } else {
+        LockSupport.park(this);
+      }
+      //A wake up whose place went to someone that never waited is spent, so it isn't handed on
+      waiters.remove(me);
+    }
+  }
+
+  private boolean hold(T t, boolean timed, long deadline) throws InterruptedException, TimeoutException {
+    if (!increment(held, maxConstrained)) {
+      awaitRoom(timed, deadline);
+    }
+    enqueue(t);
+    //A release that looked before t was in the ring gave its place back, so take it now rather than leave t behind
+    if (!constrained()) {
+      if (remove(t)) { return false; }
+      released.decrementAndGet();
+    }
+    return true;
+  }
+
+  @Override
+  public boolean constrained(T t) throws InterruptedException {
+    try {
+      return constrained() && hold(t, false, 0);
+    } catch (TimeoutException e) {
+      throw new IllegalStateException("Timed out without a timeout", e);
+    }
+  }
+
+  @Override
+  public boolean constrained(T t, long time, TimeUnit unit) throws InterruptedException, TimeoutException {
+    return constrained() && hold(t, true, System.nanoTime() + unit.toNanos(time));
+  }
+
+  @Override
+  public void adopt(T t) {
+    released.incrementAndGet();
+  }
+
+  @Override
+  public Collection<T> notifyReleased(T t) {
+    released.decrementAndGet();
+    //calling constrained increments released in order to give us the right to release
+    if (held.get() == 0 || constrained()) { return Collections.emptyList(); }
+    T val = poll();
+    if (val == null) {
+      //however if we have nothing to release we ought to decrement
+      released.decrementAndGet();
+      return Collections.emptyList();
+    }
+    return Collections.singletonList(val);
+  }
+
+  @Override
+  public void clear() {
+    //Same as CardinalityConstrainer, released first so that nothing held is left behind
+    released.set(0);
+    while(poll() != null) {}
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return released.get() == 0 && held.get() == 0;
+  }
+
+  private boolean find(Object o, boolean remove) {
+    for(long pos = head.get(), end = tail.get(); pos < end; ++pos) {
+      int index = (int) pos & mask;
+      if (sequences.get(index) != pos + 1) { continue; }
+      Object item = items.get(index);
+      if (item != null && item != REMOVED && item.equals(o)) {
+        if (!remove) { return true; }
+        if (items.compareAndSet(index, item, REMOVED)) {
+          removed.incrementAndGet();
+          lastRemoved.set(pos);
+          held.decrementAndGet();
+          signal();
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    return find(o, true);
+  }
+
+  @Override
+  public int size() {
+    return held.get();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return find(o, false);
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return maxConstrained - held.get();
+  }
+
+}
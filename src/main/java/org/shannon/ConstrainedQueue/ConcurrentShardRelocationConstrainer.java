@@ -0,0 +1,288 @@
+package org.shannon.ConstrainedQueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import org.shannon.ShardAllocator.ShardRelocation;
+
+/**
+ * Constrains the same way {@link ShardRelocationConstrainer} does, only allowing maxThreadsPerNode relocations to be
+ * affiliated with any given node whether that node be a receiver or releaser, but without one lock for everything.
+ *
+ * Each node has its own lock and count of active relocations.  Anything touching a relocation locks just its two nodes,
+ * always in the same order, so relocations between other nodes carry on at the same time.  Relocations that have to
+ * wait are queued first in first out by the pair of nodes they are between, so that when a node frees up only the
+ * nodes it is waiting on need to be looked at rather than everything waiting on it.
+ *
+ * Waiting goes by {@link ShardRelocation.Priority}.  Room freed on a node goes to what waits on it most urgent first,
+ * and a relocation arriving behind more urgent ones waiting on one of its nodes waits its turn, so long as something
+ * active on that node will free room.  Whatever is waiting on a node can still take room that the more urgent are
+ * waiting on their other node for.
+ *
+ * A relocation whose two nodes are the same only needs room on that node once, same as {@link ShardRelocationConstrainer}.
+ *
+ * The limit can be given per node and is asked for every time a node is checked, so it may change while relocations are
+ * waiting.  A raised limit lets waiters out the next time something involving that node is released.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public class ConcurrentShardRelocationConstrainer<Node, Shard> implements Constrainer<ShardRelocation<Node, Shard>> {
+  //ConcurrentHashMap has no null keys, and a null node is how new and removed shards are described
+  private static final Object NO_NODE = new Object();
+  private static final int LEVELS = ShardRelocation.Priority.values().length;
+  private final AtomicLong nextOrder = new AtomicLong(0);
+  private volatile ConcurrentHashMap<Object, NodeState> nodes = new ConcurrentHashMap<Object, NodeState>();
+  //Where every waiting relocation is queued
+  private volatile ConcurrentHashMap<ShardRelocation<Node, Shard>, Pair> waiting = new ConcurrentHashMap<ShardRelocation<Node, Shard>, Pair>();
+  private final ToIntFunction<Node> maxThreadsPerNode;
+
+  /**
+   * Constrains a ConstrainedQueue to only allow maxThreadsPerNode threads to be affiliated with any given node whether
+   * that node be a receiver or releaser of a move.
+   *
+   * @param maxThreadsPerNode   Maximum number of threads that can be affiliated with any given node.
+   */
+  public ConcurrentShardRelocationConstrainer(int maxThreadsPerNode) {
+    this((node) -> { return maxThreadsPerNode; });
+  }
+
+  /**
+   * Constrains a ConstrainedQueue to only allow so many threads to be affiliated with each node whether that node be a
+   * receiver or releaser of a move.
+   *
+   * @param maxThreadsPerNode   Maximum number of threads that can be affiliated with the given node.  Called with null
+   *                            for the lack of a node at either end of new and removed shards.  Called often, so should
+   *                            be quick.
+   */
+  public ConcurrentShardRelocationConstrainer(ToIntFunction<Node> maxThreadsPerNode) {
+    this.maxThreadsPerNode = maxThreadsPerNode;
+  }
+
+  private final class NodeState {
+    private final Node node;
+    //Locks are always taken lowest order first
+    private final long order = nextOrder.getAndIncrement();
+    //Guarded by this
+    private int active = 0;
+    //Relocations waiting on this node by priority.  Only changed holding the locks of both nodes
+    private final int[] waiters = new int[LEVELS];
+    //Pairs with something waiting, by the other node.  Only changed holding the locks of both nodes
+    private final ConcurrentHashMap<NodeState, Pair> pairs = new ConcurrentHashMap<NodeState, Pair>();
+
+    private NodeState(Node node) {
+      this.node = node;
+    }
+
+    private boolean hasRoom() {
+      return active < maxThreadsPerNode.applyAsInt(node);
+    }
+
+    //Whether more urgent relocations are waiting, and something active will free room for them to be looked at again
+    private boolean behind(int level) {
+      if (active == 0) { return false; }
+      for (int ahead = 0; ahead < level; ++ahead) {
+        if (waiters[ahead] > 0) { return true; }
+      }
+      return false;
+    }
+  }
+
+  private final class Pair {
+    private final NodeState first;
+    private final NodeState second;
+    //By priority, most urgent first.  Guarded by both nodes
+    private final List<LinkedHashSet<ShardRelocation<Node, Shard>>> relocations = new ArrayList<LinkedHashSet<ShardRelocation<Node, Shard>>>(LEVELS);
+
+    private Pair(NodeState first, NodeState second) {
+      this.first = first;
+      this.second = second;
+      for (int level = 0; level < LEVELS; ++level) {
+        relocations.add(new LinkedHashSet<ShardRelocation<Node, Shard>>());
+      }
+    }
+
+    private boolean isEmpty() {
+      for (LinkedHashSet<ShardRelocation<Node, Shard>> level : relocations) {
+        if (!level.isEmpty()) { return false; }
+      }
+      return true;
+    }
+
+    private void countWaiting(int level, int delta) {
+      first.waiters[level] += delta;
+      if (second != first) {
+        second.waiters[level] += delta;
+      }
+    }
+  }
+
+  private NodeState state(Node node) {
+    return nodes.computeIfAbsent(node == null ? NO_NODE : node, (key) -> { return new NodeState(node); });
+  }
+
+  private <T> T locked(NodeState a, NodeState b, Supplier<T> action) {
+    NodeState first = a.order <= b.order ? a : b;
+    NodeState second = first == a ? b : a;
+    synchronized(first) {
+      synchronized(second) {
+        return action.get();
+      }
+    }
+  }
+
+  private boolean hasRoom(NodeState from, NodeState to) {
+    return from.hasRoom() && to.hasRoom();
+  }
+
+  private void activate(NodeState from, NodeState to) {
+    ++from.active;
+    ++to.active;
+  }
+
+  private Pair pair(NodeState from, NodeState to) {
+    Pair retval = from.pairs.get(to);
+    if (retval == null) {
+      retval = new Pair(from, to);
+      from.pairs.put(to, retval);
+      to.pairs.put(from, retval);
+    }
+    return retval;
+  }
+
+  private void forgetIfEmpty(Pair pair) {
+    if (pair.isEmpty()) {
+      pair.first.pairs.remove(pair.second);
+      pair.second.pairs.remove(pair.first);
+    }
+  }
+
+  @Override
+  public boolean constrained(ShardRelocation<Node, Shard> e) {
+    NodeState from = state(e.getFromNode());
+    NodeState to = state(e.getToNode());
+    int level = e.getPriority().ordinal();
+    return locked(from, to, () -> {
+      if (hasRoom(from, to) && !from.behind(level) && !to.behind(level)) {
+        activate(from, to);
+        return false;
+      }
+      Pair pair = pair(from, to);
+      if (pair.relocations.get(level).add(e)) {
+        waiting.put(e, pair);
+        pair.countWaiting(level, 1);
+      }
+      return true;
+    });
+  }
+
+  @Override
+  public boolean constrained(ShardRelocation<Node, Shard> e, long time, TimeUnit unit) {
+    return constrained(e);
+  }
+
+  @Override
+  public void adopt(ShardRelocation<Node, Shard> e) {
+    NodeState from = state(e.getFromNode());
+    NodeState to = state(e.getToNode());
+    locked(from, to, () -> { activate(from, to); return null; });
+  }
+
+  //Lets out relocations of the given priority waiting on node that now have room on both of their nodes, for as long as
+  //node has room
+  private void release(NodeState node, int level, ArrayList<ShardRelocation<Node, Shard>> released) {
+    for (Pair pair : node.pairs.values()) {
+      ShardRelocation<Node, Shard> relocation;
+      while((relocation = locked(pair.first, pair.second, () -> { return poll(pair, level); })) != null) {
+        released.add(relocation);
+      }
+      if (!locked(node, node, () -> { return node.hasRoom(); })) { return; }
+    }
+  }
+
+  //The first relocation of the given priority waiting on pair, let through if both of its nodes have room.  Called
+  //holding both nodes
+  private ShardRelocation<Node, Shard> poll(Pair pair, int level) {
+    LinkedHashSet<ShardRelocation<Node, Shard>> relocations = pair.relocations.get(level);
+    if (relocations.isEmpty() || !hasRoom(pair.first, pair.second)) { return null; }
+    Iterator<ShardRelocation<Node, Shard>> first = relocations.iterator();
+    ShardRelocation<Node, Shard> retval = first.next();
+    first.remove();
+    waiting.remove(retval);
+    pair.countWaiting(level, -1);
+    forgetIfEmpty(pair);
+    activate(pair.first, pair.second);
+    return retval;
+  }
+
+  @Override
+  public Collection<ShardRelocation<Node, Shard>> notifyReleased(ShardRelocation<Node, Shard> e) {
+    NodeState from = state(e.getFromNode());
+    NodeState to = state(e.getToNode());
+    locked(from, to, () -> {
+      --from.active;
+      --to.active;
+      return null;
+    });
+    ArrayList<ShardRelocation<Node, Shard>> retval = new ArrayList<ShardRelocation<Node, Shard>>();
+    //Both nodes a level at a time, so what waits on one isn't let out ahead of anything more urgent waiting on the other
+    for (int level = 0; level < LEVELS; ++level) {
+      release(from, level, retval);
+      release(to, level, retval);
+    }
+    return retval;
+  }
+
+  /**
+   * Forgets everything.  Anything entering or leaving at the same time may or may not be forgotten.
+   */
+  @Override
+  public void clear() {
+    nodes = new ConcurrentHashMap<Object, NodeState>();
+    waiting = new ConcurrentHashMap<ShardRelocation<Node, Shard>, Pair>();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return waiting.isEmpty();
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    Pair pair = waiting.get(o);
+    if (pair == null) { return false; }
+    int level = ((ShardRelocation<?, ?>) o).getPriority().ordinal();
+    return locked(pair.first, pair.second, () -> {
+      if (!pair.relocations.get(level).remove(o)) { return false; }
+      waiting.remove(o);
+      pair.countWaiting(level, -1);
+      forgetIfEmpty(pair);
+      return true;
+    });
+  }
+
+  @Override
+  public int size() {
+    return waiting.size();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return waiting.containsKey(o);
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+}
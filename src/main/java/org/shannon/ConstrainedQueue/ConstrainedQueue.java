@@ -1,7 +1,6 @@
 package org.shannon.ConstrainedQueue;
 
 import java.io.Closeable;
-import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
@@ -9,9 +8,7 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A ConstrainedQueue is a queue with constraints around what can be released downstream.
@@ -27,7 +24,8 @@ import org.slf4j.LoggerFactory;
  * Any space constraints on the delegate and the {@link Constrainer Constrainer) should play nice together.
  * If the {@link Constrainer Constrainer) allows for more items to go through than the delegate allows to entry,
  * then items may back up in an internal Queue when items leaving the delegate cause items to be unconstrained but
- * cannot yet enter the delegate.
+ * cannot yet enter the delegate.  Backed up items are moved into the delegate by whichever thread makes room for them
+ * or backs them up, so there is no thread of its own and nothing to clean up if a queue is simply dropped.
  * 
  * forget() must be called after work is done.  The idea of a constrained queue is to control how many things are out
  * in the wild and so a feedback as to what can be forgotten about must occur.
@@ -37,55 +35,61 @@ import org.slf4j.LoggerFactory;
  * @param <T>
  */
 public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
-  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
   private final BlockingQueue<T> delegate;
   private final Constrainer<T> constrainer;
   private final LinkedBlockingQueue<T> trafficJam = new LinkedBlockingQueue<T>();
-  private Thread jamClearer;
-  private boolean open = true;
+  //Counts of forget() calls started and finished, so isEmpty() can tell if it raced one without taking a lock
+  private final AtomicLong forgetsStarted = new AtomicLong(0);
+  private final AtomicLong forgetsFinished = new AtomicLong(0);
+  private volatile boolean open = true;
   
   public ConstrainedQueue(Constrainer<T> constrainer, BlockingQueue<T> delegate) {
     this.constrainer = constrainer;
     this.delegate = delegate;
-    jamClearer = startClearingJams();
   }
- 
-  private Thread startClearingJams() {
-    Thread retval = new Thread(() -> {
-      while(true) {
-        try {
-          if (!open) { break; }
-          delegate.put(trafficJam.take());
-        } catch (InterruptedException e) {
-          logger.error("ConstrainedQueue.jamClearer - Interrupted while trying to clear jams", e);
-          break;
-        }
+
+  //Called after anything is backed up or leaves the delegate.  Whoever goes last sees both the room and the backed up
+  //item, so nothing is left behind while the delegate has room
+  private void clearJams() {
+    synchronized(trafficJam) {
+      T t;
+      while(open && (t = trafficJam.peek()) != null && delegate.offer(t)) {
+        trafficJam.poll();
       }
-    });
-    retval.start();
-    return retval;
+    }
+  }
+
+  private T cleared(T t) {
+    if (t != null && !trafficJam.isEmpty()) {
+      clearJams();
+    }
+    return t;
+  }
+
+  private void enter(T t) {
+    if (!delegate.offer(t)) {
+      trafficJam.offer(t);
+      clearJams();
+    }
   }
   
+  /**
+   * Starts moving backed up items into the delegate again after a close().
+   */
   public synchronized void open() {
     if(!open) {
       open = true;
-      jamClearer = startClearingJams();
+      clearJams();
     }
   }
   
+  /**
+   * Drops everything in the queue.  Anything backed up afterwards stays backed up until open() is called.
+   */
   public synchronized void close() {
     if (open) {
       open = false;
       clear();
-      //oddly some BlockingQueues don't throw InterruptedException if already interrupted
-      while(!jamClearer.isAlive()) {
-        jamClearer.interrupt();
-        try {
-          jamClearer.join(1); //Should be near immediate
-        } catch (InterruptedException e) {
-          //Just keep on trying to interrupt
-        }
-      }
     }
   }
   
@@ -97,17 +101,32 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
    */
   public T forget(T forgotten) {
     if (forgotten != null) {
-      for(T unconstrained : constrainer.notifyReleased(forgotten)) {
-        if (unconstrained != null) {
-          if (!delegate.offer(unconstrained)) {
-            trafficJam.offer(unconstrained);
+      forgetsStarted.incrementAndGet();
+      try {
+        for(T unconstrained : constrainer.notifyReleased(forgotten)) {
+          if (unconstrained != null) {
+            enter(unconstrained);
           }
         }
+      } finally {
+        forgetsFinished.incrementAndGet();
       }
     }
     return forgotten;
   }
   
+  /**
+   * Take on something that is already out in the wild, released by another queue, so that it counts against the
+   * constraints here.  forget() must be called on this queue once it is done.
+   *
+   * @param adopted That which is already out in the wild
+   * @return  Item given for chaining or some such
+   */
+  public T adopt(T adopted) {
+    constrainer.adopt(adopted);
+    return adopted;
+  }
+
   @Override
   public T element() {
     return delegate.element();
@@ -120,12 +139,12 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
 
   @Override
   public T poll() {
-    return delegate.poll();
+    return cleared(delegate.poll());
   }
 
   @Override
   public T remove() {
-    return delegate.remove();
+    return cleared(delegate.remove());
   }
 
   @Override
@@ -136,7 +155,9 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
 
   @Override
   public synchronized void clear() {
-    trafficJam.clear();
+    synchronized(trafficJam) {
+      trafficJam.clear();
+    }
     delegate.clear();
     constrainer.clear();
   }
@@ -149,9 +170,16 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
     throw new UnsupportedOperationException("containsAll is not implemented");
   }
 
+  //Something released by forget() is in neither the constrainer nor the delegate for a moment, so empty only counts if
+  //no forget() was running while looking
   @Override
   public boolean isEmpty() {
-    return constrainer.isEmpty() && delegate.isEmpty() && trafficJam.isEmpty();
+    while(true) {
+      long finished = forgetsFinished.get();
+      if (!constrainer.isEmpty() || !delegate.isEmpty() || !trafficJam.isEmpty()) { return false; }
+      if (forgetsStarted.get() == finished) { return true; }
+      Thread.yield();
+    }
   }
 
   @Override
@@ -241,9 +269,7 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
   public boolean offer(T t) {
     try {
       if (!constrainer.constrained(t, 0, TimeUnit.MILLISECONDS)) {
-        if(!delegate.offer(t)) {
-          trafficJam.offer(t);
-        }
+        enter(t);
       }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
@@ -258,9 +284,7 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
   public boolean offer(T t, long time, TimeUnit unit) throws InterruptedException {
     try {
       if(!constrainer.constrained(t, time, unit)) {
-        if (!delegate.offer(t)) {
-          trafficJam.offer(t);
-        }
+        enter(t);
       }
     } catch (TimeoutException e) {
       return false;
@@ -270,7 +294,7 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
 
   @Override
   public T poll(long timeout, TimeUnit unit) throws InterruptedException {
-    return delegate.poll(timeout, unit);
+    return cleared(delegate.poll(timeout, unit));
   }
 
   @Override
@@ -289,14 +313,18 @@ public class ConstrainedQueue<T> implements BlockingQueue<T>, Closeable {
   @SuppressWarnings("unchecked")
   @Override
   public boolean remove(Object o) {
-    if (trafficJam.remove(o)) { forget((T)o); return true; }
-    if (delegate.remove(o)) { forget((T)o); return true; }
+    boolean jammed;
+    synchronized(trafficJam) {
+      jammed = trafficJam.remove(o);
+    }
+    if (jammed) { forget((T)o); return true; }
+    if (delegate.remove(o)) { cleared((T)o); forget((T)o); return true; }
     return constrainer.remove(o);
   }
 
   @Override
   public T take() throws InterruptedException {
-    return delegate.take();
+    return cleared(delegate.take());
   }
 
   private class QueueIterator implements Iterator<T> {
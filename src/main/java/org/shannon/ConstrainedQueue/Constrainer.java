@@ -33,6 +33,15 @@ public interface Constrainer<T> {
    * @return  All objects unconstrained by the released object.
    */
   Collection<T> notifyReleased(T t);
+  /**
+   * Count the object as released without it ever having been checked, e.g. work released by another queue that is still
+   * out in the wild.  It should go on to constrain others until {@link #notifyReleased(Object)} is called for it.
+   *
+   * @param t The object already released.
+   */
+  default void adopt(T t) {
+    throw new UnsupportedOperationException("adopt is not implemented");
+  }
   /**
    * Forget everything
    */
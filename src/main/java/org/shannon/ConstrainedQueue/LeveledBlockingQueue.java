@@ -0,0 +1,245 @@
+package org.shannon.ConstrainedQueue;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * An unbounded blocking queue that hands out everything at a lower level before anything at a higher one, and within a
+ * level first in first out.  Meant as the delegate of a {@link ConstrainedQueue} when some items matter more than
+ * others:  what the constrainer lets through goes out most important first.
+ *
+ * Unlike a PriorityBlockingQueue, items of the same level keep their order and adding or taking one doesn't depend on
+ * how many are queued.  There are only so many levels, fixed up front.
+ *
+ * Iterators are a snapshot and don't support remove.
+ *
+ * @author Shannon
+ *
+ * @param <T> That which is being queued
+ */
+public class LeveledBlockingQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+  private final ToIntFunction<? super T> levelOf;
+  private final ArrayDeque<T>[] levels;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  //Guarded by lock
+  private int size = 0;
+
+  /**
+   * @param levels    How many levels there are.
+   * @param levelOf   Which level an item goes in, from 0, which goes out first, to levels - 1.  Asked once per item.
+   */
+  public LeveledBlockingQueue(int levels, ToIntFunction<? super T> levelOf) {
+    Preconditions.checkArgument(levels > 0, "Must have at least one level");
+    Preconditions.checkNotNull(levelOf, "Must have a levelOf");
+    this.levelOf = levelOf;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ArrayDeque<T>[] deques = (ArrayDeque<T>[]) new ArrayDeque[levels];
+    for (int i = 0; i < levels; ++i) {
+      deques[i] = new ArrayDeque<T>();
+    }
+    this.levels = deques;
+  }
+
+  private ArrayDeque<T> level(T t) {
+    int level = levelOf.applyAsInt(t);
+    Preconditions.checkArgument(level >= 0 && level < levels.length, "No level %s for %s", level, t);
+    return levels[level];
+  }
+
+  //Holding lock
+  private T dequeue() {
+    for (ArrayDeque<T> level : levels) {
+      T retval = level.poll();
+      if (retval != null) {
+        --size;
+        return retval;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean offer(T t) {
+    Preconditions.checkNotNull(t, "Cannot queue null");
+    ArrayDeque<T> level = level(t);
+    lock.lock();
+    try {
+      level.add(t);
+      ++size;
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(T t) {
+    offer(t);
+  }
+
+  @Override
+  public boolean offer(T t, long timeout, TimeUnit unit) {
+    return offer(t);
+  }
+
+  @Override
+  public T poll() {
+    lock.lock();
+    try {
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public T take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while(size == 0) {
+        notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while(size == 0) {
+        if (nanos <= 0) { return null; }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public T peek() {
+    lock.lock();
+    try {
+      for (ArrayDeque<T> level : levels) {
+        T retval = level.peek();
+        if (retval != null) { return retval; }
+      }
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (o == null) { return false; }
+    lock.lock();
+    try {
+      for (ArrayDeque<T> level : levels) {
+        if (level.remove(o)) {
+          --size;
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    if (o == null) { return false; }
+    lock.lock();
+    try {
+      for (ArrayDeque<T> level : levels) {
+        if (level.contains(o)) { return true; }
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    lock.lock();
+    try {
+      for (ArrayDeque<T> level : levels) {
+        level.clear();
+      }
+      size = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(Collection<? super T> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super T> c, int maxElements) {
+    Preconditions.checkArgument(c != this, "Cannot drain to itself");
+    lock.lock();
+    try {
+      int retval = 0;
+      T t;
+      while(retval < maxElements && (t = dequeue()) != null) {
+        c.add(t);
+        ++retval;
+      }
+      return retval;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    ArrayList<T> snapshot;
+    lock.lock();
+    try {
+      snapshot = new ArrayList<T>(size);
+      for (ArrayDeque<T> level : levels) {
+        snapshot.addAll(level);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return Collections.unmodifiableList(snapshot).iterator();
+  }
+}
@@ -4,23 +4,34 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Function;
 
-import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
 import org.shannon.ShardAllocator.ShardRelocation;
 
 /**
  * This should constrain a ConstrainedQueue to only allow maxThreadsPerNode threads to be
  * affiliated with any given node whether that node be a receiver or releaser of a move.
  *
+ * Waiting relocations are kept first in first out by the pair of nodes they are between, and each node keeps the pairs
+ * it is part of.  Freeing up a node only has to look at the other node of each pair until one has room, rather than at
+ * everything waiting on it, so a node with thousands of moves waiting to a handful of others is cheap to release.
+ *
+ * The allocators only use this when their builder is given it as the constrainer.  Otherwise their plans are
+ * constrained by {@link ConcurrentShardRelocationConstrainer}, which keeps its waits by pair of nodes the same way
+ * without one lock for everything.
+ *
  * @param <Node>    That which controls or has ownership of Shards
  * @param <Shard>   Some fragment of the whole which needs controlling.
  */
 public class ShardRelocationConstrainer<Node, Shard> implements Constrainer<ShardRelocation<Node, Shard>> {
-  private HashSetValuedHashMap<Node, ShardRelocation<Node, Shard>> waitLists = new HashSetValuedHashMap<Node, ShardRelocation<Node, Shard>>();
+  //node -> other node -> relocations waiting between them.  The same wait list is under both nodes
+  private HashMap<Node, LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>>> waitLists
+      = new HashMap<Node, LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>>>();
+  private HashSet<ShardRelocation<Node, Shard>> waiting = new HashSet<ShardRelocation<Node, Shard>>();
   private HashMap<Node, Integer> activeCounts = new HashMap<Node, Integer>();
   private final int maxThreadsPerNode;
 
@@ -34,8 +45,9 @@ public class ShardRelocationConstrainer<Node, Shard> implements Constrainer<Shar
     this.maxThreadsPerNode = maxThreadsPerNode;
   }
   
-  private synchronized boolean constrained(Node n, ShardRelocation<Node, Shard> e) {
-    return activeCounts.getOrDefault(n, 0) == maxThreadsPerNode;
+  private synchronized boolean full(Node n) {
+    //Adopted relocations can push a node past the max
+    return activeCounts.getOrDefault(n, 0) >= maxThreadsPerNode;
   }
   
   private synchronized void incrementActiveCount(Node n) {
@@ -46,43 +58,72 @@ public class ShardRelocationConstrainer<Node, Shard> implements Constrainer<Shar
     activeCounts.computeIfPresent(n, (key, oldValue) -> { return oldValue == 1 ? null : --oldValue; });
   }
 
+  private synchronized LinkedHashSet<ShardRelocation<Node, Shard>> waitList(Node from, Node to) {
+    LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>> partners = waitLists.get(from);
+    return partners == null ? null : partners.get(to);
+  }
+
+  private synchronized void forgetWaitList(Node from, Node to) {
+    LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>> partners = waitLists.get(from);
+    partners.remove(to);
+    if (partners.isEmpty()) {
+      waitLists.remove(from);
+    }
+  }
+
   @Override
   public synchronized boolean constrained(ShardRelocation<Node, Shard> e) {
-    if (!constrained(e.getFromNode(), e) && !constrained(e.getToNode(), e)) {
+    if (!full(e.getFromNode()) && !full(e.getToNode())) {
       incrementActiveCount(e.getFromNode());
       incrementActiveCount(e.getToNode());
       return false;
     } else {
-      waitLists.put(e.getFromNode(), e);
-      waitLists.put(e.getToNode(), e);
+      LinkedHashSet<ShardRelocation<Node, Shard>> waitList = waitList(e.getFromNode(), e.getToNode());
+      if (waitList == null) {
+        waitList = new LinkedHashSet<ShardRelocation<Node, Shard>>();
+        waitLists.computeIfAbsent(e.getFromNode(), (key) -> { return new LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>>(); })
+          .put(e.getToNode(), waitList);
+        waitLists.computeIfAbsent(e.getToNode(), (key) -> { return new LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>>(); })
+          .put(e.getFromNode(), waitList);
+      }
+      waitList.add(e);
+      waiting.add(e);
       return true;
     }
   }
 
+  @Override
+  public synchronized void adopt(ShardRelocation<Node, Shard> e) {
+    incrementActiveCount(e.getFromNode());
+    incrementActiveCount(e.getToNode());
+  }
+
   @Override
   public boolean constrained(ShardRelocation<Node, Shard> e, long time, TimeUnit unit) {
     return constrained(e);  //If a lot of threads are calling this could block I guess, but...
   }
   
-  private synchronized void remove(ShardRelocation<Node, Shard> relocation, Node node) {
-    Set<ShardRelocation<Node, Shard>> waitList = waitLists.get(node);
+  private synchronized void remove(ShardRelocation<Node, Shard> relocation, LinkedHashSet<ShardRelocation<Node, Shard>> waitList) {
     waitList.remove(relocation);
+    waiting.remove(relocation);
     if (waitList.isEmpty()) {
-      waitLists.remove(node);
+      forgetWaitList(relocation.getFromNode(), relocation.getToNode());
+      forgetWaitList(relocation.getToNode(), relocation.getFromNode());
     }
   }
-  private synchronized void remove(ShardRelocation<Node, Shard> relocation) {
-    remove(relocation, relocation.getFromNode());
-    remove(relocation, relocation.getToNode());
-  }
   
   private synchronized void release(Node n, ArrayList<ShardRelocation<Node, Shard>> released) {
     decrementActiveCount(n);
-    Set<ShardRelocation<Node, Shard>> waitList = waitLists.get(n);
-    for(ShardRelocation<Node, Shard> relocation : waitList) {
-      if(!constrained(relocation)) {
+    LinkedHashMap<Node, LinkedHashSet<ShardRelocation<Node, Shard>>> partners = waitLists.get(n);
+    if (partners == null || full(n)) { return; }
+    for(Map.Entry<Node, LinkedHashSet<ShardRelocation<Node, Shard>>> entry : partners.entrySet()) {
+      if(!full(entry.getKey())) {
+        Iterator<ShardRelocation<Node, Shard>> waitList = entry.getValue().iterator();
+        ShardRelocation<Node, Shard> relocation = waitList.next();
+        remove(relocation, entry.getValue());
+        incrementActiveCount(relocation.getFromNode());
+        incrementActiveCount(relocation.getToNode());
         released.add(relocation);
-        remove(relocation);
         return;
       }
     }
@@ -99,40 +140,32 @@ public class ShardRelocationConstrainer<Node, Shard> implements Constrainer<Shar
   @Override
   public synchronized void clear() {
     waitLists.clear();
+    waiting.clear();
     activeCounts.clear();
   }
 
   @Override
   public synchronized boolean isEmpty() {
-    return waitLists.isEmpty();
-  }
-
-  private synchronized boolean modifyAllWaitLists(Function<Collection<ShardRelocation<Node, Shard>>, Boolean> actor) {
-    HashSet<Node> keysToRemove = new HashSet<Node>();
-    boolean retval = false;
-    for(Map.Entry<Node, Collection<ShardRelocation<Node, Shard>>> entry : waitLists.asMap().entrySet()) {
-      retval |= actor.apply(entry.getValue());
-      if (entry.getValue().isEmpty()) {
-        keysToRemove.add(entry.getKey());
-      }
-    }
-    keysToRemove.forEach((node) -> { waitLists.remove(node); } );
-    return retval;
+    return waiting.isEmpty();
   }
  
+  @SuppressWarnings("unchecked")
   @Override
-  public boolean remove(Object o) {
-    return modifyAllWaitLists((set) -> { return set.remove(o); });
+  public synchronized boolean remove(Object o) {
+    if (!waiting.contains(o)) { return false; }
+    ShardRelocation<Node, Shard> relocation = (ShardRelocation<Node, Shard>) o;
+    remove(relocation, waitList(relocation.getFromNode(), relocation.getToNode()));
+    return true;
   }
 
   @Override
-  public int size() {
-    return waitLists.size();
+  public synchronized int size() {
+    return waiting.size();
   }
 
   @Override
-  public boolean contains(Object o) {
-    return waitLists.containsValue(o);
+  public synchronized boolean contains(Object o) {
+    return waiting.contains(o);
   }
 
   @Override
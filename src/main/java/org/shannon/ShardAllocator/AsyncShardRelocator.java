@@ -0,0 +1,24 @@
+package org.shannon.ShardAllocator;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * That which understands how to relocate shards without blocking the caller, for relocators built on non-blocking
+ * clients.  Use instead of a {@link ShardRelocator}; no thread is held while a move is in flight.
+ *
+ * Called from the thread handing out moves, so it should start the move and return rather than do the work.
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+@FunctionalInterface
+public interface AsyncShardRelocator<Node, Shard> {
+  /**
+   * Starts the relocation.
+   *
+   * @param relocation  The relocation to make.
+   * @return  Completes once the relocation is made, or exceptionally if it could not be.  If it can be turned into a
+   *          CompletableFuture, cancelling that is how the move is interrupted.
+   */
+  CompletionStage<Void> relocate(ShardRelocation<Node, Shard> relocation);
+}
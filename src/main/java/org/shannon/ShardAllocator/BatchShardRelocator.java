@@ -0,0 +1,25 @@
+package org.shannon.ShardAllocator;
+
+import java.util.List;
+
+/**
+ * That which understands how to relocate many shards between the same pair of nodes at once, e.g. with one message
+ * instead of one per shard.  Use instead of a {@link ShardRelocator}.
+ *
+ * Each batch counts as a single move against the number of moves any node may be part of at a time.
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+@FunctionalInterface
+public interface BatchShardRelocator<Node, Shard> {
+  /**
+   * Moves every one of the shards from fromNode to toNode.  If any of them cannot be moved this should throw; what did
+   * get moved is found out by discovering the distribution again.
+   *
+   * @param fromNode  Node that needs to release control if any.  Null if the shards are new.
+   * @param toNode    Node that needs to receive control if any.  Null if the shards are going away.
+   * @param shards    The shards to move.  Never empty and never more than the max batch size.
+   */
+  void relocate(Node fromNode, Node toNode, List<Shard> shards);
+}
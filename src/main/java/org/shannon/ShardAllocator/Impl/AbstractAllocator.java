@@ -0,0 +1,1205 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ConstrainedQueue.Constrainer;
+import org.shannon.ShardAllocator.AsyncShardRelocator;
+import org.shannon.ShardAllocator.BatchShardRelocator;
+import org.shannon.ShardAllocator.DistributionDiscoverer;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardAllocator;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardRelocator;
+import org.shannon.ShardAllocator.ShardSize;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Everything an allocator needs except for deciding what to move.  Keeps track of the universes and the last known
+ * distribution, and whenever any of them change it plans via {@link #determineMoves()} and relocates until there is
+ * nothing left to do.
+ *
+ * Subclasses must call {@link #allocateAsync()} once they are fully constructed.
+ *
+ * The universes are changed in place by the add and remove calls, and subclasses are told what changed so that they
+ * can plan just the change.  Anything touching the universes or the distribution holds the allocator's monitor,
+ * including {@link #determineMoves()}.
+ *
+ * Notifications can be coalesced:  rather than starting a round right away, a round is scheduled once notifications
+ * have been quiet for a while, or once the oldest notification not yet planned for has waited long enough, whichever
+ * comes first.  A burst of notifications then costs one round instead of a round each, each interrupting the last.
+ *
+ * A new round normally interrupts the moves of the one before it.  It can instead keep them going and plan around
+ * them; see {@link Builder#keepInFlightMoves(boolean)}.
+ *
+ * How many moves each node takes part in at once is fixed by default.  It can instead be adapted to how each node's
+ * moves are going; see {@link Builder#adaptiveConcurrency(int, int, long, TimeUnit)}.
+ *
+ * Moves can also be limited across the whole cluster by moves and by bytes per second.  Every move waits for its share
+ * of both before it is handed to the relocator.  Either limit can be changed while rebalancing; see
+ * {@link #setMaxMovesPerSecond(double)} and {@link #setMaxBytesPerSecond(double)}.
+ *
+ * By default the first move to fail ends the round.  Moves can instead be given a timeout and retried with backoff,
+ * and nodes that keep failing can be left alone for a while, so that one bad node doesn't hold up the rest; see
+ * {@link Builder#relocationTimeout(long, TimeUnit)}, {@link Builder#retries(int, long, long, TimeUnit)} and
+ * {@link Builder#quarantine(int, long, TimeUnit)}.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public abstract class AbstractAllocator<Node, Shard> implements ShardAllocator<Node, Shard> {
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  protected HashSet<Node> nodeUniverse;
+  protected HashSet<Shard> shardUniverse;
+  protected Map<Node, HashSet<Shard>> distribution;
+  protected final int maxThreadsPerNode;
+  protected final SplitBrainResolver<Node, Shard> splitBrainResolver;
+  protected final NodeCapacity<Node> nodeCapacity;
+  private final ExecutorService parentExecutor = Executors.newSingleThreadExecutor();
+  private Future<?> relocationJob;
+  private final ShardRelocator<Node, Shard> relocator;
+  private final AsyncShardRelocator<Node, Shard> asyncRelocator;
+  private final BatchShardRelocator<Node, Shard> batchRelocator;
+  private final int maxBatchSize;
+  private final Executor relocationExecutor;
+  //Only when it is ours to shut down
+  private final ExecutorService ownedRelocationExecutor;
+  private final DistributionDiscoverer<Node, Shard> distDiscoverer;
+  private volatile boolean balancing = false;
+  private final long quietPeriodNanos;
+  private final long maxDelayNanos;
+  private final ScheduledExecutorService coalescer;
+  private ScheduledFuture<?> scheduledRound;
+  private long scheduledSince;
+  private long scheduledGeneration = 0;
+  private final boolean keepInFlightMoves;
+  private volatile boolean closing = false;
+  //Moves handed to the relocator and not yet done, and the queue to tell when they are
+  private final HashMap<ShardRelocation<Node, Shard>, Dispatched> inFlight = new HashMap<ShardRelocation<Node, Shard>, Dispatched>();
+  private ConstrainedQueue<ShardRelocation<Node, Shard>> inFlightMoves;
+  //Null when every node gets maxThreadsPerNode
+  private final AdaptiveConcurrency<Node> concurrency;
+  //Null when moves are constrained per node
+  private final Supplier<? extends Constrainer<ShardRelocation<Node, Shard>>> constrainers;
+  private final TokenBucket moveRate;
+  private final TokenBucket byteRate;
+  //Null when there is no byte limit to be had
+  private final ShardSize<Shard> shardSize;
+  private final long relocationTimeoutNanos;
+  private final int maxAttempts;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  //Null when nodes are never quarantined
+  private final NodeQuarantine<Node> quarantine;
+  //Times out moves and puts them back after backing off.  Null when neither can happen
+  private final ScheduledExecutorService retryScheduler;
+  //Moves backing off, until they are taken from their queue again
+  private final ConcurrentHashMap<ShardRelocation<Node, Shard>, Retry> retrying = new ConcurrentHashMap<ShardRelocation<Node, Shard>, Retry>();
+  //How often the dispatch loop looks for moves still to settle when there is nothing to take
+  private static final long SETTLE_POLL_MILLIS = 10;
+
+  protected AbstractAllocator(Builder<Node, Shard, ?, ?> builder) {
+    Preconditions.checkArgument(builder.nodes != null  && !builder.nodes.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    Preconditions.checkArgument(builder.shards != null  && !builder.shards.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    Preconditions.checkNotNull(builder.distDiscoverer, "Must have a distDiscoverer");
+    int relocators = (builder.relocator == null ? 0 : 1) + (builder.asyncRelocator == null ? 0 : 1)
+        + (builder.batchRelocator == null ? 0 : 1);
+    Preconditions.checkArgument(relocators > 0, "Must have a relocator");
+    Preconditions.checkArgument(relocators == 1, "Can only have one of relocator, asyncRelocator and batchRelocator");
+    Preconditions.checkArgument(builder.maxBatchSize > 0, "Batches must hold at least one move");
+    Preconditions.checkNotNull(builder.splitBrainResolver, "Must have a splitBrainResolver");
+    Preconditions.checkNotNull(builder.nodeCapacity, "Must have a nodeCapacity");
+    nodeUniverse = new HashSet<Node>(builder.nodes);
+    shardUniverse = new HashSet<Shard>(builder.shards);
+    this.distribution = builder.distribution == null ? new HashMap<Node, HashSet<Shard>>() : deepEnoughClone(builder.distribution);
+    this.maxThreadsPerNode = builder.relocatingThreadsPerNode;
+    this.distDiscoverer = builder.distDiscoverer;
+    this.relocator = builder.relocator;
+    this.asyncRelocator = builder.asyncRelocator;
+    this.batchRelocator = builder.batchRelocator;
+    this.maxBatchSize = builder.maxBatchSize;
+    if (builder.virtualThreads && !RelocationThreads.virtualThreadsAvailable()) {
+      logger.warn("AbstractAllocator - Virtual threads need JDK 21 or later. Relocating on platform threads.");
+    }
+    this.ownedRelocationExecutor = builder.relocationExecutor == null && builder.asyncRelocator == null
+        ? RelocationThreads.newExecutor(builder.virtualThreads) : null;
+    this.relocationExecutor = builder.relocationExecutor == null ? ownedRelocationExecutor : builder.relocationExecutor;
+    this.splitBrainResolver = builder.splitBrainResolver;
+    this.nodeCapacity = builder.nodeCapacity;
+    Preconditions.checkArgument(builder.quietPeriod >= 0 && builder.maxDelay >= 0, "Cannot coalesce for negative time");
+    this.quietPeriodNanos = builder.coalesceUnit.toNanos(builder.quietPeriod);
+    this.maxDelayNanos = builder.coalesceUnit.toNanos(builder.maxDelay);
+    this.keepInFlightMoves = builder.keepInFlightMoves;
+    this.coalescer = quietPeriodNanos > 0 && maxDelayNanos > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+    this.concurrency = builder.latencyTargetNanos == 0 ? null : new AdaptiveConcurrency<Node>(builder.minThreadsPerNode
+        , builder.maxThreadsPerNode, builder.relocatingThreadsPerNode, builder.latencyTargetNanos);
+    Preconditions.checkArgument(builder.constrainers == null || concurrency == null
+        , "Can only have one of constrainer and adaptiveConcurrency");
+    this.constrainers = builder.constrainers;
+    this.moveRate = new TokenBucket(builder.maxMovesPerSecond);
+    this.shardSize = builder.shardSize;
+    Preconditions.checkArgument(shardSize != null || Double.isInfinite(builder.maxBytesPerSecond), "Limiting bytes needs a shardSize");
+    this.byteRate = new TokenBucket(builder.maxBytesPerSecond);
+    this.relocationTimeoutNanos = builder.relocationTimeoutNanos;
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoffNanos = builder.initialBackoffNanos;
+    this.maxBackoffNanos = builder.maxBackoffNanos;
+    this.quarantine = builder.quarantineAfter == 0 ? null : new NodeQuarantine<Node>(builder.quarantineAfter, builder.quarantineNanos);
+    this.retryScheduler = relocationTimeoutNanos > 0 || maxAttempts > 1 || quarantine != null
+        ? Executors.newSingleThreadScheduledExecutor() : null;
+  }
+
+  private HashMap<Node, HashSet<Shard>> deepEnoughClone(Map<Node, Collection<Shard>> map) {
+    HashMap<Node, HashSet<Shard>> retval = new HashMap<Node, HashSet<Shard>>();
+    for (Map.Entry<Node, Collection<Shard>> entry : map.entrySet()) {
+      retval.put(entry.getKey(), new HashSet<Shard>(entry.getValue()));
+    }
+    return retval;
+  }
+
+  /**
+   * Works out what needs to move given the current nodeUniverse, shardUniverse and distribution.  Called from the
+   * relocation thread.
+   *
+   * @return  The moves that need to happen.
+   */
+  protected abstract ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves();
+
+  /**
+   * Called after shards have been added to shardUniverse.
+   *
+   * @param shards    Shards that are new.
+   */
+  protected void shardsAdded(Collection<Shard> shards) { }
+
+  /**
+   * Called after shards have been removed from shardUniverse.
+   *
+   * @param shards    Shards that were known and are now gone.
+   */
+  protected void shardsRemoved(Collection<Shard> shards) { }
+
+  /**
+   * Called after nodes have been added to nodeUniverse.
+   *
+   * @param nodes Nodes that are new.
+   */
+  protected void nodesAdded(Collection<Node> nodes) { }
+
+  /**
+   * Called after nodes have been removed from nodeUniverse.
+   *
+   * @param nodes Nodes that were known and are now gone.
+   */
+  protected void nodesRemoved(Collection<Node> nodes) { }
+
+  /**
+   * Called before a universe or the distribution is replaced wholesale.
+   */
+  protected void replacing() { }
+
+  /**
+   * Called once a round of moves is over.
+   *
+   * @param succeeded Whether every move was made.
+   * @return  Whether the distribution needs to be discovered before planning again.
+   */
+  protected boolean needsDiscovery(boolean succeeded) {
+    return true;
+  }
+
+  @Override
+  public void awaitRebalance() {
+    while(true) {
+      Future<?> job;
+      synchronized(this) {
+        while(scheduledRound != null) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            //Don't care just check again
+          }
+        }
+        if (!balancing && relocationJob.isDone()) { return; }
+        job = relocationJob;
+      }
+      try {
+        job.get();
+      } catch (InterruptedException | CancellationException e) {
+        //Don't care just check again
+      } catch (ExecutionException e) {
+        logger.error("Caught an ExecutionException trying to relocate. This should not happen.", e);
+      }
+    }
+  }
+
+  /**
+   * Something changed.  Starts a round now, or when the quiet period or max delay is up if coalescing.
+   */
+  protected synchronized void requestAllocation() {
+    if (coalescer == null) {
+      allocateAsync();
+      return;
+    }
+    long now = System.nanoTime();
+    if (scheduledRound == null) {
+      scheduledSince = now;
+    } else {
+      scheduledRound.cancel(false);
+    }
+    long delay = Math.min(quietPeriodNanos, scheduledSince + maxDelayNanos - now);
+    long generation = ++scheduledGeneration;
+    scheduledRound = coalescer.schedule(() -> { startScheduledRound(generation); }, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+  }
+
+  private synchronized void startScheduledRound(long generation) {
+    //Rescheduled while waiting on the monitor; the newer one will start the round
+    if (generation != scheduledGeneration) { return; }
+    scheduledRound = null;
+    notifyAll();
+    allocateAsync();
+  }
+
+  protected synchronized void allocateAsync() {
+    if (closing) { return; }
+    balancing = true;
+    if (relocationJob != null) { relocationJob.cancel(true); }
+    relocationJob = parentExecutor.submit(() -> {
+      ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+      HashMap<Shard, Future<?>> carried = new HashMap<Shard, Future<?>>();
+      HashMap<ShardRelocation<Node, Shard>, List<ShardRelocation<Node, Shard>>> batches
+          = new HashMap<ShardRelocation<Node, Shard>, List<ShardRelocation<Node, Shard>>>();
+      final ConstrainedQueue<ShardRelocation<Node, Shard>> moves;
+      synchronized(this) {
+        commitInFlight();
+        moves = carryOver(batch(determineMoves(), batches), carried);
+      }
+      futures.addAll(carried.values());
+      if((!moves.isEmpty() || !futures.isEmpty()) && !Thread.interrupted()) {
+        boolean succeeded = false;
+        try {
+          while (!moves.isEmpty() || unsettled(moves)) {
+            //Moves can come back to be retried, so with retries the loop keeps looking until everything has settled
+            final ShardRelocation<Node, Shard> move = retryScheduler == null ? moves.take()
+                : moves.poll(SETTLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (move == null) { continue; }
+            Retry retry = retrying.get(move);
+            if (retry == null || retry.queue != moves || !retrying.remove(move, retry)) {
+              retry = new Retry(moves, batches.getOrDefault(move, Collections.singletonList(move)), 1, null);
+            }
+            long quarantined = quarantine == null ? 0 : quarantine.remainingNanos(move);
+            if (quarantined > 0) {
+              //Back on the queue once its nodes are let out, without holding up moves between other nodes meanwhile
+              retrying.put(move, retry);
+              later(move, retry, quarantined);
+              moves.forget(move);
+              continue;
+            }
+            //Don't move a shard again before it gets where an earlier round sent it.  A carried move that failed comes
+            //back as a retry sharing its result, which can't be done before the retry is made
+            for (ShardRelocation<Node, Shard> member : retry.batch) {
+              Future<?> previous = carried.remove(member.getShard());
+              if (previous != null && previous != retry.result) { previous.get(); }
+            }
+            if (!retry.paid) {
+              if (!ready(retry.batch)) {
+                //Waiting on the rate limits shouldn't hold the move's nodes, so it gives up its place meanwhile and goes
+                //back through the constraints once paid for
+                moves.forget(move);
+                throttle(retry.batch);
+                retry.paid = true;
+                retrying.put(move, retry);
+                moves.add(move);
+                continue;
+              }
+              throttle(retry.batch);
+            }
+            futures.add(dispatch(move, retry));
+          }
+          //With retries a move that runs out of attempts doesn't stop the others, but the round still fails
+          ExecutionException failed = null;
+          for(Future<?> future : futures) {
+            try {
+              future.get();
+            } catch (ExecutionException e) {
+              if (maxAttempts == 1) { throw e; }
+              failed = failed == null ? e : failed;
+            }
+          }
+          if (failed != null) { throw failed; }
+          succeeded = true;
+        } catch(Throwable e) {
+          logger.error("AbstractAllocator.allocateAsync() - Caught Expection while trying to move shards.", e);
+          //When kept, whatever is already moving keeps moving and is picked up by the next round
+          if (!keepInFlightMoves || closing) {
+            interruptInFlight();
+          }
+        }
+        synchronized(this) {
+          if (needsDiscovery(succeeded)) {
+            discoverDistribution();
+          }
+        }
+        allocateAsync();
+      } else {
+        if (!moves.isEmpty()) {
+          //Cancelled after planning, so none of these moves will be made
+          synchronized(this) {
+            if (needsDiscovery(false)) {
+              discoverDistribution();
+            }
+          }
+        }
+        balancing = false;
+      }
+    });
+  }
+
+  private boolean limitsBytes() {
+    return shardSize != null && !Double.isInfinite(byteRate.rate());
+  }
+
+  private long bytes(List<ShardRelocation<Node, Shard>> batch) {
+    long retval = 0;
+    for (ShardRelocation<Node, Shard> member : batch) {
+      retval += shardSize.bytes(member.getShard());
+    }
+    return retval;
+  }
+
+  //Whether the batch's share of the rate limits is there to be had without waiting
+  private boolean ready(List<ShardRelocation<Node, Shard>> batch) {
+    return moveRate.ready(batch.size()) && (!limitsBytes() || byteRate.ready(bytes(batch)));
+  }
+
+  //Waits for the batch's share of the rate limits
+  private void throttle(List<ShardRelocation<Node, Shard>> batch) throws InterruptedException {
+    moveRate.acquire(batch.size());
+    if (limitsBytes()) {
+      byteRate.acquire(bytes(batch));
+    }
+  }
+
+  /**
+   * Changes how many moves a second may be handed to the relocator across the whole cluster.  Takes effect right away,
+   * even for a move already waiting.
+   *
+   * @param maxMovesPerSecond   Positive.  Infinite for no limit.
+   */
+  public void setMaxMovesPerSecond(double maxMovesPerSecond) {
+    moveRate.setRate(maxMovesPerSecond);
+  }
+
+  /**
+   * Changes how many bytes a second may be handed to the relocator across the whole cluster.  Takes effect right away,
+   * even for a move already waiting.  Needs the allocator to have been built with a shardSize.
+   *
+   * @param maxBytesPerSecond   Positive.  Infinite for no limit.
+   */
+  public void setMaxBytesPerSecond(double maxBytesPerSecond) {
+    Preconditions.checkState(shardSize != null, "Limiting bytes needs a shardSize");
+    byteRate.setRate(maxBytesPerSecond);
+  }
+
+  //Whether anything of this round's may still come back to queue to be retried
+  private boolean unsettled(ConstrainedQueue<ShardRelocation<Node, Shard>> queue) {
+    if (retryScheduler == null) { return false; }
+    synchronized(inFlight) {
+      if (!inFlight.isEmpty()) { return true; }
+    }
+    for (Retry retry : retrying.values()) {
+      if (retry.queue == queue) { return true; }
+    }
+    return false;
+  }
+
+  /*
+   * A move that is to be tried again, or held back while one of its nodes is quarantined.  It goes back on the queue it
+   * came from once it has waited, unless that queue has been replaced by then.  Its result is shared by every attempt
+   * so that whoever waits on it waits for the last.
+   */
+  private final class Retry {
+    private final ConstrainedQueue<ShardRelocation<Node, Shard>> queue;
+    private final List<ShardRelocation<Node, Shard>> batch;
+    private final int attempt;
+    //Null until it is first dispatched
+    private final CompletableFuture<Void> result;
+    //Whether this attempt has had its share of the rate limits.  Only touched by the dispatching thread
+    private boolean paid = false;
+
+    private Retry(ConstrainedQueue<ShardRelocation<Node, Shard>> queue, List<ShardRelocation<Node, Shard>> batch
+        , int attempt, CompletableFuture<Void> result) {
+      this.queue = queue;
+      this.batch = batch;
+      this.attempt = attempt;
+      this.result = result;
+    }
+
+    private void abandon() {
+      if (result != null) {
+        result.completeExceptionally(new CancellationException("Abandoned while backing off"));
+      }
+    }
+  }
+
+  private void later(ShardRelocation<Node, Shard> move, Retry retry, long delayNanos) {
+    try {
+      retryScheduler.schedule(() -> {
+        boolean current;
+        synchronized(inFlight) {
+          current = retry.queue == inFlightMoves && !closing;
+        }
+        if (!current) {
+          if (retrying.remove(move, retry)) { retry.abandon(); }
+        } else if (retrying.get(move) == retry) {
+          retry.queue.add(move);
+        }
+      }, delayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      //Closing
+      if (retrying.remove(move, retry)) { retry.abandon(); }
+    }
+  }
+
+  //Exponential with jitter, so that moves that failed together don't all come back together
+  private long backoffNanos(int attempt) {
+    long cap = (long) Math.min(maxBackoffNanos, initialBackoffNanos * Math.pow(2, attempt - 1));
+    return ThreadLocalRandom.current().nextLong(cap / 2, cap + 1);
+  }
+
+  private Future<?> dispatch(ShardRelocation<Node, Shard> move, Retry retry) {
+    Dispatched retval = new Dispatched(move, retry.batch, retry.attempt, retry.result);
+    //Tracked before it can run so that it can't finish before it is tracked
+    synchronized(inFlight) {
+      inFlight.put(move, retval);
+    }
+    if (asyncRelocator != null) {
+      retval.start();
+      return retval.result;
+    }
+    try {
+      relocationExecutor.execute(retval);
+    } catch (RejectedExecutionException e) {
+      //Never going to run, so finish it here for the sake of whoever waits on it
+      retval.interrupt();
+      retval.run();
+      throw e;
+    }
+    return retval.result;
+  }
+
+  //Interrupts every move still being made and waits for the relocator to let go of them
+  private void interruptInFlight() {
+    ArrayList<Dispatched> dispatched;
+    synchronized(inFlight) {
+      dispatched = new ArrayList<Dispatched>(inFlight.values());
+    }
+    dispatched.forEach((move) -> { move.interrupt(); });
+    //Nothing backing off is coming back
+    retrying.forEach((move, retry) -> { if (retrying.remove(move, retry)) { retry.abandon(); } });
+    //TODO: is 5 minutes good for everyone?  probably OK; we'll loop until we're good.
+    long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+    try {
+      for (Dispatched move : dispatched) {
+        try {
+          move.result.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException | CancellationException e) {
+          //Failing is as good as stopping
+        }
+      }
+    } catch (InterruptedException e) {
+      logger.warn("AbstractAllocator.allocateAsync() - Captured InterruptExcpetion", e);
+    } catch (TimeoutException e) {
+      logger.warn("AbstractAllocator.allocateAsync() - Timed out waiting for relocations to stop", e);
+    }
+  }
+
+  /*
+   * A move handed to the relocator.  Its result is done once the relocator has let go of it, even when interrupted, so
+   * that waiting on it means the move is really over.  Blocking relocators are run on the relocation executor; async
+   * ones are started by start() and hold no thread.  With a batchRelocator, move stands in for the whole batch as far as
+   * the constraints are concerned.  With retries, the result is only done once the last attempt is.
+   */
+  private final class Dispatched implements Runnable {
+    private final ShardRelocation<Node, Shard> move;
+    private final List<ShardRelocation<Node, Shard>> batch;
+    private final int attempt;
+    private final CompletableFuture<Void> result;
+    private Thread runner;
+    private CompletionStage<Void> stage;
+    private boolean interrupted = false;
+    private boolean timedOut = false;
+    private ScheduledFuture<?> timer;
+    private long started;
+
+    private Dispatched(ShardRelocation<Node, Shard> move, List<ShardRelocation<Node, Shard>> batch, int attempt
+        , CompletableFuture<Void> result) {
+      this.move = move;
+      this.batch = batch;
+      this.attempt = attempt;
+      this.result = result == null ? new CompletableFuture<Void>() : result;
+    }
+
+    //Holding this
+    private void startTimer() {
+      if (relocationTimeoutNanos == 0) { return; }
+      try {
+        timer = retryScheduler.schedule(() -> { timeOut(); }, relocationTimeoutNanos, TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        //Closing, so it will be interrupted anyway
+      }
+    }
+
+    @Override
+    public void run() {
+      Throwable failure = null;
+      try {
+        synchronized(this) {
+          if (interrupted) { throw new CancellationException("Interrupted before it started"); }
+          runner = Thread.currentThread();
+          started = System.nanoTime();
+          startTimer();
+        }
+        if (batchRelocator != null) {
+          ArrayList<Shard> shards = new ArrayList<Shard>(batch.size());
+          batch.forEach((member) -> { shards.add(member.getShard()); });
+          batchRelocator.relocate(move.getFromNode(), move.getToNode(), shards);
+        } else {
+          relocator.relocate(move);
+        }
+      } catch (Throwable e) {
+        failure = e;
+      } finally {
+        synchronized(this) {
+          runner = null;
+          //The pool thread goes on to other work
+          Thread.interrupted();
+        }
+      }
+      finish(failure);
+    }
+
+    private void start() {
+      CompletionStage<Void> started;
+      synchronized(this) {
+        this.started = System.nanoTime();
+        startTimer();
+      }
+      try {
+        started = asyncRelocator.relocate(move);
+      } catch (Throwable e) {
+        finish(e);
+        return;
+      }
+      synchronized(this) {
+        stage = started;
+        if (interrupted || timedOut) { cancel(started); }
+      }
+      started.whenComplete((ignored, failure) -> { finish(failure); });
+    }
+
+    private void finish(Throwable failure) {
+      boolean counts;
+      synchronized(this) {
+        if (timer != null) { timer.cancel(false); }
+        if (timedOut && failure != null) {
+          failure = new TimeoutException("Took longer than " + relocationTimeoutNanos + "ns to relocate " + move).initCause(failure);
+        }
+        //Interrupted moves say nothing about how their nodes are doing
+        counts = !interrupted;
+        if (concurrency != null && counts) {
+          concurrency.record(move, started, failure == null);
+        }
+      }
+      if (quarantine != null && counts) {
+        quarantine.record(move, failure == null);
+      }
+      boolean again = counts && failure != null && attempt < maxAttempts && !closing;
+      ConstrainedQueue<ShardRelocation<Node, Shard>> current;
+      Retry retry = null;
+      synchronized(inFlight) {
+        current = inFlightMoves;
+        //Counted as backing off before it stops counting as in flight, so the round never sees it as neither
+        if (again) {
+          retry = new Retry(current, batch, attempt + 1, result);
+          retrying.put(move, retry);
+        }
+        inFlight.remove(move);
+      }
+      current.forget(move);
+      if (again) {
+        logger.warn("AbstractAllocator - Attempt {} of {} to relocate {} failed. Trying again.", attempt, maxAttempts, move, failure);
+        later(move, retry, backoffNanos(attempt));
+        return;
+      }
+      if (failure == null) {
+        result.complete(null);
+      } else {
+        result.completeExceptionally(failure);
+      }
+    }
+
+    private synchronized void interrupt() {
+      interrupted = true;
+      if (runner != null) { runner.interrupt(); }
+      if (stage != null) { cancel(stage); }
+    }
+
+    //Same as being interrupted, except that it counts as a failure
+    private synchronized void timeOut() {
+      if (interrupted) { return; }
+      timedOut = true;
+      if (runner != null) { runner.interrupt(); }
+      if (stage != null) { cancel(stage); }
+    }
+
+    private void cancel(CompletionStage<Void> started) {
+      try {
+        started.toCompletableFuture().cancel(true);
+      } catch (UnsupportedOperationException e) {
+        //No way to interrupt it, so wait for it like anything else
+      }
+    }
+  }
+
+  private ArrayList<ShardRelocation<Node, Shard>> inFlightBatches() {
+    ArrayList<ShardRelocation<Node, Shard>> retval = new ArrayList<ShardRelocation<Node, Shard>>();
+    inFlight.values().forEach((dispatched) -> { retval.addAll(dispatched.batch); });
+    return retval;
+  }
+
+  /*
+   * With a batchRelocator, moves between the same pair of nodes are grouped into batches of up to maxBatchSize.  Only
+   * the first move of each batch goes in the queue, so that a batch counts once against the constraints.
+   */
+  private ConstrainedQueue<ShardRelocation<Node, Shard>> batch(ConstrainedQueue<ShardRelocation<Node, Shard>> planned
+      , Map<ShardRelocation<Node, Shard>, List<ShardRelocation<Node, Shard>>> batches) {
+    if (batchRelocator == null || planned.isEmpty()) { return planned; }
+    ArrayList<ShardRelocation<Node, Shard>> plan = new ArrayList<ShardRelocation<Node, Shard>>();
+    planned.drainTo(plan);
+    byPriority(plan);
+    //Keyed by from and to, either of which may be null
+    HashMap<List<Node>, List<ShardRelocation<Node, Shard>>> filling = new HashMap<List<Node>, List<ShardRelocation<Node, Shard>>>();
+    ConstrainedQueue<ShardRelocation<Node, Shard>> retval = newMoves();
+    for (ShardRelocation<Node, Shard> move : plan) {
+      List<Node> pair = Arrays.asList(move.getFromNode(), move.getToNode());
+      List<ShardRelocation<Node, Shard>> batch = filling.get(pair);
+      if (batch == null || batch.size() == maxBatchSize) {
+        batch = new ArrayList<ShardRelocation<Node, Shard>>();
+        filling.put(pair, batch);
+        batches.put(move, batch);
+        retval.add(move);
+      }
+      batch.add(move);
+    }
+    return retval;
+  }
+
+  //Whatever is added first gets the first room under the constraints, so the most urgent moves are added first
+  private void byPriority(List<ShardRelocation<Node, Shard>> plan) {
+    plan.sort((a, b) -> { return a.getPriority().compareTo(b.getPriority()); });
+  }
+
+  //Moves an earlier round started are as good as made as far as planning is concerned
+  private void commitInFlight() {
+    synchronized(inFlight) {
+      for (ShardRelocation<Node, Shard> move : inFlightBatches()) {
+        if (move.getFromNode() != null && distribution.containsKey(move.getFromNode())) {
+          distribution.get(move.getFromNode()).remove(move.getShard());
+        }
+        if (move.getToNode() != null) {
+          distribution.computeIfAbsent(move.getToNode(), (node) -> { return new HashSet<Shard>(); }).add(move.getShard());
+        }
+      }
+    }
+  }
+
+  private ConstrainedQueue<ShardRelocation<Node, Shard>> newMoves() {
+    if (constrainers != null) { return AbstractPlanner.newMoves(constrainers.get()); }
+    if (concurrency == null) { return AbstractPlanner.newMoves(maxThreadsPerNode); }
+    return AbstractPlanner.newMoves(concurrency::limit);
+  }
+
+  /*
+   * Moves still being made count against the constraints of the new plan, and it is the new plan that is told when they
+   * are done.  They have to be adopted before anything planned is let through, so the plan is moved to a fresh queue
+   * after them.  Planners constrain by maxThreadsPerNode, so with adaptive concurrency or a constrainer of the caller's the
+   * plan is always moved.
+   */
+  private ConstrainedQueue<ShardRelocation<Node, Shard>> carryOver(ConstrainedQueue<ShardRelocation<Node, Shard>> planned
+      , Map<Shard, Future<?>> carried) {
+    synchronized(inFlight) {
+      ConstrainedQueue<ShardRelocation<Node, Shard>> retval = planned;
+      if (!inFlight.isEmpty() || concurrency != null || constrainers != null) {
+        retval = newMoves();
+        for (Map.Entry<ShardRelocation<Node, Shard>, Dispatched> entry : inFlight.entrySet()) {
+          retval.adopt(entry.getKey());
+          entry.getValue().batch.forEach((member) -> { carried.put(member.getShard(), entry.getValue().result); });
+        }
+        ArrayList<ShardRelocation<Node, Shard>> plan = new ArrayList<ShardRelocation<Node, Shard>>();
+        planned.drainTo(plan);
+        byPriority(plan);
+        retval.addAll(plan);
+      }
+      inFlightMoves = retval;
+      return retval;
+    }
+  }
+
+  private void discoverDistribution() {
+    distribution = deepEnoughClone(distDiscoverer.discoverDistribution());
+  }
+
+  @Override
+  public synchronized void notifyShardsChange(Collection<Shard> shards) {
+    replacing();
+    this.shardUniverse = new HashSet<Shard>(shards);
+    requestAllocation();
+  }
+
+  @Override
+  public synchronized void notifyNodesChange(Collection<Node> nodeUniverse) {
+    replacing();
+    this.nodeUniverse = new HashSet<Node>(nodeUniverse);
+    if (concurrency != null) { concurrency.retain(this.nodeUniverse); }
+    if (quarantine != null) { quarantine.retain(this.nodeUniverse); }
+    requestAllocation();
+  }
+
+  @Override
+  public synchronized void notifyDistributionChange(Map<Node, Collection<Shard>> distribution) {
+    replacing();
+    this.distribution = distribution == null ? new HashMap<Node, HashSet<Shard>>() : deepEnoughClone(distribution);
+    requestAllocation();
+  }
+
+  @Override
+  public synchronized void addShards(Collection<Shard> shards) {
+    ArrayList<Shard> added = new ArrayList<Shard>();
+    shards.forEach((shard) -> { if (shardUniverse.add(shard)) { added.add(shard); } });
+    if (!added.isEmpty()) {
+      shardsAdded(added);
+      requestAllocation();
+    }
+  }
+
+  @Override
+  public synchronized void removeShards(Collection<Shard> shards) {
+    ArrayList<Shard> removed = new ArrayList<Shard>();
+    shards.forEach((shard) -> { if (shardUniverse.remove(shard)) { removed.add(shard); } });
+    if (!removed.isEmpty()) {
+      shardsRemoved(removed);
+      requestAllocation();
+    }
+  }
+
+  @Override
+  public synchronized void addNodes(Collection<Node> nodes) {
+    ArrayList<Node> added = new ArrayList<Node>();
+    nodes.forEach((node) -> { if (nodeUniverse.add(node)) { added.add(node); } });
+    if (!added.isEmpty()) {
+      nodesAdded(added);
+      requestAllocation();
+    }
+  }
+
+  @Override
+  public synchronized void removeNodes(Collection<Node> nodes) {
+    ArrayList<Node> removed = new ArrayList<Node>();
+    nodes.forEach((node) -> { if (nodeUniverse.remove(node)) { removed.add(node); } });
+    if (!removed.isEmpty()) {
+      if (concurrency != null) { concurrency.retain(nodeUniverse); }
+      if (quarantine != null) { quarantine.retain(nodeUniverse); }
+      nodesRemoved(removed);
+      requestAllocation();
+    }
+  }
+
+  @Override
+  public void close() {
+    closing = true;
+    if (coalescer != null) {
+      synchronized(this) {
+        if (scheduledRound != null) {
+          scheduledRound.cancel(false);
+          scheduledRound = null;
+          notifyAll();
+        }
+      }
+      coalescer.shutdownNow();
+    }
+    if (!relocationJob.isDone()) {
+      relocationJob.cancel(true);
+      try {
+        relocationJob.get();
+      } catch (InterruptedException | ExecutionException | CancellationException e) {
+        logger.info("AbstractAllocator.close - Exception caught closing. Assuming all is done.", e);
+      }
+    }
+    parentExecutor.shutdownNow();
+    if (retryScheduler != null) {
+      retryScheduler.shutdownNow();
+    }
+    if (ownedRelocationExecutor != null) {
+      ownedRelocationExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Gathers what every allocator needs.  Subclasses add their own knobs and build the allocator.
+   *
+   * @param <Node>    That which controls or has ownership of Shards
+   * @param <Shard>   Some fragment of the whole which needs controlling.
+   * @param <A>       The allocator being built.
+   * @param <B>       The concrete builder, so that chained calls keep their type.
+   */
+  public static abstract class Builder<Node, Shard, A extends AbstractAllocator<Node, Shard>, B extends Builder<Node, Shard, A, B>> {
+    private Collection<Node> nodes;
+    private Collection<Shard> shards;
+    private Map<Node, Collection<Shard>> distribution;
+    private DistributionDiscoverer<Node, Shard> distDiscoverer;
+    private ShardRelocator<Node, Shard> relocator;
+    private AsyncShardRelocator<Node, Shard> asyncRelocator;
+    private BatchShardRelocator<Node, Shard> batchRelocator;
+    private int maxBatchSize = 1;
+    private SplitBrainResolver<Node, Shard> splitBrainResolver;
+    private int relocatingThreadsPerNode = 1;
+    private NodeCapacity<Node> nodeCapacity = (node) -> { return 1; };
+    private long quietPeriod = 0;
+    private long maxDelay = 0;
+    private TimeUnit coalesceUnit = TimeUnit.MILLISECONDS;
+    private boolean keepInFlightMoves = false;
+    private Executor relocationExecutor;
+    private boolean virtualThreads = false;
+    private int minThreadsPerNode;
+    private int maxThreadsPerNode;
+    private long latencyTargetNanos = 0;
+    private Supplier<? extends Constrainer<ShardRelocation<Node, Shard>>> constrainers;
+    private double maxMovesPerSecond = Double.POSITIVE_INFINITY;
+    private double maxBytesPerSecond = Double.POSITIVE_INFINITY;
+    private ShardSize<Shard> shardSize;
+    private long relocationTimeoutNanos = 0;
+    private int maxAttempts = 1;
+    private long initialBackoffNanos = 0;
+    private long maxBackoffNanos = 0;
+    private int quarantineAfter = 0;
+    private long quarantineNanos = 0;
+
+    protected abstract B self();
+
+    /**
+     * Builds the allocator.  The allocator starts balancing right away.
+     *
+     * @return  The allocator.
+     */
+    public abstract A build();
+
+    /**
+     * @param nodes All the nodes.  Required.
+     * @return  this
+     */
+    public B nodes(Collection<Node> nodes) {
+      this.nodes = nodes;
+      return self();
+    }
+
+    /**
+     * @param shards    All the shards.  Required.
+     * @return  this
+     */
+    public B shards(Collection<Shard> shards) {
+      this.shards = shards;
+      return self();
+    }
+
+    /**
+     * At this time it is recommended that we provide an already observed distribution.  If none is provided, while the
+     * solution will work, it is unlikely to be as efficient the first go round.
+     *
+     * @param distribution  Mapping of nodes to the shards that they control.
+     * @return  this
+     */
+    public B distribution(Map<Node, Collection<Shard>> distribution) {
+      this.distribution = distribution;
+      return self();
+    }
+
+    /**
+     * @param distDiscoverer    Discovers who owns what after moves have been made.  Required.
+     * @return  this
+     */
+    public B distributionDiscoverer(DistributionDiscoverer<Node, Shard> distDiscoverer) {
+      this.distDiscoverer = distDiscoverer;
+      return self();
+    }
+
+    /**
+     * @param relocator Makes the moves.  Called from many threads at once.  This, asyncRelocator or batchRelocator is
+     *                  required.
+     * @return  this
+     */
+    public B relocator(ShardRelocator<Node, Shard> relocator) {
+      this.relocator = relocator;
+      return self();
+    }
+
+    /**
+     * @param asyncRelocator  Starts the moves and says when they are done, without holding a thread per move.  Called
+     *                        from the thread handing out moves.  This, relocator or batchRelocator is required.
+     * @return  this
+     */
+    public B asyncRelocator(AsyncShardRelocator<Node, Shard> asyncRelocator) {
+      this.asyncRelocator = asyncRelocator;
+      return self();
+    }
+
+    /**
+     * Makes moves between the same pair of nodes in batches.  Each batch counts as one move against
+     * relocatingThreadsPerNode.
+     *
+     * @param batchRelocator  Makes the moves.  Called from many threads at once.  This, relocator or asyncRelocator is
+     *                        required.
+     * @param maxBatchSize    The most moves to put in one batch.
+     * @return  this
+     */
+    public B batchRelocator(BatchShardRelocator<Node, Shard> batchRelocator, int maxBatchSize) {
+      this.batchRelocator = batchRelocator;
+      this.maxBatchSize = maxBatchSize;
+      return self();
+    }
+
+    /**
+     * @param splitBrainResolver    Called when more than 1 node claims the same shard.  Required.
+     * @return  this
+     */
+    public B splitBrainResolver(SplitBrainResolver<Node, Shard> splitBrainResolver) {
+      this.splitBrainResolver = splitBrainResolver;
+      return self();
+    }
+
+    /**
+     * @param relocatingThreadsPerNode  No more than this many moves may involve any one node at a time.  Defaults to 1.
+     *                                  Where every node starts when adapting.
+     * @return  this
+     */
+    public B relocatingThreadsPerNode(int relocatingThreadsPerNode) {
+      this.relocatingThreadsPerNode = relocatingThreadsPerNode;
+      return self();
+    }
+
+    /**
+     * Adapt how many moves each node may take part in at once to how its moves are going, instead of holding every node
+     * to relocatingThreadsPerNode.  A node's limit grows by about one for each round trip of moves that finish within
+     * latencyTarget, and halves when they fail or take longer, never going outside minPerNode and maxPerNode.  A slow
+     * or struggling node then gets fewer moves while healthy ones get more.  Every node starts at
+     * relocatingThreadsPerNode.  A move counts for both of its nodes, and with a batchRelocator a batch counts as one
+     * move.
+     *
+     * @param minPerNode      The fewest moves a node is cut to.  At least 1.
+     * @param maxPerNode      The most moves a node grows to.
+     * @param latencyTarget   Moves taking longer than this are a sign their nodes have too much to do.
+     * @param unit            Unit of latencyTarget.
+     * @return  this
+     */
+    public B adaptiveConcurrency(int minPerNode, int maxPerNode, long latencyTarget, TimeUnit unit) {
+      Preconditions.checkArgument(minPerNode > 0, "minPerNode must be positive");
+      Preconditions.checkArgument(maxPerNode >= minPerNode, "maxPerNode cannot be less than minPerNode");
+      Preconditions.checkArgument(latencyTarget > 0, "The latency target must be positive");
+      this.minThreadsPerNode = minPerNode;
+      this.maxThreadsPerNode = maxPerNode;
+      this.latencyTargetNanos = unit.toNanos(latencyTarget);
+      return self();
+    }
+
+    /**
+     * Constrain moves with something other than relocatingThreadsPerNode, e.g. a {@link
+     * org.shannon.ConstrainedQueue.CompositeConstrainer} that also limits moves per rack and across the cluster.  Every
+     * plan gets a new one, and moves still in flight are adopted into it before anything planned is let through.
+     *
+     * @param constrainers  Makes a new, empty constrainer.  Null for relocatingThreadsPerNode, the default.  Cannot be
+     *                      used with adaptiveConcurrency.
+     * @return  this
+     */
+    public B constrainer(Supplier<? extends Constrainer<ShardRelocation<Node, Shard>>> constrainers) {
+      this.constrainers = constrainers;
+      return self();
+    }
+
+    /**
+     * Limit how many moves a second are handed to the relocator across the whole cluster.  Up to a second's worth can go
+     * at once after a quiet spell.  With a batchRelocator every move in a batch counts.  Can be changed later with
+     * {@link AbstractAllocator#setMaxMovesPerSecond(double)}.
+     *
+     * @param maxMovesPerSecond   Positive.  Defaults to infinite, which is no limit.
+     * @return  this
+     */
+    public B maxMovesPerSecond(double maxMovesPerSecond) {
+      this.maxMovesPerSecond = maxMovesPerSecond;
+      return self();
+    }
+
+    /**
+     * Limit how many bytes a second are handed to the relocator across the whole cluster, so that the copying moves
+     * cause doesn't swamp the network.  A shard bigger than a second's worth still moves, and whatever is next waits
+     * longer.  Can be changed later with {@link AbstractAllocator#setMaxBytesPerSecond(double)}.
+     *
+     * @param maxBytesPerSecond   Positive.  Infinite for no limit, though a shardSize still lets it be set later.
+     * @param shardSize           How many bytes moving each shard copies.  Asked once per move.
+     * @return  this
+     */
+    public B maxBytesPerSecond(double maxBytesPerSecond, ShardSize<Shard> shardSize) {
+      this.maxBytesPerSecond = maxBytesPerSecond;
+      this.shardSize = shardSize;
+      return self();
+    }
+
+    /**
+     * Give up on a move that takes too long.  The relocator is interrupted, or its CompletionStage cancelled, and the
+     * move counts as failed.  A relocator that ignores interrupts keeps its move's place until it lets go.  Moves have
+     * as long as they need by default.
+     *
+     * @param timeout   How long each attempt at a move gets.  Positive.
+     * @param unit      Unit of timeout.
+     * @return  this
+     */
+    public B relocationTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout > 0, "Timeouts must be positive");
+      this.relocationTimeoutNanos = unit.toNanos(timeout);
+      return self();
+    }
+
+    /**
+     * Try failed moves again instead of ending the round on the first failure.  Each retry waits between half and all
+     * of initialBackoff doubled for every attempt so far, up to maxBackoff, and gives up its place under the constraints
+     * meanwhile so moves between other nodes carry on.  A move that runs out of attempts doesn't stop the others; the
+     * round still counts as failed once they are done.  Moves are tried once by default.
+     *
+     * @param maxAttempts       How many times to try each move, including the first.  At least 1.
+     * @param initialBackoff    How long to wait before the first retry.  Positive.
+     * @param maxBackoff        The longest to wait before any retry.  At least initialBackoff.
+     * @param unit              Unit of initialBackoff and maxBackoff.
+     * @return  this
+     */
+    public B retries(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+      Preconditions.checkArgument(maxAttempts > 0, "Must make at least one attempt");
+      Preconditions.checkArgument(initialBackoff > 0, "Backoff must be positive");
+      Preconditions.checkArgument(maxBackoff >= initialBackoff, "maxBackoff cannot be less than initialBackoff");
+      this.maxAttempts = maxAttempts;
+      this.initialBackoffNanos = unit.toNanos(initialBackoff);
+      this.maxBackoffNanos = unit.toNanos(maxBackoff);
+      return self();
+    }
+
+    /**
+     * Leave nodes alone for a while when their moves keep failing.  Once a node's moves fail so many times in a row, no
+     * more of its moves are started until duration is up; they wait off the queue so moves between other nodes go on
+     * at full speed.  After that a single failure quarantines it again and a single success clears it.  Nodes are never
+     * quarantined by default.
+     *
+     * @param failures  How many failures in a row quarantine a node.  Positive.
+     * @param duration  How long a node is quarantined for.  Positive.
+     * @param unit      Unit of duration.
+     * @return  this
+     */
+    public B quarantine(int failures, long duration, TimeUnit unit) {
+      Preconditions.checkArgument(failures > 0, "Must take at least one failure to quarantine");
+      Preconditions.checkArgument(duration > 0, "Must quarantine for some time");
+      this.quarantineAfter = failures;
+      this.quarantineNanos = unit.toNanos(duration);
+      return self();
+    }
+
+    /**
+     * Each node's share is proportional to its capacity, so bigger nodes get more.  Asked every time a plan is made.
+     *
+     * @param nodeCapacity  How big each node is.  Defaults to every node being the same size.
+     * @return  this
+     */
+    public B nodeCapacity(NodeCapacity<Node> nodeCapacity) {
+      this.nodeCapacity = nodeCapacity;
+      return self();
+    }
+
+    /**
+     * Merge bursts of notifications into a single round.  A round starts once there have been no notifications for
+     * quietPeriod, but never more than maxDelay after the first notification it covers.  Rounds start right away on
+     * every notification by default.
+     *
+     * @param quietPeriod   How long notifications need to stop for before a round starts.
+     * @param maxDelay      The longest a notification waits for its round to start.
+     * @param unit          Unit of quietPeriod and maxDelay.
+     * @return  this
+     */
+    public B coalesce(long quietPeriod, long maxDelay, TimeUnit unit) {
+      this.quietPeriod = quietPeriod;
+      this.maxDelay = maxDelay;
+      this.coalesceUnit = unit;
+      return self();
+    }
+
+    /**
+     * What to do with moves already handed to the relocator when something changes mid-rebalance.  By default they are
+     * interrupted and the new round plans from whatever was discovered.  When kept, they carry on, the new round plans as
+     * if they were already made and only the moves not yet handed out are replanned.  The new round waits for them and
+     * fails if they do.  Either way they are interrupted on close.
+     *
+     * @param keepInFlightMoves Whether moves already started survive a replan.  Defaults to false.
+     * @return  this
+     */
+    public B keepInFlightMoves(boolean keepInFlightMoves) {
+      this.keepInFlightMoves = keepInFlightMoves;
+      return self();
+    }
+
+    /**
+     * Where the relocator is called.  Every move that is let through the constraints is handed to it right away, so it
+     * needs as many threads as moves are allowed at once or moves will queue behind each other.  Shared by every round
+     * and not shut down by the allocator.  By default the allocator keeps a pool of its own that grows to however many
+     * moves are eligible at once, lets idle threads go and is shut down on close.  Not used with an asyncRelocator.
+     *
+     * @param relocationExecutor    Runs the relocator.
+     * @return  this
+     */
+    public B relocationExecutor(Executor relocationExecutor) {
+      this.relocationExecutor = relocationExecutor;
+      return self();
+    }
+
+    /**
+     * Run each relocation on a virtual thread of its own instead of the default pool.  Relocations that spend their time
+     * waiting on other nodes then cost next to nothing while in flight, so relocatingThreadsPerNode can go into the
+     * hundreds.  Needs JDK 21 or later; older JVMs log a warning and use the default pool.  Has no effect when given a
+     * relocationExecutor.
+     *
+     * @param virtualThreads    Whether to relocate on virtual threads.  Defaults to false.
+     * @return  this
+     */
+    public B virtualThreads(boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return self();
+    }
+  }
+}
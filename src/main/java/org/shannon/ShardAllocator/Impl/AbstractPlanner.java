@@ -0,0 +1,174 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ConstrainedQueue.ConcurrentShardRelocationConstrainer;
+import org.shannon.ConstrainedQueue.Constrainer;
+import org.shannon.ConstrainedQueue.LeveledBlockingQueue;
+import org.shannon.ShardAllocator.LoadIndex;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+/**
+ * The phases every planner goes through regardless of how it measures balance:  make room for new nodes, let go of
+ * what has left and ask about shards claimed by more than one node.
+ *
+ * Planning works on the distribution it is given in place.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+abstract class AbstractPlanner<Node, Shard> {
+  protected final Set<Node> nodeUniverse;
+  protected final Set<Shard> shardUniverse;
+  protected final Map<Node, HashSet<Shard>> distribution;
+  private final SplitBrainResolver<Node, Shard> splitBrainResolver;
+  private final int maxThreadsPerNode;
+  private final NodeCapacity<Node> nodeCapacity;
+
+  protected AbstractPlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode, NodeCapacity<Node> nodeCapacity) {
+    Preconditions.checkNotNull(nodeCapacity, "Must have a nodeCapacity");
+    this.nodeUniverse = nodeUniverse;
+    this.shardUniverse = shardUniverse;
+    this.distribution = distribution;
+    this.splitBrainResolver = splitBrainResolver;
+    this.maxThreadsPerNode = maxThreadsPerNode;
+    this.nodeCapacity = nodeCapacity;
+  }
+
+  /**
+   * Works out the moves that need to happen.
+   *
+   * @return  The moves that need to happen, constrained so that no more than maxThreadsPerNode are released per node.
+   */
+  public abstract ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves();
+
+  protected ConstrainedQueue<ShardRelocation<Node, Shard>> newMoves() {
+    return newMoves(maxThreadsPerNode);
+  }
+
+  static <Node, Shard> ConstrainedQueue<ShardRelocation<Node, Shard>> newMoves(int maxThreadsPerNode) {
+    return newMoves((node) -> { return maxThreadsPerNode; });
+  }
+
+  static <Node, Shard> ConstrainedQueue<ShardRelocation<Node, Shard>> newMoves(ToIntFunction<Node> maxThreadsPerNode) {
+    return newMoves(new ConcurrentShardRelocationConstrainer<Node, Shard>(maxThreadsPerNode));
+  }
+
+  //Whatever the constraints let through goes out most urgent first
+  static <Node, Shard> ConstrainedQueue<ShardRelocation<Node, Shard>> newMoves(Constrainer<ShardRelocation<Node, Shard>> constrainer) {
+    return new ConstrainedQueue<ShardRelocation<Node, Shard>>(
+      constrainer,
+      new LeveledBlockingQueue<ShardRelocation<Node, Shard>>(ShardRelocation.Priority.values().length
+          , (move) -> { return move.getPriority().ordinal(); })
+    );
+  }
+
+  protected int capacity(Node node) {
+    int retval = nodeCapacity.capacity(node);
+    Preconditions.checkArgument(retval > 0, "Capacity must be positive: %s has %s", node, retval);
+    return retval;
+  }
+
+  /**
+   * Indexes nodes by how far they are from their share of the shards.  A node's share is shards * capacity / total
+   * capacity, which gives it a floor and a ceiling.  Its load is 2 * count - (floor + ceiling), so moving one shard
+   * shifts it by 2 and anything from -1 to 1 is even.  When every node has the same capacity this orders nodes the same
+   * as their shard counts.
+   *
+   * @return  Nodes indexed by how far they are from their share of the shards.
+   */
+  protected BucketLoadIndex<Node> nodesByShare() {
+    HashMap<Node, Integer> capacities = new HashMap<Node, Integer>();
+    long totalCapacity = 0;
+    for(Node node : nodeUniverse) {
+      int capacity = capacity(node);
+      capacities.put(node, capacity);
+      totalCapacity += capacity;
+    }
+    long shards = shardUniverse.size();
+    BucketLoadIndex<Node> retval = new BucketLoadIndex<Node>(nodeUniverse.size());
+    for(Node node : nodeUniverse) {
+      long share = shards * capacities.get(node);
+      int floor = (int) (share / totalCapacity);
+      int ceiling = share % totalCapacity == 0 ? floor : floor + 1;
+      HashSet<Shard> owned = distribution.get(node);
+      retval.add(node, 2 * (owned == null ? 0 : owned.size()) - floor - ceiling);
+    }
+    return retval;
+  }
+
+  protected HashSet<Shard> unassignedShards() {
+    HashSet<Shard> retval = new HashSet<Shard>(shardUniverse);
+    distribution.values().forEach((shards) -> { retval.removeAll(shards); } );
+    return retval;
+  }
+
+  protected void fillInMissingNodes() {
+    for (Node node : Sets.difference(nodeUniverse, distribution.keySet())) {
+      distribution.put(node, new HashSet<Shard>());
+    }
+  }
+
+  protected void removeLeavers(ConstrainedQueue<ShardRelocation<Node, Shard>> moves) {
+    HashSet<Node> leavingNodes = new HashSet<Node>();
+    ArrayList<Runnable> actions = new ArrayList<Runnable>();
+    for (Map.Entry<Node, HashSet<Shard>> entry : distribution.entrySet()) {
+      if (nodeUniverse.contains(entry.getKey())) {
+        for (Shard shard : Sets.difference(entry.getValue(), shardUniverse)) {
+          moves.add(new ShardRelocation<Node, Shard>(entry.getKey(), null, shard));
+          actions.add(() -> { distribution.get(entry.getKey()).remove(shard); });
+        }
+      } else {
+        leavingNodes.add(entry.getKey());
+      }
+    }
+    actions.forEach((action) -> { action.run(); });
+    //Assuming that the nodes left. A node should not be able to join and have ownership of a Shard without going through this.
+    leavingNodes.forEach((node) -> { distribution.remove(node); });
+  }
+
+  protected boolean handleSplitBrain(ConstrainedQueue<ShardRelocation<Node, Shard>> moves
+      , LoadIndex<Node> nodesByShare) {
+    boolean haveNewMoves = false;
+
+    HashSetValuedHashMap<Shard, Node> nodesByShard = new HashSetValuedHashMap<Shard, Node>();
+    for(Map.Entry<Node, HashSet<Shard>> entry : distribution.entrySet()) {
+      for(Shard shard : entry.getValue()) {
+        nodesByShard.put(shard, entry.getKey());
+      }
+    }
+
+    for(Map.Entry<Shard, Collection<Node>> entry : nodesByShard.asMap().entrySet()) {
+      if (entry.getValue().size() > 1) {
+        Collection<ShardRelocation<Node, Shard>> newMoves =
+            splitBrainResolver.resolve(entry.getKey(), new HashSet<Node>(entry.getValue()), nodesByShare);
+        if (newMoves != null && !newMoves.isEmpty()) {
+          haveNewMoves = true;
+          newMoves.forEach((move) -> {
+            moves.add(new ShardRelocation<Node, Shard>(move.getFromNode(), move.getToNode(), move.getShard()
+                , ShardRelocation.Priority.SPLIT_BRAIN));
+          });
+        }
+      }
+    }
+
+    return haveNewMoves;
+  }
+}
@@ -0,0 +1,201 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.io.Closeable;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The rounds of {@link IntShardAllocator} and {@link RangeAllocator}:  plan, relocate what was planned, and do it again
+ * until a plan comes back empty.
+ *
+ * A change while rebalancing doesn't interrupt anything.  Moves already handed to the relocator carry on, nothing new
+ * is started and the next round plans from wherever they leave things.  A move that fails does the same, and the next
+ * round discovers the distribution first.
+ *
+ * Everything about a round, and whatever subclasses plan from, is guarded by the allocator's monitor.  A round lets go
+ * of it while waiting on moves so that notifications get through.  Subclasses must call {@link #allocateAsync()} once
+ * they are fully constructed, and again whenever something changes.
+ *
+ * @author Shannon
+ */
+abstract class AbstractRoundAllocator implements Closeable {
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  //Guarded by this
+  protected boolean needsDiscovery = true;
+  private boolean balancing = false;
+  private boolean changed = false;
+  private boolean closing = false;
+  private final ExecutorService parentExecutor = Executors.newSingleThreadExecutor();
+  private final Executor relocationExecutor;
+  //Only when it is ours to shut down
+  private final ExecutorService ownedRelocationExecutor;
+
+  /**
+   * @param relocationExecutor  Where to relocate.  Not shut down by the allocator.  A pool of the allocator's own when
+   *                            null.
+   */
+  protected AbstractRoundAllocator(Executor relocationExecutor) {
+    this.ownedRelocationExecutor = relocationExecutor == null ? RelocationThreads.newExecutor(false) : null;
+    this.relocationExecutor = relocationExecutor == null ? ownedRelocationExecutor : relocationExecutor;
+  }
+
+  /**
+   * Replaces the distribution with what the nodes say it is.  Called holding this.
+   */
+  protected abstract void discoverDistribution();
+
+  /**
+   * Works out what needs to move.  Called holding this.
+   *
+   * @return  The round that makes the moves, or null when nothing needs to move.
+   */
+  protected abstract Round plan();
+
+  /**
+   * If a rebalance is going on this will block until it is done.
+   */
+  public synchronized void awaitRebalance() {
+    while(balancing) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        //Don't care just check again
+      }
+    }
+  }
+
+  /**
+   * Something changed.  Stops the round under way from starting anything new and plans again once its moves are done.
+   */
+  protected final synchronized void allocateAsync() {
+    if (closing) { return; }
+    changed = true;
+    //Lets a round waiting on its moves see that it should stop
+    notifyAll();
+    if (!balancing) {
+      balancing = true;
+      parentExecutor.execute(this::rebalance);
+    }
+  }
+
+  //Plans and relocates until a plan comes back empty
+  private synchronized void rebalance() {
+    try {
+      while(!closing) {
+        changed = false;
+        if (needsDiscovery) {
+          discoverDistribution();
+          needsDiscovery = false;
+        }
+        Round round = plan();
+        if (round == null) { break; }
+        if (!round.relocate()) {
+          needsDiscovery = true;
+        }
+      }
+    } catch (RuntimeException e) {
+      logger.error("{}.rebalance() - Caught Exception while trying to plan.", getClass().getSimpleName(), e);
+      needsDiscovery = true;
+    } finally {
+      balancing = false;
+      notifyAll();
+    }
+  }
+
+  /*
+   * One plan's worth of moves.  Subclasses start whatever moves they can, hand each to execute(...) and call
+   * finished(...) holding the allocator once it is done, and the round waits until every move it started is done.
+   */
+  protected abstract class Round {
+    private int running = 0;
+    private boolean failed = false;
+
+    /**
+     * Starts whatever moves may start now.  Not called once the round is stopping.
+     */
+    protected abstract void startMoves();
+
+    /**
+     * @return  Whether there are moves not yet started.
+     */
+    protected abstract boolean pending();
+
+    /**
+     * Called once the last move started is done.
+     */
+    protected void over() { }
+
+    /**
+     * @return  Whether to stop starting moves, because one failed or something changed.
+     */
+    protected final boolean stopping() {
+      return failed || changed || closing;
+    }
+
+    private boolean relocate() {
+      while(true) {
+        if (!stopping()) {
+          startMoves();
+        }
+        if (running == 0 && (!pending() || stopping())) { break; }
+        try {
+          AbstractRoundAllocator.this.wait();
+        } catch (InterruptedException e) {
+          //Don't care just check again
+        }
+      }
+      over();
+      return !failed;
+    }
+
+    /**
+     * Hands a move to the relocation executor.  Every move handed over must be finished.
+     *
+     * @param relocation    Makes the move, then calls {@link #finished(boolean)} holding the allocator.
+     * @return  Whether the executor took it.  When it didn't, the move must be finished as failed right away.
+     */
+    protected final boolean execute(Runnable relocation) {
+      ++running;
+      try {
+        relocationExecutor.execute(relocation);
+        return true;
+      } catch (RejectedExecutionException e) {
+        logger.error("{}.relocate() - Could not start a move.", AbstractRoundAllocator.this.getClass().getSimpleName(), e);
+        return false;
+      }
+    }
+
+    /**
+     * A move is done.  Called holding the allocator.
+     *
+     * @param succeeded Whether the move was made.
+     */
+    protected void finished(boolean succeeded) {
+      --running;
+      failed |= !succeeded;
+      AbstractRoundAllocator.this.notifyAll();
+    }
+  }
+
+  /**
+   * Lets whatever is being relocated finish, starts nothing new and shuts down the threads the allocator owns.
+   */
+  @Override
+  public void close() {
+    synchronized(this) {
+      closing = true;
+      notifyAll();
+    }
+    awaitRebalance();
+    parentExecutor.shutdownNow();
+    if (ownedRelocationExecutor != null) {
+      ownedRelocationExecutor.shutdownNow();
+    }
+  }
+}
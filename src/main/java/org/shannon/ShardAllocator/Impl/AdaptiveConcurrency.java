@@ -0,0 +1,106 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.shannon.ShardAllocator.ShardRelocation;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * How many moves each node may be part of at once, worked out from how its moves are going.  Every move that finishes
+ * quickly and without failing adds 1/limit to the limit of both of its nodes, so a node gains about one move at a time
+ * per round trip.  Every move that fails or takes longer than the latency target halves it.  Limits never leave the
+ * bounds given.
+ *
+ * Moves started before the last cut were made at the old limit, so they don't cut again; a node whose moves all slow
+ * down at once is cut once, not once per move.
+ *
+ * The missing node of new and removed shards isn't a node that can be overwhelmed, so it keeps the starting limit.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+final class AdaptiveConcurrency<Node> {
+  private final int minPerNode;
+  private final int maxPerNode;
+  private final int initial;
+  private final long latencyTargetNanos;
+  private final ConcurrentHashMap<Node, Window> windows = new ConcurrentHashMap<Node, Window>();
+
+  /**
+   * @param minPerNode          The least a node is cut to.
+   * @param maxPerNode          The most a node grows to.
+   * @param initial             Where every node starts.  Kept within minPerNode and maxPerNode.
+   * @param latencyTargetNanos  Moves taking longer than this count against their nodes.
+   */
+  AdaptiveConcurrency(int minPerNode, int maxPerNode, int initial, long latencyTargetNanos) {
+    Preconditions.checkArgument(minPerNode > 0, "minPerNode must be positive");
+    Preconditions.checkArgument(maxPerNode >= minPerNode, "maxPerNode cannot be less than minPerNode");
+    Preconditions.checkArgument(latencyTargetNanos > 0, "The latency target must be positive");
+    this.minPerNode = minPerNode;
+    this.maxPerNode = maxPerNode;
+    this.initial = Math.max(minPerNode, Math.min(maxPerNode, initial));
+    this.latencyTargetNanos = latencyTargetNanos;
+  }
+
+  private final class Window {
+    //Guarded by this
+    private double limit = initial;
+    private boolean cut = false;
+    private long lastCut;
+
+    private synchronized void record(long startedNanos, long finishedNanos, boolean succeeded) {
+      if (succeeded && finishedNanos - startedNanos <= latencyTargetNanos) {
+        limit = Math.min(maxPerNode, limit + 1 / limit);
+      } else if (!cut || startedNanos - lastCut >= 0) {
+        limit = Math.max(minPerNode, limit / 2);
+        cut = true;
+        lastCut = finishedNanos;
+      }
+    }
+  }
+
+  /**
+   * @param node  The node, or null for no node.
+   * @return  How many moves node may be part of at once right now.
+   */
+  int limit(Node node) {
+    if (node == null) { return initial; }
+    Window window = windows.get(node);
+    if (window == null) { return initial; }
+    synchronized(window) {
+      return (int) window.limit;
+    }
+  }
+
+  /**
+   * Counts a finished move against both of its nodes.
+   *
+   * @param move          The move.
+   * @param startedNanos  When it started, by {@link System#nanoTime()}.
+   * @param succeeded     Whether it was made.
+   */
+  void record(ShardRelocation<Node, ?> move, long startedNanos, boolean succeeded) {
+    long now = System.nanoTime();
+    record(move.getFromNode(), startedNanos, now, succeeded);
+    if (move.getToNode() != null && !move.getToNode().equals(move.getFromNode())) {
+      record(move.getToNode(), startedNanos, now, succeeded);
+    }
+  }
+
+  private void record(Node node, long startedNanos, long finishedNanos, boolean succeeded) {
+    if (node == null) { return; }
+    windows.computeIfAbsent(node, (key) -> { return new Window(); }).record(startedNanos, finishedNanos, succeeded);
+  }
+
+  /**
+   * Forgets nodes that are gone so that their windows don't pile up.
+   *
+   * @param nodes The nodes that are left.
+   */
+  void retain(Collection<Node> nodes) {
+    windows.keySet().retainAll(nodes);
+  }
+}
@@ -0,0 +1,220 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardRelocation;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * What {@link SimpleAllocator} believes the world looks like between full plans, kept up to date one change at a time so
+ * that adding or removing a handful of shards or nodes does not mean copying and rescanning everything.
+ *
+ * Keeps who owns each shard, the shards each node owns, the shards nobody owns and nodes indexed by how far they are
+ * from their share of the shards the same way {@link SimplePlanner} does.  Planning assumes that every move it hands out
+ * will be made, so if one is not the model should be thrown away and rebuilt from a discovered distribution.
+ *
+ * Adding or removing a shard is O(1) when every node has the same capacity.  When capacities differ, a change in the
+ * number of shards changes every node's share, which is O(nodes).  Adding or removing a node is O(nodes) plus the
+ * shards it owned.  Capacities are asked for once, when a node is added.
+ *
+ * Cannot represent split brain.  Not threadsafe.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+final class AllocationModel<Node, Shard> {
+  private final NodeCapacity<Node> nodeCapacity;
+  private final HashMap<Node, HashSet<Shard>> owned = new HashMap<Node, HashSet<Shard>>();
+  private final HashMap<Shard, Node> owners = new HashMap<Shard, Node>();
+  private final LinkedHashSet<Shard> unassigned = new LinkedHashSet<Shard>();
+  private final ArrayList<ShardRelocation<Node, Shard>> releases = new ArrayList<ShardRelocation<Node, Shard>>();
+  private final HashMap<Node, Integer> capacities = new HashMap<Node, Integer>();
+  //How many nodes have each capacity; one entry means every node is the same size
+  private final HashMap<Integer, Integer> capacityCounts = new HashMap<Integer, Integer>();
+  //floor + ceiling of each node's share.  Only kept when capacities differ, otherwise everyone has sharedTarget
+  private final HashMap<Node, Integer> targets = new HashMap<Node, Integer>();
+  private final BucketLoadIndex<Node> nodesByShare;
+  private boolean uniform = true;
+  private int sharedTarget = 0;
+  private long totalCapacity = 0;
+  private long shardCount = 0;
+
+  private AllocationModel(NodeCapacity<Node> nodeCapacity, int expectedNodes) {
+    this.nodeCapacity = nodeCapacity;
+    this.nodesByShare = new BucketLoadIndex<Node>(expectedNodes);
+  }
+
+  /**
+   * Builds a model of a settled world.
+   *
+   * @param nodeUniverse  All the nodes.
+   * @param shardUniverse All the shards.
+   * @param distribution  Mapping of nodes to the shards that they control.  Not kept.
+   * @param nodeCapacity  How big each node is.
+   * @return  The model, or null if the distribution has shards or nodes outside the universe or a shard owned twice.
+   */
+  static <Node, Shard> AllocationModel<Node, Shard> of(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, ? extends Collection<Shard>> distribution, NodeCapacity<Node> nodeCapacity) {
+    if (!nodeUniverse.containsAll(distribution.keySet())) { return null; }
+    AllocationModel<Node, Shard> retval = new AllocationModel<Node, Shard>(nodeCapacity, nodeUniverse.size());
+    for (Node node : nodeUniverse) {
+      Collection<Shard> shards = distribution.get(node);
+      HashSet<Shard> mine = new HashSet<Shard>();
+      if (shards != null) {
+        for (Shard shard : shards) {
+          if (!shardUniverse.contains(shard) || retval.owners.put(shard, node) != null) { return null; }
+          mine.add(shard);
+        }
+      }
+      retval.addNode(node, mine);
+    }
+    for (Shard shard : shardUniverse) {
+      if (!retval.owners.containsKey(shard)) { retval.unassigned.add(shard); }
+    }
+    retval.shardCount = shardUniverse.size();
+    retval.retarget();
+    return retval;
+  }
+
+  /**
+   * The shards each node owns, as the model believes it.  Live; the model should not be used after this is changed.
+   *
+   * @return  Mapping of nodes to the shards that they control.
+   */
+  Map<Node, HashSet<Shard>> distribution() {
+    return owned;
+  }
+
+  private int targetOf(Node node) {
+    return uniform ? sharedTarget : targets.getOrDefault(node, 0);
+  }
+
+  private int target(int capacity) {
+    long share = shardCount * capacity;
+    int floor = (int) (share / totalCapacity);
+    return share % totalCapacity == 0 ? 2 * floor : 2 * floor + 1;
+  }
+
+  //Shares depend on the shard count and every capacity, so any change to them moves every node's target
+  private void retarget() {
+    if (owned.isEmpty()) { return; }
+    boolean nowUniform = capacityCounts.size() == 1;
+    if (uniform && nowUniform) {
+      int target = target(capacityCounts.keySet().iterator().next());
+      nodesByShare.shiftAll(sharedTarget - target);
+      sharedTarget = target;
+      return;
+    }
+    for (Node node : owned.keySet()) {
+      int target = target(capacities.get(node));
+      nodesByShare.shift(node, targetOf(node) - target);
+      targets.put(node, target);
+    }
+    uniform = nowUniform;
+    if (uniform) {
+      sharedTarget = targets.values().iterator().next();
+      targets.clear();
+    }
+  }
+
+  private void addNode(Node node, HashSet<Shard> mine) {
+    int capacity = nodeCapacity.capacity(node);
+    Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s has %s", node, capacity);
+    capacities.put(node, capacity);
+    capacityCounts.merge(capacity, 1, Integer::sum);
+    totalCapacity += capacity;
+    owned.put(node, mine);
+    nodesByShare.add(node, 2 * mine.size() - targetOf(node));
+  }
+
+  void addShards(Collection<Shard> shards) {
+    for (Shard shard : shards) {
+      unassigned.add(shard);
+      ++shardCount;
+    }
+    retarget();
+  }
+
+  void removeShards(Collection<Shard> shards) {
+    for (Shard shard : shards) {
+      Node owner = owners.remove(shard);
+      if (owner != null) {
+        owned.get(owner).remove(shard);
+        nodesByShare.shift(owner, -2);
+        releases.add(new ShardRelocation<Node, Shard>(owner, null, shard));
+      } else {
+        unassigned.remove(shard);
+      }
+      --shardCount;
+    }
+    retarget();
+  }
+
+  void addNodes(Collection<Node> nodes) {
+    for (Node node : nodes) {
+      addNode(node, new HashSet<Shard>());
+    }
+    retarget();
+  }
+
+  //Assuming that the nodes left, the same as SimplePlanner does, so there is nobody to release anything
+  void removeNodes(Collection<Node> nodes) {
+    for (Node node : nodes) {
+      for (Shard shard : owned.remove(node)) {
+        owners.remove(shard);
+        unassigned.add(shard);
+      }
+      nodesByShare.remove(node);
+      targets.remove(node);
+      int capacity = capacities.remove(node);
+      if (capacityCounts.merge(capacity, -1, Integer::sum) == 0) { capacityCounts.remove(capacity); }
+      totalCapacity -= capacity;
+    }
+    retarget();
+  }
+
+  private void assignToLeast(Shard shard, Node fromNode, ConstrainedQueue<ShardRelocation<Node, Shard>> moves) {
+    Node leastNode = nodesByShare.least();
+    moves.add(new ShardRelocation<Node, Shard>(fromNode, leastNode, shard));
+    if (fromNode != null) {
+      owned.get(fromNode).remove(shard);
+      nodesByShare.shift(fromNode, -2);
+    }
+    owned.get(leastNode).add(shard);
+    owners.put(shard, leastNode);
+    nodesByShare.shift(leastNode, 2);
+  }
+
+  /**
+   * Works out the moves needed to get back to every shard owned by exactly one node with every node owning the floor or
+   * ceiling of its share, assuming all of them will be made.
+   *
+   * @param moves Where to put the moves.
+   */
+  void plan(ConstrainedQueue<ShardRelocation<Node, Shard>> moves) {
+    moves.addAll(releases);
+    releases.clear();
+    if (owned.isEmpty()) { return; }
+    for (Iterator<Shard> shards = unassigned.iterator(); shards.hasNext();) {
+      assignToLeast(shards.next(), null, moves);
+      shards.remove();
+    }
+    //Loads are in half shards from the middle of each node's share, so -1 to 1 is even
+    while(nodesByShare.maxLoad() > 1 || nodesByShare.minLoad() < -1) {
+      Node mostNode = nodesByShare.most();
+      assignToLeast(owned.get(mostNode).iterator().next(), mostNode, moves);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package org.shannon.ShardAllocator.Impl;
+
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Which int node owns which int shard, as a {@link ShardBitmap} per node rather than an int per shard.  Shards a node
+ * owns in long runs, or spread over a sparse id space, cost a bit or two bytes each instead of the 4 bytes
+ * {@link IntDistribution} spends on every shard id up to the highest.
+ *
+ * Planning is done a node at a time with whole set operations:  removed shards are what a node has and not the
+ * universe, orphans are the universe and not what every node has, and split brains are what a node has and some node
+ * before it already had.  That's a few bitmap operations per node, word at a time, rather than a lookup per shard.
+ *
+ * Any number of nodes may claim a shard.  Its owner is the lowest claimant and the rest are split brains.  Looking up
+ * the owner of a single shard goes through every node, so this is for planning over, not for routing with.
+ *
+ * Not thread safe.
+ *
+ * @author Shannon
+ */
+public final class BitmapDistribution extends IntOwnership {
+  private ShardBitmap[] nodes = new ShardBitmap[0];
+
+  @Override
+  public void claim(int node, int shard) {
+    Preconditions.checkArgument(node >= 0, "Nodes cannot be negative: %s", node);
+    Preconditions.checkArgument(shard >= 0, "Shards cannot be negative: %s", shard);
+    owned(node).add(shard);
+  }
+
+  private ShardBitmap owned(int node) {
+    if (node >= nodes.length) {
+      nodes = Arrays.copyOf(nodes, Math.max(node + 1, nodes.length + (nodes.length >> 1)));
+    }
+    if (nodes[node] == null) {
+      nodes[node] = new ShardBitmap();
+    }
+    return nodes[node];
+  }
+
+  @Override
+  public int owner(int shard) {
+    for (int node = 0; node < nodes.length; ++node) {
+      if (nodes[node] != null && nodes[node].contains(shard)) { return node; }
+    }
+    return NO_NODE;
+  }
+
+  @Override
+  void move(int fromNode, int toNode, int shard) {
+    if (fromNode == NO_NODE ? owner(shard) != NO_NODE
+        : fromNode >= nodes.length || nodes[fromNode] == null || !nodes[fromNode].remove(shard)) { return; }
+    if (toNode != NO_NODE) {
+      owned(toNode).add(shard);
+    }
+  }
+
+  @Override
+  void forgetLeavers(BitSet nodeUniverse) {
+    for (int node = 0; node < nodes.length; ++node) {
+      if (!nodeUniverse.get(node)) {
+        nodes[node] = null;
+      }
+    }
+  }
+
+  @Override
+  void releaseRemoved(BitSet shardUniverse, IntMoves moves) {
+    ShardBitmap universe = ShardBitmap.of(shardUniverse);
+    for (int node = 0; node < nodes.length; ++node) {
+      if (nodes[node] == null) { continue; }
+      final int from = node;
+      nodes[node].andNot(universe).forEach((shard) -> {
+        moves.add(from, NO_NODE, shard);
+        return true;
+      });
+    }
+  }
+
+  @Override
+  int[] counts(BitSet shardUniverse, int nodeCount) {
+    int[] retval = new int[nodeCount];
+    ShardBitmap unowned = ShardBitmap.of(shardUniverse);
+    for (int node = 0; node < nodes.length; ++node) {
+      if (nodes[node] == null) { continue; }
+      ShardBitmap owned = nodes[node].and(unowned);
+      unowned = unowned.andNot(owned);
+      retval[node] = owned.cardinality();
+    }
+    return retval;
+  }
+
+  @Override
+  void forEachSplitBrain(BitSet shardUniverse, SplitBrainVisitor visitor) {
+    ShardBitmap universe = ShardBitmap.of(shardUniverse);
+    ShardBitmap seen = new ShardBitmap();
+    ShardBitmap splitBrains = new ShardBitmap();
+    for (ShardBitmap claimed : nodes) {
+      if (claimed == null) { continue; }
+      ShardBitmap inUniverse = claimed.and(universe);
+      splitBrains = splitBrains.or(inUniverse.and(seen));
+      seen = seen.or(inUniverse);
+    }
+    splitBrains.forEach((shard) -> {
+      int[] claimants = new int[0];
+      for (int node = 0; node < nodes.length; ++node) {
+        if (nodes[node] != null && nodes[node].contains(shard)) {
+          claimants = Arrays.copyOf(claimants, claimants.length + 1);
+          claimants[claimants.length - 1] = node;
+        }
+      }
+      visitor.visit(shard, claimants);
+      return true;
+    });
+  }
+
+  @Override
+  void forEachOrphan(BitSet shardUniverse, IntConsumer action) {
+    ShardBitmap orphans = ShardBitmap.of(shardUniverse);
+    for (ShardBitmap claimed : nodes) {
+      if (claimed != null) {
+        orphans = orphans.andNot(claimed);
+      }
+    }
+    orphans.forEach((shard) -> {
+      action.accept(shard);
+      return true;
+    });
+  }
+
+  @Override
+  void forEachOwned(BitSet shardUniverse, OwnedVisitor visitor) {
+    ShardBitmap unowned = ShardBitmap.of(shardUniverse);
+    for (int node = 0; node < nodes.length; ++node) {
+      if (nodes[node] == null) { continue; }
+      ShardBitmap owned = nodes[node].and(unowned);
+      unowned = unowned.andNot(owned);
+      final int owner = node;
+      //Once the node wants no more, the rest of what it owns isn't gone through
+      owned.forEach((shard) -> { return visitor.visit(owner, shard); });
+    }
+  }
+
+  @Override
+  void forgetSplitBrains() {
+    ShardBitmap seen = new ShardBitmap();
+    for (int node = 0; node < nodes.length; ++node) {
+      if (nodes[node] == null) { continue; }
+      ShardBitmap owned = nodes[node].andNot(seen);
+      seen = seen.or(owned);
+      nodes[node] = owned;
+    }
+  }
+}
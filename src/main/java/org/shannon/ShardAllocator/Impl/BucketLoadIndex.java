@@ -0,0 +1,317 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.shannon.ShardAllocator.LoadIndex;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link LoadIndex} built for the way planning uses one:  find the least and most loaded nodes and shift a node's load
+ * by one, over and over.
+ *
+ * Nodes are kept in an array of buckets, one per load, with each bucket being a doubly linked list threaded through
+ * int arrays.  Finding the least or most loaded node and shifting a node's load by one are O(1) and do not allocate.
+ * Loads may be negative.  Shifting every node's load at once is O(1) as well; loads are kept relative to an offset.
+ *
+ * Not threadsafe.  Iterating while modifying is not supported.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+public final class BucketLoadIndex<Node> implements LoadIndex<Node> {
+  private static final int NONE = -1;
+  private final HashMap<Node, Integer> ids;
+  private Object[] nodes;
+  private int[] loads;
+  private int[] next;
+  private int[] prev;
+  private int nextId = 0;
+  private int freeIds = NONE;
+  private int[] heads = newHeads(16);
+  private int lowest = 0;
+  private int min = 0;
+  private int max = 0;
+  private int size = 0;
+  private int offset = 0;
+
+  public BucketLoadIndex() {
+    this(16);
+  }
+
+  /**
+   * @param expectedNodes   Roughly how many nodes will be indexed.  The index grows past this as needed.
+   */
+  public BucketLoadIndex(int expectedNodes) {
+    int capacity = Math.max(expectedNodes, 1);
+    ids = new HashMap<Node, Integer>(capacity * 2);
+    nodes = new Object[capacity];
+    loads = new int[capacity];
+    next = new int[capacity];
+    prev = new int[capacity];
+  }
+
+  private static int[] newHeads(int length) {
+    int[] retval = new int[length];
+    Arrays.fill(retval, NONE);
+    return retval;
+  }
+
+  private int id(Node node) {
+    Integer retval = ids.get(node);
+    Preconditions.checkArgument(retval != null, "Node is not indexed: %s", node);
+    return retval;
+  }
+
+  private int allocateId() {
+    if (freeIds != NONE) {
+      int retval = freeIds;
+      freeIds = next[retval];
+      return retval;
+    }
+    if (nextId == nodes.length) {
+      int capacity = nodes.length * 2;
+      nodes = Arrays.copyOf(nodes, capacity);
+      loads = Arrays.copyOf(loads, capacity);
+      next = Arrays.copyOf(next, capacity);
+      prev = Arrays.copyOf(prev, capacity);
+    }
+    return nextId++;
+  }
+
+  private void ensureBucket(int load) {
+    if (load >= lowest && load - lowest < heads.length) { return; }
+    int low = Math.min(lowest, load);
+    int high = Math.max(lowest + heads.length, load + 1);
+    int length = Math.max(heads.length * 2, high - low);
+    if (load < lowest) {
+      //leave the slack on the side that is growing
+      low = high - length;
+    }
+    int[] grown = newHeads(length);
+    System.arraycopy(heads, 0, grown, lowest - low, heads.length);
+    heads = grown;
+    lowest = low;
+  }
+
+  private int head(int load) {
+    return load < lowest || load - lowest >= heads.length ? NONE : heads[load - lowest];
+  }
+
+  private void link(int id, int load) {
+    ensureBucket(load);
+    int bucket = load - lowest;
+    loads[id] = load;
+    prev[id] = NONE;
+    next[id] = heads[bucket];
+    if (heads[bucket] != NONE) {
+      prev[heads[bucket]] = id;
+    }
+    heads[bucket] = id;
+  }
+
+  private void unlink(int id) {
+    if (prev[id] == NONE) {
+      heads[loads[id] - lowest] = next[id];
+    } else {
+      next[prev[id]] = next[id];
+    }
+    if (next[id] != NONE) {
+      prev[next[id]] = prev[id];
+    }
+  }
+
+  //After a node leaves oldLoad, pull min and max back onto occupied buckets
+  private void settle(int oldLoad) {
+    if (size == 0 || head(oldLoad) != NONE) { return; }
+    if (oldLoad == min) {
+      while(head(min) == NONE) { ++min; }
+    }
+    if (oldLoad == max) {
+      while(head(max) == NONE) { --max; }
+    }
+  }
+
+  /**
+   * Start tracking a node.
+   *
+   * @param node  The node to track.  Must not already be indexed.
+   * @param load  The node's current load.
+   */
+  public void add(Node node, int load) {
+    Preconditions.checkArgument(!ids.containsKey(node), "Node is already indexed: %s", node);
+    load -= offset;
+    int id = allocateId();
+    ids.put(node, id);
+    nodes[id] = node;
+    link(id, load);
+    if (size++ == 0) {
+      min = max = load;
+    } else {
+      min = Math.min(min, load);
+      max = Math.max(max, load);
+    }
+  }
+
+  /**
+   * Stop tracking a node.
+   *
+   * @param node  The node to forget.  Must be indexed.
+   * @return  The load the node had.
+   */
+  public int remove(Node node) {
+    int id = id(node);
+    int load = loads[id];
+    ids.remove(node);
+    unlink(id);
+    nodes[id] = null;
+    next[id] = freeIds;
+    freeIds = id;
+    --size;
+    settle(load);
+    return load + offset;
+  }
+
+  /**
+   * Change a node's load by delta.  O(1) when delta is 1 or -1.
+   *
+   * @param node  The node whose load changed.  Must be indexed.
+   * @param delta How much the load changed by.
+   * @return  The node's new load.
+   */
+  public int shift(Node node, int delta) {
+    int id = id(node);
+    int oldLoad = loads[id];
+    int newLoad = oldLoad + delta;
+    unlink(id);
+    link(id, newLoad);
+    min = Math.min(min, newLoad);
+    max = Math.max(max, newLoad);
+    settle(oldLoad);
+    return newLoad + offset;
+  }
+
+  /**
+   * Change every node's load by delta.  O(1).
+   *
+   * @param delta How much every load changed by.
+   */
+  public void shiftAll(int delta) {
+    offset += delta;
+  }
+
+  /**
+   * Add one to a node's load.
+   *
+   * @param node  The node whose load went up.  Must be indexed.
+   * @return  The node's new load.
+   */
+  public int increment(Node node) {
+    return shift(node, 1);
+  }
+
+  /**
+   * Take one from a node's load.
+   *
+   * @param node  The node whose load went down.  Must be indexed.
+   * @return  The node's new load.
+   */
+  public int decrement(Node node) {
+    return shift(node, -1);
+  }
+
+  /**
+   * Forget every node.
+   */
+  public void clear() {
+    ids.clear();
+    Arrays.fill(nodes, 0, nextId, null);
+    Arrays.fill(heads, NONE);
+    nextId = 0;
+    freeIds = NONE;
+    min = max = size = offset = 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Node node(int id) {
+    return id == NONE ? null : (Node) nodes[id];
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(Node node) {
+    return ids.containsKey(node);
+  }
+
+  @Override
+  public int load(Node node) {
+    return loads[id(node)] + offset;
+  }
+
+  @Override
+  public Node least() {
+    return size == 0 ? null : node(head(min));
+  }
+
+  @Override
+  public Node most() {
+    return size == 0 ? null : node(head(max));
+  }
+
+  @Override
+  public int minLoad() {
+    return min + offset;
+  }
+
+  @Override
+  public int maxLoad() {
+    return max + offset;
+  }
+
+  @Override
+  public Iterable<Node> ascending() {
+    return () -> { return new BucketIterator(1); };
+  }
+
+  @Override
+  public Iterable<Node> descending() {
+    return () -> { return new BucketIterator(-1); };
+  }
+
+  private class BucketIterator implements Iterator<Node> {
+    private final int direction;
+    private int load;
+    private int id;
+
+    private BucketIterator(int direction) {
+      this.direction = direction;
+      this.load = direction > 0 ? min : max;
+      this.id = size == 0 ? NONE : head(load);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return id != NONE;
+    }
+
+    @Override
+    public Node next() {
+      if (id == NONE) { throw new NoSuchElementException(); }
+      Node retval = node(id);
+      id = BucketLoadIndex.this.next[id];
+      while(id == NONE && load != (direction > 0 ? max : min)) {
+        load += direction;
+        id = head(load);
+      }
+      return retval;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package org.shannon.ShardAllocator.Impl;
+
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Which int node owns which int shard, as an array indexed by shard rather than a set per node.  A million shards take
+ * 4MB instead of the tens a HashSet per node would.
+ *
+ * The first node to claim a shard is its owner.  Any other node claiming it is kept to one side, packed into a long per
+ * claim, as a split brain for the planner to sort out.
+ *
+ * {@link BitmapDistribution} keeps the same as a compressed bitmap per node instead.
+ *
+ * Not thread safe.
+ *
+ * @author Shannon
+ */
+public final class IntDistribution extends IntOwnership {
+  private int[] owners = new int[0];
+  private long[] splitBrains = new long[0];
+  private int splitBrainCount = 0;
+
+  @Override
+  public void claim(int node, int shard) {
+    Preconditions.checkArgument(node >= 0, "Nodes cannot be negative: %s", node);
+    Preconditions.checkArgument(shard >= 0, "Shards cannot be negative: %s", shard);
+    ensureCapacity(shard);
+    if (owners[shard] == NO_NODE) {
+      owners[shard] = node;
+    } else if (owners[shard] != node) {
+      if (splitBrainCount == splitBrains.length) {
+        splitBrains = Arrays.copyOf(splitBrains, Math.max(16, splitBrainCount * 2));
+      }
+      splitBrains[splitBrainCount++] = pack(shard, node);
+    }
+  }
+
+  private void ensureCapacity(int shard) {
+    if (shard >= owners.length) {
+      int oldLength = owners.length;
+      owners = Arrays.copyOf(owners, Math.max(shard + 1, oldLength + (oldLength >> 1)));
+      Arrays.fill(owners, oldLength, owners.length, NO_NODE);
+    }
+  }
+
+  //Sorting packed claims groups them by shard
+  static long pack(int shard, int node) {
+    return ((long) shard << 32) | (node & 0xFFFFFFFFL);
+  }
+
+  static int shardOf(long claim) {
+    return (int) (claim >>> 32);
+  }
+
+  static int nodeOf(long claim) {
+    return (int) claim;
+  }
+
+  @Override
+  public int owner(int shard) {
+    return shard < owners.length ? owners[shard] : NO_NODE;
+  }
+
+  private void setOwner(int shard, int node) {
+    ensureCapacity(shard);
+    owners[shard] = node;
+  }
+
+  //Claims past the first, sorted by shard
+  private long[] splitBrains() {
+    long[] retval = Arrays.copyOf(splitBrains, splitBrainCount);
+    Arrays.sort(retval);
+    return retval;
+  }
+
+  @Override
+  void forgetLeavers(BitSet nodeUniverse) {
+    for (int shard = 0; shard < owners.length; ++shard) {
+      if (owners[shard] != NO_NODE && !nodeUniverse.get(owners[shard])) {
+        owners[shard] = NO_NODE;
+      }
+    }
+    long[] claims = splitBrains();
+    splitBrainCount = 0;
+    for (long claim : claims) {
+      int node = nodeOf(claim);
+      int shard = shardOf(claim);
+      if (!nodeUniverse.get(node)) { continue; }
+      if (owners[shard] == NO_NODE) {
+        //The first claim was by a node that left
+        owners[shard] = node;
+      } else {
+        splitBrains[splitBrainCount++] = claim;
+      }
+    }
+  }
+
+  @Override
+  void releaseRemoved(BitSet shardUniverse, IntMoves moves) {
+    for (int shard = 0; shard < owners.length; ++shard) {
+      if (owners[shard] != NO_NODE && !shardUniverse.get(shard)) {
+        moves.add(owners[shard], NO_NODE, shard);
+      }
+    }
+    for (int i = 0; i < splitBrainCount; ++i) {
+      if (!shardUniverse.get(shardOf(splitBrains[i]))) {
+        moves.add(nodeOf(splitBrains[i]), NO_NODE, shardOf(splitBrains[i]));
+      }
+    }
+  }
+
+  @Override
+  int[] counts(BitSet shardUniverse, int nodes) {
+    int[] retval = new int[nodes];
+    for (int shard = shardUniverse.nextSetBit(0); shard >= 0; shard = shardUniverse.nextSetBit(shard + 1)) {
+      int owner = owner(shard);
+      if (owner != NO_NODE) {
+        ++retval[owner];
+      }
+    }
+    return retval;
+  }
+
+  @Override
+  void forEachSplitBrain(BitSet shardUniverse, SplitBrainVisitor visitor) {
+    long[] claims = splitBrains();
+    int i = 0;
+    while(i < claims.length) {
+      int shard = shardOf(claims[i]);
+      int end = i;
+      while(end < claims.length && shardOf(claims[end]) == shard) {
+        ++end;
+      }
+      if (shardUniverse.get(shard)) {
+        int[] claimants = new int[end - i + 1];
+        claimants[0] = owners[shard];
+        for (int j = i; j < end; ++j) {
+          claimants[j - i + 1] = nodeOf(claims[j]);
+        }
+        visitor.visit(shard, claimants);
+      }
+      i = end;
+    }
+  }
+
+  @Override
+  void forEachOrphan(BitSet shardUniverse, IntConsumer action) {
+    for (int shard = shardUniverse.nextSetBit(0); shard >= 0; shard = shardUniverse.nextSetBit(shard + 1)) {
+      if (owner(shard) == NO_NODE) {
+        action.accept(shard);
+      }
+    }
+  }
+
+  @Override
+  void forEachOwned(BitSet shardUniverse, OwnedVisitor visitor) {
+    //In shard order, so a node that wants no more is only skipped over
+    for (int shard = shardUniverse.nextSetBit(0); shard >= 0; shard = shardUniverse.nextSetBit(shard + 1)) {
+      if (owner(shard) != NO_NODE) {
+        visitor.visit(owner(shard), shard);
+      }
+    }
+  }
+
+  @Override
+  void forgetSplitBrains() {
+    splitBrains = new long[0];
+    splitBrainCount = 0;
+  }
+
+  @Override
+  void move(int fromNode, int toNode, int shard) {
+    if (owner(shard) == fromNode) {
+      setOwner(shard, toNode);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.Arrays;
+
+/**
+ * A list of moves between int nodes, kept as three int arrays rather than a {@link org.shannon.ShardAllocator.ShardRelocation}
+ * each.  The missing node of a new or removed shard is {@link org.shannon.ShardAllocator.IntShardRelocator#NO_NODE}.
+ *
+ * Not thread safe.
+ *
+ * @author Shannon
+ */
+public final class IntMoves {
+  private int[] fromNodes = new int[16];
+  private int[] toNodes = new int[16];
+  private int[] shards = new int[16];
+  private int size = 0;
+
+  void add(int fromNode, int toNode, int shard) {
+    if (size == shards.length) {
+      int capacity = size * 2;
+      fromNodes = Arrays.copyOf(fromNodes, capacity);
+      toNodes = Arrays.copyOf(toNodes, capacity);
+      shards = Arrays.copyOf(shards, capacity);
+    }
+    fromNodes[size] = fromNode;
+    toNodes[size] = toNode;
+    shards[size] = shard;
+    ++size;
+  }
+
+  /**
+   * @return  How many moves there are.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @param i The move, from 0.
+   * @return  Where its shard is.
+   */
+  public int fromNode(int i) {
+    return fromNodes[i];
+  }
+
+  /**
+   * @param i The move, from 0.
+   * @return  Where its shard should be.
+   */
+  public int toNode(int i) {
+    return toNodes[i];
+  }
+
+  /**
+   * @param i The move, from 0.
+   * @return  Its shard.
+   */
+  public int shard(int i) {
+    return shards[i];
+  }
+}
@@ -0,0 +1,65 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+import org.shannon.ShardAllocator.IntDistributionDiscoverer;
+
+/**
+ * What {@link IntPlanner} and {@link IntShardAllocator} need of a record of which int node owns which int shard.  The
+ * planner asks for whole sets at a time so that {@link IntDistribution} can answer with a pass over its array and
+ * {@link BitmapDistribution} with a few bitmap operations per node.
+ *
+ * A shard claimed by more than one node has one owner, the one {@link #owner(int)} gives, and the rest of its claimants
+ * are split brains.
+ *
+ * @author Shannon
+ */
+abstract class IntOwnership implements IntDistributionDiscoverer.Claims {
+  interface SplitBrainVisitor {
+    //claimants has the owner first
+    void visit(int shard, int[] claimants);
+  }
+
+  interface OwnedVisitor {
+    //Returning false says nothing more is wanted from that node
+    boolean visit(int node, int shard);
+  }
+
+  /**
+   * @param shard The shard.
+   * @return  Its owner, or {@link org.shannon.ShardAllocator.IntShardRelocator#NO_NODE} if it has none.
+   */
+  public abstract int owner(int shard);
+
+  /**
+   * Records a move that was made.  Moves of a shard its fromNode didn't claim, and moves of a new shard that has
+   * already been claimed, change nothing.
+   *
+   * @param fromNode  Where the shard was.
+   * @param toNode    Where it is now.
+   * @param shard     The shard.
+   */
+  abstract void move(int fromNode, int toNode, int shard);
+
+  //Forgets every claim by a node not in nodeUniverse, assuming it left and let go of everything it had
+  abstract void forgetLeavers(BitSet nodeUniverse);
+
+  //Adds a move letting go of every claim, split brains included, on a shard not in shardUniverse
+  abstract void releaseRemoved(BitSet shardUniverse, IntMoves moves);
+
+  //How many of shardUniverse each node owns, indexed by node, at least nodes long
+  abstract int[] counts(BitSet shardUniverse, int nodes);
+
+  //Each shard in shardUniverse claimed by more than one node, in order
+  abstract void forEachSplitBrain(BitSet shardUniverse, SplitBrainVisitor visitor);
+
+  //Each shard in shardUniverse nobody owns, in order
+  abstract void forEachOrphan(BitSet shardUniverse, IntConsumer action);
+
+  //Each shard in shardUniverse with its owner
+  abstract void forEachOwned(BitSet shardUniverse, OwnedVisitor visitor);
+
+  //Forgets every claim but the owner's
+  abstract void forgetSplitBrains();
+}
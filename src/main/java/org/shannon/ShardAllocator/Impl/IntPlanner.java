@@ -0,0 +1,189 @@
+package org.shannon.ShardAllocator.Impl;
+
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+
+import java.util.BitSet;
+import java.util.function.IntUnaryOperator;
+
+import org.shannon.ShardAllocator.IntSplitBrainResolver;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The planning half of {@link IntShardAllocator}.  Plans the same moves {@link SimplePlanner} would, every node ending
+ * with the floor or ceiling of its share of the shards, but over int ids in arrays and bitsets, so nothing is boxed or
+ * hashed and a plan allocates little beyond the moves themselves.
+ *
+ * Every node's target is worked out up front.  Nodes already over their floor are given the ceilings first so that as
+ * few shards as possible move.  Then orphans, and after them whatever each node has over its target, are handed to the
+ * nodes under theirs.  Over an {@link IntDistribution} planning is a pass or two over the shards, O(shards + nodes).
+ * Over a {@link BitmapDistribution} it's a few bitmap operations per node, and only the shards that move are gone
+ * through one at a time.
+ *
+ * Split brains are handed to the {@link IntSplitBrainResolver}.  Same as {@link SimplePlanner}, when any are resolved
+ * nothing is balanced until the distribution has been discovered again.  Those the resolver leaves alone stay where
+ * they are, kept out of balancing, and are asked about again next plan.
+ *
+ * Planning forgets, in place, the claims of nodes that have left, same as every other planner.  Otherwise the
+ * distribution is left alone; the allocator records each move as it is made.
+ *
+ * @author Shannon
+ */
+public final class IntPlanner {
+  private final BitSet nodeUniverse;
+  private final BitSet shardUniverse;
+  private final IntOwnership distribution;
+  private final IntSplitBrainResolver splitBrainResolver;
+  private final IntUnaryOperator nodeCapacity;
+  private boolean splitBrain = false;
+
+  /**
+   * The planning half of {@link IntShardAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Which node owns which shard.  Claims of nodes not in nodeUniverse are forgotten.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param nodeCapacity        How big each node is.  Each node's share of the shards is proportional to it.
+   */
+  public IntPlanner(BitSet nodeUniverse, BitSet shardUniverse, IntDistribution distribution
+      , IntSplitBrainResolver splitBrainResolver, IntUnaryOperator nodeCapacity) {
+    this(nodeUniverse, shardUniverse, (IntOwnership) distribution, splitBrainResolver, nodeCapacity);
+  }
+
+  /**
+   * The planning half of {@link IntShardAllocator}, over bitmaps.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Which node owns which shard.  Claims of nodes not in nodeUniverse are forgotten.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param nodeCapacity        How big each node is.  Each node's share of the shards is proportional to it.
+   */
+  public IntPlanner(BitSet nodeUniverse, BitSet shardUniverse, BitmapDistribution distribution
+      , IntSplitBrainResolver splitBrainResolver, IntUnaryOperator nodeCapacity) {
+    this(nodeUniverse, shardUniverse, (IntOwnership) distribution, splitBrainResolver, nodeCapacity);
+  }
+
+  IntPlanner(BitSet nodeUniverse, BitSet shardUniverse, IntOwnership distribution
+      , IntSplitBrainResolver splitBrainResolver, IntUnaryOperator nodeCapacity) {
+    Preconditions.checkNotNull(nodeCapacity, "Must have a nodeCapacity");
+    this.nodeUniverse = nodeUniverse;
+    this.shardUniverse = shardUniverse;
+    this.distribution = distribution;
+    this.splitBrainResolver = splitBrainResolver;
+    this.nodeCapacity = nodeCapacity;
+  }
+
+  /**
+   * @return  Whether the last plan resolved a split brain, after which the distribution should be discovered again.
+   */
+  public boolean resolvedSplitBrain() {
+    return splitBrain;
+  }
+
+  //Returns the shards to balance, which are all of them but split brains left alone
+  private BitSet handleSplitBrain(IntMoves moves, int[] counts) {
+    BitSet[] retval = { shardUniverse };
+    distribution.forEachSplitBrain(shardUniverse, (shard, nodes) -> {
+      int keeper = splitBrainResolver.resolve(shard, nodes.clone(), counts);
+      if (keeper != NO_NODE) {
+        splitBrain = true;
+        for (int node : nodes) {
+          if (node != keeper) {
+            moves.add(node, NO_NODE, shard);
+          }
+        }
+      } else {
+        if (retval[0] == shardUniverse) {
+          retval[0] = (BitSet) shardUniverse.clone();
+        }
+        retval[0].clear(shard);
+      }
+    });
+    return retval[0];
+  }
+
+  //The floor or ceiling of every node's share, ceilings going to nodes that already have more than their floor first
+  private int[] targets(int[] counts) {
+    int[] retval = new int[counts.length];
+    long[] shares = new long[counts.length];
+    long totalCapacity = 0;
+    for (int node = nodeUniverse.nextSetBit(0); node >= 0; node = nodeUniverse.nextSetBit(node + 1)) {
+      int capacity = nodeCapacity.applyAsInt(node);
+      Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s has %s", node, capacity);
+      shares[node] = capacity;
+      totalCapacity += capacity;
+    }
+    long shards = shardUniverse.cardinality();
+    long left = shards;
+    for (int node = nodeUniverse.nextSetBit(0); node >= 0; node = nodeUniverse.nextSetBit(node + 1)) {
+      shares[node] *= shards;
+      retval[node] = (int) (shares[node] / totalCapacity);
+      left -= retval[node];
+    }
+    for (int pass = 0; pass < 2 && left > 0; ++pass) {
+      for (int node = nodeUniverse.nextSetBit(0); node >= 0 && left > 0; node = nodeUniverse.nextSetBit(node + 1)) {
+        boolean hasCeiling = shares[node] % totalCapacity != 0 && retval[node] == shares[node] / totalCapacity;
+        if (hasCeiling && (pass == 1 || counts[node] > retval[node])) {
+          ++retval[node];
+          --left;
+        }
+      }
+    }
+    return retval;
+  }
+
+  private void allNodesEven(IntMoves moves, int[] counts, BitSet balanced) {
+    int[] targets = targets(counts);
+    int[] over = new int[counts.length];
+    for (int node = 0; node < counts.length; ++node) {
+      over[node] = Math.max(0, counts[node] - targets[node]);
+    }
+    int[] taker = { nodeUniverse.nextSetBit(0) };
+    //Orphans first, then whatever nodes have over their targets
+    distribution.forEachOrphan(shardUniverse, (shard) -> {
+      taker[0] = nextTaker(taker[0], counts, targets);
+      moves.add(NO_NODE, taker[0], shard);
+      ++counts[taker[0]];
+    });
+    distribution.forEachOwned(balanced, (owner, shard) -> {
+      if (over[owner] == 0) { return false; }
+      taker[0] = nextTaker(taker[0], counts, targets);
+      moves.add(owner, taker[0], shard);
+      ++counts[taker[0]];
+      --counts[owner];
+      return --over[owner] > 0;
+    });
+  }
+
+  //The first node from taker on that is under its target
+  private int nextTaker(int taker, int[] counts, int[] targets) {
+    while(counts[taker] >= targets[taker]) {
+      taker = nodeUniverse.nextSetBit(taker + 1);
+    }
+    return taker;
+  }
+
+  /**
+   * Works out the moves needed to get every shard owned by exactly one node with every node owning the floor or ceiling
+   * of its share of the shards, shards * capacity / total capacity.
+   *
+   * @return  The moves that need to happen, orphans before the rest.
+   */
+  public IntMoves determineMoves() {
+    IntMoves moves = new IntMoves();
+    splitBrain = false;
+    if (nodeUniverse.isEmpty()) { return moves; }
+
+    distribution.forgetLeavers(nodeUniverse);
+    distribution.releaseRemoved(shardUniverse, moves);
+    int[] counts = distribution.counts(shardUniverse, nodeUniverse.length());
+    BitSet balanced = handleSplitBrain(moves, counts);
+    //If the resolver asked for moves honor them and don't reassign anything until they are made
+    if (!splitBrain) {
+      allNodesEven(moves, counts, balanced);
+    }
+    return moves;
+  }
+}
@@ -0,0 +1,470 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.lang.invoke.MethodHandles;
+import java.util.BitSet;
+import java.util.concurrent.Executor;
+import java.util.function.IntUnaryOperator;
+
+import org.shannon.ShardAllocator.IntDistributionDiscoverer;
+import org.shannon.ShardAllocator.IntShardRelocator;
+import org.shannon.ShardAllocator.IntSplitBrainResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Allocates shards the same way {@link SimpleAllocator} does, for when nodes and shards are dense int ids.  Universes
+ * are bitsets, the distribution is an int per shard (see {@link IntDistribution}) or, with compactDistribution, a
+ * bitmap per node (see {@link BitmapDistribution}), moves are int arrays (see
+ * {@link IntMoves}) and the relocator, discoverer and split brain resolver take ints, so nothing is boxed anywhere.  A
+ * million shards cost a few MB rather than the hundred or so of HashSets of Integers.
+ *
+ * Relocations are limited to relocatingThreadsPerNode per node, the missing node of new and removed shards included,
+ * same as {@link org.shannon.ConstrainedQueue.ConcurrentShardRelocationConstrainer}.  A move that has to wait is parked
+ * on whichever of its nodes is full, and looked at again only when that node frees up.
+ *
+ * A change while rebalancing doesn't interrupt anything.  Moves already handed to the relocator carry on, nothing new
+ * is started and the next round plans from wherever they leave things.  A move that fails does the same, and the next
+ * round discovers the distribution first.  Otherwise moves that are made are trusted, so nothing is discovered again.
+ *
+ * None of the extras of {@link AbstractAllocator}, coalescing, rate limits, retries and the like, are here.
+ *
+ * @author Shannon
+ */
+public final class IntShardAllocator extends AbstractRoundAllocator {
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  //Guarded by this, as is everything about a round
+  private BitSet nodeUniverse;
+  private BitSet shardUniverse;
+  private IntOwnership distribution;
+  private final boolean compactDistribution;
+  private final int maxThreadsPerNode;
+  private final IntDistributionDiscoverer distDiscoverer;
+  private final IntShardRelocator relocator;
+  private final IntSplitBrainResolver splitBrainResolver;
+  private final IntUnaryOperator nodeCapacity;
+
+  private IntShardAllocator(Builder builder) {
+    super(builder.relocationExecutor);
+    Preconditions.checkArgument(builder.nodes != null && !builder.nodes.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    Preconditions.checkArgument(builder.shards != null && !builder.shards.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    Preconditions.checkNotNull(builder.distDiscoverer, "Must have a distDiscoverer");
+    Preconditions.checkNotNull(builder.relocator, "Must have a relocator");
+    Preconditions.checkNotNull(builder.splitBrainResolver, "Must have a splitBrainResolver");
+    Preconditions.checkNotNull(builder.nodeCapacity, "Must have a nodeCapacity");
+    Preconditions.checkArgument(builder.relocatingThreadsPerNode > 0, "Must relocate at least one shard per node at a time");
+    this.nodeUniverse = (BitSet) builder.nodes.clone();
+    this.shardUniverse = (BitSet) builder.shards.clone();
+    this.compactDistribution = builder.compactDistribution;
+    this.distribution = newDistribution();
+    if (builder.distribution != null) {
+      this.distribution = builder.distribution;
+      this.needsDiscovery = false;
+    }
+    this.maxThreadsPerNode = builder.relocatingThreadsPerNode;
+    this.distDiscoverer = builder.distDiscoverer;
+    this.relocator = builder.relocator;
+    this.splitBrainResolver = builder.splitBrainResolver;
+    this.nodeCapacity = builder.nodeCapacity;
+    allocateAsync();
+  }
+
+  /**
+   * Called when the universe of shards changes. Will kick off a rebalance if not balanced.
+   *
+   * @param shardUniverse   All the shards.
+   */
+  public synchronized void notifyShardsChange(BitSet shardUniverse) {
+    Preconditions.checkArgument(shardUniverse != null && !shardUniverse.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    this.shardUniverse = (BitSet) shardUniverse.clone();
+    allocateAsync();
+  }
+
+  /**
+   * Called when the universe of nodes changes. Will kick off a rebalance if not balanced.
+   *
+   * @param nodeUniverse    All the nodes.
+   */
+  public synchronized void notifyNodesChange(BitSet nodeUniverse) {
+    Preconditions.checkArgument(nodeUniverse != null && !nodeUniverse.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    this.nodeUniverse = (BitSet) nodeUniverse.clone();
+    allocateAsync();
+  }
+
+  /**
+   * Called when the distribution changes behind the allocator's back.  Discovers it again and rebalances if not
+   * balanced.
+   */
+  public synchronized void notifyDistributionChange() {
+    needsDiscovery = true;
+    allocateAsync();
+  }
+
+  /**
+   * Called when the distribution changes and the caller knows what it is now.  Will kick off a rebalance if not
+   * balanced.
+   *
+   * @param distribution    Which node owns which shard.  Taken over by the allocator, so don't change it after.
+   */
+  public void notifyDistributionChange(IntDistribution distribution) {
+    notifyDistributionChange((IntOwnership) distribution);
+  }
+
+  /**
+   * Called when the distribution changes and the caller knows what it is now.  Will kick off a rebalance if not
+   * balanced.
+   *
+   * @param distribution    Which node owns which shard.  Taken over by the allocator, so don't change it after.
+   */
+  public void notifyDistributionChange(BitmapDistribution distribution) {
+    notifyDistributionChange((IntOwnership) distribution);
+  }
+
+  synchronized void notifyDistributionChange(IntOwnership distribution) {
+    Preconditions.checkNotNull(distribution, "Must have a distribution");
+    this.distribution = distribution;
+    needsDiscovery = false;
+    allocateAsync();
+  }
+
+  //Sets or clears ids, rebalancing if that changed anything
+  private void change(BitSet universe, int[] ids, boolean add) {
+    boolean any = false;
+    for (int id : ids) {
+      Preconditions.checkArgument(id >= 0, "Ids cannot be negative: %s", id);
+      if (universe.get(id) != add) {
+        universe.set(id, add);
+        any = true;
+      }
+    }
+    if (any) {
+      allocateAsync();
+    }
+  }
+
+  /**
+   * Called when shards are created.  Will kick off a rebalance if any of them are new.
+   *
+   * @param shards    The new shards.
+   */
+  public synchronized void addShards(int... shards) {
+    change(shardUniverse, shards, true);
+  }
+
+  /**
+   * Called when shards go away.  Will kick off a rebalance if any of them were known.
+   *
+   * @param shards    The shards that are gone.
+   */
+  public synchronized void removeShards(int... shards) {
+    change(shardUniverse, shards, false);
+  }
+
+  /**
+   * Called when nodes join.  Will kick off a rebalance if any of them are new.
+   *
+   * @param nodes The nodes that joined.
+   */
+  public synchronized void addNodes(int... nodes) {
+    change(nodeUniverse, nodes, true);
+  }
+
+  /**
+   * Called when nodes leave.  Will kick off a rebalance if any of them were known.  Same as everywhere else, nodes that
+   * leave are assumed to have let go of their shards.
+   *
+   * @param nodes The nodes that left.
+   */
+  public synchronized void removeNodes(int... nodes) {
+    change(nodeUniverse, nodes, false);
+  }
+
+  /**
+   * @param shard The shard.
+   * @return  Which node owns the shard as far as the allocator knows, or {@link IntShardRelocator#NO_NODE} if none.
+   */
+  public synchronized int owner(int shard) {
+    return distribution.owner(shard);
+  }
+
+  private IntOwnership newDistribution() {
+    return compactDistribution ? new BitmapDistribution() : new IntDistribution();
+  }
+
+  @Override
+  protected void discoverDistribution() {
+    IntOwnership discovered = newDistribution();
+    distDiscoverer.discoverDistribution(discovered);
+    distribution = discovered;
+  }
+
+  @Override
+  protected Round plan() {
+    IntPlanner planner = new IntPlanner(nodeUniverse, shardUniverse, distribution, splitBrainResolver, nodeCapacity);
+    IntMoves moves = planner.determineMoves();
+    if (moves.isEmpty()) { return null; }
+    //Once the resolver has had its say, see what the nodes think now.  Split brains it left alone are kept to ask about
+    //again
+    needsDiscovery = planner.resolvedSplitBrain();
+    if (needsDiscovery) {
+      distribution.forgetSplitBrains();
+    }
+    return new IntRound(moves);
+  }
+
+  /*
+   * One plan's worth of moves.  Each node, and the missing node, has a count of moves under way and a queue of moves
+   * parked on it.  A move is parked on whichever of its nodes was full when it was last looked at, and looked at again
+   * when that node frees up.
+   */
+  private final class IntRound extends Round {
+    private final IntMoves moves;
+    //By node + 1, so that the missing node is 0
+    private int[] active;
+    private IntQueue[] parked;
+    private int parkedCount = 0;
+    //Moves not yet offered
+    private int next = 0;
+
+    private IntRound(IntMoves moves) {
+      this.moves = moves;
+      int slots = 1;
+      for (int i = 0; i < moves.size(); ++i) {
+        slots = Math.max(slots, Math.max(moves.fromNode(i), moves.toNode(i)) + 2);
+      }
+      this.active = new int[slots];
+      this.parked = new IntQueue[slots];
+    }
+
+    @Override
+    protected void startMoves() {
+      while(next < moves.size() && !stopping()) {
+        offer(next++);
+      }
+    }
+
+    @Override
+    protected boolean pending() {
+      return next < moves.size() || parkedCount > 0;
+    }
+
+    //Starts the move if both its nodes have room, otherwise parks it on one that doesn't
+    private void offer(int i) {
+      int from = moves.fromNode(i) + 1;
+      int to = moves.toNode(i) + 1;
+      int full = active[from] >= maxThreadsPerNode ? from : active[to] >= maxThreadsPerNode ? to : -1;
+      if (full >= 0) {
+        if (parked[full] == null) {
+          parked[full] = new IntQueue();
+        }
+        parked[full].add(i);
+        ++parkedCount;
+        return;
+      }
+      ++active[from];
+      ++active[to];
+      if (!execute(() -> { run(i); })) {
+        finished(i, false);
+      }
+    }
+
+    private void run(int i) {
+      boolean succeeded = false;
+      try {
+        relocator.relocate(moves.fromNode(i), moves.toNode(i), moves.shard(i));
+        succeeded = true;
+      } catch (Throwable e) {
+        logger.error("IntShardAllocator.relocate() - Caught Exception while trying to move shard {} from {} to {}."
+            , moves.shard(i), moves.fromNode(i), moves.toNode(i), e);
+      }
+      synchronized(IntShardAllocator.this) {
+        if (succeeded) {
+          distribution.move(moves.fromNode(i), moves.toNode(i), moves.shard(i));
+        }
+        finished(i, succeeded);
+      }
+    }
+
+    private void finished(int i, boolean succeeded) {
+      int from = moves.fromNode(i) + 1;
+      int to = moves.toNode(i) + 1;
+      --active[from];
+      --active[to];
+      finished(succeeded);
+      if (!stopping()) {
+        unpark(from);
+        unpark(to);
+      }
+    }
+
+    private void unpark(int slot) {
+      IntQueue queue = parked[slot];
+      while(queue != null && !queue.isEmpty() && active[slot] < maxThreadsPerNode) {
+        --parkedCount;
+        offer(queue.poll());
+      }
+    }
+  }
+
+  //A first in first out queue of ints that grows as needed
+  private static final class IntQueue {
+    private int[] elements = new int[8];
+    private int head = 0;
+    private int size = 0;
+
+    private void add(int e) {
+      if (size == elements.length) {
+        int[] grown = new int[size * 2];
+        for (int i = 0; i < size; ++i) {
+          grown[i] = elements[(head + i) % elements.length];
+        }
+        elements = grown;
+        head = 0;
+      }
+      elements[(head + size) % elements.length] = e;
+      ++size;
+    }
+
+    private int poll() {
+      int retval = elements[head];
+      head = (head + 1) % elements.length;
+      --size;
+      return retval;
+    }
+
+    private boolean isEmpty() {
+      return size == 0;
+    }
+  }
+
+  /**
+   * Builds an {@link IntShardAllocator}.
+   */
+  public static final class Builder {
+    private BitSet nodes;
+    private BitSet shards;
+    private IntOwnership distribution;
+    private boolean compactDistribution = false;
+    private IntDistributionDiscoverer distDiscoverer;
+    private IntShardRelocator relocator;
+    private IntSplitBrainResolver splitBrainResolver;
+    private IntUnaryOperator nodeCapacity = (node) -> { return 1; };
+    private int relocatingThreadsPerNode = 1;
+    private Executor relocationExecutor;
+
+    /**
+     * @param nodes All the nodes.  Required.  Copied.
+     * @return  this
+     */
+    public Builder nodes(BitSet nodes) {
+      this.nodes = nodes;
+      return this;
+    }
+
+    /**
+     * @param shards    All the shards.  Required.  Copied.
+     * @return  this
+     */
+    public Builder shards(BitSet shards) {
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * @param distribution  Which node owns which shard to begin with.  Taken over by the allocator.  Discovered when
+     *                      not given.
+     * @return  this
+     */
+    public Builder distribution(IntDistribution distribution) {
+      return distribution((IntOwnership) distribution);
+    }
+
+    /**
+     * @param distribution  Which node owns which shard to begin with.  Taken over by the allocator.  Discovered when
+     *                      not given.
+     * @return  this
+     */
+    public Builder distribution(BitmapDistribution distribution) {
+      return distribution((IntOwnership) distribution);
+    }
+
+    Builder distribution(IntOwnership distribution) {
+      this.distribution = distribution;
+      return this;
+    }
+
+    /**
+     * @param compactDistribution   Whether to discover the distribution into a {@link BitmapDistribution} rather than
+     *                              an {@link IntDistribution}.  Less heap when nodes own long runs of shards or ids are
+     *                              sparse, at the cost of {@link IntShardAllocator#owner(int)} going through every
+     *                              node.  Defaults to false.
+     * @return  this
+     */
+    public Builder compactDistribution(boolean compactDistribution) {
+      this.compactDistribution = compactDistribution;
+      return this;
+    }
+
+    /**
+     * @param distDiscoverer    Discovers the distribution before the first plan and after anything goes wrong.
+     *                          Required.
+     * @return  this
+     */
+    public Builder distributionDiscoverer(IntDistributionDiscoverer distDiscoverer) {
+      this.distDiscoverer = distDiscoverer;
+      return this;
+    }
+
+    /**
+     * @param relocator Moves the shards.  Required.
+     * @return  this
+     */
+    public Builder relocator(IntShardRelocator relocator) {
+      this.relocator = relocator;
+      return this;
+    }
+
+    /**
+     * @param splitBrainResolver    Picks which node keeps a shard claimed by more than one.  Required.
+     * @return  this
+     */
+    public Builder splitBrainResolver(IntSplitBrainResolver splitBrainResolver) {
+      this.splitBrainResolver = splitBrainResolver;
+      return this;
+    }
+
+    /**
+     * @param nodeCapacity  How big each node is.  Each node's share of the shards is proportional to it.  Defaults to
+     *                      every node the same.
+     * @return  this
+     */
+    public Builder nodeCapacity(IntUnaryOperator nodeCapacity) {
+      this.nodeCapacity = nodeCapacity;
+      return this;
+    }
+
+    /**
+     * @param relocatingThreadsPerNode  How many moves any node may be part of at once.  Defaults to 1.
+     * @return  this
+     */
+    public Builder relocatingThreadsPerNode(int relocatingThreadsPerNode) {
+      this.relocatingThreadsPerNode = relocatingThreadsPerNode;
+      return this;
+    }
+
+    /**
+     * @param relocationExecutor    Where to relocate.  Not shut down by the allocator.  Defaults to a pool of the
+     *                              allocator's own.
+     * @return  this
+     */
+    public Builder relocationExecutor(Executor relocationExecutor) {
+      this.relocationExecutor = relocationExecutor;
+      return this;
+    }
+
+    public IntShardAllocator build() {
+      return new IntShardAllocator(this);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hands out a compact int id per distinct object, 0 for the first, 1 for the next and so on, and gives the object back
+ * for an id.  hashCode and equals are called when an object is looked up and never again after, so objects that are
+ * expensive to hash or compare, e.g. composite string keys, only pay once at the boundary.
+ *
+ * Ids are never reused; an object keeps its id for as long as the interner lives, whether or not it is still around.
+ *
+ * Open addressing over an array of objects and an array of ids, so nothing is boxed.  Thread safe.
+ *
+ * @author Shannon
+ *
+ * @param <T> That which is being interned
+ */
+public final class Interner<T> {
+  private static final int NONE = -1;
+  //Guarded by this
+  private Object[] keys = new Object[16];
+  private int[] slots = new int[16];
+  private Object[] values = new Object[16];
+  private int size = 0;
+
+  public Interner() {
+    Arrays.fill(slots, NONE);
+  }
+
+  private static int spread(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  //Where t is, or the empty slot it would go in
+  private int slot(Object t) {
+    int mask = keys.length - 1;
+    int i = spread(t.hashCode()) & mask;
+    while(keys[i] != null && !keys[i].equals(t)) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  private void grow() {
+    Object[] oldKeys = keys;
+    int[] oldSlots = slots;
+    keys = new Object[oldKeys.length * 2];
+    slots = new int[oldKeys.length * 2];
+    Arrays.fill(slots, NONE);
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != null) {
+        int slot = slot(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        slots[slot] = oldSlots[i];
+      }
+    }
+  }
+
+  /**
+   * @param t The object.
+   * @return  Its id, handing out the next one if it has none yet.
+   */
+  public synchronized int intern(T t) {
+    Preconditions.checkNotNull(t, "Cannot intern null");
+    int slot = slot(t);
+    if (keys[slot] != null) { return slots[slot]; }
+    //Kept at most half full so that probes stay short
+    if ((size + 1) * 2 > keys.length) {
+      grow();
+      slot = slot(t);
+    }
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    keys[slot] = t;
+    slots[slot] = size;
+    values[size] = t;
+    return size++;
+  }
+
+  /**
+   * @param t The object.
+   * @return  Its id, or -1 if it has none.
+   */
+  public synchronized int id(T t) {
+    if (t == null) { return NONE; }
+    int slot = slot(t);
+    return keys[slot] == null ? NONE : slots[slot];
+  }
+
+  /**
+   * @param id    An id handed out by {@link #intern(Object)}.
+   * @return  The object it was handed out for.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized T value(int id) {
+    Preconditions.checkElementIndex(id, size, "id");
+    return (T) values[id];
+  }
+
+  /**
+   * @return  How many ids have been handed out.
+   */
+  public synchronized int size() {
+    return size;
+  }
+}
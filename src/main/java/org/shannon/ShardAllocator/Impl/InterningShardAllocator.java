@@ -0,0 +1,349 @@
+package org.shannon.ShardAllocator.Impl;
+
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+
+import java.lang.invoke.MethodHandles;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.shannon.ShardAllocator.DistributionDiscoverer;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardAllocator;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardRelocator;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Allocates shards the same way {@link SimpleAllocator} does, but turns every node and shard into an int id once, where
+ * it comes in, and does everything else on an {@link IntShardAllocator}.  hashCode and equals are only called on the
+ * way in, when a universe, a change or a discovered distribution is handed over, and never while planning or
+ * constraining moves.  Worth it when nodes or shards are expensive to hash or compare, e.g. composite string keys.
+ *
+ * Ids go back to objects only to call the {@link ShardRelocator}, the {@link SplitBrainResolver} and the
+ * {@link NodeCapacity}.  See {@link Interner} for how ids are handed out; they are never reused, so a shard that comes
+ * back gets its old id.
+ *
+ * The int allocator's split brain resolver picks which node keeps a shard, so the moves the SplitBrainResolver returns
+ * are read that way:  every claimant it moves the shard off lets go, and if that leaves exactly one claimant that one
+ * keeps it.  Anything else leaves the shard alone and is logged.
+ *
+ * None of the extras of {@link AbstractAllocator}, coalescing, rate limits, retries and the like, are here.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class InterningShardAllocator<Node, Shard> implements ShardAllocator<Node, Shard> {
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private final Interner<Node> nodes = new Interner<Node>();
+  private final Interner<Shard> shards = new Interner<Shard>();
+  //Replaced rather than changed, under this, so that split brains can be resolved without it
+  private volatile BitSet nodeUniverse;
+  private volatile BitSet shardUniverse;
+  private final NodeCapacity<Node> nodeCapacity;
+  private final SplitBrainResolver<Node, Shard> splitBrainResolver;
+  private final boolean compactDistribution;
+  private final IntShardAllocator allocator;
+
+  private InterningShardAllocator(Builder<Node, Shard> builder) {
+    Preconditions.checkArgument(builder.nodes != null  && !builder.nodes.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    Preconditions.checkArgument(builder.shards != null  && !builder.shards.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    Preconditions.checkNotNull(builder.distDiscoverer, "Must have a distDiscoverer");
+    Preconditions.checkNotNull(builder.relocator, "Must have a relocator");
+    Preconditions.checkNotNull(builder.splitBrainResolver, "Must have a splitBrainResolver");
+    Preconditions.checkNotNull(builder.nodeCapacity, "Must have a nodeCapacity");
+    this.nodeUniverse = ids(nodes, builder.nodes);
+    this.shardUniverse = ids(shards, builder.shards);
+    this.nodeCapacity = builder.nodeCapacity;
+    this.splitBrainResolver = builder.splitBrainResolver;
+    this.compactDistribution = builder.compactDistribution;
+    DistributionDiscoverer<Node, Shard> distDiscoverer = builder.distDiscoverer;
+    ShardRelocator<Node, Shard> relocator = builder.relocator;
+    this.allocator = new IntShardAllocator.Builder()
+        .nodes(nodeUniverse)
+        .shards(shardUniverse)
+        .distribution(builder.distribution == null ? null : intern(builder.distribution))
+        .compactDistribution(builder.compactDistribution)
+        .distributionDiscoverer((claims) -> {
+          distDiscoverer.discoverDistribution().forEach((node, owned) -> {
+            int nodeId = nodes.intern(node);
+            owned.forEach((shard) -> { claims.claim(nodeId, shards.intern(shard)); });
+          });
+        })
+        .relocator((fromNode, toNode, shard) -> {
+          relocator.relocate(new ShardRelocation<Node, Shard>(node(fromNode), node(toNode), shards.value(shard)));
+        })
+        .splitBrainResolver(this::resolve)
+        .nodeCapacity((node) -> { return nodeCapacity.capacity(nodes.value(node)); })
+        .relocatingThreadsPerNode(builder.relocatingThreadsPerNode)
+        .relocationExecutor(builder.relocationExecutor)
+        .build();
+  }
+
+  private static <T> BitSet ids(Interner<T> interner, Collection<T> values) {
+    BitSet retval = new BitSet();
+    values.forEach((value) -> { retval.set(interner.intern(value)); });
+    return retval;
+  }
+
+  private Node node(int id) {
+    return id == NO_NODE ? null : nodes.value(id);
+  }
+
+  private IntOwnership intern(Map<Node, Collection<Shard>> distribution) {
+    IntOwnership retval = compactDistribution ? new BitmapDistribution() : new IntDistribution();
+    distribution.forEach((node, owned) -> {
+      int nodeId = nodes.intern(node);
+      owned.forEach((shard) -> { retval.claim(nodeId, shards.intern(shard)); });
+    });
+    return retval;
+  }
+
+  //Asks the SplitBrainResolver and works out who keeps the shard from the moves it gives back
+  private int resolve(int shard, int[] claimants, int[] counts) {
+    HashSet<Node> claimed = new HashSet<Node>();
+    for (int claimant : claimants) {
+      claimed.add(nodes.value(claimant));
+    }
+    Collection<ShardRelocation<Node, Shard>> moves = splitBrainResolver.resolve(shards.value(shard), new HashSet<Node>(claimed)
+        , nodesByShare(counts));
+    if (moves == null || moves.isEmpty()) { return NO_NODE; }
+    for (ShardRelocation<Node, Shard> move : moves) {
+      if (move.getFromNode() != null && !move.getFromNode().equals(move.getToNode())) {
+        claimed.remove(move.getFromNode());
+      }
+    }
+    if (claimed.size() != 1) {
+      logger.warn("InterningShardAllocator.resolve() - Leaving {} alone. Only moves that leave one of {} owning it can be made. Got {}"
+          , shards.value(shard), claimed, moves);
+      return NO_NODE;
+    }
+    return nodes.id(claimed.iterator().next());
+  }
+
+  //Same loads as AbstractPlanner.nodesByShare, from the int allocator's counts
+  private BucketLoadIndex<Node> nodesByShare(int[] counts) {
+    BitSet nodeUniverse = this.nodeUniverse;
+    BitSet shardUniverse = this.shardUniverse;
+    long totalCapacity = 0;
+    for (int node = nodeUniverse.nextSetBit(0); node >= 0; node = nodeUniverse.nextSetBit(node + 1)) {
+      totalCapacity += nodeCapacity.capacity(nodes.value(node));
+    }
+    long shardCount = shardUniverse.cardinality();
+    BucketLoadIndex<Node> retval = new BucketLoadIndex<Node>(nodeUniverse.cardinality());
+    for (int node = nodeUniverse.nextSetBit(0); node >= 0; node = nodeUniverse.nextSetBit(node + 1)) {
+      long share = shardCount * nodeCapacity.capacity(nodes.value(node));
+      int floor = (int) (share / totalCapacity);
+      int ceiling = share % totalCapacity == 0 ? floor : floor + 1;
+      retval.add(nodes.value(node), 2 * (node < counts.length ? counts[node] : 0) - floor - ceiling);
+    }
+    return retval;
+  }
+
+  private static <T> int[] intern(Interner<T> interner, Collection<T> values) {
+    int[] retval = new int[values.size()];
+    int i = 0;
+    for (T value : values) {
+      retval[i++] = interner.intern(value);
+    }
+    return retval;
+  }
+
+  private static BitSet changed(BitSet universe, int[] ids, boolean add) {
+    BitSet retval = (BitSet) universe.clone();
+    for (int id : ids) {
+      retval.set(id, add);
+    }
+    return retval;
+  }
+
+  @Override
+  public synchronized void notifyShardsChange(Collection<Shard> shardUniverse) {
+    Preconditions.checkArgument(shardUniverse != null && !shardUniverse.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    this.shardUniverse = ids(shards, shardUniverse);
+    allocator.notifyShardsChange(this.shardUniverse);
+  }
+
+  @Override
+  public synchronized void notifyNodesChange(Collection<Node> nodeUniverse) {
+    Preconditions.checkArgument(nodeUniverse != null && !nodeUniverse.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    this.nodeUniverse = ids(nodes, nodeUniverse);
+    allocator.notifyNodesChange(this.nodeUniverse);
+  }
+
+  @Override
+  public void notifyDistributionChange(Map<Node, Collection<Shard>> distribution) {
+    allocator.notifyDistributionChange(intern(distribution));
+  }
+
+  @Override
+  public synchronized void addShards(Collection<Shard> shards) {
+    int[] ids = intern(this.shards, shards);
+    shardUniverse = changed(shardUniverse, ids, true);
+    allocator.addShards(ids);
+  }
+
+  @Override
+  public synchronized void removeShards(Collection<Shard> shards) {
+    int[] ids = intern(this.shards, shards);
+    shardUniverse = changed(shardUniverse, ids, false);
+    allocator.removeShards(ids);
+  }
+
+  @Override
+  public synchronized void addNodes(Collection<Node> nodes) {
+    int[] ids = intern(this.nodes, nodes);
+    nodeUniverse = changed(nodeUniverse, ids, true);
+    allocator.addNodes(ids);
+  }
+
+  @Override
+  public synchronized void removeNodes(Collection<Node> nodes) {
+    int[] ids = intern(this.nodes, nodes);
+    nodeUniverse = changed(nodeUniverse, ids, false);
+    allocator.removeNodes(ids);
+  }
+
+  /**
+   * @param shard The shard.
+   * @return  Which node owns the shard as far as the allocator knows, or null if none.
+   */
+  public Node owner(Shard shard) {
+    int id = shards.id(shard);
+    return id < 0 ? null : node(allocator.owner(id));
+  }
+
+  @Override
+  public void awaitRebalance() {
+    allocator.awaitRebalance();
+  }
+
+  @Override
+  public void close() {
+    allocator.close();
+  }
+
+  /**
+   * Builds an {@link InterningShardAllocator}.
+   *
+   * @param <Node>    That which controls or has ownership of Shards
+   * @param <Shard>   Some fragment of the whole which needs controlling.
+   */
+  public static final class Builder<Node, Shard> {
+    private Collection<Node> nodes;
+    private Collection<Shard> shards;
+    private Map<Node, Collection<Shard>> distribution;
+    private DistributionDiscoverer<Node, Shard> distDiscoverer;
+    private ShardRelocator<Node, Shard> relocator;
+    private SplitBrainResolver<Node, Shard> splitBrainResolver;
+    private NodeCapacity<Node> nodeCapacity = (node) -> { return 1; };
+    private boolean compactDistribution = false;
+    private int relocatingThreadsPerNode = 1;
+    private Executor relocationExecutor;
+
+    /**
+     * @param nodes All the nodes.  Required.
+     * @return  this
+     */
+    public Builder<Node, Shard> nodes(Collection<Node> nodes) {
+      this.nodes = nodes;
+      return this;
+    }
+
+    /**
+     * @param shards    All the shards.  Required.
+     * @return  this
+     */
+    public Builder<Node, Shard> shards(Collection<Shard> shards) {
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * @param distribution  Mapping of nodes to the shards that they control to begin with.  Discovered when not given.
+     * @return  this
+     */
+    public Builder<Node, Shard> distribution(Map<Node, Collection<Shard>> distribution) {
+      this.distribution = distribution;
+      return this;
+    }
+
+    /**
+     * @param distDiscoverer    Discovers the distribution when it isn't known and after anything goes wrong.  Required.
+     * @return  this
+     */
+    public Builder<Node, Shard> distributionDiscoverer(DistributionDiscoverer<Node, Shard> distDiscoverer) {
+      this.distDiscoverer = distDiscoverer;
+      return this;
+    }
+
+    /**
+     * @param relocator Moves the shards.  Required.
+     * @return  this
+     */
+    public Builder<Node, Shard> relocator(ShardRelocator<Node, Shard> relocator) {
+      this.relocator = relocator;
+      return this;
+    }
+
+    /**
+     * @param splitBrainResolver    Called when more than 1 node claims the same shard.  Required.
+     * @return  this
+     */
+    public Builder<Node, Shard> splitBrainResolver(SplitBrainResolver<Node, Shard> splitBrainResolver) {
+      this.splitBrainResolver = splitBrainResolver;
+      return this;
+    }
+
+    /**
+     * @param nodeCapacity  How big each node is.  Each node's share of the shards is proportional to it.  Defaults to
+     *                      every node the same.
+     * @return  this
+     */
+    public Builder<Node, Shard> nodeCapacity(NodeCapacity<Node> nodeCapacity) {
+      this.nodeCapacity = nodeCapacity;
+      return this;
+    }
+
+    /**
+     * @param compactDistribution   Whether to keep the distribution as a bitmap per node, see
+     *                              {@link IntShardAllocator.Builder#compactDistribution(boolean)}.  Defaults to false.
+     * @return  this
+     */
+    public Builder<Node, Shard> compactDistribution(boolean compactDistribution) {
+      this.compactDistribution = compactDistribution;
+      return this;
+    }
+
+    /**
+     * @param relocatingThreadsPerNode  How many moves any node may be part of at once.  Defaults to 1.
+     * @return  this
+     */
+    public Builder<Node, Shard> relocatingThreadsPerNode(int relocatingThreadsPerNode) {
+      this.relocatingThreadsPerNode = relocatingThreadsPerNode;
+      return this;
+    }
+
+    /**
+     * @param relocationExecutor    Where to relocate.  Not shut down by the allocator.  Defaults to a pool of the
+     *                              allocator's own.
+     * @return  this
+     */
+    public Builder<Node, Shard> relocationExecutor(Executor relocationExecutor) {
+      this.relocationExecutor = relocationExecutor;
+      return this;
+    }
+
+    public InterningShardAllocator<Node, Shard> build() {
+      return new InterningShardAllocator<Node, Shard>(this);
+    }
+  }
+}
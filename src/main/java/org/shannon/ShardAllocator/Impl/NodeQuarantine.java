@@ -0,0 +1,108 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Keeps moves away from nodes that keep failing.  A node whose moves fail so many times in a row is quarantined for a
+ * while, during which none of its moves are started.  Once it is let out a single failure puts it straight back, and a
+ * single success clears it.
+ *
+ * A move counts for both of its nodes, since there is no telling which end of it failed.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+final class NodeQuarantine<Node> {
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  private final int failuresToQuarantine;
+  private final long quarantineNanos;
+  private final ConcurrentHashMap<Node, Health> nodes = new ConcurrentHashMap<Node, Health>();
+
+  /**
+   * @param failuresToQuarantine  How many failures in a row quarantine a node.
+   * @param quarantineNanos       How long a node is quarantined for.
+   */
+  NodeQuarantine(int failuresToQuarantine, long quarantineNanos) {
+    Preconditions.checkArgument(failuresToQuarantine > 0, "Must take at least one failure to quarantine");
+    Preconditions.checkArgument(quarantineNanos > 0, "Must quarantine for some time");
+    this.failuresToQuarantine = failuresToQuarantine;
+    this.quarantineNanos = quarantineNanos;
+  }
+
+  private final class Health {
+    //Guarded by this
+    private int failures = 0;
+    private long until;
+    private boolean quarantined = false;
+
+    private synchronized void record(Node node, boolean succeeded) {
+      if (succeeded) {
+        failures = 0;
+        quarantined = false;
+      } else if (++failures >= failuresToQuarantine) {
+        //One more failure once let out is enough to come straight back
+        failures = failuresToQuarantine - 1;
+        quarantined = true;
+        until = System.nanoTime() + quarantineNanos;
+        logger.warn("NodeQuarantine - {} failed {} times in a row. Holding off its moves.", node, failuresToQuarantine);
+      }
+    }
+
+    private synchronized long remainingNanos() {
+      return quarantined ? Math.max(0, until - System.nanoTime()) : 0;
+    }
+  }
+
+  /**
+   * Counts a finished move for both of its nodes.
+   *
+   * @param move      The move.
+   * @param succeeded Whether it was made.
+   */
+  void record(ShardRelocation<Node, ?> move, boolean succeeded) {
+    record(move.getFromNode(), succeeded);
+    if (move.getToNode() != null && !move.getToNode().equals(move.getFromNode())) {
+      record(move.getToNode(), succeeded);
+    }
+  }
+
+  private void record(Node node, boolean succeeded) {
+    if (node == null) { return; }
+    Health health = succeeded ? nodes.get(node) : nodes.computeIfAbsent(node, (key) -> { return new Health(); });
+    if (health != null) {
+      health.record(node, succeeded);
+    }
+  }
+
+  /**
+   * @param move  The move.
+   * @return  How long until neither of the move's nodes is quarantined, in nanoseconds.  0 if neither is.
+   */
+  long remainingNanos(ShardRelocation<Node, ?> move) {
+    return Math.max(remainingNanos(move.getFromNode()), remainingNanos(move.getToNode()));
+  }
+
+  private long remainingNanos(Node node) {
+    if (node == null) { return 0; }
+    Health health = nodes.get(node);
+    return health == null ? 0 : health.remainingNanos();
+  }
+
+  /**
+   * Forgets nodes that are gone.
+   *
+   * @param nodes The nodes that are left.
+   */
+  void retain(Collection<Node> nodes) {
+    this.nodes.keySet().retainAll(nodes);
+  }
+}
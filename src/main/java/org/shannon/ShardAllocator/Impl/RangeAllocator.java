@@ -0,0 +1,352 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.DistributionDiscoverer;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardAllocator;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardRelocator;
+import org.shannon.ShardAllocator.SlotRange;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Allocates ranges of slots, say hash slots out of a 2^32 keyspace, rather than enumerated shards.  The universe is
+ * whatever ranges it is given, merged, and every node ends with the floor or ceiling of its share of the slots.  See
+ * {@link RangePlanner} for how ranges are split and merged to get there.  Memory and planning are proportional to the
+ * number of ranges, never to the number of slots.
+ *
+ * The shard of every relocation, discovered distribution and split brain is a {@link SlotRange}.  A relocation moves
+ * every slot in its range, which may be part of a range its fromNode has, or join one its toNode has.  The ranges a
+ * node is discovered to have may overlap each other or any other node's; slots claimed by more than one node are split
+ * brains.  addShards and removeShards add and remove slots, whatever ranges they were added as.
+ *
+ * Relocations are limited to relocatingThreadsPerNode per node, same as {@link SimpleAllocator}.  A change while
+ * rebalancing lets moves already handed to the relocator carry on, starts nothing new and plans again from wherever
+ * they leave things.  A move that fails does the same, and the next round discovers the distribution first.
+ *
+ * None of the extras of {@link AbstractAllocator}, coalescing, rate limits, retries and the like, are here.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+public final class RangeAllocator<Node> extends AbstractRoundAllocator implements ShardAllocator<Node, SlotRange> {
+  private final static Logger logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+  //Guarded by this, as is everything about a round
+  private ImmutableSet<Node> nodeUniverse;
+  private SlotRangeSet slotUniverse;
+  private HashMap<Node, SlotRangeSet> distribution = new HashMap<Node, SlotRangeSet>();
+  private final int maxThreadsPerNode;
+  private final DistributionDiscoverer<Node, SlotRange> distDiscoverer;
+  private final ShardRelocator<Node, SlotRange> relocator;
+  private final SplitBrainResolver<Node, SlotRange> splitBrainResolver;
+  private final NodeCapacity<Node> nodeCapacity;
+
+  private RangeAllocator(Builder<Node> builder) {
+    super(builder.relocationExecutor);
+    Preconditions.checkArgument(builder.nodes != null && !builder.nodes.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    Preconditions.checkArgument(builder.shards != null && !builder.shards.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    Preconditions.checkNotNull(builder.distDiscoverer, "Must have a distDiscoverer");
+    Preconditions.checkNotNull(builder.relocator, "Must have a relocator");
+    Preconditions.checkNotNull(builder.splitBrainResolver, "Must have a splitBrainResolver");
+    Preconditions.checkNotNull(builder.nodeCapacity, "Must have a nodeCapacity");
+    Preconditions.checkArgument(builder.relocatingThreadsPerNode > 0, "Must relocate at least one shard per node at a time");
+    this.nodeUniverse = ImmutableSet.copyOf(builder.nodes);
+    this.slotUniverse = SlotRangeSet.of(builder.shards);
+    if (builder.distribution != null) {
+      this.distribution = ranges(builder.distribution);
+      this.needsDiscovery = false;
+    }
+    this.maxThreadsPerNode = builder.relocatingThreadsPerNode;
+    this.distDiscoverer = builder.distDiscoverer;
+    this.relocator = builder.relocator;
+    this.splitBrainResolver = builder.splitBrainResolver;
+    this.nodeCapacity = builder.nodeCapacity;
+    allocateAsync();
+  }
+
+  private static <Node> HashMap<Node, SlotRangeSet> ranges(Map<Node, Collection<SlotRange>> distribution) {
+    HashMap<Node, SlotRangeSet> retval = new HashMap<Node, SlotRangeSet>();
+    distribution.forEach((node, owned) -> { retval.put(node, SlotRangeSet.of(owned)); });
+    return retval;
+  }
+
+  @Override
+  public synchronized void notifyShardsChange(Collection<SlotRange> shardUniverse) {
+    Preconditions.checkArgument(shardUniverse != null && !shardUniverse.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    this.slotUniverse = SlotRangeSet.of(shardUniverse);
+    allocateAsync();
+  }
+
+  @Override
+  public synchronized void notifyNodesChange(Collection<Node> nodeUniverse) {
+    Preconditions.checkArgument(nodeUniverse != null && !nodeUniverse.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    this.nodeUniverse = ImmutableSet.copyOf(nodeUniverse);
+    allocateAsync();
+  }
+
+  @Override
+  public synchronized void notifyDistributionChange(Map<Node, Collection<SlotRange>> distribution) {
+    Preconditions.checkNotNull(distribution, "Must have a distribution");
+    this.distribution = ranges(distribution);
+    needsDiscovery = false;
+    allocateAsync();
+  }
+
+  /**
+   * Called when the distribution changes behind the allocator's back.  Discovers it again and rebalances if not
+   * balanced.
+   */
+  public synchronized void notifyDistributionChange() {
+    needsDiscovery = true;
+    allocateAsync();
+  }
+
+  @Override
+  public synchronized void addShards(Collection<SlotRange> shards) {
+    SlotRangeSet added = slotUniverse.union(SlotRangeSet.of(shards));
+    if (!added.equals(slotUniverse)) {
+      slotUniverse = added;
+      allocateAsync();
+    }
+  }
+
+  @Override
+  public synchronized void removeShards(Collection<SlotRange> shards) {
+    SlotRangeSet removed = slotUniverse.subtract(SlotRangeSet.of(shards));
+    Preconditions.checkArgument(!removed.isEmpty(), "If you have no shards, then shards cannot be allocated");
+    if (!removed.equals(slotUniverse)) {
+      slotUniverse = removed;
+      allocateAsync();
+    }
+  }
+
+  @Override
+  public synchronized void addNodes(Collection<Node> nodes) {
+    if (!nodeUniverse.containsAll(nodes)) {
+      nodeUniverse = ImmutableSet.<Node>builder().addAll(nodeUniverse).addAll(nodes).build();
+      allocateAsync();
+    }
+  }
+
+  @Override
+  public synchronized void removeNodes(Collection<Node> nodes) {
+    HashSet<Node> left = new HashSet<Node>(nodeUniverse);
+    left.removeAll(nodes);
+    Preconditions.checkArgument(!left.isEmpty(), "If you have no nodes, shards cannot be allocated");
+    if (left.size() != nodeUniverse.size()) {
+      nodeUniverse = ImmutableSet.copyOf(nodeUniverse.stream().filter(left::contains).iterator());
+      allocateAsync();
+    }
+  }
+
+  /**
+   * @param slot  The slot.
+   * @return  Which node owns the slot as far as the allocator knows, or null if none.
+   */
+  public synchronized Node owner(long slot) {
+    for (Map.Entry<Node, SlotRangeSet> entry : distribution.entrySet()) {
+      if (entry.getValue().contains(slot)) { return entry.getKey(); }
+    }
+    return null;
+  }
+
+  @Override
+  protected void discoverDistribution() {
+    distribution = ranges(distDiscoverer.discoverDistribution());
+  }
+
+  @Override
+  protected Round plan() {
+    RangePlanner<Node> planner = new RangePlanner<Node>(nodeUniverse, slotUniverse, distribution
+        , splitBrainResolver, maxThreadsPerNode, nodeCapacity);
+    ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves = planner.determineMoves();
+    if (moves.isEmpty()) { return null; }
+    //Once the resolver has had its say, see what the nodes think now
+    needsDiscovery = planner.resolvedSplitBrain();
+    return new RangeRound(moves);
+  }
+
+  /*
+   * One plan's worth of moves, handed out as the constraints let them through.
+   */
+  private final class RangeRound extends Round {
+    private final ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves;
+    private int left;
+
+    private RangeRound(ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves) {
+      this.moves = moves;
+      this.left = moves.size();
+    }
+
+    @Override
+    protected void startMoves() {
+      ShardRelocation<Node, SlotRange> move;
+      while(left > 0 && !stopping() && (move = moves.poll()) != null) {
+        --left;
+        start(move);
+      }
+    }
+
+    @Override
+    protected boolean pending() {
+      return left > 0;
+    }
+
+    @Override
+    protected void over() {
+      moves.close();
+    }
+
+    private void start(ShardRelocation<Node, SlotRange> move) {
+      if (!execute(() -> { run(move); })) {
+        moves.forget(move);
+        finished(false);
+      }
+    }
+
+    private void run(ShardRelocation<Node, SlotRange> move) {
+      boolean succeeded = false;
+      try {
+        relocator.relocate(move);
+        succeeded = true;
+      } catch (Throwable e) {
+        logger.error("RangeAllocator.relocate() - Caught Exception while trying to move {}.", move, e);
+      }
+      //Outside the allocator's monitor, as the queue has locks of its own
+      moves.forget(move);
+      synchronized(RangeAllocator.this) {
+        if (succeeded) {
+          moved(move);
+        }
+        finished(succeeded);
+      }
+    }
+
+    private void moved(ShardRelocation<Node, SlotRange> move) {
+      SlotRangeSet range = SlotRangeSet.of(move.getShard());
+      if (move.getFromNode() != null && distribution.containsKey(move.getFromNode())) {
+        distribution.put(move.getFromNode(), distribution.get(move.getFromNode()).subtract(range));
+      }
+      if (move.getToNode() != null) {
+        distribution.merge(move.getToNode(), range, SlotRangeSet::union);
+      }
+    }
+  }
+
+  /**
+   * Builds a {@link RangeAllocator}.
+   *
+   * @param <Node>    That which controls or has ownership of Shards
+   */
+  public static final class Builder<Node> {
+    private Collection<Node> nodes;
+    private Collection<SlotRange> shards;
+    private Map<Node, Collection<SlotRange>> distribution;
+    private DistributionDiscoverer<Node, SlotRange> distDiscoverer;
+    private ShardRelocator<Node, SlotRange> relocator;
+    private SplitBrainResolver<Node, SlotRange> splitBrainResolver;
+    private NodeCapacity<Node> nodeCapacity = (node) -> { return 1; };
+    private int relocatingThreadsPerNode = 1;
+    private Executor relocationExecutor;
+
+    /**
+     * @param nodes All the nodes.  Required.
+     * @return  this
+     */
+    public Builder<Node> nodes(Collection<Node> nodes) {
+      this.nodes = nodes;
+      return this;
+    }
+
+    /**
+     * @param shards    Every range of slots to allocate, overlapping or not.  Required.
+     * @return  this
+     */
+    public Builder<Node> shards(Collection<SlotRange> shards) {
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * @param distribution  Mapping of nodes to the ranges that they control to begin with.  Discovered when not given.
+     * @return  this
+     */
+    public Builder<Node> distribution(Map<Node, Collection<SlotRange>> distribution) {
+      this.distribution = distribution;
+      return this;
+    }
+
+    /**
+     * @param distDiscoverer    Discovers the distribution when it isn't known and after anything goes wrong.  Required.
+     * @return  this
+     */
+    public Builder<Node> distributionDiscoverer(DistributionDiscoverer<Node, SlotRange> distDiscoverer) {
+      this.distDiscoverer = distDiscoverer;
+      return this;
+    }
+
+    /**
+     * @param relocator Moves the ranges.  Required.
+     * @return  this
+     */
+    public Builder<Node> relocator(ShardRelocator<Node, SlotRange> relocator) {
+      this.relocator = relocator;
+      return this;
+    }
+
+    /**
+     * @param splitBrainResolver    Called with each run of slots claimed by the same nodes.  Required.
+     * @return  this
+     */
+    public Builder<Node> splitBrainResolver(SplitBrainResolver<Node, SlotRange> splitBrainResolver) {
+      this.splitBrainResolver = splitBrainResolver;
+      return this;
+    }
+
+    /**
+     * @param nodeCapacity  How big each node is.  Each node's share of the slots is proportional to it.  Defaults to
+     *                      every node the same.
+     * @return  this
+     */
+    public Builder<Node> nodeCapacity(NodeCapacity<Node> nodeCapacity) {
+      this.nodeCapacity = nodeCapacity;
+      return this;
+    }
+
+    /**
+     * @param relocatingThreadsPerNode  How many moves any node may be part of at once.  Defaults to 1.
+     * @return  this
+     */
+    public Builder<Node> relocatingThreadsPerNode(int relocatingThreadsPerNode) {
+      this.relocatingThreadsPerNode = relocatingThreadsPerNode;
+      return this;
+    }
+
+    /**
+     * @param relocationExecutor    Where to relocate.  Not shut down by the allocator.  Defaults to a pool of the
+     *                              allocator's own.
+     * @return  this
+     */
+    public Builder<Node> relocationExecutor(Executor relocationExecutor) {
+      this.relocationExecutor = relocationExecutor;
+      return this;
+    }
+
+    public RangeAllocator<Node> build() {
+      return new RangeAllocator<Node>(this);
+    }
+  }
+}
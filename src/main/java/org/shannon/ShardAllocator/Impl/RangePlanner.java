@@ -0,0 +1,285 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.SlotRange;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The planning half of {@link RangeAllocator}.  Balances slots rather than shards:  every node ends with the floor or
+ * ceiling of its share of the slots, slots * capacity / total capacity, and what moves is ranges of slots.
+ *
+ * Orphaned ranges, and the highest of whatever each node has over its target, are cut up to fill the nodes under
+ * theirs, orphans first.  A range is only split where a node's target falls in the middle of it, so a plan has at most
+ * a move per orphaned or surplus range plus one per node.  A node's ranges are kept merged, so ranges that end up next
+ * to each other on the same node become one.  Planning is proportional to the number of ranges and nodes, never to the
+ * number of slots.
+ *
+ * Slots claimed by more than one node are handed to the {@link SplitBrainResolver} a range at a time, a range being a
+ * run of slots with the same claimants.  Nodes are indexed by how far over their share of the slots they are, as a
+ * rank from 0, the node furthest under, rather than in slots.  Same as {@link SimplePlanner}, when the resolver asks
+ * for moves nothing is balanced until the distribution has been discovered again.
+ *
+ * Planning forgets, in place, the claims of nodes that have left and of slots that have been removed, same as every
+ * other planner.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+public final class RangePlanner<Node> {
+  private final Set<Node> nodeUniverse;
+  private final SlotRangeSet slotUniverse;
+  private final Map<Node, SlotRangeSet> distribution;
+  private final SplitBrainResolver<Node, SlotRange> splitBrainResolver;
+  private final int maxThreadsPerNode;
+  private final NodeCapacity<Node> nodeCapacity;
+  private boolean splitBrain = false;
+
+  /**
+   * The planning half of {@link RangeAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param slotUniverse        All the slots.
+   * @param distribution        Mapping of nodes to the slots that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same slots.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   * @param nodeCapacity        How big each node is.  Each node's share of the slots is proportional to it.
+   */
+  public RangePlanner(Set<Node> nodeUniverse, SlotRangeSet slotUniverse, Map<Node, SlotRangeSet> distribution
+      , SplitBrainResolver<Node, SlotRange> splitBrainResolver, int maxThreadsPerNode, NodeCapacity<Node> nodeCapacity) {
+    Preconditions.checkNotNull(nodeCapacity, "Must have a nodeCapacity");
+    this.nodeUniverse = nodeUniverse;
+    this.slotUniverse = slotUniverse;
+    this.distribution = distribution;
+    this.splitBrainResolver = splitBrainResolver;
+    this.maxThreadsPerNode = maxThreadsPerNode;
+    this.nodeCapacity = nodeCapacity;
+  }
+
+  /**
+   * @return  Whether the last plan resolved a split brain, after which the distribution should be discovered again.
+   */
+  public boolean resolvedSplitBrain() {
+    return splitBrain;
+  }
+
+  private SlotRangeSet claims(Node node) {
+    SlotRangeSet retval = distribution.get(node);
+    return retval == null ? SlotRangeSet.EMPTY : retval;
+  }
+
+  private void removeLeavers(ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves) {
+    //Assuming that the nodes left. A node should not be able to join and have ownership of slots without going through this.
+    distribution.keySet().retainAll(nodeUniverse);
+    for (Map.Entry<Node, SlotRangeSet> entry : distribution.entrySet()) {
+      for (SlotRange range : entry.getValue().subtract(slotUniverse).ranges()) {
+        moves.add(new ShardRelocation<Node, SlotRange>(entry.getKey(), null, range));
+      }
+      entry.setValue(entry.getValue().intersect(slotUniverse));
+    }
+  }
+
+  //Ranks nodes by how far over their share they are, the one furthest under being 0
+  private BucketLoadIndex<Node> nodesByShare(ArrayList<Node> nodes, long[] owned) {
+    double totalCapacity = 0;
+    for (Node node : nodes) {
+      totalCapacity += capacity(node);
+    }
+    double slots = slotUniverse.size();
+    double[] over = new double[nodes.size()];
+    Integer[] ranked = new Integer[nodes.size()];
+    for (int i = 0; i < nodes.size(); ++i) {
+      over[i] = owned[i] - slots * capacity(nodes.get(i)) / totalCapacity;
+      ranked[i] = i;
+    }
+    Arrays.sort(ranked, Comparator.comparingDouble((i) -> { return over[i]; }));
+    BucketLoadIndex<Node> retval = new BucketLoadIndex<Node>(nodes.size());
+    for (int rank = 0; rank < ranked.length; ++rank) {
+      retval.add(nodes.get(ranked[rank]), rank);
+    }
+    return retval;
+  }
+
+  private void handleSplitBrain(ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves, ArrayList<Node> nodes
+      , long[] owned) {
+    SlotRangeSet seen = SlotRangeSet.EMPTY;
+    SlotRangeSet shared = SlotRangeSet.EMPTY;
+    for (Node node : nodes) {
+      shared = shared.union(claims(node).intersect(seen));
+      seen = seen.union(claims(node));
+    }
+    if (shared.isEmpty()) { return; }
+
+    //Every place the claimants could change, then a range per run of slots with the same claimants
+    ArrayList<Long> cuts = new ArrayList<Long>();
+    for (Node node : nodes) {
+      claims(node).intersect(shared).ranges().forEach((range) -> {
+        cuts.add(range.getStart());
+        cuts.add(range.getEnd());
+      });
+    }
+    cuts.sort(null);
+    BucketLoadIndex<Node> nodesByShare = nodesByShare(nodes, owned);
+    long start = 0;
+    long end = 0;
+    HashSet<Node> claimants = null;
+    for (int i = 0; i + 1 < cuts.size(); ++i) {
+      long from = cuts.get(i);
+      long to = cuts.get(i + 1);
+      if (from == to || !shared.contains(from)) { continue; }
+      HashSet<Node> here = new HashSet<Node>();
+      for (Node node : nodes) {
+        if (claims(node).contains(from)) { here.add(node); }
+      }
+      if (claimants != null && (end != from || !here.equals(claimants))) {
+        resolve(moves, new SlotRange(start, end), claimants, nodesByShare);
+        claimants = null;
+      }
+      if (claimants == null) {
+        start = from;
+        claimants = here;
+      }
+      end = to;
+    }
+    if (claimants != null) {
+      resolve(moves, new SlotRange(start, end), claimants, nodesByShare);
+    }
+  }
+
+  private void resolve(ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves, SlotRange range
+      , HashSet<Node> claimants, BucketLoadIndex<Node> nodesByShare) {
+    Collection<ShardRelocation<Node, SlotRange>> resolved = splitBrainResolver.resolve(range, claimants, nodesByShare);
+    if (resolved == null) { return; }
+    resolved.forEach((move) -> {
+      splitBrain = true;
+      moves.add(new ShardRelocation<Node, SlotRange>(move.getFromNode(), move.getToNode(), move.getShard()
+          , ShardRelocation.Priority.SPLIT_BRAIN));
+    });
+  }
+
+  private int capacity(Node node) {
+    int retval = nodeCapacity.capacity(node);
+    Preconditions.checkArgument(retval > 0, "Capacity must be positive: %s has %s", node, retval);
+    return retval;
+  }
+
+  //The floor or ceiling of every node's share, ceilings going to nodes that already have more than their floor first
+  private long[] targets(ArrayList<Node> nodes, long[] owned) {
+    long[] retval = new long[nodes.size()];
+    boolean[] hasCeiling = new boolean[nodes.size()];
+    BigInteger totalCapacity = BigInteger.ZERO;
+    for (Node node : nodes) {
+      totalCapacity = totalCapacity.add(BigInteger.valueOf(capacity(node)));
+    }
+    long left = slotUniverse.size();
+    BigInteger slots = BigInteger.valueOf(left);
+    for (int i = 0; i < nodes.size(); ++i) {
+      BigInteger[] share = slots.multiply(BigInteger.valueOf(capacity(nodes.get(i)))).divideAndRemainder(totalCapacity);
+      retval[i] = share[0].longValue();
+      hasCeiling[i] = share[1].signum() != 0;
+      left -= retval[i];
+    }
+    for (int pass = 0; pass < 2 && left > 0; ++pass) {
+      for (int i = 0; i < nodes.size() && left > 0; ++i) {
+        if (hasCeiling[i] && (pass == 1 || owned[i] > retval[i])) {
+          hasCeiling[i] = false;
+          ++retval[i];
+          --left;
+        }
+      }
+    }
+    return retval;
+  }
+
+  private void allNodesEven(ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves, ArrayList<Node> nodes
+      , SlotRangeSet[] owned, long[] counts) {
+    long[] targets = targets(nodes, counts);
+    long[] wanted = new long[nodes.size()];
+    for (int i = 0; i < nodes.size(); ++i) {
+      wanted[i] = Math.max(0, targets[i] - counts[i]);
+    }
+    SlotRangeSet orphans = slotUniverse;
+    for (SlotRangeSet ranges : owned) {
+      orphans = orphans.subtract(ranges);
+    }
+    Giver giver = new Giver(moves, nodes, wanted);
+    //Orphans first, then the highest of whatever nodes have over their targets
+    orphans.ranges().forEach((range) -> { giver.give(null, range); });
+    for (int i = 0; i < nodes.size(); ++i) {
+      if (counts[i] > targets[i]) {
+        Node from = nodes.get(i);
+        owned[i].last(counts[i] - targets[i]).ranges().forEach((range) -> { giver.give(from, range); });
+      }
+    }
+  }
+
+  //Cuts ranges up to fill each node under its target in turn
+  private final class Giver {
+    private final ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves;
+    private final ArrayList<Node> nodes;
+    private final long[] wanted;
+    private int taker = 0;
+
+    private Giver(ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves, ArrayList<Node> nodes, long[] wanted) {
+      this.moves = moves;
+      this.nodes = nodes;
+      this.wanted = wanted;
+    }
+
+    private void give(Node from, SlotRange range) {
+      long start = range.getStart();
+      while(start < range.getEnd()) {
+        while(wanted[taker] == 0) {
+          ++taker;
+        }
+        long end = start + Math.min(wanted[taker], range.getEnd() - start);
+        moves.add(new ShardRelocation<Node, SlotRange>(from, nodes.get(taker), new SlotRange(start, end)));
+        wanted[taker] -= end - start;
+        start = end;
+      }
+    }
+  }
+
+  /**
+   * Works out the moves needed to get every slot owned by exactly one node with every node owning the floor or ceiling
+   * of its share of the slots.
+   *
+   * @return  The moves that need to happen, constrained so that no more than maxThreadsPerNode are released per node.
+   */
+  public ConstrainedQueue<ShardRelocation<Node, SlotRange>> determineMoves() {
+    ConstrainedQueue<ShardRelocation<Node, SlotRange>> moves = AbstractPlanner.newMoves(maxThreadsPerNode);
+    splitBrain = false;
+    if (nodeUniverse.isEmpty()) { return moves; }
+
+    removeLeavers(moves);
+    ArrayList<Node> nodes = new ArrayList<Node>(nodeUniverse);
+    //What each node owns is what it claims that no node before it does
+    SlotRangeSet[] owned = new SlotRangeSet[nodes.size()];
+    long[] counts = new long[nodes.size()];
+    SlotRangeSet seen = SlotRangeSet.EMPTY;
+    for (int i = 0; i < nodes.size(); ++i) {
+      owned[i] = claims(nodes.get(i)).subtract(seen);
+      counts[i] = owned[i].size();
+      seen = seen.union(owned[i]);
+    }
+    handleSplitBrain(moves, nodes, counts);
+    //If the resolver asked for moves honor them and don't reassign anything until they are made
+    if (!splitBrain) {
+      allNodesEven(moves, nodes, owned, counts);
+    }
+    return moves;
+  }
+}
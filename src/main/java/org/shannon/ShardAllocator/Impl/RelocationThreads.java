@@ -0,0 +1,33 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes the executor an allocator relocates on when it is not given one.
+ *
+ * This is the Java 8 version, which only has platform threads.  The jar is multi-release; on JDK 21 and later the
+ * version under src/main/java21 is loaded instead and can hand out virtual threads.  Both must keep the same signatures.
+ *
+ * @author Shannon
+ */
+final class RelocationThreads {
+  private RelocationThreads() { }
+
+  /**
+   * @return  Whether this JVM can run relocations on virtual threads.
+   */
+  static boolean virtualThreadsAvailable() {
+    return false;
+  }
+
+  /**
+   * A pool that grows to however many relocations are running at once and lets idle threads go.
+   *
+   * @param virtual   Whether to use a virtual thread per relocation.  Ignored; there are none before JDK 21.
+   * @return  The executor to relocate on.
+   */
+  static ExecutorService newExecutor(boolean virtual) {
+    return Executors.newCachedThreadPool();
+  }
+}
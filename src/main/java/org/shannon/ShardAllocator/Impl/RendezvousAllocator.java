@@ -0,0 +1,75 @@
+package org.shannon.ShardAllocator.Impl;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Allocates shards by rendezvous hashing with bounded loads.  Every shard goes to the node it hashes highest with,
+ * unless that node already has loadFactor times its share, in which case it goes to its next choice.  See
+ * {@link RendezvousHash} for how owners are picked and {@link RendezvousPlanner} for how moves are.
+ *
+ * Unlike {@link SimpleAllocator}, where a shard ends up doesn't depend on where it was, so a node joining or leaving
+ * only moves about 1/n of the shards, and anyone can work out owners without asking the allocator.  A client that
+ * knows the nodes, their capacities and the shards can route straight to the owner with
+ * {@link RendezvousHash#assign(java.util.Collection, double)} given the same loadFactor, or, knowing only the nodes,
+ * try {@link RendezvousHash#ranking(Object)} in order, which finds the owner first most of the time.  Nodes are only
+ * held to loadFactor times their share rather than the floor or ceiling of it, which is the price of not moving
+ * shards around to even things out.
+ *
+ * Internally, use of HashSet is used, so the objects must implement reasonable hashCode and equals functions.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class RendezvousAllocator<Node, Shard> extends AbstractAllocator<Node, Shard> {
+  private final double loadFactor;
+
+  private RendezvousAllocator(Builder<Node, Shard> builder) {
+    super(builder);
+    Preconditions.checkArgument(builder.loadFactor >= 1, "loadFactor must be at least 1");
+    this.loadFactor = builder.loadFactor;
+    allocateAsync();
+  }
+
+  @Override
+  protected ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves() {
+    return new RendezvousPlanner<Node, Shard>(nodeUniverse, shardUniverse, distribution, splitBrainResolver
+        , maxThreadsPerNode, nodeCapacity, loadFactor).determineMoves();
+  }
+
+  /**
+   * Builds a {@link RendezvousAllocator}.
+   *
+   * @param <Node>    That which controls or has ownership of Shards
+   * @param <Shard>   Some fragment of the whole which needs controlling.
+   */
+  public static final class Builder<Node, Shard>
+      extends AbstractAllocator.Builder<Node, Shard, RendezvousAllocator<Node, Shard>, Builder<Node, Shard>> {
+    private double loadFactor = 1.25;
+
+    /**
+     * @param loadFactor  How far over its share of the shards a node may go, at least 1.  Closer to 1 is more even but
+     *                    moves more shards off their first choice.  Infinite for plain rendezvous hashing.  Defaults
+     *                    to 1.25.
+     * @return  this
+     */
+    public Builder<Node, Shard> loadFactor(double loadFactor) {
+      this.loadFactor = loadFactor;
+      return this;
+    }
+
+    @Override
+    protected Builder<Node, Shard> self() {
+      return this;
+    }
+
+    @Override
+    public RendezvousAllocator<Node, Shard> build() {
+      return new RendezvousAllocator<Node, Shard>(this);
+    }
+  }
+}
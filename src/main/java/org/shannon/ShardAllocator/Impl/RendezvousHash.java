@@ -0,0 +1,232 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.shannon.ShardAllocator.NodeCapacity;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Rendezvous (highest random weight) hashing.  Every node scores every shard and the shard prefers the node with the
+ * highest score, then the next highest and so on.  Nothing but the nodes and their capacities is needed to work out
+ * where a shard prefers to be, so a client can route a request for a shard without asking anyone.
+ *
+ * A node joining takes only the shards it now scores highest for, about 1/n of them, from wherever they were, and a
+ * node leaving hands only its own shards to their next choice.  Everything else stays put.
+ *
+ * Scores are weighted by capacity, capacity / -ln(hash), so a node with twice the capacity is preferred by twice as
+ * many shards.  With equal capacities this is the same as picking the highest hash.
+ *
+ * Hashes are built from hashCode, so a node or shard must hash the same everywhere it is looked up for the answers to
+ * agree, e.g. String, Integer or UUID.  Object identity hashes only agree within one JVM.
+ *
+ * Left alone, hashing spreads shards about as evenly as coin flips do, so some nodes end up well over their share.
+ * {@link #assign(Collection, double)} bounds that:  every node takes at most loadFactor times its share and shards that
+ * don't fit go to their next choice.  The answer still only depends on the nodes, their capacities and the shards, so
+ * anyone with the same view gets the same owners.
+ *
+ * Looking up a shard costs O(n) in the number of nodes.  Immutable and thread safe.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class RendezvousHash<Node, Shard> {
+  private static final long NODE_SEED = 0x9E3779B97F4A7C15L;
+  private static final double TO_UNIT = 1.0 / (1L << 53);
+  private final ArrayList<Node> nodes;
+  private final long[] nodeHashes;
+  private final double[] weights;
+
+  /**
+   * Gives every node the same capacity.
+   *
+   * @param nodes The nodes.  Must not be empty.
+   */
+  public RendezvousHash(Collection<Node> nodes) {
+    this(nodes, (node) -> { return 1; });
+  }
+
+  /**
+   * @param nodes         The nodes.  Must not be empty.
+   * @param nodeCapacity  How big each node is.  Each node is preferred by a share of the shards proportional to it.
+   */
+  public RendezvousHash(Collection<Node> nodes, NodeCapacity<Node> nodeCapacity) {
+    Preconditions.checkNotNull(nodes, "Must have nodes");
+    Preconditions.checkArgument(!nodes.isEmpty(), "Must have at least one node");
+    Preconditions.checkNotNull(nodeCapacity, "Must have a nodeCapacity");
+    this.nodes = new ArrayList<Node>(nodes);
+    this.nodeHashes = new long[this.nodes.size()];
+    this.weights = new double[this.nodes.size()];
+    for (int i = 0; i < this.nodes.size(); ++i) {
+      Node node = this.nodes.get(i);
+      int capacity = nodeCapacity.capacity(node);
+      Preconditions.checkArgument(capacity > 0, "Capacity must be positive: %s has %s", node, capacity);
+      nodeHashes[i] = mix(node.hashCode() + NODE_SEED);
+      weights[i] = capacity;
+    }
+  }
+
+  //The finalizer of MurmurHash3's 64 bit hash
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  static long shardHash(Object shard) {
+    return mix(shard.hashCode());
+  }
+
+  //How much node i wants a shard, the higher the better
+  double score(int i, long shardHash) {
+    double unit = ((mix(nodeHashes[i] ^ shardHash) >>> 11) + 0.5) * TO_UNIT;
+    return weights[i] / -Math.log(unit);
+  }
+
+  int best(long shardHash) {
+    int retval = 0;
+    double bestScore = score(0, shardHash);
+    for (int i = 1; i < nodes.size(); ++i) {
+      double score = score(i, shardHash);
+      if (score > bestScore) {
+        retval = i;
+        bestScore = score;
+      }
+    }
+    return retval;
+  }
+
+  //Indexes of every node, most preferred first
+  int[] order(long shardHash) {
+    double[] scores = new double[nodes.size()];
+    Integer[] boxed = new Integer[nodes.size()];
+    for (int i = 0; i < nodes.size(); ++i) {
+      scores[i] = score(i, shardHash);
+      boxed[i] = i;
+    }
+    Arrays.sort(boxed, (a, b) -> { return Double.compare(scores[b], scores[a]); });
+    int[] retval = new int[boxed.length];
+    for (int i = 0; i < boxed.length; ++i) {
+      retval[i] = boxed[i];
+    }
+    return retval;
+  }
+
+  private final class Suitor {
+    private final Shard shard;
+    private final long hash;
+    private int[] order = null;
+    private int next;
+    private int node;
+    private double score;
+
+    private Suitor(Shard shard) {
+      this.shard = shard;
+      this.hash = shardHash(shard);
+      this.node = best(hash);
+      this.score = score(node, hash);
+    }
+
+    //Only shards bumped off their first choice pay for ranking every node
+    private void nextChoice() {
+      if (order == null) {
+        order = order(hash);
+        next = 0;
+        while(order[next] != node) {
+          ++next;
+        }
+        ++next;
+      }
+      node = order[next++];
+      score = score(node, hash);
+    }
+  }
+
+  /**
+   * Gives every shard an owner, each node taking no more than ceil(loadFactor * its share of the shards).  Shards go to
+   * the node they prefer most that has room, and when there are more than fit a node keeps the ones that score highest
+   * for it.  That is the same answer whatever order the shards are given in, and a shard only leaves its first choice
+   * when that node is full of shards that want it more.
+   *
+   * Costs O(s * n) to find every shard's first choice, plus O(n log n) for each shard that doesn't fit.  The closer
+   * loadFactor is to 1 the more shards don't.
+   *
+   * @param shards      The shards.
+   * @param loadFactor  How far over its share a node may go, at least 1.  Infinite for no bound at all.
+   * @return  The owner of every shard.
+   */
+  public Map<Shard, Node> assign(Collection<Shard> shards, double loadFactor) {
+    Preconditions.checkNotNull(shards, "Must have shards");
+    Preconditions.checkArgument(loadFactor >= 1, "loadFactor must be at least 1");
+    double totalWeight = 0;
+    for (double weight : weights) {
+      totalWeight += weight;
+    }
+    int[] room = new int[nodes.size()];
+    ArrayList<PriorityQueue<Suitor>> held = new ArrayList<PriorityQueue<Suitor>>(nodes.size());
+    Comparator<Suitor> byScore = Comparator.<Suitor>comparingDouble((suitor) -> { return suitor.score; })
+        .thenComparingLong((suitor) -> { return suitor.hash; });
+    for (int i = 0; i < nodes.size(); ++i) {
+      room[i] = (int) Math.min(Integer.MAX_VALUE, Math.ceil(loadFactor * shards.size() * weights[i] / totalWeight));
+      held.add(new PriorityQueue<Suitor>(byScore));
+    }
+
+    //Every node has room for at least its share, so there is always a node left with room
+    ArrayDeque<Suitor> free = new ArrayDeque<Suitor>(shards.size());
+    shards.forEach((shard) -> { free.add(new Suitor(shard)); });
+    Suitor suitor;
+    while((suitor = free.poll()) != null) {
+      PriorityQueue<Suitor> kept = held.get(suitor.node);
+      kept.add(suitor);
+      if (kept.size() > room[suitor.node]) {
+        Suitor bumped = kept.poll();
+        bumped.nextChoice();
+        free.add(bumped);
+      }
+    }
+
+    HashMap<Shard, Node> retval = new HashMap<Shard, Node>(shards.size() * 4 / 3 + 1);
+    for (int i = 0; i < nodes.size(); ++i) {
+      for (Suitor kept : held.get(i)) {
+        retval.put(kept.shard, nodes.get(i));
+      }
+    }
+    return retval;
+  }
+
+  /**
+   * @param shard The shard.
+   * @return  The node the shard prefers most.
+   */
+  public Node owner(Shard shard) {
+    Preconditions.checkNotNull(shard, "Must have a shard");
+    return nodes.get(best(shardHash(shard)));
+  }
+
+  /**
+   * @param shard The shard.
+   * @return  Every node, the one the shard prefers most first.  Useful for falling back when the first is unavailable
+   *          or full.
+   */
+  public List<Node> ranking(Shard shard) {
+    Preconditions.checkNotNull(shard, "Must have a shard");
+    ArrayList<Node> retval = new ArrayList<Node>(nodes.size());
+    for (int i : order(shardHash(shard))) {
+      retval.add(nodes.get(i));
+    }
+    return retval;
+  }
+}
@@ -0,0 +1,110 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The planning half of {@link RendezvousAllocator}.  Given a view of the world it works out which moves need to happen
+ * to put every shard on the node {@link RendezvousHash#assign(java.util.Collection, double)} picks for it without
+ * making any of them.
+ *
+ * Where a shard belongs depends only on the nodes, their capacities and the shards, never on where shards are now, so
+ * a shard that is already where it belongs is never moved and a node joining or leaving only moves the shards whose
+ * owner changed, about 1/n of them.
+ *
+ * Split brains are handed to the {@link SplitBrainResolver} with nodes indexed by their share of the shard count, same
+ * as {@link SimplePlanner}.
+ *
+ * Planning works on the distribution it is given in place.  Shards that are planned to move are removed from their
+ * current owners as the plan is made, so hand it a copy if the original needs to survive.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class RendezvousPlanner<Node, Shard> extends AbstractPlanner<Node, Shard> {
+  private final double loadFactor;
+
+  /**
+   * The planning half of {@link RendezvousAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Mapping of nodes to the shards that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   * @param loadFactor          How far over its share of the shards a node may go, at least 1.
+   */
+  public RendezvousPlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode, double loadFactor) {
+    this(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode, (node) -> { return 1; }
+        , loadFactor);
+  }
+
+  /**
+   * The planning half of {@link RendezvousAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Mapping of nodes to the shards that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   * @param nodeCapacity        How big each node is.  Each node's share of the shards is proportional to it.
+   * @param loadFactor          How far over its share of the shards a node may go, at least 1.
+   */
+  public RendezvousPlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode, NodeCapacity<Node> nodeCapacity, double loadFactor) {
+    super(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode, nodeCapacity);
+    Preconditions.checkArgument(loadFactor >= 1, "loadFactor must be at least 1");
+    this.loadFactor = loadFactor;
+  }
+
+  private void allShardsWhereTheyBelong(ConstrainedQueue<ShardRelocation<Node, Shard>> moves) {
+    if (nodeUniverse.isEmpty()) { return; }
+    Map<Shard, Node> owners = new RendezvousHash<Node, Shard>(nodeUniverse, this::capacity)
+        .assign(shardUniverse, loadFactor);
+    HashMap<Shard, Node> current = new HashMap<Shard, Node>(shardUniverse.size() * 4 / 3 + 1);
+    distribution.forEach((node, shards) -> { shards.forEach((shard) -> { current.put(shard, node); }); });
+    owners.forEach((shard, owner) -> {
+      Node fromNode = current.get(shard);
+      if (!owner.equals(fromNode)) {
+        moves.add(new ShardRelocation<Node, Shard>(fromNode, owner, shard));
+        if (fromNode != null) {
+          distribution.get(fromNode).remove(shard);
+        }
+      }
+    });
+  }
+
+  /**
+   * Works out the moves needed to get every shard owned by exactly one node, the one rendezvous hashing picks for it
+   * with no node over loadFactor times its share.
+   *
+   * @return  The moves that need to happen, constrained so that no more than maxThreadsPerNode are released per node.
+   */
+  @Override
+  public ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves() {
+    ConstrainedQueue<ShardRelocation<Node, Shard>> moves = newMoves();
+
+    fillInMissingNodes();
+    removeLeavers(moves);
+    //If we call splitBrainResolver.resolve and it gives us moves
+    //then we should honor that and not reassign those shard(s)
+    if (!handleSplitBrain(moves, nodesByShare())) {
+      allShardsWhereTheyBelong(moves);
+    }
+    return moves;
+  }
+}
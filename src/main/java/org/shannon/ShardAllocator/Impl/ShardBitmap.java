@@ -0,0 +1,415 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A compressed set of shard ids, laid out the way Roaring bitmaps are.  Ids are split by their high 16 bits into
+ * chunks of 65536.  A chunk holding few ids keeps them as a sorted array of chars, 2 bytes each, and one holding more
+ * than 4096 keeps a bitmap of 1024 longs, 8KB whatever it holds.  Chunks with nothing in them aren't kept at all.
+ *
+ * And, or and and not work a chunk at a time, a word at a time where both chunks are bitmaps, so combining whole sets
+ * costs about one operation per 64 ids rather than a hash lookup per id.
+ *
+ * Ids must not be negative.  Not thread safe.
+ *
+ * @author Shannon
+ */
+public final class ShardBitmap {
+  private static final int ARRAY_MAX = 4096;
+  private static final int WORDS = 1024;
+  //Sorted by key
+  private char[] keys = new char[0];
+  private Container[] containers = new Container[0];
+  private int size = 0;
+
+  public ShardBitmap() {
+  }
+
+  /**
+   * @param bitSet  The ids.
+   * @return  A bitmap of the same ids.
+   */
+  public static ShardBitmap of(BitSet bitSet) {
+    ShardBitmap retval = new ShardBitmap();
+    long[] words = bitSet.toLongArray();
+    for (int start = 0; start < words.length; start += WORDS) {
+      long[] chunk = Arrays.copyOfRange(words, start, start + WORDS);
+      Container container = new Bitmap(chunk).shrink();
+      if (container != null) {
+        retval.append((char) (start / WORDS), container);
+      }
+    }
+    return retval;
+  }
+
+  private abstract static class Container {
+    abstract int cardinality();
+    abstract boolean contains(char low);
+    //Returns the container to keep, which may be a different kind
+    abstract Container add(char low);
+    abstract Container remove(char low);
+    //Stops when action says to
+    abstract boolean forEach(int high, IntPredicate action);
+    abstract Bitmap toBitmap();
+    abstract Container copy();
+  }
+
+  private static final class Sorted extends Container {
+    private char[] values;
+    private int cardinality;
+
+    private Sorted(char[] values, int cardinality) {
+      this.values = values;
+      this.cardinality = cardinality;
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(char low) {
+      return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+    }
+
+    @Override
+    Container add(char low) {
+      int i = Arrays.binarySearch(values, 0, cardinality, low);
+      if (i >= 0) { return this; }
+      if (cardinality == ARRAY_MAX) {
+        return toBitmap().add(low);
+      }
+      i = -i - 1;
+      if (cardinality == values.length) {
+        values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+      }
+      System.arraycopy(values, i, values, i + 1, cardinality - i);
+      values[i] = low;
+      ++cardinality;
+      return this;
+    }
+
+    @Override
+    Container remove(char low) {
+      int i = Arrays.binarySearch(values, 0, cardinality, low);
+      if (i < 0) { return this; }
+      System.arraycopy(values, i + 1, values, i, cardinality - i - 1);
+      --cardinality;
+      return cardinality == 0 ? null : this;
+    }
+
+    @Override
+    boolean forEach(int high, IntPredicate action) {
+      for (int i = 0; i < cardinality; ++i) {
+        if (!action.test(high | values[i])) { return false; }
+      }
+      return true;
+    }
+
+    @Override
+    Bitmap toBitmap() {
+      long[] words = new long[WORDS];
+      for (int i = 0; i < cardinality; ++i) {
+        words[values[i] >>> 6] |= 1L << values[i];
+      }
+      return new Bitmap(words, cardinality);
+    }
+
+    @Override
+    Container copy() {
+      return new Sorted(Arrays.copyOf(values, cardinality), cardinality);
+    }
+  }
+
+  private static final class Bitmap extends Container {
+    private final long[] words;
+    private int cardinality;
+
+    private Bitmap(long[] words) {
+      this.words = words;
+      for (long word : words) {
+        cardinality += Long.bitCount(word);
+      }
+    }
+
+    private Bitmap(long[] words, int cardinality) {
+      this.words = words;
+      this.cardinality = cardinality;
+    }
+
+    //The smallest container for what's here, or null if nothing is
+    private Container shrink() {
+      if (cardinality == 0) { return null; }
+      if (cardinality > ARRAY_MAX) { return this; }
+      char[] values = new char[cardinality];
+      int i = 0;
+      for (int w = 0; w < WORDS; ++w) {
+        long word = words[w];
+        while(word != 0) {
+          values[i++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+          word &= word - 1;
+        }
+      }
+      return new Sorted(values, cardinality);
+    }
+
+    @Override
+    int cardinality() {
+      return cardinality;
+    }
+
+    @Override
+    boolean contains(char low) {
+      return (words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    @Override
+    Container add(char low) {
+      if (!contains(low)) {
+        words[low >>> 6] |= 1L << low;
+        ++cardinality;
+      }
+      return this;
+    }
+
+    @Override
+    Container remove(char low) {
+      if (contains(low)) {
+        words[low >>> 6] &= ~(1L << low);
+        --cardinality;
+        if (cardinality <= ARRAY_MAX) { return shrink(); }
+      }
+      return this;
+    }
+
+    @Override
+    boolean forEach(int high, IntPredicate action) {
+      for (int w = 0; w < WORDS; ++w) {
+        long word = words[w];
+        while(word != 0) {
+          if (!action.test(high | (w << 6) | Long.numberOfTrailingZeros(word))) { return false; }
+          word &= word - 1;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    Bitmap toBitmap() {
+      return this;
+    }
+
+    @Override
+    Container copy() {
+      return new Bitmap(words.clone(), cardinality);
+    }
+  }
+
+  private interface WordOp {
+    long apply(long a, long b);
+  }
+
+  private static Container and(Container a, Container b) {
+    if (a instanceof Bitmap && b instanceof Bitmap) {
+      return combine((Bitmap) a, (Bitmap) b, (x, y) -> { return x & y; });
+    }
+    Container small = a.cardinality() <= b.cardinality() ? a : b;
+    Container other = small == a ? b : a;
+    return filter(small, other, true);
+  }
+
+  private static Container andNot(Container a, Container b) {
+    if (a instanceof Bitmap && b instanceof Bitmap) {
+      return combine((Bitmap) a, (Bitmap) b, (x, y) -> { return x & ~y; });
+    }
+    if (a instanceof Sorted) {
+      return filter(a, b, false);
+    }
+    Container retval = a.copy();
+    Sorted sorted = (Sorted) b;
+    for (int i = 0; i < sorted.cardinality && retval != null; ++i) {
+      retval = retval.remove(sorted.values[i]);
+    }
+    return retval;
+  }
+
+  private static Container or(Container a, Container b) {
+    if (a instanceof Sorted && b instanceof Sorted && a.cardinality() + b.cardinality() <= ARRAY_MAX) {
+      Container retval = a.copy();
+      Sorted sorted = (Sorted) b;
+      for (int i = 0; i < sorted.cardinality; ++i) {
+        retval = retval.add(sorted.values[i]);
+      }
+      return retval;
+    }
+    return combine(a.toBitmap(), b.toBitmap(), (x, y) -> { return x | y; });
+  }
+
+  private static Container combine(Bitmap a, Bitmap b, WordOp op) {
+    long[] words = new long[WORDS];
+    for (int w = 0; w < WORDS; ++w) {
+      words[w] = op.apply(a.words[w], b.words[w]);
+    }
+    return new Bitmap(words).shrink();
+  }
+
+  //What of a is or isn't in b, a being the array
+  private static Container filter(Container a, Container b, boolean keepIn) {
+    Sorted sorted = (Sorted) a;
+    char[] values = new char[sorted.cardinality];
+    int cardinality = 0;
+    for (int i = 0; i < sorted.cardinality; ++i) {
+      if (b.contains(sorted.values[i]) == keepIn) {
+        values[cardinality++] = sorted.values[i];
+      }
+    }
+    return cardinality == 0 ? null : new Sorted(values, cardinality);
+  }
+
+  private int find(char key) {
+    return Arrays.binarySearch(keys, 0, size, key);
+  }
+
+  private void append(char key, Container container) {
+    insert(size, key, container);
+  }
+
+  private void insert(int i, char key, Container container) {
+    if (size == keys.length) {
+      int capacity = Math.max(4, size * 2);
+      keys = Arrays.copyOf(keys, capacity);
+      containers = Arrays.copyOf(containers, capacity);
+    }
+    System.arraycopy(keys, i, keys, i + 1, size - i);
+    System.arraycopy(containers, i, containers, i + 1, size - i);
+    keys[i] = key;
+    containers[i] = container;
+    ++size;
+  }
+
+  private void set(int i, Container container) {
+    if (container != null) {
+      containers[i] = container;
+      return;
+    }
+    System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+    System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+    containers[--size] = null;
+  }
+
+  /**
+   * @param id    The id to add.
+   * @return  Whether it was new.
+   */
+  public boolean add(int id) {
+    Preconditions.checkArgument(id >= 0, "Ids cannot be negative: %s", id);
+    char key = (char) (id >>> 16);
+    char low = (char) id;
+    int i = find(key);
+    if (i < 0) {
+      insert(-i - 1, key, new Sorted(new char[] { low }, 1));
+      return true;
+    }
+    int before = containers[i].cardinality();
+    set(i, containers[i].add(low));
+    return containers[i].cardinality() != before;
+  }
+
+  /**
+   * @param id    The id to remove.
+   * @return  Whether it was there.
+   */
+  public boolean remove(int id) {
+    if (id < 0) { return false; }
+    int i = find((char) (id >>> 16));
+    if (i < 0 || !containers[i].contains((char) id)) { return false; }
+    set(i, containers[i].remove((char) id));
+    return true;
+  }
+
+  public boolean contains(int id) {
+    if (id < 0) { return false; }
+    int i = find((char) (id >>> 16));
+    return i >= 0 && containers[i].contains((char) id);
+  }
+
+  public int cardinality() {
+    int retval = 0;
+    for (int i = 0; i < size; ++i) {
+      retval += containers[i].cardinality();
+    }
+    return retval;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Goes through the ids in order.
+   *
+   * @param action    Called with each id.  Returning false stops.
+   * @return  Whether every id was gone through.
+   */
+  public boolean forEach(IntPredicate action) {
+    for (int i = 0; i < size; ++i) {
+      if (!containers[i].forEach(keys[i] << 16, action)) { return false; }
+    }
+    return true;
+  }
+
+  private interface ContainerOp {
+    Container apply(Container a, Container b);
+  }
+
+  //Walks both sets of chunks together.  Chunks only one side has are kept when keepA or keepB says so
+  private ShardBitmap merge(ShardBitmap other, ContainerOp op, boolean keepA, boolean keepB) {
+    ShardBitmap retval = new ShardBitmap();
+    int i = 0;
+    int j = 0;
+    while(i < size || j < other.size) {
+      int a = i < size ? keys[i] : Integer.MAX_VALUE;
+      int b = j < other.size ? other.keys[j] : Integer.MAX_VALUE;
+      if (a == b) {
+        Container container = op.apply(containers[i++], other.containers[j++]);
+        if (container != null) { retval.append((char) a, container); }
+      } else if (a < b) {
+        if (keepA) { retval.append((char) a, containers[i].copy()); }
+        ++i;
+      } else {
+        if (keepB) { retval.append((char) b, other.containers[j].copy()); }
+        ++j;
+      }
+    }
+    return retval;
+  }
+
+  /**
+   * @param other Another set.
+   * @return  A new set of the ids in both.
+   */
+  public ShardBitmap and(ShardBitmap other) {
+    return merge(other, ShardBitmap::and, false, false);
+  }
+
+  /**
+   * @param other Another set.
+   * @return  A new set of the ids in this but not other.
+   */
+  public ShardBitmap andNot(ShardBitmap other) {
+    return merge(other, ShardBitmap::andNot, true, false);
+  }
+
+  /**
+   * @param other Another set.
+   * @return  A new set of the ids in either.
+   */
+  public ShardBitmap or(ShardBitmap other) {
+    return merge(other, ShardBitmap::or, true, true);
+  }
+}
@@ -0,0 +1,105 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+
+/**
+ * The planning half of {@link SimpleAllocator}.  Given a view of the world it works out which moves need to happen
+ * without making any of them.
+ *
+ * Planning works on the distribution it is given in place.  Shards that are planned to move are removed from their
+ * current owners as the plan is made, so hand it a copy if the original needs to survive.
+ *
+ * This is split out from the allocator so that planning can be driven synchronously (benchmarks, etc.) without
+ * spinning up relocation threads.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class SimplePlanner<Node, Shard> extends AbstractPlanner<Node, Shard> {
+
+  /**
+   * The planning half of {@link SimpleAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Mapping of nodes to the shards that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   */
+  public SimplePlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode) {
+    this(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode, (node) -> { return 1; });
+  }
+
+  /**
+   * The planning half of {@link SimpleAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Mapping of nodes to the shards that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   * @param nodeCapacity        How big each node is.  Each node's share of the shards is proportional to it.
+   */
+  public SimplePlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode, NodeCapacity<Node> nodeCapacity) {
+    super(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode, nodeCapacity);
+  }
+
+  private void assignToLeast(Shard shard, BucketLoadIndex<Node> nodesByShare, ConstrainedQueue<ShardRelocation<Node, Shard>> moves
+      , Node fromNode) {
+    Node leastNode = nodesByShare.least();
+    moves.add(new ShardRelocation<Node, Shard>(fromNode, leastNode, shard));
+    if (fromNode != null) {
+      nodesByShare.shift(fromNode, -2);
+      distribution.get(fromNode).remove(shard);
+    }
+    nodesByShare.shift(leastNode, 2);
+  }
+
+  private void allShardsAccountedFor(ConstrainedQueue<ShardRelocation<Node, Shard>> moves, BucketLoadIndex<Node> nodesByShare) {
+    unassignedShards().forEach((shard) -> { assignToLeast(shard, nodesByShare, moves, null); });
+  }
+
+  //Loads are in half shards from the middle of each node's share, so -1 to 1 is even
+  private void allNodesEven(ConstrainedQueue<ShardRelocation<Node, Shard>> moves, BucketLoadIndex<Node> nodesByShare) {
+    while(nodesByShare.maxLoad() > 1 || nodesByShare.minLoad() < -1) {
+      Node mostNode = nodesByShare.most();
+      assignToLeast(distribution.get(mostNode).iterator().next(), nodesByShare, moves, mostNode);
+    }
+  }
+
+  /**
+   * Works out the moves needed to get every shard owned by exactly one node with every node owning the floor or ceiling
+   * of its share of the shards, shards * capacity / total capacity.  With equal capacities that is the floor or ceiling
+   * of the mean.
+   *
+   * @return  The moves that need to happen, constrained so that no more than maxThreadsPerNode are released per node.
+   */
+  @Override
+  public ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves() {
+    ConstrainedQueue<ShardRelocation<Node, Shard>> moves = newMoves();
+
+    fillInMissingNodes();
+    removeLeavers(moves);
+    BucketLoadIndex<Node> nodesByShare = nodesByShare();
+    //If we call splitBrainResolver.resolve and it gives us moves
+    //then we should honor that and not reassign those shard(s)
+    if (!handleSplitBrain(moves, nodesByShare)) {
+      allShardsAccountedFor(moves, nodesByShare);
+      allNodesEven(moves, nodesByShare);
+    }
+    return moves;
+  }
+}
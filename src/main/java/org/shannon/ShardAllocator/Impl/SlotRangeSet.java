@@ -0,0 +1,195 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.shannon.ShardAllocator.SlotRange;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A set of slots kept as sorted, disjoint ranges in a single array of bounds, start, end, start, end and so on.
+ * Overlapping and touching ranges are merged, so a set is always as few ranges as it can be.  Memory and every
+ * operation are proportional to the number of ranges, never to the number of slots.
+ *
+ * Immutable.  Union, intersect and subtract are a single sweep over both sets' bounds.
+ *
+ * @author Shannon
+ */
+public final class SlotRangeSet {
+  public static final SlotRangeSet EMPTY = new SlotRangeSet(new long[0]);
+  private final long[] bounds;
+
+  private SlotRangeSet(long[] bounds) {
+    this.bounds = bounds;
+  }
+
+  /**
+   * @param ranges    The ranges, in any order, overlapping or not.
+   * @return  A set of every slot in any of them.
+   */
+  public static SlotRangeSet of(Collection<SlotRange> ranges) {
+    SlotRange[] sorted = ranges.toArray(new SlotRange[ranges.size()]);
+    Arrays.sort(sorted);
+    long[] bounds = new long[sorted.length * 2];
+    int n = 0;
+    for (SlotRange range : sorted) {
+      if (n > 0 && range.getStart() <= bounds[n - 1]) {
+        bounds[n - 1] = Math.max(bounds[n - 1], range.getEnd());
+      } else {
+        bounds[n++] = range.getStart();
+        bounds[n++] = range.getEnd();
+      }
+    }
+    return new SlotRangeSet(Arrays.copyOf(bounds, n));
+  }
+
+  /**
+   * @param start The first slot.
+   * @param end   One past the last slot.
+   * @return  A set of the one range.
+   */
+  public static SlotRangeSet of(long start, long end) {
+    return of(new SlotRange(start, end));
+  }
+
+  /**
+   * @param range The range.
+   * @return  A set of the one range.
+   */
+  public static SlotRangeSet of(SlotRange range) {
+    return new SlotRangeSet(new long[] { range.getStart(), range.getEnd() });
+  }
+
+  private interface SlotOp {
+    boolean in(boolean inA, boolean inB);
+  }
+
+  //Walks both sets' bounds in order, keeping track of whether the slots from here on are in each
+  private static SlotRangeSet combine(SlotRangeSet a, SlotRangeSet b, SlotOp op) {
+    long[] retval = new long[a.bounds.length + b.bounds.length];
+    int n = 0;
+    int i = 0;
+    int j = 0;
+    boolean inA = false;
+    boolean inB = false;
+    boolean in = false;
+    while(i < a.bounds.length || j < b.bounds.length) {
+      long bound = Math.min(i < a.bounds.length ? a.bounds[i] : Long.MAX_VALUE
+          , j < b.bounds.length ? b.bounds[j] : Long.MAX_VALUE);
+      if (i < a.bounds.length && a.bounds[i] == bound) {
+        inA = !inA;
+        ++i;
+      }
+      if (j < b.bounds.length && b.bounds[j] == bound) {
+        inB = !inB;
+        ++j;
+      }
+      if (op.in(inA, inB) != in) {
+        in = !in;
+        retval[n++] = bound;
+      }
+    }
+    return n == 0 ? EMPTY : new SlotRangeSet(Arrays.copyOf(retval, n));
+  }
+
+  /**
+   * @param other Another set.
+   * @return  The slots in either.
+   */
+  public SlotRangeSet union(SlotRangeSet other) {
+    return combine(this, other, (a, b) -> { return a || b; });
+  }
+
+  /**
+   * @param other Another set.
+   * @return  The slots in both.
+   */
+  public SlotRangeSet intersect(SlotRangeSet other) {
+    return combine(this, other, (a, b) -> { return a && b; });
+  }
+
+  /**
+   * @param other Another set.
+   * @return  The slots in this but not other.
+   */
+  public SlotRangeSet subtract(SlotRangeSet other) {
+    return combine(this, other, (a, b) -> { return a && !b; });
+  }
+
+  /**
+   * @param slots How many slots to take.
+   * @return  The highest slots of this set, all of it if it has no more than that.
+   */
+  public SlotRangeSet last(long slots) {
+    Preconditions.checkArgument(slots >= 0, "Cannot take fewer than no slots: %s", slots);
+    int i = bounds.length;
+    long left = slots;
+    while(i > 0 && left > 0) {
+      i -= 2;
+      left -= bounds[i + 1] - bounds[i];
+    }
+    long[] retval = Arrays.copyOfRange(bounds, i, bounds.length);
+    if (left < 0) {
+      //Only part of the lowest range taken
+      retval[0] -= left;
+    }
+    return retval.length == 0 ? EMPTY : new SlotRangeSet(retval);
+  }
+
+  public boolean contains(long slot) {
+    int i = Arrays.binarySearch(bounds, slot);
+    //On a start, or between a start and its end
+    return i >= 0 ? i % 2 == 0 : (-i - 1) % 2 == 1;
+  }
+
+  /**
+   * @return  How many slots are in the set.
+   */
+  public long size() {
+    long retval = 0;
+    for (int i = 0; i < bounds.length; i += 2) {
+      retval += bounds[i + 1] - bounds[i];
+    }
+    return retval;
+  }
+
+  /**
+   * @return  How many ranges the set is made of.
+   */
+  public int rangeCount() {
+    return bounds.length / 2;
+  }
+
+  public boolean isEmpty() {
+    return bounds.length == 0;
+  }
+
+  /**
+   * @return  The ranges, in order.
+   */
+  public List<SlotRange> ranges() {
+    ArrayList<SlotRange> retval = new ArrayList<SlotRange>(rangeCount());
+    for (int i = 0; i < bounds.length; i += 2) {
+      retval.add(new SlotRange(bounds[i], bounds[i + 1]));
+    }
+    return retval;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof SlotRangeSet && Arrays.equals(((SlotRangeSet) o).bounds, bounds);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bounds);
+  }
+
+  @Override
+  public String toString() {
+    return ranges().toString();
+  }
+}
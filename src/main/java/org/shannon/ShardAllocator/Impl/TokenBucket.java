@@ -0,0 +1,83 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hands out so many tokens a second.  Holds up to a second's worth, so a quiet spell allows a short burst, and starts
+ * empty, so there is no burst to begin with.
+ *
+ * Asking for more than a second's worth waits for a full bucket and then goes into debt, which whoever asks next waits
+ * off.  Anything bigger than the rate still gets through, just with a longer wait after it.
+ *
+ * The rate can be changed at any time, and anyone waiting goes by the new rate right away.  An infinite rate hands out
+ * everything without waiting.  Waits can be interrupted.
+ *
+ * @author Shannon
+ */
+final class TokenBucket {
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  //Guarded by this
+  private double perSecond = Double.POSITIVE_INFINITY;
+  private double available = 0;
+  private long refilled = System.nanoTime();
+
+  /**
+   * @param perSecond How many tokens to hand out a second.  Positive, and infinite for no limit.
+   */
+  TokenBucket(double perSecond) {
+    setRate(perSecond);
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    if (!Double.isInfinite(perSecond)) {
+      available = Math.min(perSecond, available + (now - refilled) * perSecond / NANOS_PER_SECOND);
+    }
+    refilled = now;
+  }
+
+  /**
+   * @param perSecond How many tokens to hand out a second.  Positive, and infinite for no limit.
+   */
+  synchronized void setRate(double perSecond) {
+    Preconditions.checkArgument(perSecond > 0, "Rates must be positive");
+    refill();
+    this.perSecond = perSecond;
+    available = Math.min(available, perSecond);
+    notifyAll();
+  }
+
+  synchronized double rate() {
+    return perSecond;
+  }
+
+  /**
+   * @param tokens  How many would be asked for.
+   * @return  Whether {@link #acquire(double)} would hand them out right now without waiting.
+   */
+  synchronized boolean ready(double tokens) {
+    if (Double.isInfinite(perSecond)) { return true; }
+    refill();
+    return available >= Math.min(tokens, perSecond);
+  }
+
+  /**
+   * Waits for and takes tokens.
+   *
+   * @param tokens  How many to take.
+   * @throws InterruptedException Interrupted while waiting.  No tokens are taken.
+   */
+  synchronized void acquire(double tokens) throws InterruptedException {
+    while(!Double.isInfinite(perSecond)) {
+      refill();
+      double needed = Math.min(tokens, perSecond);
+      if (available >= needed) {
+        available -= tokens;
+        return;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, (long) Math.ceil((needed - available) * NANOS_PER_SECOND / perSecond)));
+    }
+  }
+}
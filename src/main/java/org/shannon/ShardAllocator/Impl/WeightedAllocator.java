@@ -0,0 +1,95 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.function.Supplier;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardWeigher;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Allocates shards so that the total weight on every node is within a tolerance of its share, for when shards are not
+ * all equal.  A node's share is proportional to its capacity when a {@link org.shannon.ShardAllocator.NodeCapacity} is
+ * given and even otherwise.  See {@link WeightedPlanner} for how moves are picked.
+ *
+ * Weights come from a {@link ShardWeigher}.  Either give one that always applies or give a supplier which is asked for
+ * a fresh weigher every time a plan is made, e.g. one backed by the latest traffic numbers.  Changing weights does not
+ * kick off a rebalance by itself; the new weights are used the next time something is notified.
+ *
+ * Internally, use of HashSet is used, so the objects must implement reasonable hashCode and equals functions.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class WeightedAllocator<Node, Shard> extends AbstractAllocator<Node, Shard> {
+  private final Supplier<? extends ShardWeigher<Shard>> weigherSupplier;
+  private final double tolerance;
+
+  private WeightedAllocator(Builder<Node, Shard> builder) {
+    super(builder);
+    Preconditions.checkNotNull(builder.weigherSupplier, "Must have a weigher");
+    Preconditions.checkArgument(builder.tolerance >= 0, "Tolerance cannot be negative");
+    this.weigherSupplier = builder.weigherSupplier;
+    this.tolerance = builder.tolerance;
+    allocateAsync();
+  }
+
+  @Override
+  protected ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves() {
+    return new WeightedPlanner<Node, Shard>(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode
+        , nodeCapacity, weigherSupplier.get(), tolerance).determineMoves();
+  }
+
+  /**
+   * Builds a {@link WeightedAllocator}.
+   *
+   * @param <Node>    That which controls or has ownership of Shards
+   * @param <Shard>   Some fragment of the whole which needs controlling.
+   */
+  public static final class Builder<Node, Shard>
+      extends AbstractAllocator.Builder<Node, Shard, WeightedAllocator<Node, Shard>, Builder<Node, Shard>> {
+    private Supplier<? extends ShardWeigher<Shard>> weigherSupplier;
+    private double tolerance = 0.05;
+
+    /**
+     * @param weigher   How much each shard weighs.  This or weigherSupplier is required.
+     * @return  this
+     */
+    public Builder<Node, Shard> weigher(ShardWeigher<Shard> weigher) {
+      this.weigherSupplier = weigher == null ? null : () -> { return weigher; };
+      return this;
+    }
+
+    /**
+     * @param weigherSupplier   Asked for a weigher each time a plan is made.  This or weigher is required.
+     * @return  this
+     */
+    public Builder<Node, Shard> weigherSupplier(Supplier<? extends ShardWeigher<Shard>> weigherSupplier) {
+      this.weigherSupplier = weigherSupplier;
+      return this;
+    }
+
+    /**
+     * @param tolerance How far from its share of the weight a node may be, as a fraction of that share.  Defaults
+     *                  to 0.05.
+     * @return  this
+     */
+    public Builder<Node, Shard> tolerance(double tolerance) {
+      this.tolerance = tolerance;
+      return this;
+    }
+
+    @Override
+    protected Builder<Node, Shard> self() {
+      return this;
+    }
+
+    @Override
+    public WeightedAllocator<Node, Shard> build() {
+      return new WeightedAllocator<Node, Shard>(this);
+    }
+  }
+}
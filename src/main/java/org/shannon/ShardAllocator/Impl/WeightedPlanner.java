@@ -0,0 +1,239 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.NodeCapacity;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardWeigher;
+import org.shannon.ShardAllocator.SplitBrainResolver;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The planning half of {@link WeightedAllocator}.  Given a view of the world it works out which moves need to happen
+ * to get the total weight on every node within tolerance of its share without making any of them.
+ *
+ * A node's share is the total weight * capacity / total capacity, so what is balanced is each node's weight per unit
+ * of capacity, its utilization.  Unowned shards are handed out heaviest first, each to the least utilized node.  Then,
+ * while the most utilized node is above mean * (1 + tolerance) or the least is below mean * (1 - tolerance), a single
+ * shard is moved from a heavy node to the least utilized one.  The shard picked is the heaviest one that does not push
+ * the two past each other, falling back to the lightest one that still brings them closer together.  Shards that
+ * would not make things any better are never moved, so a plan always terminates even when the tolerance cannot be
+ * met, e.g. a single shard heavier than a node's share.
+ *
+ * Nodes are kept ordered by load and each node's shards are kept ordered by weight, so every move costs O(log n).
+ *
+ * Split brains are handed to the {@link SplitBrainResolver} with nodes indexed by their share of the shard count, same
+ * as {@link SimplePlanner}.
+ *
+ * Planning works on the distribution it is given in place.  Shards that are planned to move are removed from their
+ * current owners as the plan is made, so hand it a copy if the original needs to survive.
+ *
+ * @author Shannon
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+public final class WeightedPlanner<Node, Shard> extends AbstractPlanner<Node, Shard> {
+  private final Comparator<Weighted> byWeight =
+      Comparator.<Weighted>comparingDouble((shard) -> { return shard.weight; })
+        .thenComparingInt((shard) -> { return shard.seq; });
+  private final Comparator<Loaded> byLoad =
+      Comparator.<Loaded>comparingDouble((node) -> { return node.utilization(); })
+        .thenComparingInt((node) -> { return node.seq; });
+  private final ShardWeigher<Shard> weigher;
+  private final double tolerance;
+  private final TreeSet<Loaded> nodesByLoad = new TreeSet<Loaded>(byLoad);
+  private int nextSeq = 0;
+
+  /**
+   * The planning half of {@link WeightedAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Mapping of nodes to the shards that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   * @param weigher             How much each shard weighs.  Called once per shard owned or needing an owner.
+   * @param tolerance           How far from the mean weight a node may be, as a fraction of the mean.
+   */
+  public WeightedPlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode, ShardWeigher<Shard> weigher, double tolerance) {
+    this(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode, (node) -> { return 1; }
+        , weigher, tolerance);
+  }
+
+  /**
+   * The planning half of {@link WeightedAllocator}.
+   *
+   * @param nodeUniverse        All the nodes.
+   * @param shardUniverse       All the shards.
+   * @param distribution        Mapping of nodes to the shards that they control.  This will be modified while planning.
+   * @param splitBrainResolver  Called when more than 1 node claims the same shard.
+   * @param maxThreadsPerNode   Maximum number of moves that can be affiliated with any given node at a time.
+   * @param nodeCapacity        How big each node is.  Each node's share of the weight is proportional to it.
+   * @param weigher             How much each shard weighs.  Called once per shard owned or needing an owner.
+   * @param tolerance           How far from its share of the weight a node may be, as a fraction of that share.
+   */
+  public WeightedPlanner(Set<Node> nodeUniverse, Set<Shard> shardUniverse
+      , Map<Node, HashSet<Shard>> distribution, SplitBrainResolver<Node, Shard> splitBrainResolver
+      , int maxThreadsPerNode, NodeCapacity<Node> nodeCapacity, ShardWeigher<Shard> weigher, double tolerance) {
+    super(nodeUniverse, shardUniverse, distribution, splitBrainResolver, maxThreadsPerNode, nodeCapacity);
+    Preconditions.checkNotNull(weigher, "Must have a weigher");
+    Preconditions.checkArgument(tolerance >= 0, "Tolerance cannot be negative");
+    this.weigher = weigher;
+    this.tolerance = tolerance;
+  }
+
+  private class Weighted {
+    private final Shard shard;
+    private final double weight;
+    private final int seq;
+
+    private Weighted(Shard shard, double weight) {
+      this.shard = shard;
+      this.weight = weight;
+      this.seq = nextSeq++;
+    }
+
+    private Weighted(double weight) {
+      this.shard = null;
+      this.weight = weight;
+      this.seq = Integer.MIN_VALUE;
+    }
+  }
+
+  private class Loaded {
+    private final Node node;
+    private final int seq = nextSeq++;
+    private final TreeSet<Weighted> shards = new TreeSet<Weighted>(byWeight);
+    private final double capacity;
+    private double load = 0;
+
+    private Loaded(Node node) {
+      this.node = node;
+      this.capacity = capacity(node);
+    }
+
+    private double utilization() {
+      return load / capacity;
+    }
+  }
+
+  private Weighted weigh(Shard shard) {
+    double weight = weigher.weigh(shard);
+    Preconditions.checkArgument(weight >= 0 && !Double.isInfinite(weight), "Weight must be finite and not negative: %s weighs %s", shard, weight);
+    return new Weighted(shard, weight);
+  }
+
+  private double weighDistribution() {
+    double retval = 0;
+    for (Map.Entry<Node, HashSet<Shard>> entry : distribution.entrySet()) {
+      Loaded node = new Loaded(entry.getKey());
+      for (Shard shard : entry.getValue()) {
+        Weighted weighted = weigh(shard);
+        node.shards.add(weighted);
+        node.load += weighted.weight;
+      }
+      retval += node.load;
+      nodesByLoad.add(node);
+    }
+    return retval;
+  }
+
+  private double totalCapacity() {
+    double retval = 0;
+    for (Loaded node : nodesByLoad) {
+      retval += node.capacity;
+    }
+    return retval;
+  }
+
+  private void give(Weighted shard, Loaded fromNode, Loaded toNode, ConstrainedQueue<ShardRelocation<Node, Shard>> moves) {
+    moves.add(new ShardRelocation<Node, Shard>(fromNode == null ? null : fromNode.node, toNode.node, shard.shard));
+    if (fromNode != null) {
+      nodesByLoad.remove(fromNode);
+      fromNode.shards.remove(shard);
+      fromNode.load -= shard.weight;
+      nodesByLoad.add(fromNode);
+      distribution.get(fromNode.node).remove(shard.shard);
+    }
+    nodesByLoad.remove(toNode);
+    toNode.shards.add(shard);
+    toNode.load += shard.weight;
+    nodesByLoad.add(toNode);
+  }
+
+  private double allShardsAccountedFor(ConstrainedQueue<ShardRelocation<Node, Shard>> moves) {
+    double retval = 0;
+    ArrayList<Weighted> unassigned = new ArrayList<Weighted>();
+    unassignedShards().forEach((shard) -> { unassigned.add(weigh(shard)); });
+    unassigned.sort(byWeight.reversed());
+    for (Weighted shard : unassigned) {
+      give(shard, null, nodesByLoad.first(), moves);
+      retval += shard.weight;
+    }
+    return retval;
+  }
+
+  //Moving the even weight leaves both nodes equally utilized.  The heaviest shard at or under that, else the lightest
+  //under twice that as those still lower the spread.  With equal capacities the even weight is half the gap.
+  private Weighted bestFit(Loaded fromNode, Loaded toNode) {
+    double even = (fromNode.load * toNode.capacity - toNode.load * fromNode.capacity) / (fromNode.capacity + toNode.capacity);
+    Weighted below = fromNode.shards.lower(new Weighted(even));
+    if (below != null && below.weight > 0) { return below; }
+    Weighted above = fromNode.shards.ceiling(new Weighted(even));
+    return above != null && above.weight < 2 * even ? above : null;
+  }
+
+  private void allNodesWithinTolerance(ConstrainedQueue<ShardRelocation<Node, Shard>> moves, double mean) {
+    double upper = mean * (1 + tolerance);
+    double lower = mean * (1 - tolerance);
+    //Every move shrinks the spread; the cap only guards against floating point dithering
+    for (int movesLeft = shardUniverse.size(); movesLeft > 0; --movesLeft) {
+      Loaded lightest = nodesByLoad.first();
+      Weighted shard = null;
+      Loaded heavy = null;
+      for (Loaded node : nodesByLoad.descendingSet()) {
+        if (node.utilization() <= lightest.utilization()
+            || (node.utilization() <= upper && lightest.utilization() >= lower)) { break; }
+        shard = bestFit(node, lightest);
+        if (shard != null) {
+          heavy = node;
+          break;
+        }
+      }
+      if (shard == null) { return; }
+      give(shard, heavy, lightest, moves);
+    }
+  }
+
+  /**
+   * Works out the moves needed to get every shard owned by exactly one node with every node's total weight within
+   * tolerance of its share, or as close as single shard moves can get it.
+   *
+   * @return  The moves that need to happen, constrained so that no more than maxThreadsPerNode are released per node.
+   */
+  @Override
+  public ConstrainedQueue<ShardRelocation<Node, Shard>> determineMoves() {
+    ConstrainedQueue<ShardRelocation<Node, Shard>> moves = newMoves();
+
+    fillInMissingNodes();
+    removeLeavers(moves);
+    //If we call splitBrainResolver.resolve and it gives us moves
+    //then we should honor that and not reassign those shard(s)
+    if (!handleSplitBrain(moves, nodesByShare())) {
+      double total = weighDistribution();
+      total += allShardsAccountedFor(moves);
+      allNodesWithinTolerance(moves, total / totalCapacity());
+    }
+    return moves;
+  }
+}
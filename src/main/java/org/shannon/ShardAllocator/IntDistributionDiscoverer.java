@@ -0,0 +1,28 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * That which discovers the distribution of control of shards, for nodes and shards that are plain int ids.  The int
+ * counterpart of {@link DistributionDiscoverer}.  Rather than building a map, every claim is handed over as it is found.
+ */
+@FunctionalInterface
+public interface IntDistributionDiscoverer {
+  /**
+   * Hears of one node claiming one shard.
+   */
+  @FunctionalInterface
+  interface Claims {
+    /**
+     * @param node  The node reporting control of the shard.  Not negative.
+     * @param shard The shard.  Not negative.
+     */
+    void claim(int node, int shard);
+  }
+
+  /**
+   * Calls claims once for every shard every node reports control of.  A shard claimed by more than one node is a split
+   * brain.
+   *
+   * @param claims  Where the claims go.
+   */
+  void discoverDistribution(Claims claims);
+}
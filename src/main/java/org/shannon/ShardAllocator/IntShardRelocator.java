@@ -0,0 +1,23 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * That which understands how to relocate shards, for nodes and shards that are plain int ids.  The int counterpart of
+ * {@link ShardRelocator}.
+ */
+@FunctionalInterface
+public interface IntShardRelocator {
+  /**
+   * Stands in for the missing node of a new shard, which has no fromNode, and of a shard being let go, which has no
+   * toNode.  Ids are never negative, so neither is ever a real node.
+   */
+  int NO_NODE = -1;
+
+  /**
+   * Moves a shard.  Throwing counts as the move failing.
+   *
+   * @param fromNode  Where the shard is, or {@link #NO_NODE} for a shard nobody owns.
+   * @param toNode    Where the shard should be, or {@link #NO_NODE} for a shard to be let go.
+   * @param shard     The shard.
+   */
+  void relocate(int fromNode, int toNode, int shard);
+}
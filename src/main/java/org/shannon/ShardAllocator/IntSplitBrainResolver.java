@@ -0,0 +1,19 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * When more than 1 node is reported to own the same shard this will be called with the shard in question and the nodes
+ * that reported owning the shard, for nodes and shards that are plain int ids.  The int counterpart of
+ * {@link SplitBrainResolver}.
+ *
+ * Rather than returning moves it picks which node keeps the shard; every other node is then asked to let it go.
+ */
+@FunctionalInterface
+public interface IntSplitBrainResolver {
+  /**
+   * @param shard   The shard claimed more than once.
+   * @param nodes   The nodes claiming it.  Free to keep or change.
+   * @param counts  How many shards each node owns, by node id, not counting split brains.  Do not change.
+   * @return  Which of nodes keeps the shard, or {@link IntShardRelocator#NO_NODE} to leave it alone for now.
+   */
+  int resolve(int shard, int[] nodes, int[] counts);
+}
@@ -0,0 +1,75 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * A read only view of how loaded each node is, kept in order of load.
+ *
+ * Handed to a {@link SplitBrainResolver} so that it can decide which of the conflicted nodes ought to let go.
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+public interface LoadIndex<Node> {
+  /**
+   * How many nodes are indexed.
+   *
+   * @return  How many nodes are indexed.
+   */
+  int size();
+
+  /**
+   * Whether the node is indexed.
+   *
+   * @param node  The node in question.
+   * @return  Whether the node is indexed.
+   */
+  boolean contains(Node node);
+
+  /**
+   * The load of the given node.
+   *
+   * @param node  The node in question.  Must be indexed.
+   * @return  The load of the given node.
+   */
+  int load(Node node);
+
+  /**
+   * A node carrying the least load.  Will be null if nothing is indexed.
+   *
+   * @return  A node carrying the least load.  Will be null if nothing is indexed.
+   */
+  Node least();
+
+  /**
+   * A node carrying the most load.  Will be null if nothing is indexed.
+   *
+   * @return  A node carrying the most load.  Will be null if nothing is indexed.
+   */
+  Node most();
+
+  /**
+   * The smallest load of any node.
+   *
+   * @return  The smallest load of any node.
+   */
+  int minLoad();
+
+  /**
+   * The largest load of any node.
+   *
+   * @return  The largest load of any node.
+   */
+  int maxLoad();
+
+  /**
+   * Every node, least loaded first.
+   *
+   * @return  Every node, least loaded first.
+   */
+  Iterable<Node> ascending();
+
+  /**
+   * Every node, most loaded first.
+   *
+   * @return  Every node, most loaded first.
+   */
+  Iterable<Node> descending();
+}
@@ -0,0 +1,21 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * Says how big a node is relative to the others, e.g. its core count.  Each node's share of the shards (or of the
+ * weight) is proportional to its capacity.
+ *
+ * Capacities must be positive.  Only the relative sizes matter; giving every node the same capacity is the same as not
+ * giving one at all.
+ *
+ * @param <Node>    That which controls or has ownership of Shards
+ */
+@FunctionalInterface
+public interface NodeCapacity<Node> {
+  /**
+   * How big the node is relative to the others.
+   *
+   * @param node  The node in question.
+   * @return  How big the node is relative to the others.  Must be positive.
+   */
+  int capacity(Node node);
+}
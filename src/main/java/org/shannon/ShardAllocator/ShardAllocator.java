@@ -32,6 +32,39 @@ public interface ShardAllocator<Node, Shard> extends Closeable{
    */
   void notifyDistributionChange(Map<Node, Collection<Shard>> distribution);
 
+  /**
+   * Called when shards are created.  Cheaper than {@link #notifyShardsChange(Collection)} as only the change needs to be
+   * looked at.  Will kick off a rebalance if any of them are new.
+   *
+   * @param shards    The new shards.
+   */
+  void addShards(Collection<Shard> shards);
+
+  /**
+   * Called when shards go away.  Cheaper than {@link #notifyShardsChange(Collection)} as only the change needs to be
+   * looked at.  Will kick off a rebalance if any of them were known.
+   *
+   * @param shards    The shards that are gone.
+   */
+  void removeShards(Collection<Shard> shards);
+
+  /**
+   * Called when nodes join.  Cheaper than {@link #notifyNodesChange(Collection)} as only the change needs to be looked
+   * at.  Will kick off a rebalance if any of them are new.
+   *
+   * @param nodes The nodes that joined.
+   */
+  void addNodes(Collection<Node> nodes);
+
+  /**
+   * Called when nodes leave.  Cheaper than {@link #notifyNodesChange(Collection)} as only the change needs to be looked
+   * at.  Will kick off a rebalance if any of them were known.  Same as everywhere else, nodes that leave are assumed to
+   * have let go of their shards.
+   *
+   * @param nodes The nodes that left.
+   */
+  void removeNodes(Collection<Node> nodes);
+
   /**
    * If a rebalance is going on this will block until it is done.
    */
@@ -7,6 +7,9 @@ import com.google.common.base.Preconditions;
  * 
  * We have a shard that needs to move, be removed (toNode will be null) or start being worked (fromNode will be null)
  * 
+ * Every relocation has a {@link Priority}.  Moves that are let through the constraints at the same time are handed out
+ * most urgent first.  The priority is not part of equality.
+ * 
  * @author Shannon
  *
  * @param <Node>    That which controls or has ownership of Shards
@@ -16,6 +19,26 @@ public class ShardRelocation<Node, Shard> {
   private final Node fromNode;
   private final Node toNode;
   private final Shard shard;
+  private final Priority priority;
+
+  /**
+   * How urgent a relocation is, most urgent first.
+   */
+  public enum Priority {
+    /**
+     * The shard has no owner and is unavailable until it gets one.  The default for anything with no fromNode.
+     */
+    ORPHANED,
+    /**
+     * More than one node claims the shard.
+     */
+    SPLIT_BRAIN,
+    /**
+     * Everything else, such as evening out load or letting go of shards that are gone.  The default for anything with
+     * a fromNode.
+     */
+    BALANCING
+  }
 
   /**
    * This describes the relocation that needs to happen.
@@ -27,10 +50,24 @@ public class ShardRelocation<Node, Shard> {
    * @param shard     Shard that needs to have its ownership changed.
    */
   public ShardRelocation(Node fromNode, Node toNode, Shard shard) {
+    this(fromNode, toNode, shard, fromNode == null ? Priority.ORPHANED : Priority.BALANCING);
+  }
+
+  /**
+   * This describes the relocation that needs to happen and how urgent it is.
+   *
+   * @param fromNode  Node that needs to release control if any.
+   * @param toNode    Node that needs to receive control if any.
+   * @param shard     Shard that needs to have its ownership changed.
+   * @param priority  How urgent the relocation is.
+   */
+  public ShardRelocation(Node fromNode, Node toNode, Shard shard, Priority priority) {
     Preconditions.checkNotNull(shard, "Must have a shard to move.");
+    Preconditions.checkNotNull(priority, "Must have a priority.");
     this.fromNode = fromNode;
     this.toNode = toNode;
     this.shard = shard;
+    this.priority = priority;
   }
 
   /**
@@ -59,6 +96,15 @@ public class ShardRelocation<Node, Shard> {
   public Shard getShard() {
     return shard;
   }
+
+  /**
+   * How urgent the relocation is.
+   *
+   * @return  How urgent the relocation is.
+   */
+  public Priority getPriority() {
+    return priority;
+  }
   
   private boolean eq(Object l, Object r) {
     return (l == null && r == null) || (l != null && l.equals(r));
@@ -0,0 +1,19 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * Says how many bytes have to be copied to move a shard, so that relocations can be limited by bytes per second.
+ *
+ * Sizes must not be negative.  They don't have to be exact; a good guess throttles about as well.
+ *
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+@FunctionalInterface
+public interface ShardSize<Shard> {
+  /**
+   * How many bytes moving the shard copies.
+   *
+   * @param shard The shard in question.
+   * @return  How many bytes moving the shard copies.  Not negative.
+   */
+  long bytes(Shard shard);
+}
@@ -0,0 +1,19 @@
+package org.shannon.ShardAllocator;
+
+/**
+ * Says how much load a shard puts on whichever node owns it.  Traffic, bytes, cpu; whatever balance should mean.
+ *
+ * Weights must be finite and not negative.  Only the relative sizes matter.
+ *
+ * @param <Shard>   Some fragment of the whole which needs controlling.
+ */
+@FunctionalInterface
+public interface ShardWeigher<Shard> {
+  /**
+   * How much load the shard puts on its owner.
+   *
+   * @param shard The shard in question.
+   * @return  How much load the shard puts on its owner.  Finite and not negative.
+   */
+  double weigh(Shard shard);
+}
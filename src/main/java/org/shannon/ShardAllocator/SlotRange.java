@@ -0,0 +1,75 @@
+package org.shannon.ShardAllocator;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * A contiguous run of slots, say hash slots out of a 2^32 keyspace, from start up to but not including end.  Used as
+ * the shard of a range allocator, so a relocation of one moves every slot in it.
+ *
+ * Ordered by start, then end.
+ *
+ * @author Shannon
+ */
+public final class SlotRange implements Comparable<SlotRange> {
+  private final long start;
+  private final long end;
+
+  /**
+   * @param start The first slot.  Cannot be negative.
+   * @param end   One past the last slot.  Must be past start.
+   */
+  public SlotRange(long start, long end) {
+    Preconditions.checkArgument(start >= 0, "Slots cannot be negative: %s", start);
+    Preconditions.checkArgument(start < end, "A range must have slots in it: [%s, %s)", start, end);
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * @return  The first slot.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return  One past the last slot.
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * @return  How many slots are in the range.
+   */
+  public long size() {
+    return end - start;
+  }
+
+  public boolean contains(long slot) {
+    return start <= slot && slot < end;
+  }
+
+  @Override
+  public int compareTo(SlotRange o) {
+    int retval = Long.compare(start, o.start);
+    return retval != 0 ? retval : Long.compare(end, o.end);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof SlotRange
+      && ((SlotRange) o).start == start
+      && ((SlotRange) o).end == end;
+  }
+
+  @Override
+  public int hashCode() {
+    return Long.hashCode(start) * 31 + Long.hashCode(end);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("[%s, %s)", start, end);
+  }
+}
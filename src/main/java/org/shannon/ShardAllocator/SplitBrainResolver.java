@@ -3,18 +3,19 @@ package org.shannon.ShardAllocator;
 import java.util.Collection;
 import java.util.HashSet;
 
-import com.google.common.collect.TreeMultimap;
-
 /**
  * When more than 1 node is reported to own the same shard this will be called with the
  * shard in question and the nodes that reported owning the shard.
  *
- * It should return the appropriate steps for resolving the issue.
+ * It should return the appropriate steps for resolving the issue.  nodesByShare orders nodes by how loaded they are
+ * relative to their capacity so that load can be taken from the heavier nodes.  A node's load there is
+ * 2 * count - (floor + ceiling) of its share of the shards: below -1 is short of its share, above 1 is over it and
+ * -1 to 1 is even.  When every node has the same capacity this orders nodes the same as their shard counts.
  *
  * @param <Node>    That which controls or has ownership of Shards
  * @param <Shard>   Some fragment of the whole which needs controlling.
  */
 public interface SplitBrainResolver<Node, Shard> {
   public Collection<ShardRelocation<Node, Shard>> resolve(Shard shard, HashSet<Node> nodes
-      , TreeMultimap<Integer, Node> nodesByCount);
+      , LoadIndex<Node> nodesByShare);
 }
@@ -0,0 +1,35 @@
+package org.shannon.ShardAllocator.Impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Makes the executor an allocator relocates on when it is not given one.
+ *
+ * This is the JDK 21 version, packed under META-INF/versions/21 of the multi-release jar.  Relocations are mostly
+ * waiting on other nodes, so a virtual thread per relocation lets hundreds be in flight without a platform thread each.
+ * Must keep the same signatures as the Java 8 version under src/main/java.
+ *
+ * @author Shannon
+ */
+final class RelocationThreads {
+  private RelocationThreads() { }
+
+  /**
+   * @return  Whether this JVM can run relocations on virtual threads.
+   */
+  static boolean virtualThreadsAvailable() {
+    return true;
+  }
+
+  /**
+   * Either a virtual thread per relocation, or a pool that grows to however many relocations are running at once and
+   * lets idle threads go.
+   *
+   * @param virtual   Whether to use a virtual thread per relocation.
+   * @return  The executor to relocate on.
+   */
+  static ExecutorService newExecutor(boolean virtual) {
+    return virtual ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+  }
+}
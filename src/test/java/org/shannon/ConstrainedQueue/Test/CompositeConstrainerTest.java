@@ -0,0 +1,177 @@
+package org.shannon.ConstrainedQueue.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.shannon.ConstrainedQueue.CompositeConstrainer;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.util.TestClass;
+
+public class CompositeConstrainerTest extends TestClass {
+
+  private static Integer rack(Integer node) {
+    return node == null ? null : node / 2;
+  }
+
+  //Nodes 0 and 1 are rack 0, 2 and 3 rack 1, etc.
+  private CompositeConstrainer<ShardRelocation<Integer, Integer>> cc(int perNode, int perRack, int total) {
+    return new CompositeConstrainer.Builder<ShardRelocation<Integer, Integer>>()
+        .limit(perNode, ShardRelocation::getFromNode, ShardRelocation::getToNode)
+        .limit(perRack, (move) -> { return rack(move.getFromNode()); }, (move) -> { return rack(move.getToNode()); })
+        .limit(total, (move) -> { return "total"; })
+        .build();
+  }
+
+  private ShardRelocation<Integer, Integer> sr(Integer from, Integer to, Integer shard) {
+    return new ShardRelocation<Integer, Integer>(from, to, shard);
+  }
+
+  @Test
+  public void mustHaveLimits() {
+    expectException("Should need a limit", IllegalArgumentException.class
+        , () -> { new CompositeConstrainer.Builder<Integer>().build(); });
+    expectException("Should need a positive limit", IllegalArgumentException.class
+        , () -> { new CompositeConstrainer.Builder<Integer>().limit(0, (i) -> { return i; }); });
+  }
+
+  @Test
+  public void everyLimitApplies() {
+    CompositeConstrainer<ShardRelocation<Integer, Integer>> c = cc(1, 2, 3);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 2, 0)));
+    assertTrue("Node limit should constrain", c.constrained(sr(0, 4, 1)));
+    assertFalse("Rack has room for another", c.constrained(sr(1, 3, 2)));
+    assertTrue("Rack limit should constrain", c.constrained(sr(1, 4, 3)));
+    assertFalse("Nothing in common", c.constrained(sr(4, 6, 4)));
+    assertTrue("Total limit should constrain", c.constrained(sr(8, 10, 5)));
+    assertEquals("Should hold so many", new Integer(3), new Integer(c.size()));
+  }
+
+  @Test
+  public void sameKeyCountsOnce() {
+    CompositeConstrainer<ShardRelocation<Integer, Integer>> c = cc(1, 1, 10);
+    assertFalse("Moves within a rack only use the rack once", c.constrained(sr(0, 1, 0)));
+    assertTrue("Rack should be full", c.constrained(sr(1, 2, 1)));
+    assertFalse("Null keys aren't limited", c.constrained(sr(null, 4, 2)));
+    assertFalse("Null keys aren't limited", c.constrained(sr(null, 6, 3)));
+  }
+
+  @Test
+  public void releasesAcrossLevels() {
+    CompositeConstrainer<ShardRelocation<Integer, Integer>> c = cc(1, 1, 10);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 4, 0)));
+    assertFalse("Second entry shouldn't be constrained", c.constrained(sr(9, 6, 1)));
+    //Waits on node 0, then on rack 4 once node 0 is free
+    assertTrue("Should be constrained", c.constrained(sr(0, 8, 2)));
+    Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(sr(0, 4, 0));
+    assertEquals("Rack 4 is still full", new Integer(0), new Integer(released.size()));
+    assertTrue("Should still be waiting", c.contains(sr(0, 8, 2)));
+    assertTrue("Should be constrained", c.constrained(sr(2, 8, 3)));
+    released = c.notifyReleased(sr(9, 6, 1));
+    assertEquals("Should release so many", new Integer(1), new Integer(released.size()));
+    assertEquals("Should release the one I expect", sr(0, 8, 2), released.iterator().next());
+    released = c.notifyReleased(sr(0, 8, 2));
+    assertEquals("Should release the one waiting on node 8", sr(2, 8, 3), released.iterator().next());
+    c.notifyReleased(sr(2, 8, 3));
+    assertTrue("Should be empty now", c.isEmpty());
+    assertFalse("Everything should be free again", c.constrained(sr(0, 8, 4)));
+    assertFalse("Everything should be free again", c.constrained(sr(3, 6, 5)));
+  }
+
+  @Test
+  public void releasesInOrder() {
+    CompositeConstrainer<ShardRelocation<Integer, Integer>> c = cc(1, 10, 10);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1, 0)));
+    for (int shard = 1; shard < 5; ++shard) {
+      assertTrue("Repeat should be constrained", c.constrained(sr(0, 1, shard)));
+    }
+    for (int shard = 0; shard < 4; ++shard) {
+      assertEquals("Should release the next one in", sr(0, 1, shard + 1), c.notifyReleased(sr(0, 1, shard)).iterator().next());
+    }
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+
+  @Test
+  public void adoptAndRemove() {
+    CompositeConstrainer<ShardRelocation<Integer, Integer>> c = cc(1, 10, 10);
+    c.adopt(sr(0, 1, 0));
+    assertTrue("Adopted moves count", c.constrained(sr(0, 2, 1)));
+    assertTrue("Adopted moves count", c.constrained(sr(3, 1, 2)));
+    assertTrue("Should be able to remove what's constrained", c.remove(sr(0, 2, 1)));
+    assertFalse("Shouldn't remove twice", c.remove(sr(0, 2, 1)));
+    assertFalse("Shouldn't hold what was removed", c.contains(sr(0, 2, 1)));
+    Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(sr(0, 1, 0));
+    assertEquals("Should only release what is left", new Integer(1), new Integer(released.size()));
+    assertEquals("Should release the one I expect", sr(3, 1, 2), released.iterator().next());
+  }
+
+  /**
+   * Workers taking and forgetting moves through a ConstrainedQueue with node, rack and total limits.  No limit should
+   * ever be passed and every move should get out.
+   */
+  @Test(timeout = 60000)
+  public void stress() throws InterruptedException {
+    final int nodes = 16;
+    final int perNode = 2;
+    final int perRack = 3;
+    final int total = 10;
+    final int workers = 8;
+    final int moves = 50000;
+    ConstrainedQueue<ShardRelocation<Integer, Integer>> queue = new ConstrainedQueue<ShardRelocation<Integer, Integer>>(
+        cc(perNode, perRack, total), new LinkedBlockingQueue<ShardRelocation<Integer, Integer>>());
+    ConcurrentHashMap<Object, AtomicInteger> out = new ConcurrentHashMap<Object, AtomicInteger>();
+    AtomicInteger done = new AtomicInteger(0);
+    AtomicReference<String> failure = new AtomicReference<String>();
+    CountDownLatch finished = new CountDownLatch(workers);
+    Random rand = new Random(0);
+    for (int shard = 0; shard < moves; ++shard) {
+      queue.add(sr(rand.nextInt(nodes), rand.nextInt(nodes), shard));
+    }
+
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int w = 0; w < workers; ++w) {
+      threads.add(new Thread(() -> {
+        try {
+          while (done.get() < moves) {
+            ShardRelocation<Integer, Integer> move = queue.poll(10, TimeUnit.MILLISECONDS);
+            if (move == null) { continue; }
+            ArrayList<Object> keys = new ArrayList<Object>();
+            keys.add("node" + move.getFromNode());
+            if (!move.getFromNode().equals(move.getToNode())) { keys.add("node" + move.getToNode()); }
+            keys.add("rack" + rack(move.getFromNode()));
+            if (!rack(move.getFromNode()).equals(rack(move.getToNode()))) { keys.add("rack" + rack(move.getToNode())); }
+            keys.add("total");
+            for (Object key : keys) {
+              int limit = key.equals("total") ? total : key.toString().startsWith("node") ? perNode : perRack;
+              if (out.computeIfAbsent(key, (k) -> { return new AtomicInteger(0); }).incrementAndGet() > limit) {
+                failure.compareAndSet(null, "Too many out for " + key);
+              }
+            }
+            Thread.yield();
+            keys.forEach((key) -> { out.get(key).decrementAndGet(); });
+            queue.forget(move);
+            done.incrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          failure.compareAndSet(null, "Interrupted");
+        }
+        finished.countDown();
+      }));
+    }
+    threads.forEach((thread) -> { thread.start(); });
+
+    assertTrue("Every move should get out", finished.await(50, TimeUnit.SECONDS));
+    assertNull(failure.get(), failure.get());
+    assertTrue("Should be empty now", queue.isEmpty());
+  }
+}
@@ -0,0 +1,194 @@
+package org.shannon.ConstrainedQueue.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.shannon.ConstrainedQueue.ConcurrentCardinalityConstrainer;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.util.TestClass;
+
+public class ConcurrentCardinalityConstrainerTest extends TestClass {
+
+  @Test
+  public void constrainsPastMaxReleased() throws InterruptedException {
+    ConcurrentCardinalityConstrainer<Integer> c = new ConcurrentCardinalityConstrainer<Integer>(10, 2);
+    assertFalse("First entry shouldn't be constrained", c.constrained(0));
+    assertFalse("Second entry shouldn't be constrained", c.constrained(1));
+    assertTrue("Third entry should be constrained", c.constrained(2));
+    assertTrue("Fourth entry should be constrained", c.constrained(3));
+    assertEquals("Should hold so many", new Integer(2), new Integer(c.size()));
+    assertEquals("Should have room for so many more", new Integer(8), new Integer(c.remainingCapacity()));
+    Collection<Integer> released = c.notifyReleased(0);
+    assertEquals("Should release one", new Integer(1), new Integer(released.size()));
+    assertEquals("Should release the first held", new Integer(2), released.iterator().next());
+    assertEquals("Should release the next held", new Integer(3), c.notifyReleased(1).iterator().next());
+    assertTrue("Nothing left to release", c.notifyReleased(2).isEmpty());
+    assertTrue("Nothing left to release", c.notifyReleased(3).isEmpty());
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+
+  @Test
+  public void wrapsAround() throws InterruptedException {
+    ConcurrentCardinalityConstrainer<Integer> c = new ConcurrentCardinalityConstrainer<Integer>(3, 1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(0));
+    for (int i = 1; i < 100; ++i) {
+      assertTrue("Should be constrained", c.constrained(i));
+      assertEquals("Should release the one held", new Integer(i), c.notifyReleased(i - 1).iterator().next());
+    }
+    assertTrue("Nothing left to release", c.notifyReleased(99).isEmpty());
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+
+  @Test
+  public void removeAndContains() throws InterruptedException {
+    ConcurrentCardinalityConstrainer<Integer> c = new ConcurrentCardinalityConstrainer<Integer>(4, 1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(0));
+    assertTrue("Should be constrained", c.constrained(1));
+    assertTrue("Should be constrained", c.constrained(2));
+    assertFalse("Shouldn't hold what was released", c.contains(0));
+    assertTrue("Should hold what was constrained", c.contains(1));
+    assertTrue("Should be able to remove what's constrained", c.remove(1));
+    assertFalse("Shouldn't hold what was removed", c.contains(1));
+    assertFalse("Shouldn't remove twice", c.remove(1));
+    assertEquals("Should hold so many", new Integer(1), new Integer(c.size()));
+    assertEquals("Should skip what was removed", new Integer(2), c.notifyReleased(0).iterator().next());
+    //Removed items still take up room in the ring until they reach the front or are written over
+    assertTrue("Should be constrained", c.constrained(3));
+    assertTrue("Should be constrained", c.constrained(4));
+    assertTrue("Should be able to remove what's constrained", c.remove(3));
+    assertTrue("Should be constrained", c.constrained(5));
+    assertTrue("Should be constrained", c.constrained(6));
+    assertTrue("Should be constrained", c.constrained(7));
+    assertEquals("Should hold so many", new Integer(4), new Integer(c.size()));
+  }
+
+  @Test(timeout = 10000)
+  public void reusesRemovedRoomWhileTheFrontIsHeld() throws InterruptedException {
+    //A power of two, so the ring has no room to spare
+    ConcurrentCardinalityConstrainer<String> c = new ConcurrentCardinalityConstrainer<String>(2, 1);
+    assertFalse("First entry shouldn't be constrained", c.constrained("A"));
+    assertTrue("Should be constrained", c.constrained("B"));
+    assertTrue("Should be constrained", c.constrained("C"));
+    assertTrue("Should be able to remove what's constrained", c.remove("C"));
+    assertEquals("Should have room for one more", new Integer(1), new Integer(c.remainingCapacity()));
+    for (int i = 0; i < 10; ++i) {
+      assertTrue("Should take the room of what was removed", c.constrained("D" + i));
+      assertTrue("Should be able to remove what's constrained", c.remove("D" + i));
+    }
+    assertTrue("Should be constrained", c.constrained("E"));
+    assertEquals("Should release the front", "B", c.notifyReleased("A").iterator().next());
+    assertEquals("Should release the one that took the room", "E", c.notifyReleased("B").iterator().next());
+    assertTrue("Nothing left to release", c.notifyReleased("E").isEmpty());
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+
+  @Test
+  public void timesOutWhenFull() throws InterruptedException, TimeoutException {
+    ConcurrentCardinalityConstrainer<Integer> c = new ConcurrentCardinalityConstrainer<Integer>(1, 1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(0, 1, TimeUnit.MILLISECONDS));
+    assertTrue("Should be constrained", c.constrained(1, 1, TimeUnit.MILLISECONDS));
+    expectException("Should time out when full", TimeoutException.class
+        , () -> { c.constrained(2, 10, TimeUnit.MILLISECONDS); });
+    c.clear();
+    assertTrue("Should be empty after clear", c.isEmpty());
+    assertFalse("Should release after clear", c.constrained(2, 1, TimeUnit.MILLISECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void wakesWhoeverWaitsForRoom() throws InterruptedException {
+    ConcurrentCardinalityConstrainer<Integer> c = new ConcurrentCardinalityConstrainer<Integer>(1, 1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(0));
+    assertTrue("Should be constrained", c.constrained(1));
+    AtomicReference<String> timedOut = new AtomicReference<String>();
+    AtomicReference<Boolean> held = new AtomicReference<Boolean>();
+    Thread impatient = new Thread(() -> {
+      try {
+        c.constrained(2, 50, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        timedOut.set("timed out");
+      } catch (InterruptedException e) {
+        timedOut.set("interrupted");
+      }
+    });
+    Thread patient = new Thread(() -> {
+      try {
+        held.set(c.constrained(3));
+      } catch (InterruptedException e) {
+        held.set(false);
+      }
+    });
+    impatient.start();
+    while (impatient.getState() != Thread.State.TIMED_WAITING) { Thread.sleep(1); }
+    patient.start();
+    while (patient.getState() != Thread.State.WAITING) { Thread.sleep(1); }
+    impatient.join();
+    assertEquals("Should time out while full", "timed out", timedOut.get());
+    assertEquals("Should release the one held", new Integer(1), c.notifyReleased(0).iterator().next());
+    //The room goes to whoever is still waiting rather than the one that gave up
+    patient.join();
+    assertTrue("Should be held once there was room", held.get());
+    assertTrue("Should be held", c.contains(3));
+    assertFalse("Shouldn't hold what timed out", c.contains(2));
+  }
+
+  /**
+   * Many threads offering, polling and forgetting through a ConstrainedQueue.  No more than maxReleased should ever be
+   * out and everything offered should get out eventually.
+   */
+  @Test(timeout = 60000)
+  public void stress() throws InterruptedException {
+    final int maxReleased = 4;
+    final int threads = 8;
+    final int itemsPerThread = 50000;
+    ConstrainedQueue<Integer> queue = new ConstrainedQueue<Integer>(
+        new ConcurrentCardinalityConstrainer<Integer>(threads * itemsPerThread, maxReleased), new LinkedBlockingQueue<Integer>());
+    AtomicInteger out = new AtomicInteger(0);
+    AtomicInteger done = new AtomicInteger(0);
+    AtomicReference<String> failure = new AtomicReference<String>();
+    CountDownLatch finished = new CountDownLatch(threads);
+    ArrayList<Thread> workers = new ArrayList<Thread>();
+    for (int w = 0; w < threads; ++w) {
+      final int worker = w;
+      workers.add(new Thread(() -> {
+        try {
+          for (int i = 0; i < itemsPerThread; ++i) {
+            queue.offer(worker * itemsPerThread + i);
+            Integer item = queue.poll();
+            if (item != null) {
+              if (out.incrementAndGet() > maxReleased) {
+                failure.compareAndSet(null, "Too many out at once");
+              }
+              out.decrementAndGet();
+              queue.forget(item);
+              done.incrementAndGet();
+            }
+          }
+          while (done.get() < threads * itemsPerThread) {
+            Integer item = queue.poll(10, TimeUnit.MILLISECONDS);
+            if (item != null) {
+              queue.forget(item);
+              done.incrementAndGet();
+            }
+          }
+        } catch (InterruptedException e) {
+          failure.compareAndSet(null, "Interrupted");
+        }
+        finished.countDown();
+      }));
+    }
+    workers.forEach((thread) -> { thread.start(); });
+
+    assertTrue("Everything should get out", finished.await(50, TimeUnit.SECONDS));
+    assertNull(failure.get(), failure.get());
+    assertTrue("Should be empty now", queue.isEmpty());
+  }
+}
@@ -0,0 +1,225 @@
+package org.shannon.ConstrainedQueue.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.shannon.ConstrainedQueue.ConcurrentShardRelocationConstrainer;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+
+public class ConcurrentShardRelocationConstrainerTest {
+
+  private ConcurrentShardRelocationConstrainer<Integer, Integer> csrc(int size) {
+    return new ConcurrentShardRelocationConstrainer<Integer, Integer>(size);
+  }
+
+  private ShardRelocation<Integer, Integer> sr(Integer from, Integer to) {
+    return new ShardRelocation<Integer, Integer>(from, to, 0);
+  }
+
+  @Test
+  public void oneNodeRepeatedConstrained() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 2)));
+    c.clear();
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(2, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(1, 0)));
+    c.clear();
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(null, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(null, 2)));
+    c.clear();
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertFalse("Non-repeat shouldn't be constrained", c.constrained(sr(2, 4)));
+  }
+
+  @Test
+  public void notifyReleased() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 2)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(1, 3)));
+    assertFalse("Constrained entries don't constrain others", c.constrained(sr(3, 2)));
+    c.notifyReleased(sr(0, 1));
+    Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(sr(3, 2));
+    assertEquals("Should release so many", new Integer(2), new Integer(released.size()));
+    assertTrue("Should release the one I expect", released.remove(sr(0, 2)));
+    assertTrue("Should release the one I expect", released.remove(sr(1, 3)));
+
+    //a depends on b and c.  b gets released, but c is still out
+    c.clear();
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(4, 2)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 2)));
+    released = c.notifyReleased(sr(0, 1));
+    assertEquals("Should release none", new Integer(0), new Integer(released.size()));
+    released = c.notifyReleased(sr(4, 2));
+    assertEquals("Should release so many", new Integer(1), new Integer(released.size()));
+    assertTrue("Should release the one I expect", released.remove(sr(0, 2)));
+  }
+
+  @Test
+  public void releasesInOrder() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(new ShardRelocation<Integer, Integer>(0, 1, 0)));
+    for (int shard = 1; shard < 5; ++shard) {
+      assertTrue("Repeat should be constrained", c.constrained(new ShardRelocation<Integer, Integer>(0, 1, shard)));
+    }
+    for (int shard = 0; shard < 4; ++shard) {
+      Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(new ShardRelocation<Integer, Integer>(0, 1, shard));
+      assertEquals("Should release the next one in", new ShardRelocation<Integer, Integer>(0, 1, shard + 1), released.iterator().next());
+    }
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+
+  @Test
+  public void releasesMostUrgentFirst() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(new ShardRelocation<Integer, Integer>(0, 1, 0)));
+    assertTrue("Repeat should be constrained", c.constrained(new ShardRelocation<Integer, Integer>(0, 1, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(new ShardRelocation<Integer, Integer>(null, 1, 2)));
+    Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(new ShardRelocation<Integer, Integer>(0, 1, 0));
+    assertEquals("Should only release the orphan", 1, released.size());
+    assertEquals("Should release the orphan", new ShardRelocation<Integer, Integer>(null, 1, 2), released.iterator().next());
+    assertTrue("Balancing should still wait", c.contains(new ShardRelocation<Integer, Integer>(0, 1, 1)));
+  }
+
+  @Test
+  public void waitsBehindMoreUrgent() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(2);
+    assertFalse("Should have room", c.constrained(new ShardRelocation<Integer, Integer>(null, 1, 0)));
+    assertFalse("Should have room", c.constrained(new ShardRelocation<Integer, Integer>(null, 1, 1)));
+    assertFalse("Should have room", c.constrained(new ShardRelocation<Integer, Integer>(2, 3, 2)));
+    assertTrue("No more room for orphans", c.constrained(new ShardRelocation<Integer, Integer>(null, 2, 3)));
+    assertTrue("Should wait behind the orphan", c.constrained(new ShardRelocation<Integer, Integer>(4, 2, 4)));
+    Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(new ShardRelocation<Integer, Integer>(null, 1, 0));
+    assertEquals("Should only release the orphan", 1, released.size());
+    assertEquals("Should release the orphan", new ShardRelocation<Integer, Integer>(null, 2, 3), released.iterator().next());
+    released = c.notifyReleased(new ShardRelocation<Integer, Integer>(2, 3, 2));
+    assertEquals("Should release what waited behind it", new ShardRelocation<Integer, Integer>(4, 2, 4), released.iterator().next());
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+
+  @Test
+  public void adopt() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    c.adopt(sr(0, 1));
+    assertTrue("Adopted relocations count", c.constrained(sr(0, 2)));
+    assertEquals("Should release the one waiting", new Integer(1), new Integer(c.notifyReleased(sr(0, 1)).size()));
+  }
+
+  @Test
+  public void remove() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertFalse("Shouldn't have anything that can be removed", c.remove(sr(0, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 2)));
+    assertFalse("Still shouldn't be able to remove first in", c.remove(sr(0, 1)));
+    assertTrue("Should be able to remove what's constrained.", c.remove(sr(0, 2)));
+    assertTrue("Should be empty now", c.isEmpty());
+    assertEquals("Should release none", new Integer(0), new Integer(c.notifyReleased(sr(0, 1)).size()));
+  }
+
+  @Test
+  public void size() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertEquals("Should be empty", new Integer(0), new Integer(c.size()));
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertEquals("Should still be empty", new Integer(0), new Integer(c.size()));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 2)));
+    assertEquals("Should have so many", new Integer(1), new Integer(c.size()));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 3)));
+    assertEquals("Should have so many", new Integer(2), new Integer(c.size()));
+    assertEquals("Should release one", new Integer(1), new Integer(c.notifyReleased(sr(0, 1)).size()));
+    assertEquals("Should have so many", new Integer(1), new Integer(c.size()));
+    assertEquals("Should release one", new Integer(1), new Integer(c.notifyReleased(sr(0, 2)).size()));
+    assertEquals("Should still be empty", new Integer(0), new Integer(c.size()));
+  }
+
+  @Test
+  public void contains() {
+    ConcurrentShardRelocationConstrainer<Integer, Integer> c = csrc(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(sr(0, 1)));
+    assertFalse("Shouldn't have unconstrained", c.contains(sr(0, 1)));
+    assertTrue("Repeat should be constrained", c.constrained(sr(0, 2)));
+    assertTrue("Should be have what's constrained.", c.contains(sr(0, 2)));
+  }
+
+  /**
+   * Many threads adding, taking and forgetting moves between a few nodes at once.  No node should ever have more than
+   * maxThreadsPerNode moves out and every move should get out eventually.
+   */
+  @Test(timeout = 60000)
+  public void stress() throws InterruptedException {
+    final int nodes = 8;
+    final int maxThreadsPerNode = 2;
+    final int producers = 4;
+    final int workers = 8;
+    final int movesPerProducer = 20000;
+    ConstrainedQueue<ShardRelocation<Integer, Integer>> queue = new ConstrainedQueue<ShardRelocation<Integer, Integer>>(
+        csrc(maxThreadsPerNode), new LinkedBlockingQueue<ShardRelocation<Integer, Integer>>());
+    ConcurrentHashMap<Integer, AtomicInteger> active = new ConcurrentHashMap<Integer, AtomicInteger>();
+    for (int node = 0; node < nodes; ++node) {
+      active.put(node, new AtomicInteger(0));
+    }
+    AtomicInteger done = new AtomicInteger(0);
+    AtomicReference<String> failure = new AtomicReference<String>();
+    CountDownLatch finished = new CountDownLatch(producers + workers);
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+
+    for (int p = 0; p < producers; ++p) {
+      final int producer = p;
+      threads.add(new Thread(() -> {
+        Random rand = new Random(producer);
+        for (int i = 0; i < movesPerProducer; ++i) {
+          int from = rand.nextInt(nodes);
+          int to = rand.nextInt(nodes);
+          queue.add(new ShardRelocation<Integer, Integer>(from, to, producer * movesPerProducer + i));
+        }
+        finished.countDown();
+      }));
+    }
+    for (int w = 0; w < workers; ++w) {
+      threads.add(new Thread(() -> {
+        try {
+          while (done.get() < producers * movesPerProducer) {
+            ShardRelocation<Integer, Integer> move = queue.poll(10, TimeUnit.MILLISECONDS);
+            if (move == null) { continue; }
+            int fromCount = active.get(move.getFromNode()).incrementAndGet();
+            int toCount = move.getFromNode().equals(move.getToNode()) ? fromCount
+                : active.get(move.getToNode()).incrementAndGet();
+            if (fromCount > maxThreadsPerNode || toCount > maxThreadsPerNode) {
+              failure.compareAndSet(null, "Too many moves out for " + move);
+            }
+            Thread.yield();
+            active.get(move.getFromNode()).decrementAndGet();
+            if (!move.getFromNode().equals(move.getToNode())) {
+              active.get(move.getToNode()).decrementAndGet();
+            }
+            queue.forget(move);
+            done.incrementAndGet();
+          }
+        } catch (InterruptedException e) {
+          failure.compareAndSet(null, "Interrupted");
+        }
+        finished.countDown();
+      }));
+    }
+    threads.forEach((thread) -> { thread.start(); });
+
+    assertTrue("Every move should get out", finished.await(50, TimeUnit.SECONDS));
+    assertNull(failure.get(), failure.get());
+    assertEquals("Should have made every move", producers * movesPerProducer, done.get());
+    assertTrue("Should be empty now", queue.isEmpty());
+  }
+}
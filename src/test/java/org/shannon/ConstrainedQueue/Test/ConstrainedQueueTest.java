@@ -389,5 +389,28 @@ public class ConstrainedQueueTest extends TestClass {
     assertNull("Should return null when empty", q.poll());
     q.close();
   }
+  
+  @Test
+  public void backedUpItemsMoveInWhenTaken() {
+    ConstrainedQueue<Integer> q = new ConstrainedQueue<Integer>(new CardinalityConstrainer<Integer>(4, 2)
+        , new ArrayBlockingQueue<Integer>(1));
+    assertTrue("Should be able to offer.", q.offer(0));
+    assertTrue("Should be able to offer.", q.offer(1));
+    assertEquals("Should hold both", new Integer(2), new Integer(q.size()));
+    assertEquals("Should get back what I put in", new Integer(0), q.poll());
+    assertEquals("Backed up item should be there right away", new Integer(1), q.poll());
+    q.forget(0);
+    q.forget(1);
+    assertTrue("Queue should be empty.", q.isEmpty());
+    q.close();
+  }
+  
+  @Test
+  public void queuesDoNotStartThreads() {
+    int before = Thread.activeCount();
+    ArrayList<ConstrainedQueue<Integer>> queues = new ArrayList<ConstrainedQueue<Integer>>();
+    doNTimes(100, () -> { queues.add(smallQueue()); });
+    assertTrue("Should not start a thread per queue", Thread.activeCount() < before + 100);
+  }
 
 }
@@ -0,0 +1,109 @@
+package org.shannon.ConstrainedQueue.Test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.shannon.ConstrainedQueue.CardinalityConstrainer;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ConstrainedQueue.LeveledBlockingQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.util.TestClass;
+
+public class LeveledBlockingQueueTest extends TestClass {
+
+  //Level by the tens digit
+  private LeveledBlockingQueue<Integer> lbq() {
+    return new LeveledBlockingQueue<Integer>(3, (i) -> { return i / 10; });
+  }
+
+  @Test
+  public void lowerLevelsFirst() {
+    LeveledBlockingQueue<Integer> q = lbq();
+    q.addAll(Arrays.asList(21, 10, 1, 22, 11, 2));
+    assertEquals("Should count every level", 6, q.size());
+    assertEquals("Should peek the lowest level", new Integer(1), q.peek());
+    ArrayList<Integer> out = new ArrayList<Integer>();
+    Integer i;
+    while((i = q.poll()) != null) {
+      out.add(i);
+    }
+    assertEquals("Should go out by level, then first in first out", Arrays.asList(1, 2, 10, 11, 21, 22), out);
+    assertTrue("Should be empty now", q.isEmpty());
+  }
+
+  @Test
+  public void drainsInOrder() {
+    LeveledBlockingQueue<Integer> q = lbq();
+    q.addAll(Arrays.asList(21, 10, 1, 22));
+    ArrayList<Integer> out = new ArrayList<Integer>();
+    assertEquals("Should drain so many", 2, q.drainTo(out, 2));
+    assertEquals("Should drain the lowest levels", Arrays.asList(1, 10), out);
+    assertEquals("Should drain the rest", 2, q.drainTo(out));
+    assertEquals("Should drain the rest", Arrays.asList(1, 10, 21, 22), out);
+  }
+
+  @Test
+  public void removeAndContains() {
+    LeveledBlockingQueue<Integer> q = lbq();
+    q.addAll(Arrays.asList(21, 10, 1));
+    assertTrue("Should have what was added", q.contains(10));
+    assertTrue("Should remove what was added", q.remove(10));
+    assertFalse("Shouldn't have what was removed", q.contains(10));
+    assertFalse("Shouldn't remove twice", q.remove(10));
+    assertEquals("Should count what's left", 2, q.size());
+    assertEquals("Should iterate by level", Arrays.asList(1, 21), new ArrayList<Integer>(q));
+  }
+
+  @Test
+  public void rejectsUnknownLevels() {
+    LeveledBlockingQueue<Integer> q = lbq();
+    expectException("No level for 30", IllegalArgumentException.class, () -> { q.add(30); });
+    expectException("Must have at least one level", IllegalArgumentException.class
+        , () -> { new LeveledBlockingQueue<Integer>(0, (i) -> { return 0; }); });
+  }
+
+  @Test(timeout = 10000)
+  public void takeWaitsForAnything() throws InterruptedException {
+    LeveledBlockingQueue<Integer> q = lbq();
+    assertNull("Should time out when empty", q.poll(10, TimeUnit.MILLISECONDS));
+    AtomicInteger taken = new AtomicInteger(-1);
+    CountDownLatch done = new CountDownLatch(1);
+    new Thread(() -> {
+      try {
+        taken.set(q.take());
+      } catch (InterruptedException e) {
+        //Leaves taken at -1
+      }
+      done.countDown();
+    }).start();
+    Thread.sleep(50);
+    q.put(21);
+    assertTrue("Should take once something is added", done.await(5, TimeUnit.SECONDS));
+    assertEquals("Should take what was added", 21, taken.get());
+  }
+
+  @Test
+  public void urgentRelocationsGoFirst() throws InterruptedException {
+    ConstrainedQueue<ShardRelocation<Integer, Integer>> q = new ConstrainedQueue<ShardRelocation<Integer, Integer>>(
+        new CardinalityConstrainer<ShardRelocation<Integer, Integer>>(10, 10)
+        , new LeveledBlockingQueue<ShardRelocation<Integer, Integer>>(ShardRelocation.Priority.values().length
+            , (move) -> { return move.getPriority().ordinal(); }));
+    ShardRelocation<Integer, Integer> balancing = new ShardRelocation<Integer, Integer>(0, 1, 0);
+    ShardRelocation<Integer, Integer> splitBrain = new ShardRelocation<Integer, Integer>(1, null, 2
+        , ShardRelocation.Priority.SPLIT_BRAIN);
+    ShardRelocation<Integer, Integer> orphaned = new ShardRelocation<Integer, Integer>(null, 1, 3);
+    assertEquals("Should default to balancing with a fromNode", ShardRelocation.Priority.BALANCING, balancing.getPriority());
+    assertEquals("Should default to orphaned without a fromNode", ShardRelocation.Priority.ORPHANED, orphaned.getPriority());
+    assertEquals("Priority isn't part of equality", new ShardRelocation<Integer, Integer>(1, null, 2), splitBrain);
+    q.addAll(Arrays.asList(balancing, splitBrain, orphaned));
+    assertEquals("Should hand out orphaned shards first", orphaned, q.take());
+    assertEquals("Should hand out split brains next", splitBrain, q.take());
+    assertEquals("Should hand out balancing last", balancing, q.take());
+  }
+}
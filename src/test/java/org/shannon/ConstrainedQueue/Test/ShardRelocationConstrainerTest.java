@@ -102,6 +102,21 @@ public class ShardRelocationConstrainerTest {
     assertTrue("Should release the one I expect", released.remove(sr(0, 2)));
   }
   
+  @Test
+  public void releasesInOrder() {
+    ShardRelocationConstrainer<Integer, Integer> c = src(1);
+    assertFalse("First entry shouldn't be constrained", c.constrained(new ShardRelocation<Integer, Integer>(0, 1, 0)));
+    for (int shard = 1; shard < 5; ++shard) {
+      assertTrue("Repeat should be constrained", c.constrained(new ShardRelocation<Integer, Integer>(0, 1, shard)));
+    }
+    for (int shard = 0; shard < 4; ++shard) {
+      Collection<ShardRelocation<Integer, Integer>> released = c.notifyReleased(new ShardRelocation<Integer, Integer>(0, 1, shard));
+      assertEquals("Should release so many", new Integer(1), new Integer(released.size()));
+      assertEquals("Should release the next one in", new ShardRelocation<Integer, Integer>(0, 1, shard + 1), released.iterator().next());
+    }
+    assertTrue("Should be empty now", c.isEmpty());
+  }
+  
   @Test
   public void clear() {
     ShardRelocationConstrainer<Integer, Integer> c = src(1);
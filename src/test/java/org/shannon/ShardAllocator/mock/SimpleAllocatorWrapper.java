@@ -6,17 +6,14 @@ import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.ImmutableSet;
 import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
+import org.shannon.ShardAllocator.LoadIndex;
 import org.shannon.ShardAllocator.ShardRelocation;
 import org.shannon.ShardAllocator.Impl.SimpleAllocator;
 
-import com.google.common.collect.Sets;
-import com.google.common.collect.TreeMultimap;
-
 public class SimpleAllocatorWrapper implements Closeable {
   private final SimpleAllocator<Integer, Integer> allocator;
   public HashSetValuedHashMap<Integer, Integer> dist;
@@ -53,11 +50,11 @@ public class SimpleAllocatorWrapper implements Closeable {
   }
   
   private Collection<ShardRelocation<Integer, Integer>> resolveSplit(Integer shard, HashSet<Integer> myNodes
-      , TreeMultimap<Integer, Integer> counts) {
+      , LoadIndex<Integer> counts) {
     ArrayList<ShardRelocation<Integer, Integer>> moves = new ArrayList<ShardRelocation<Integer, Integer>>();
     int movesToGo = myNodes.size() - 1;
-    for (Collection<Integer> mostNodes : counts.asMap().descendingMap().values()) {
-      for (Integer node : Sets.union((Set<Integer>)(mostNodes), myNodes)) {
+    for (Integer node : counts.descending()) {
+      if (myNodes.contains(node)) {
         moves.add(new ShardRelocation<Integer, Integer>(node, null, shard));
         if (--movesToGo == 0) {
           return moves;
@@ -92,6 +89,34 @@ public class SimpleAllocatorWrapper implements Closeable {
     allocator.notifyDistributionChange(dist.asMap());
   }
 
+  public void addShards(Collection<Integer> added) {
+    shards = new HashSet<Integer>(shards);
+    shards.addAll(added);
+    allocator.addShards(added);
+  }
+
+  public void removeShards(Collection<Integer> removed) {
+    shards = new HashSet<Integer>(shards);
+    shards.removeAll(removed);
+    allocator.removeShards(removed);
+  }
+
+  public void addNodes(Collection<Integer> added) {
+    nodes = new HashSet<Integer>(nodes);
+    nodes.addAll(added);
+    allocator.addNodes(added);
+  }
+
+  public void removeNodes(Collection<Integer> removed) {
+    nodes = new HashSet<Integer>(nodes);
+    nodes.removeAll(removed);
+    synchronized(sync) {
+      //Nodes that leave let go of everything
+      removed.forEach((node) -> { dist.remove(node); });
+    }
+    allocator.removeNodes(removed);
+  }
+
   public void awaitRebalance() {
     allocator.awaitRebalance();
   }
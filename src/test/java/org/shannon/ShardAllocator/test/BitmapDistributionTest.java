@@ -0,0 +1,142 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+import static org.shannon.ShardAllocator.test.Fixtures.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+import org.shannon.ShardAllocator.Impl.BitmapDistribution;
+import org.shannon.ShardAllocator.Impl.IntDistribution;
+import org.shannon.ShardAllocator.Impl.IntMoves;
+import org.shannon.ShardAllocator.Impl.IntPlanner;
+import org.shannon.ShardAllocator.Impl.ShardBitmap;
+import org.shannon.util.TestClass;
+
+public class BitmapDistributionTest extends TestClass {
+
+  private static BitSet toBitSet(ShardBitmap bitmap) {
+    BitSet retval = new BitSet();
+    bitmap.forEach((id) -> {
+      retval.set(id);
+      return true;
+    });
+    return retval;
+  }
+
+  //A sparse chunk, a dense one and ids either side of a chunk boundary
+  private static BitSet randomIds(Random random) {
+    BitSet retval = new BitSet();
+    for (int i = 0; i < 100; ++i) {
+      retval.set(random.nextInt(65536));
+    }
+    for (int i = 0; i < 30000; ++i) {
+      retval.set(65536 + random.nextInt(65536));
+    }
+    for (int i = 0; i < 50; ++i) {
+      retval.set(3 * 65536 - 25 + random.nextInt(50));
+    }
+    return retval;
+  }
+
+  @Test
+  public void bitmapMatchesBitSet() {
+    Random random = new Random(17);
+    BitSet a = randomIds(random);
+    BitSet b = randomIds(random);
+    ShardBitmap bitmapA = ShardBitmap.of(a);
+    ShardBitmap bitmapB = new ShardBitmap();
+    b.stream().forEach((id) -> { assertTrue("Should be new", bitmapB.add(id)); });
+    assertEquals("Should hold the same", a, toBitSet(bitmapA));
+    assertEquals("Should count the same", b.cardinality(), bitmapB.cardinality());
+
+    BitSet and = (BitSet) a.clone();
+    and.and(b);
+    assertEquals("And should match", and, toBitSet(bitmapA.and(bitmapB)));
+    BitSet or = (BitSet) a.clone();
+    or.or(b);
+    assertEquals("Or should match", or, toBitSet(bitmapA.or(bitmapB)));
+    BitSet andNot = (BitSet) a.clone();
+    andNot.andNot(b);
+    assertEquals("And not should match", andNot, toBitSet(bitmapA.andNot(bitmapB)));
+    assertEquals("Operands should be left alone", a, toBitSet(bitmapA));
+
+    //Down from a dense chunk to a sparse one to nothing
+    b.stream().forEach((id) -> { assertTrue("Should have been there", bitmapB.remove(id)); });
+    assertTrue("Should be empty", bitmapB.isEmpty());
+    assertFalse("Should be gone", bitmapB.contains(b.nextSetBit(0)));
+    expectException("No negative ids", IllegalArgumentException.class, () -> { bitmapB.add(-1); });
+  }
+
+  @Test
+  public void plansLikeIntDistribution() {
+    Random random = new Random(42);
+    int[] owners = new int[5000];
+    for (int shard = 0; shard < owners.length; ++shard) {
+      owners[shard] = random.nextInt(10) == 0 ? NO_NODE : random.nextInt(6);
+    }
+    BitSet nodes = ids(0, 4);
+    BitSet shards = ids(0, 4499);
+    shards.set(6000, 6200);
+    IntDistribution ints = new IntDistribution();
+    BitmapDistribution bitmaps = new BitmapDistribution();
+    for (int shard = 0; shard < owners.length; ++shard) {
+      if (owners[shard] != NO_NODE) {
+        ints.claim(owners[shard], shard);
+        bitmaps.claim(owners[shard], shard);
+      }
+    }
+    IntMoves intMoves = new IntPlanner(nodes, shards, ints, (shard, claimants, counts) -> { return NO_NODE; }
+        , (node) -> { return 1; }).determineMoves();
+    IntMoves bitmapMoves = new IntPlanner(nodes, shards, bitmaps, (shard, claimants, counts) -> { return NO_NODE; }
+        , (node) -> { return 1; }).determineMoves();
+    assertEquals("Should move as little as each other", intMoves.size(), bitmapMoves.size());
+
+    int[] after = Arrays.copyOf(owners, 6200);
+    Arrays.fill(after, owners.length, after.length, NO_NODE);
+    for (int shard = 0; shard < owners.length; ++shard) {
+      //The leaver let go of everything
+      if (after[shard] == 5) { after[shard] = NO_NODE; }
+    }
+    apply(bitmapMoves, after);
+    for (int shard = 0; shard < after.length; ++shard) {
+      assertEquals("Only shards still around should be owned", shards.get(shard), after[shard] != NO_NODE);
+    }
+    for (int count : counts(after, 5)) {
+      assertEquals("Should be even", 940, count);
+    }
+  }
+
+  @Test
+  public void splitBrainsAreWhatNodesShare() {
+    BitmapDistribution dist = new BitmapDistribution();
+    for (int shard = 0; shard < 100; ++shard) {
+      dist.claim(shard % 2, shard);
+    }
+    dist.claim(1, 4);
+    dist.claim(2, 4);
+    dist.claim(2, 7);
+    //Removed, so just let go of rather than resolved
+    dist.claim(2, 150);
+    dist.claim(0, 150);
+    ArrayList<Integer> asked = new ArrayList<Integer>();
+    IntPlanner planner = new IntPlanner(ids(0, 2), ids(0, 99), dist
+        , (shard, claimants, counts) -> {
+          asked.add(shard);
+          if (shard == 4) {
+            assertArrayEquals("Every claimant, owner first", new int[] { 0, 1, 2 }, claimants);
+          } else {
+            assertArrayEquals("Every claimant, owner first", new int[] { 1, 2 }, claimants);
+          }
+          return claimants[claimants.length - 1];
+        }, (node) -> { return 1; });
+    IntMoves moves = planner.determineMoves();
+    assertEquals("Should ask about each split brain", Arrays.asList(4, 7), asked);
+    assertTrue("Should say so", planner.resolvedSplitBrain());
+    assertEquals("Removed shard let go by both, and the losers of each split brain", 5, moves.size());
+  }
+}
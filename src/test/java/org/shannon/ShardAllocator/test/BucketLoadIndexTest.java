@@ -0,0 +1,143 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+import org.shannon.ShardAllocator.Impl.BucketLoadIndex;
+import org.shannon.util.TestClass;
+
+public class BucketLoadIndexTest extends TestClass {
+
+  private ArrayList<Integer> list(Iterable<Integer> iterable) {
+    ArrayList<Integer> retval = new ArrayList<Integer>();
+    iterable.forEach(retval::add);
+    return retval;
+  }
+
+  @Test
+  public void emptyIndexHasNoEnds() {
+    BucketLoadIndex<Integer> index = new BucketLoadIndex<Integer>();
+    assertEquals("Should be empty", 0, index.size());
+    assertNull("Should have no least", index.least());
+    assertNull("Should have no most", index.most());
+    assertTrue("Should iterate nothing", list(index.ascending()).isEmpty());
+    assertTrue("Should iterate nothing", list(index.descending()).isEmpty());
+  }
+
+  @Test
+  public void tracksLeastAndMost() {
+    BucketLoadIndex<Integer> index = new BucketLoadIndex<Integer>();
+    index.add(0, 3);
+    index.add(1, 1);
+    index.add(2, 5);
+    assertEquals("Should have the least", new Integer(1), index.least());
+    assertEquals("Should have the most", new Integer(2), index.most());
+    assertEquals("Should have the min", 1, index.minLoad());
+    assertEquals("Should have the max", 5, index.maxLoad());
+    index.decrement(2);
+    index.decrement(2);
+    index.decrement(2);
+    index.increment(1);
+    index.increment(1);
+    index.increment(1);
+    assertEquals("Should have the new least", new Integer(2), index.least());
+    assertEquals("Should have the new most", new Integer(1), index.most());
+    assertEquals("Should have the load", 3, index.load(0));
+  }
+
+  @Test
+  public void removeMovesTheEnds() {
+    BucketLoadIndex<Integer> index = new BucketLoadIndex<Integer>();
+    index.add(0, 0);
+    index.add(1, 10);
+    index.add(2, 20);
+    assertEquals("Should give back the load", 0, index.remove(0));
+    assertEquals("Should have the new min", 10, index.minLoad());
+    assertEquals("Should give back the load", 20, index.remove(2));
+    assertEquals("Should have the new max", 10, index.maxLoad());
+    assertFalse("Should have forgotten", index.contains(2));
+    index.add(2, 4);
+    assertEquals("Should reuse what was removed", new Integer(2), index.least());
+    expectException("Should not index twice", IllegalArgumentException.class, () -> { index.add(1, 0); });
+    expectException("Should not know removed nodes", IllegalArgumentException.class, () -> { index.load(0); });
+  }
+
+  @Test
+  public void handlesNegativeLoads() {
+    BucketLoadIndex<Integer> index = new BucketLoadIndex<Integer>();
+    index.add(0, 0);
+    index.add(1, -40);
+    index.add(2, 100);
+    index.shift(0, -100);
+    assertEquals("Should have the least", new Integer(0), index.least());
+    assertEquals("Should have the min", -100, index.minLoad());
+    assertEquals("Should iterate in order", Arrays.asList(0, 1, 2), list(index.ascending()));
+    assertEquals("Should iterate in order", Arrays.asList(2, 1, 0), list(index.descending()));
+  }
+
+  @Test
+  public void shiftsEveryLoad() {
+    BucketLoadIndex<Integer> index = new BucketLoadIndex<Integer>();
+    index.add(0, 1);
+    index.add(1, 3);
+    index.shiftAll(-5);
+    assertEquals("Should shift the load", -4, index.load(0));
+    assertEquals("Should shift the min", -4, index.minLoad());
+    assertEquals("Should shift the max", -2, index.maxLoad());
+    index.add(2, 0);
+    assertEquals("Should add after the shift", new Integer(2), index.most());
+    assertEquals("Should shift from the shifted load", -1, index.increment(1));
+    assertEquals("Should give back the shifted load", 0, index.remove(2));
+    assertEquals("Should keep the order", Arrays.asList(0, 1), list(index.ascending()));
+  }
+
+  @Test
+  public void agreesWithAMap() {
+    Random rand = new Random(0);
+    BucketLoadIndex<Integer> index = new BucketLoadIndex<Integer>(2);
+    HashMap<Integer, Integer> loads = new HashMap<Integer, Integer>();
+    for (int i = 0; i < 10000; ++i) {
+      int node = rand.nextInt(50);
+      if (!loads.containsKey(node)) {
+        int load = rand.nextInt(20);
+        index.add(node, load);
+        loads.put(node, load);
+      } else {
+        switch(rand.nextInt(5)) {
+          case 0:
+            assertEquals("Should remove what I put in", loads.remove(node).intValue(), index.remove(node));
+            break;
+          case 1:
+            loads.put(node, index.increment(node));
+            break;
+          case 2:
+            int delta = rand.nextInt(5) - 2;
+            index.shiftAll(delta);
+            loads.replaceAll((key, load) -> { return load + delta; });
+            break;
+          default:
+            loads.put(node, index.decrement(node));
+            break;
+        }
+      }
+      assertEquals("Should be the same size", loads.size(), index.size());
+      if (!loads.isEmpty()) {
+        assertEquals("Should have the min", Collections.min(loads.values()).intValue(), index.minLoad());
+        assertEquals("Should have the max", Collections.max(loads.values()).intValue(), index.maxLoad());
+        assertEquals("Least should have the min", index.minLoad(), loads.get(index.least()).intValue());
+        assertEquals("Most should have the max", index.maxLoad(), loads.get(index.most()).intValue());
+        ArrayList<Integer> ascending = list(index.ascending());
+        assertEquals("Should iterate everything", loads.size(), ascending.size());
+        for (int j = 1; j < ascending.size(); ++j) {
+          assertTrue("Should iterate in order", loads.get(ascending.get(j - 1)) <= loads.get(ascending.get(j)));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.Impl.IntDistribution;
+import org.shannon.ShardAllocator.Impl.IntMoves;
+
+/**
+ * Node and shard ids and distributions the allocator tests build their clusters from.
+ *
+ * @author Shannon
+ */
+final class Fixtures {
+  private Fixtures() { }
+
+  static HashSet<Integer> integers(int from, int to) {
+    HashSet<Integer> retval = new HashSet<Integer>();
+    for(int i = from; i <= to; ++i) {
+      retval.add(i);
+    }
+    return retval;
+  }
+
+  static BitSet ids(int from, int to) {
+    BitSet retval = new BitSet();
+    retval.set(from, to + 1);
+    return retval;
+  }
+
+  //What each node says it has
+  static HashMap<Integer, Collection<Integer>> discover(HashSetValuedHashMap<Integer, Integer> dist) {
+    HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+    dist.asMap().forEach((node, owned) -> { retval.put(node, new ArrayList<Integer>(owned)); });
+    return retval;
+  }
+
+  static void apply(ShardRelocation<Integer, Integer> move, HashSetValuedHashMap<Integer, Integer> dist) {
+    if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+    if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+  }
+
+  //An owner per shard, NO_NODE when nobody has it
+  static int[] unowned(int shards) {
+    int[] retval = new int[shards];
+    Arrays.fill(retval, NO_NODE);
+    return retval;
+  }
+
+  static IntDistribution distribution(int[] owners) {
+    IntDistribution retval = new IntDistribution();
+    for (int shard = 0; shard < owners.length; ++shard) {
+      if (owners[shard] != NO_NODE) { retval.claim(owners[shard], shard); }
+    }
+    return retval;
+  }
+
+  static int[] counts(int[] owners, int nodes) {
+    int[] retval = new int[nodes];
+    for (int owner : owners) {
+      if (owner != NO_NODE) { ++retval[owner]; }
+    }
+    return retval;
+  }
+
+  static void apply(IntMoves moves, int[] owners) {
+    for (int i = 0; i < moves.size(); ++i) {
+      owners[moves.shard(i)] = moves.toNode(i);
+    }
+  }
+}
@@ -0,0 +1,232 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+import static org.shannon.ShardAllocator.IntShardRelocator.NO_NODE;
+import static org.shannon.ShardAllocator.test.Fixtures.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.shannon.ShardAllocator.Impl.IntDistribution;
+import org.shannon.ShardAllocator.Impl.IntMoves;
+import org.shannon.ShardAllocator.Impl.IntPlanner;
+import org.shannon.ShardAllocator.Impl.IntShardAllocator;
+import org.shannon.util.TestClass;
+
+public class IntShardAllocatorTest extends TestClass {
+
+  private static IntMoves plan(BitSet nodes, BitSet shards, IntDistribution dist) {
+    return new IntPlanner(nodes, shards, dist, (shard, claimants, counts) -> { return claimants[0]; }
+        , (node) -> { return 1; }).determineMoves();
+  }
+
+  @Test
+  public void constructorValidation() {
+    expectException("Must have a relocator", NullPointerException.class
+        , () -> {
+          new IntShardAllocator.Builder()
+            .nodes(ids(0, 1))
+            .shards(ids(0, 1))
+            .distributionDiscoverer((claims) -> { })
+            .splitBrainResolver((shard, nodes, counts) -> { return NO_NODE; })
+            .build();
+      });
+    expectException("Must have nodes", IllegalArgumentException.class
+        , () -> {
+          new IntShardAllocator.Builder()
+            .nodes(new BitSet())
+            .shards(ids(0, 1))
+            .distributionDiscoverer((claims) -> { })
+            .relocator((from, to, shard) -> { })
+            .splitBrainResolver((shard, nodes, counts) -> { return NO_NODE; })
+            .build();
+      });
+  }
+
+  @Test
+  public void coldStartIsEven() {
+    int[] owners = unowned(1000);
+    IntMoves moves = plan(ids(0, 6), ids(0, 999), distribution(owners));
+    assertEquals("Every shard should be handed out once", 1000, moves.size());
+    apply(moves, owners);
+    for (int count : counts(owners, 7)) {
+      assertTrue("Should be 142 or 143 but was " + count, count == 142 || count == 143);
+    }
+    assertTrue("Should not move again", plan(ids(0, 6), ids(0, 999), distribution(owners)).isEmpty());
+  }
+
+  @Test
+  public void joiningMovesOnlyWhatItMust() {
+    int[] owners = unowned(1000);
+    apply(plan(ids(0, 3), ids(0, 999), distribution(owners)), owners);
+    IntMoves moves = plan(ids(0, 4), ids(0, 999), distribution(owners));
+    assertEquals("Only the new node's share should move", 200, moves.size());
+    for (int i = 0; i < moves.size(); ++i) {
+      assertEquals("Everything should go to the new node", 4, moves.toNode(i));
+    }
+  }
+
+  @Test
+  public void leaversAndRemovedShards() {
+    int[] owners = unowned(100);
+    apply(plan(ids(0, 3), ids(0, 99), distribution(owners)), owners);
+    BitSet shards = ids(0, 89);
+    IntMoves moves = plan(ids(0, 2), shards, distribution(owners));
+    int removals = 0;
+    for (int i = 0; i < moves.size(); ++i) {
+      if (moves.toNode(i) == NO_NODE) {
+        ++removals;
+        assertFalse("Only removed shards should be let go", shards.get(moves.shard(i)));
+        assertNotEquals("The leaver cannot let go", 3, moves.fromNode(i));
+      } else {
+        assertTrue("Only shards still around should move", shards.get(moves.shard(i)));
+      }
+    }
+    int leaversRemoved = 0;
+    for (int shard = 90; shard < 100; ++shard) {
+      if (owners[shard] == 3) { ++leaversRemoved; }
+    }
+    assertEquals("Removed shards owned by nodes still around are let go", 10 - leaversRemoved, removals);
+  }
+
+  @Test
+  public void splitBrainGoesToTheResolver() {
+    int[] owners = unowned(10);
+    apply(plan(ids(0, 1), ids(0, 9), distribution(owners)), owners);
+    IntDistribution dist = distribution(owners);
+    int other = owners[3] == 0 ? 1 : 0;
+    dist.claim(other, 3);
+    AtomicInteger asked = new AtomicInteger(0);
+    IntPlanner planner = new IntPlanner(ids(0, 1), ids(0, 9), dist
+        , (shard, claimants, counts) -> {
+          asked.incrementAndGet();
+          assertEquals("Should be asked about the shard", 3, shard);
+          assertEquals("Both claim it", 2, claimants.length);
+          return other;
+        }, (node) -> { return 1; });
+    IntMoves moves = planner.determineMoves();
+    assertEquals("Should ask once", 1, asked.get());
+    assertTrue("Should say so", planner.resolvedSplitBrain());
+    assertEquals("Only the loser lets go", 1, moves.size());
+    assertEquals("The loser lets go", owners[3], moves.fromNode(0));
+    assertEquals("The loser lets go", NO_NODE, moves.toNode(0));
+  }
+
+  @Test
+  public void allocatorLeavesSplitBrainsTheResolverLeavesAlone() {
+    leavesSplitBrainsTheResolverLeavesAlone(false);
+  }
+
+  @Test
+  public void compactAllocatorLeavesSplitBrainsTheResolverLeavesAlone() {
+    leavesSplitBrainsTheResolverLeavesAlone(true);
+  }
+
+  private static void leavesSplitBrainsTheResolverLeavesAlone(boolean compact) {
+    List<String> moves = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger asked = new AtomicInteger(0);
+    IntShardAllocator allocator = new IntShardAllocator.Builder()
+        .nodes(ids(0, 2))
+        .shards(ids(0, 5))
+        .distributionDiscoverer((claims) -> {
+          for (int shard = 0; shard < 6; ++shard) {
+            claims.claim(0, shard);
+          }
+          claims.claim(1, 0);
+        })
+        .relocator((from, to, shard) -> { moves.add(from + "->" + to + ":" + shard); })
+        .splitBrainResolver((shard, nodes, counts) -> {
+          asked.incrementAndGet();
+          return NO_NODE;
+        })
+        .compactDistribution(compact)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      assertEquals("Everything else should still balance", 4, moves.size());
+      for (String move : moves) {
+        assertFalse("The split brain shouldn't move: " + moves, move.endsWith(":0"));
+      }
+      assertEquals("The owner should keep it", 0, allocator.owner(0));
+      assertTrue("Should be asked again once the other moves are made", asked.get() > 1);
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void bigNodesCarryMore() {
+    int[] owners = unowned(700);
+    apply(new IntPlanner(ids(0, 3), ids(0, 699), distribution(owners), (shard, claimants, counts) -> { return NO_NODE; }
+        , (node) -> { return node == 0 ? 4 : 1; }).determineMoves(), owners);
+    int[] counts = counts(owners, 4);
+    assertEquals("Big node should carry 4 / 7ths", 400, counts[0]);
+    for (int node = 1; node < 4; ++node) {
+      assertEquals("Small nodes should carry 1 / 7th", 100, counts[node]);
+    }
+  }
+
+  @Test
+  public void allocatorBalancesAndFollowsChanges() {
+    balancesAndFollowsChanges(false);
+  }
+
+  @Test
+  public void compactAllocatorBalancesAndFollowsChanges() {
+    balancesAndFollowsChanges(true);
+  }
+
+  private static void balancesAndFollowsChanges(boolean compact) {
+    int[] owners = unowned(500);
+    Object sync = new Object();
+    AtomicInteger discovered = new AtomicInteger(0);
+    AtomicInteger concurrent = new AtomicInteger(0);
+    AtomicInteger mostConcurrent = new AtomicInteger(0);
+    IntShardAllocator allocator = new IntShardAllocator.Builder()
+        .nodes(ids(0, 3))
+        .shards(ids(0, 499))
+        .distributionDiscoverer((claims) -> {
+          discovered.incrementAndGet();
+          synchronized(sync) {
+            for (int shard = 0; shard < owners.length; ++shard) {
+              if (owners[shard] != NO_NODE) { claims.claim(owners[shard], shard); }
+            }
+          }
+        })
+        .relocator((from, to, shard) -> {
+          mostConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+          synchronized(sync) {
+            owners[shard] = to;
+          }
+          concurrent.decrementAndGet();
+        })
+        .splitBrainResolver((shard, nodes, counts) -> { return nodes[0]; })
+        .compactDistribution(compact)
+        .relocatingThreadsPerNode(2)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      for (int count : counts(owners, 4)) {
+        assertEquals("Should be even", 125, count);
+      }
+      assertTrue("Orphans all come through the missing node, so no more than 2 at once", mostConcurrent.get() <= 2);
+      allocator.addNodes(4);
+      allocator.removeShards(0, 1, 2, 3, 4);
+      allocator.awaitRebalance();
+      int[] counts = counts(owners, 5);
+      for (int node = 0; node < 5; ++node) {
+        assertEquals("Should be even again", 99, counts[node]);
+        for (int shard = 5; shard < 500; ++shard) {
+          if (owners[shard] == node) { assertEquals("Allocator should know the owner", node, allocator.owner(shard)); }
+        }
+      }
+      assertEquals("Moves made should be trusted", 1, discovered.get());
+    } finally {
+      allocator.close();
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
+import org.junit.Test;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.Impl.Interner;
+import org.shannon.ShardAllocator.Impl.InterningShardAllocator;
+import org.shannon.util.TestClass;
+
+public class InterningShardAllocatorTest extends TestClass {
+
+  private static HashSet<String> names(String prefix, int from, int to) {
+    HashSet<String> retval = new HashSet<String>();
+    for(int i = from; i <= to; ++i) {
+      retval.add(prefix + i);
+    }
+    return retval;
+  }
+
+  //Counts how often it is hashed so that tests can tell when the allocator looks at it
+  private static final class Key {
+    private static final AtomicInteger hashes = new AtomicInteger(0);
+    private final String name;
+
+    private Key(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public int hashCode() {
+      hashes.incrementAndGet();
+      return name.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).name.equals(name);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  @Test
+  public void internerHandsOutDenseIds() {
+    Interner<String> interner = new Interner<String>();
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals("Ids should be handed out in order", i, interner.intern("shard" + i));
+    }
+    for (int i = 0; i < 1000; ++i) {
+      assertEquals("The same object should get the same id", i, interner.intern("shard" + i));
+      assertEquals("Should find the id", i, interner.id("shard" + i));
+      assertEquals("Should give the object back", "shard" + i, interner.value(i));
+    }
+    assertEquals("Unknown objects have no id", -1, interner.id("nope"));
+    assertEquals("Should count ids", 1000, interner.size());
+    expectException("No such id", IndexOutOfBoundsException.class, () -> { interner.value(1000); });
+  }
+
+  @Test
+  public void constructorValidation() {
+    expectException("Must have a splitBrainResolver", NullPointerException.class
+        , () -> {
+          new InterningShardAllocator.Builder<String, String>()
+            .nodes(names("node", 0, 1))
+            .shards(names("shard", 0, 1))
+            .distributionDiscoverer(() -> { return new HashMap<String, Collection<String>>(); })
+            .relocator((move) -> { })
+            .build();
+      });
+  }
+
+  @Test
+  public void allocatesObjectsAndOnlyHashesThemOnTheWayIn() {
+    HashSet<Key> nodes = new HashSet<Key>();
+    names("node", 0, 3).forEach((name) -> { nodes.add(new Key(name)); });
+    HashSet<Key> shards = new HashSet<Key>();
+    names("shard", 0, 399).forEach((name) -> { shards.add(new Key(name)); });
+    HashSetValuedHashMap<Key, Key> dist = new HashSetValuedHashMap<Key, Key>();
+    Object sync = new Object();
+    AtomicInteger hashedWhileMoving = new AtomicInteger(0);
+    InterningShardAllocator<Key, Key> allocator = new InterningShardAllocator.Builder<Key, Key>()
+        .nodes(nodes)
+        .shards(shards)
+        .distribution(new HashMap<Key, Collection<Key>>())
+        .distributionDiscoverer(() -> { throw new IllegalStateException("Nothing failed, so nothing to discover"); })
+        .relocator((move) -> {
+          int before = Key.hashes.get();
+          assertNull("Should all be new", move.getFromNode());
+          hashedWhileMoving.addAndGet(Key.hashes.get() - before);
+          synchronized(sync) {
+            dist.put(move.getToNode(), move.getShard());
+          }
+        })
+        .splitBrainResolver((shard, claimants, nodesByShare) -> { return null; })
+        .relocatingThreadsPerNode(4)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      assertEquals("Every shard should be placed", 400, dist.size());
+      for (Key node : nodes) {
+        assertEquals("Should be even", 100, dist.get(node).size());
+      }
+      assertEquals("Nothing should be hashed handing out moves", 0, hashedWhileMoving.get());
+      Key shard = shards.iterator().next();
+      assertTrue("Should know the owner", dist.get(allocator.owner(shard)).contains(shard));
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void splitBrainMovesPickTheKeeper() {
+    HashSetValuedHashMap<String, String> dist = new HashSetValuedHashMap<String, String>();
+    for (int i = 0; i < 10; ++i) {
+      dist.put("node" + (i % 2), "shard" + i);
+    }
+    dist.put("node1", "shard0");
+    Object sync = new Object();
+    ArrayList<ShardRelocation<String, String>> moves = new ArrayList<ShardRelocation<String, String>>();
+    InterningShardAllocator<String, String> allocator = new InterningShardAllocator.Builder<String, String>()
+        .nodes(names("node", 0, 1))
+        .shards(names("shard", 0, 9))
+        .distributionDiscoverer(() -> {
+          synchronized(sync) {
+            HashMap<String, Collection<String>> retval = new HashMap<String, Collection<String>>();
+            dist.asMap().forEach((node, owned) -> { retval.put(node, new ArrayList<String>(owned)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(sync) {
+            moves.add(move);
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, claimants, nodesByShare) -> {
+          assertEquals("Should be asked about the split brain", "shard0", shard);
+          //node1 has one more than node0
+          assertEquals("Should index by share", "node1", nodesByShare.most());
+          return Collections.singletonList(new ShardRelocation<String, String>(nodesByShare.most(), null, shard));
+        })
+        .build();
+    try {
+      allocator.awaitRebalance();
+      synchronized(sync) {
+        assertEquals("Only the loser should let go", 1, moves.size());
+        assertEquals("node1 should let go", new ShardRelocation<String, String>("node1", null, "shard0"), moves.get(0));
+        assertFalse("node1 should not have it", dist.containsMapping("node1", "shard0"));
+        assertTrue("node0 should keep it", dist.containsMapping("node0", "shard0"));
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+}
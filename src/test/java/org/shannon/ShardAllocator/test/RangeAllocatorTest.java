@@ -0,0 +1,211 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.shannon.ConstrainedQueue.ConstrainedQueue;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.SlotRange;
+import org.shannon.ShardAllocator.Impl.RangeAllocator;
+import org.shannon.ShardAllocator.Impl.RangePlanner;
+import org.shannon.ShardAllocator.Impl.SlotRangeSet;
+import org.shannon.util.TestClass;
+
+import com.google.common.collect.ImmutableSet;
+
+public class RangeAllocatorTest extends TestClass {
+  private static final long KEYSPACE = 1L << 32;
+
+  private static ArrayList<ShardRelocation<String, SlotRange>> plan(ImmutableSet<String> nodes, SlotRangeSet slots
+      , Map<String, SlotRangeSet> dist) {
+    ConstrainedQueue<ShardRelocation<String, SlotRange>> moves = new RangePlanner<String>(nodes, slots, dist
+        , (range, claimants, nodesByShare) -> { return null; }, Integer.MAX_VALUE, (node) -> { return 1; })
+        .determineMoves();
+    ArrayList<ShardRelocation<String, SlotRange>> retval = new ArrayList<ShardRelocation<String, SlotRange>>();
+    moves.drainTo(retval);
+    return retval;
+  }
+
+  private static void apply(Collection<ShardRelocation<String, SlotRange>> moves, Map<String, SlotRangeSet> dist) {
+    for (ShardRelocation<String, SlotRange> move : moves) {
+      SlotRangeSet range = SlotRangeSet.of(move.getShard());
+      if (move.getFromNode() != null) {
+        dist.put(move.getFromNode(), dist.get(move.getFromNode()).subtract(range));
+      }
+      if (move.getToNode() != null) {
+        dist.merge(move.getToNode(), range, SlotRangeSet::union);
+      }
+    }
+  }
+
+  private static long size(Map<String, SlotRangeSet> dist, String node) {
+    return dist.getOrDefault(node, SlotRangeSet.EMPTY).size();
+  }
+
+  @Test
+  public void rangeSetOperations() {
+    SlotRangeSet a = SlotRangeSet.of(Arrays.asList(new SlotRange(10, 20), new SlotRange(0, 5), new SlotRange(15, 30)
+        , new SlotRange(5, 7)));
+    assertEquals("Overlapping and touching ranges merge", Arrays.asList(new SlotRange(0, 7), new SlotRange(10, 30))
+        , a.ranges());
+    assertEquals("Should count slots", 27, a.size());
+    SlotRangeSet b = SlotRangeSet.of(Arrays.asList(new SlotRange(3, 12), new SlotRange(25, 40)));
+    assertEquals("Union", SlotRangeSet.of(0, 40), a.union(b));
+    assertEquals("Intersect", SlotRangeSet.of(Arrays.asList(new SlotRange(3, 7), new SlotRange(10, 12)
+        , new SlotRange(25, 30))), a.intersect(b));
+    assertEquals("Subtract", SlotRangeSet.of(Arrays.asList(new SlotRange(0, 3), new SlotRange(12, 25))), a.subtract(b));
+    assertEquals("Last part of a range", SlotRangeSet.of(22, 30), a.last(8));
+    assertEquals("Last across ranges", SlotRangeSet.of(Arrays.asList(new SlotRange(5, 7), new SlotRange(10, 30)))
+        , a.last(22));
+    assertEquals("Last of more than there is", a, a.last(100));
+    assertTrue("Start is in", a.contains(10));
+    assertFalse("End is out", a.contains(7));
+    assertFalse("Gap is out", a.contains(8));
+    assertTrue("Nothing minus itself is nothing", a.subtract(a).isEmpty());
+    expectException("Ranges need slots", IllegalArgumentException.class, () -> { new SlotRange(5, 5); });
+  }
+
+  @Test
+  public void coldStartCutsTheKeyspaceIntoShares() {
+    HashMap<String, SlotRangeSet> dist = new HashMap<String, SlotRangeSet>();
+    ArrayList<ShardRelocation<String, SlotRange>> moves = plan(ImmutableSet.of("a", "b", "c"), SlotRangeSet.of(0, KEYSPACE)
+        , dist);
+    assertEquals("One range per node", 3, moves.size());
+    apply(moves, dist);
+    for (String node : Arrays.asList("a", "b", "c")) {
+      long size = size(dist, node);
+      assertTrue("Should be the floor or ceiling of a third but was " + size
+          , size == KEYSPACE / 3 || size == KEYSPACE / 3 + 1);
+      assertEquals("Should be one range", 1, dist.get(node).rangeCount());
+    }
+    assertTrue("Should not move again", plan(ImmutableSet.of("a", "b", "c"), SlotRangeSet.of(0, KEYSPACE), dist).isEmpty());
+  }
+
+  @Test
+  public void joiningTakesOnlyItsShare() {
+    HashMap<String, SlotRangeSet> dist = new HashMap<String, SlotRangeSet>();
+    apply(plan(ImmutableSet.of("a", "b", "c"), SlotRangeSet.of(0, 1200), dist), dist);
+    ArrayList<ShardRelocation<String, SlotRange>> moves = plan(ImmutableSet.of("a", "b", "c", "d")
+        , SlotRangeSet.of(0, 1200), dist);
+    long moved = 0;
+    for (ShardRelocation<String, SlotRange> move : moves) {
+      assertEquals("Everything should go to the new node", "d", move.getToNode());
+      moved += move.getShard().size();
+    }
+    assertEquals("Only the new node's share should move", 300, moved);
+    assertEquals("One range off each node", 3, moves.size());
+    apply(moves, dist);
+    for (String node : Arrays.asList("a", "b", "c", "d")) {
+      assertEquals("Should be even", 300, size(dist, node));
+    }
+  }
+
+  @Test
+  public void leaversAndRemovedSlots() {
+    HashMap<String, SlotRangeSet> dist = new HashMap<String, SlotRangeSet>();
+    dist.put("a", SlotRangeSet.of(0, 100));
+    dist.put("b", SlotRangeSet.of(100, 200));
+    dist.put("c", SlotRangeSet.of(200, 300));
+    ArrayList<ShardRelocation<String, SlotRange>> moves = plan(ImmutableSet.of("a", "b"), SlotRangeSet.of(0, 250), dist);
+    assertFalse("The leaver is forgotten", dist.containsKey("c"));
+    long orphans = 0;
+    for (ShardRelocation<String, SlotRange> move : moves) {
+      assertNotEquals("The leaver cannot let go", "c", move.getFromNode());
+      if (move.getFromNode() == null) {
+        orphans += move.getShard().size();
+      }
+    }
+    assertEquals("What the leaver had that is still around is handed out", 50, orphans);
+    apply(moves, dist);
+    assertEquals("Should be even", 125, size(dist, "a"));
+    assertEquals("Should be even", 125, size(dist, "b"));
+  }
+
+  @Test
+  public void splitBrainIsAskedAboutPerRun() {
+    HashMap<String, SlotRangeSet> dist = new HashMap<String, SlotRangeSet>();
+    dist.put("a", SlotRangeSet.of(0, 60));
+    dist.put("b", SlotRangeSet.of(40, 100));
+    dist.put("c", SlotRangeSet.of(50, 55));
+    ArrayList<SlotRange> asked = new ArrayList<SlotRange>();
+    RangePlanner<String> planner = new RangePlanner<String>(ImmutableSet.of("a", "b", "c"), SlotRangeSet.of(0, 100), dist
+        , (range, claimants, nodesByShare) -> {
+          asked.add(range);
+          assertEquals("Should rank every node", 3, nodesByShare.size());
+          List<ShardRelocation<String, SlotRange>> retval = new ArrayList<ShardRelocation<String, SlotRange>>();
+          claimants.stream().filter((node) -> { return !node.equals("a"); }).forEach((node) -> {
+            retval.add(new ShardRelocation<String, SlotRange>(node, null, range));
+          });
+          return retval;
+        }, Integer.MAX_VALUE, (node) -> { return 1; });
+    ConstrainedQueue<ShardRelocation<String, SlotRange>> moves = planner.determineMoves();
+    assertEquals("A range per run of the same claimants"
+        , Arrays.asList(new SlotRange(40, 50), new SlotRange(50, 55), new SlotRange(55, 60)), asked);
+    assertTrue("Should say so", planner.resolvedSplitBrain());
+    ArrayList<ShardRelocation<String, SlotRange>> all = new ArrayList<ShardRelocation<String, SlotRange>>();
+    moves.drainTo(all);
+    assertEquals("Every claimant but a lets go", 4, all.size());
+    for (ShardRelocation<String, SlotRange> move : all) {
+      assertNull("Nothing but split brains until discovered again", move.getToNode());
+    }
+  }
+
+  @Test
+  public void allocatorBalancesAndFollowsChanges() {
+    HashMap<String, SlotRangeSet> dist = new HashMap<String, SlotRangeSet>();
+    Object sync = new Object();
+    RangeAllocator<String> allocator = new RangeAllocator.Builder<String>()
+        .nodes(Arrays.asList("a", "b", "c"))
+        .shards(Arrays.asList(new SlotRange(0, KEYSPACE / 2), new SlotRange(KEYSPACE / 2, KEYSPACE)))
+        .distributionDiscoverer(() -> {
+          synchronized(sync) {
+            HashMap<String, Collection<SlotRange>> retval = new HashMap<String, Collection<SlotRange>>();
+            dist.forEach((node, owned) -> { retval.put(node, owned.ranges()); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(sync) {
+            apply(Collections.singletonList(move), dist);
+          }
+        })
+        .splitBrainResolver((range, claimants, nodesByShare) -> { return null; })
+        .nodeCapacity((node) -> { return node.equals("a") ? 2 : 1; })
+        .relocatingThreadsPerNode(2)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      synchronized(sync) {
+        assertEquals("The big node gets half", KEYSPACE / 2, size(dist, "a"));
+        assertEquals("The small nodes get a quarter", KEYSPACE / 4, size(dist, "b"));
+        assertEquals("The small nodes get a quarter", KEYSPACE / 4, size(dist, "c"));
+      }
+      allocator.addNodes(Arrays.asList("d"));
+      allocator.removeShards(Arrays.asList(new SlotRange(0, KEYSPACE / 5)));
+      allocator.awaitRebalance();
+      synchronized(sync) {
+        long slots = KEYSPACE - KEYSPACE / 5;
+        long total = 0;
+        for (String node : Arrays.asList("a", "b", "c", "d")) {
+          long share = slots * (node.equals("a") ? 2 : 1) / 5;
+          long size = size(dist, node);
+          assertTrue("Should be even again but was " + size, size == share || size == share + 1);
+          assertFalse("Removed slots should be let go", dist.get(node).contains(0));
+          total += size;
+        }
+        assertEquals("Every slot should be owned once", slots, total);
+        assertEquals("Should know the owner", "d", allocator.owner(dist.get("d").ranges().get(0).getStart()));
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+}
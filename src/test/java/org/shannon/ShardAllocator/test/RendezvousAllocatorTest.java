@@ -0,0 +1,160 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+import static org.shannon.ShardAllocator.test.Fixtures.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
+import org.junit.Test;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.Impl.RendezvousAllocator;
+import org.shannon.ShardAllocator.Impl.RendezvousHash;
+import org.shannon.ShardAllocator.Impl.RendezvousPlanner;
+import org.shannon.util.TestClass;
+
+public class RendezvousAllocatorTest extends TestClass {
+
+  //Plans against a copy of dist then applies the moves to dist
+  private ArrayList<ShardRelocation<Integer, Integer>> plan(HashSet<Integer> nodes, HashSet<Integer> shards
+      , HashSetValuedHashMap<Integer, Integer> dist, double loadFactor) {
+    HashMap<Integer, HashSet<Integer>> copy = new HashMap<Integer, HashSet<Integer>>();
+    dist.asMap().forEach((node, owned) -> { copy.put(node, new HashSet<Integer>(owned)); });
+    ArrayList<ShardRelocation<Integer, Integer>> retval = new ArrayList<ShardRelocation<Integer, Integer>>();
+    new RendezvousPlanner<Integer, Integer>(nodes, shards, copy, (shard, myNodes, counts) -> { return null; }, 1
+        , loadFactor).determineMoves().drainTo(retval);
+    retval.forEach((move) -> { apply(move, dist); });
+    return retval;
+  }
+
+  private void isWithinBound(HashSet<Integer> nodes, HashSet<Integer> shards, HashSetValuedHashMap<Integer, Integer> dist
+      , double loadFactor) {
+    HashSet<Integer> owned = new HashSet<Integer>(dist.values());
+    assertEquals("Every shard should be owned once", dist.size(), owned.size());
+    assertEquals("Every shard should be owned", shards, owned);
+    int bound = (int) Math.ceil(loadFactor * shards.size() / nodes.size());
+    for (int node : nodes) {
+      assertTrue(node + " should have at most " + bound + " but has " + dist.get(node).size(), dist.get(node).size() <= bound);
+    }
+  }
+
+  @Test
+  public void constructorValidation() {
+    expectException("loadFactor must be at least 1", IllegalArgumentException.class
+        , () -> {
+          new RendezvousAllocator.Builder<Integer, Integer>()
+            .nodes(integers(0, 1))
+            .shards(integers(0, 1))
+            .distributionDiscoverer(() -> { return new HashMap<Integer, Collection<Integer>>(); })
+            .relocator((move) -> { })
+            .splitBrainResolver((shard, nodes, count) -> { return null; })
+            .loadFactor(0.5)
+            .build();
+      });
+    expectException("Must have a node", IllegalArgumentException.class
+        , () -> { new RendezvousHash<Integer, Integer>(new HashSet<Integer>()); });
+  }
+
+  @Test
+  public void ownerDoesNotDependOnNodeOrder() {
+    ArrayList<Integer> nodes = new ArrayList<Integer>(integers(0, 19));
+    RendezvousHash<Integer, Integer> forwards = new RendezvousHash<Integer, Integer>(nodes);
+    ArrayList<Integer> backwards = new ArrayList<Integer>(nodes);
+    Collections.reverse(backwards);
+    RendezvousHash<Integer, Integer> reversed = new RendezvousHash<Integer, Integer>(backwards);
+    for (int shard = 0; shard < 1000; ++shard) {
+      assertEquals("Owner should not depend on order", forwards.owner(shard), reversed.owner(shard));
+      assertEquals("Ranking should start with the owner", forwards.owner(shard), forwards.ranking(shard).get(0));
+      assertEquals("Ranking should have every node", 20, new HashSet<Integer>(forwards.ranking(shard)).size());
+    }
+  }
+
+  @Test
+  public void initialPlacementIsWithinBound() {
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    plan(integers(0, 9), integers(0, 9999), dist, 1.1);
+    isWithinBound(integers(0, 9), integers(0, 9999), dist, 1.1);
+    assertTrue("Should not move again", plan(integers(0, 9), integers(0, 9999), dist, 1.1).isEmpty());
+  }
+
+  @Test
+  public void joiningMovesAboutOneNth() {
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    plan(integers(0, 9), integers(0, 9999), dist, 1.25);
+    ArrayList<ShardRelocation<Integer, Integer>> moves = plan(integers(0, 10), integers(0, 9999), dist, 1.25);
+    isWithinBound(integers(0, 10), integers(0, 9999), dist, 1.25);
+    assertTrue("Should move about 1/11th but moved " + moves.size(), moves.size() < 10000 / 11 * 1.5);
+    long toNewNode = moves.stream().filter((move) -> { return move.getToNode() == 10; }).count();
+    assertTrue("Most moves should be to the new node, but " + toNewNode + " of " + moves.size() + " were"
+        , toNewNode >= moves.size() * 0.9);
+  }
+
+  @Test
+  public void leavingOnlyMovesTheLeaversShards() {
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    plan(integers(0, 9), integers(0, 9999), dist, Double.POSITIVE_INFINITY);
+    HashSet<Integer> leaversShards = new HashSet<Integer>(dist.get(9));
+    ArrayList<ShardRelocation<Integer, Integer>> moves = plan(integers(0, 8), integers(0, 9999), dist
+        , Double.POSITIVE_INFINITY);
+    assertEquals("Only the leaver's shards should move", leaversShards.size(), moves.size());
+    moves.forEach((move) -> { assertTrue("Should be the leaver's", leaversShards.contains(move.getShard())); });
+  }
+
+  @Test
+  public void assignmentMatchesPlan() {
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    plan(integers(0, 6), integers(0, 2999), dist, 1.05);
+    Map<Integer, Integer> owners = new RendezvousHash<Integer, Integer>(new ArrayList<Integer>(integers(0, 6)))
+        .assign(new ArrayList<Integer>(integers(0, 2999)), 1.05);
+    dist.entries().forEach((entry) -> {
+      assertEquals("Clients should agree with the allocator", entry.getKey(), owners.get(entry.getValue()));
+    });
+  }
+
+  @Test
+  public void bigNodesCarryMore() {
+    HashMap<Integer, HashSet<Integer>> copy = new HashMap<Integer, HashSet<Integer>>();
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    ArrayList<ShardRelocation<Integer, Integer>> moves = new ArrayList<ShardRelocation<Integer, Integer>>();
+    new RendezvousPlanner<Integer, Integer>(integers(0, 3), integers(0, 6999), copy, (shard, myNodes, counts) -> { return null; }
+        , 1, (node) -> { return node == 0 ? 4 : 1; }, 1.1).determineMoves().drainTo(moves);
+    moves.forEach((move) -> { dist.put(move.getToNode(), move.getShard()); });
+    assertEquals("Big node should carry about 4 / 7ths", 4000, dist.get(0).size(), 4000 * 0.1);
+    for (int node = 1; node < 4; ++node) {
+      assertEquals("Small nodes should carry about 1 / 7th", 1000, dist.get(node).size(), 1000 * 0.1);
+    }
+  }
+
+  @Test
+  public void allocatorPlacesEverything() {
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    Object sync = new Object();
+    RendezvousAllocator<Integer, Integer> allocator = new RendezvousAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 499))
+        .distributionDiscoverer(() -> {
+          synchronized(sync) {
+            return discover(dist);
+          }
+        })
+        .relocator((move) -> {
+          synchronized(sync) {
+            apply(move, dist);
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .loadFactor(1.2)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      isWithinBound(integers(0, 3), integers(0, 499), dist, 1.2);
+    } finally {
+      allocator.close();
+    }
+  }
+}
@@ -4,14 +4,26 @@ import com.google.common.collect.ImmutableSet;
 import lombok.val;
 import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
 import org.junit.Test;
+import org.shannon.ConstrainedQueue.CompositeConstrainer;
 import org.shannon.ShardAllocator.Impl.SimpleAllocator;
+import org.shannon.ShardAllocator.Impl.SimplePlanner;
+import org.shannon.ShardAllocator.AsyncShardRelocator;
 import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.ShardRelocator;
 import org.shannon.ShardAllocator.mock.SimpleAllocatorWrapper;
 import org.shannon.util.TestClass;
 
 import static org.junit.Assert.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -46,43 +58,43 @@ public class SimpleAllocatorTest extends TestClass {
   public void constructorValidation() {
     expectException("Nodes cannot be null", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>((Collection<Integer>)null, Arrays.asList(0), (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>((ImmutableSet<Integer>)null, ImmutableSet.of(0), (Map<Integer, Collection<Integer>>)null
             , () -> { return new HashMap<Integer, Collection<Integer>>(); }, (move) -> { }
             , (shard, nodes, count) -> { return null; }, 1); 
       });
     expectException("Nodes cannot be empty", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>(new ArrayList<Integer>(), Arrays.asList(0), (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>(ImmutableSet.<Integer>of(), ImmutableSet.of(0), (Map<Integer, Collection<Integer>>)null
             , () -> { return new HashMap<Integer, Collection<Integer>>(); }, (move) -> { }
             , (shard, nodes, count) -> { return null; }, 1); 
       });
     expectException("Shards cannot be null", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>(Arrays.asList(0), (Collection<Integer>)null, (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>(ImmutableSet.of(0), (ImmutableSet<Integer>)null, (Map<Integer, Collection<Integer>>)null
             , () -> { return new HashMap<Integer, Collection<Integer>>(); }, (move) -> { }
             , (shard, nodes, count) -> { return null; }, 1); 
       });
     expectException("Shards cannot be empty", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>(Arrays.asList(0), new ArrayList<Integer>(), (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>(ImmutableSet.of(0), ImmutableSet.<Integer>of(), (Map<Integer, Collection<Integer>>)null
             , () -> { return new HashMap<Integer, Collection<Integer>>(); }, (move) -> { }
             , (shard, nodes, count) -> { return null; }, 1); 
       });
     expectException("Must have a distDiscoverer", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>(Arrays.asList(0), new ArrayList<Integer>(), (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>(ImmutableSet.of(0), ImmutableSet.<Integer>of(), (Map<Integer, Collection<Integer>>)null
             , null, (move) -> { }
             , (shard, nodes, count) -> { return null; }, 1); 
       });
     expectException("Must have a relocator", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>(Arrays.asList(0), new ArrayList<Integer>(), (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>(ImmutableSet.of(0), ImmutableSet.<Integer>of(), (Map<Integer, Collection<Integer>>)null
             , () -> { return new HashMap<Integer, Collection<Integer>>(); }, null
             , (shard, nodes, count) -> { return null; }, 1); 
       });
     expectException("Must have a splitBrainResolver", IllegalArgumentException.class
         , () -> { 
-          new SimpleAllocator<Integer, Integer>(Arrays.asList(0), new ArrayList<Integer>(), (Map<Integer, Collection<Integer>>)null
+          new SimpleAllocator<Integer, Integer>(ImmutableSet.of(0), ImmutableSet.<Integer>of(), (Map<Integer, Collection<Integer>>)null
             , () -> { return new HashMap<Integer, Collection<Integer>>(); }, (move) -> { }
             , null, 1); 
       });
@@ -250,6 +262,932 @@ public class SimpleAllocatorTest extends TestClass {
     }
   }
 
+  @Test
+  public void shouldBalanceAddedShardsWithoutDiscovery() throws InterruptedException {
+    SimpleAllocatorWrapper w = new SimpleAllocatorWrapper(integers(0,2), integers(0,8), balancedDist(3,3));
+    try {
+      w.awaitRebalance();
+      w.addShards(integers(9,9));
+      w.awaitRebalance();
+      assertEquals("Shouldn't call distribution discoverer.", 0, w.discoveryCount.get());
+      assertEquals("Should have only one move", 1, w.moveCount.get());
+      w.isBalanced();
+      w.addShards(integers(0,9));
+      w.awaitRebalance();
+      assertEquals("Shouldn't move known shards", 1, w.moveCount.get());
+    } finally {
+      w.close();
+    }
+  }
+
+  @Test
+  public void shouldReleaseRemovedShardsWithoutDiscovery() throws InterruptedException {
+    SimpleAllocatorWrapper w = new SimpleAllocatorWrapper(integers(0,2), integers(0,8), balancedDist(3,3));
+    try {
+      w.awaitRebalance();
+      w.removeShards(integers(8,8));
+      w.awaitRebalance();
+      assertEquals("Shouldn't call distribution discoverer.", 0, w.discoveryCount.get());
+      assertEquals("Should have only one move", 1, w.moveCount.get());
+      w.isBalanced();
+    } finally {
+      w.close();
+    }
+  }
+
+  @Test
+  public void shouldBalanceAddedAndRemovedNodesWithoutDiscovery() throws InterruptedException {
+    SimpleAllocatorWrapper w = new SimpleAllocatorWrapper(integers(0,2), integers(0,8), balancedDist(3,3));
+    try {
+      w.awaitRebalance();
+      w.addNodes(integers(3,3));
+      w.awaitRebalance();
+      assertEquals("Should have 2 moves", 2, w.moveCount.get());
+      w.isBalanced();
+      int orphaned = w.dist.get(0).size();
+      w.removeNodes(integers(0,0));
+      w.awaitRebalance();
+      assertEquals("Should hand out what node 0 had", 2 + orphaned, w.moveCount.get());
+      assertEquals("Shouldn't call distribution discoverer.", 0, w.discoveryCount.get());
+      w.isBalanced();
+    } finally {
+      w.close();
+    }
+  }
+
+  @Test
+  public void shouldBalanceRandomDeltas() throws InterruptedException {
+    Random rand = new Random();
+    SimpleAllocatorWrapper w = new SimpleAllocatorWrapper(integers(0,2), integers(0,8), balancedDist(3,3));
+    try {
+      w.awaitRebalance();
+      for (int i = 0; i < 100; ++i) {
+        int from = rand.nextInt(100);
+        HashSet<Integer> some = integers(from, from + rand.nextInt(10));
+        switch(rand.nextInt(4)) {
+          case 0:
+            w.addShards(some);
+            break;
+          case 1:
+            some.retainAll(w.shards);
+            if (some.size() < w.shards.size()) { w.removeShards(some); }
+            break;
+          case 2:
+            w.addNodes(some);
+            break;
+          case 3:
+            some.retainAll(w.nodes);
+            if (some.size() < w.nodes.size()) { w.removeNodes(some); }
+            break;
+        }
+        w.awaitRebalance();
+        w.isBalanced();
+      }
+      assertEquals("Shouldn't call distribution discoverer.", 0, w.discoveryCount.get());
+    } finally {
+      w.close();
+    }
+  }
+
+  @Test
+  public void shouldBalanceDeltasByCapacity() {
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    AtomicInteger discoveries = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 1))
+        .shards(integers(0, 19))
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            discoveries.incrementAndGet();
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .nodeCapacity((node) -> { return node % 2 == 0 ? 3 : 1; })
+        .build();
+    try {
+      allocator.awaitRebalance();
+      int settled = discoveries.get();
+      allocator.addNodes(integers(2, 3));
+      allocator.addShards(integers(20, 39));
+      allocator.awaitRebalance();
+      //Nodes 0 and 2 are 3 times the size of 1 and 3, so 15, 5, 15, 5
+      for (int node = 0; node < 4; ++node) {
+        assertEquals("Should have its share", node % 2 == 0 ? 15 : 5, dist.get(node).size());
+      }
+      allocator.removeNodes(integers(2, 2));
+      synchronized(dist) { dist.remove(2); }
+      allocator.awaitRebalance();
+      //Now 24, 8, 8
+      assertEquals("Should have its share", 24, dist.get(0).size());
+      assertEquals("Should have its share", 8, dist.get(1).size());
+      assertEquals("Should have its share", 8, dist.get(3).size());
+      assertEquals("Shouldn't call distribution discoverer.", settled, discoveries.get());
+    } finally {
+      allocator.close();
+    }
+  }
+
+  private SimpleAllocator<Integer, Integer> coalescing(HashSetValuedHashMap<Integer, Integer> dist, AtomicInteger discoveries
+      , long quietPeriod, long maxDelay) {
+    return new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 2))
+        .shards(integers(0, 8))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            discoveries.incrementAndGet();
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .coalesce(quietPeriod, maxDelay, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  @Test
+  public void shouldCoalesceBursts() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    AtomicInteger discoveries = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = coalescing(dist, discoveries, 200, 10000);
+    try {
+      allocator.awaitRebalance();
+      for (int i = 0; i < 20; ++i) {
+        allocator.notifyNodesChange(integers(0, 3 + i % 5));
+      }
+      allocator.notifyNodesChange(integers(0, 3));
+      assertEquals("Shouldn't have planned yet", 0, discoveries.get());
+      allocator.awaitRebalance();
+      assertEquals("Should plan the burst once", 1, discoveries.get());
+      assertEquals("Should balance for the last notification", 4, dist.keySet().size());
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void cannotCoalesceForNegativeTime() {
+    expectException("Cannot coalesce for negative time", IllegalArgumentException.class
+        , () -> { coalescing(balancedDist(3, 3), new AtomicInteger(0), -1, 1000); });
+  }
+
+  @Test
+  public void shouldNotCoalesceForever() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    AtomicInteger discoveries = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = coalescing(dist, discoveries, 1000, 200);
+    try {
+      allocator.awaitRebalance();
+      long start = System.currentTimeMillis();
+      allocator.notifyNodesChange(integers(0, 3));
+      for (int i = 0; i < 20 && discoveries.get() == 0; ++i) {
+        Thread.sleep(100);
+        allocator.notifyShardsChange(integers(0, 8));
+      }
+      assertTrue("Should have planned within the max delay", discoveries.get() > 0);
+      assertTrue("Should have planned within the max delay", System.currentTimeMillis() - start < 1500);
+      allocator.awaitRebalance();
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldKeepInFlightMovesOnReplan() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    AtomicInteger interrupted = new AtomicInteger(0);
+    ArrayList<ShardRelocation<Integer, Integer>> moves = new ArrayList<ShardRelocation<Integer, Integer>>();
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 2))
+        .shards(integers(0, 8))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) { moves.add(move); }
+          if (started.getCount() > 0) {
+            started.countDown();
+            try {
+              finish.await();
+            } catch (InterruptedException e) {
+              interrupted.incrementAndGet();
+              throw new IllegalStateException(e);
+            }
+          }
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .keepInFlightMoves(true)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      allocator.notifyNodesChange(integers(0, 3));
+      started.await();
+      ShardRelocation<Integer, Integer> slow;
+      synchronized(dist) { slow = moves.get(0); }
+      allocator.notifyNodesChange(integers(0, 4));
+      Thread.sleep(100);
+      finish.countDown();
+      allocator.awaitRebalance();
+      assertEquals("Shouldn't have interrupted the move", 0, interrupted.get());
+      synchronized(dist) {
+        assertEquals("Should only have made the move once", 1, moves.stream().filter((move) -> { return move.equals(slow); }).count());
+        assertEquals("Should have every node", 5, dist.keySet().size());
+        assertEquals("Should own every shard once", 9, new HashSet<Integer>(dist.values()).size());
+        assertEquals("Should own every shard once", 9, dist.size());
+        dist.asMap().forEach((node, shards) -> { assertTrue("Should be balanced", shards.size() == 1 || shards.size() == 2); });
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldRelocateOrphansBeforeBalancing() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(10, 0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    ArrayList<ShardRelocation<Integer, Integer>> moves = new ArrayList<ShardRelocation<Integer, Integer>>();
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 1))
+        .shards(integers(0, 9))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) { moves.add(move); }
+          if (started.getCount() > 0) {
+            started.countDown();
+            try {
+              finish.await();
+            } catch (InterruptedException e) {
+              throw new IllegalStateException(e);
+            }
+          }
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .relocatingThreadsPerNode(1)
+        .keepInFlightMoves(true)
+        .build();
+    try {
+      started.await();
+      //Orphans now wait on the same nodes as the balancing still to do
+      allocator.notifyShardsChange(integers(0, 15));
+      Thread.sleep(100);
+      finish.countDown();
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        List<ShardRelocation.Priority> after = moves.subList(1, moves.size()).stream()
+            .map(ShardRelocation::getPriority).collect(Collectors.toList());
+        assertTrue("Should have balancing left to do: " + after, after.contains(ShardRelocation.Priority.BALANCING));
+        assertEquals("Every orphan should go before any balancing: " + after, after.stream().sorted().collect(Collectors.toList()), after);
+        assertEquals("Should own every shard once", 16, dist.size());
+        dist.asMap().forEach((node, shards) -> { assertEquals("Should be balanced", 8, shards.size()); });
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldRelocateOnGivenExecutor() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    AtomicInteger executed = new AtomicInteger(0);
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 8))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .relocationExecutor((command) -> { executed.incrementAndGet(); pool.execute(command); })
+        .build();
+    try {
+      allocator.awaitRebalance();
+      assertEquals("Should relocate on the given executor", 2, executed.get());
+      assertEquals("Should be balanced", 4, dist.keySet().size());
+    } finally {
+      allocator.close();
+    }
+    assertFalse("Shouldn't shut down an executor it was given", pool.isShutdown());
+    pool.shutdown();
+  }
+
+  @Test
+  public void shouldUseVirtualThreadsOnlyWhereSupported() throws Exception {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    ArrayList<Thread> relocatingThreads = new ArrayList<Thread>();
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 8))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) {
+            relocatingThreads.add(Thread.currentThread());
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .virtualThreads(true)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      assertEquals("Should be balanced", 4, dist.keySet().size());
+      assertEquals("Should relocate", 2, relocatingThreads.size());
+      //Thread.isVirtual() only exists on JDK 21+, and only a jar is multi-release; from a classes directory the Java 8
+      //version is used, which falls back to platform threads same as an older JVM
+      java.lang.reflect.Method isVirtual = null;
+      try {
+        isVirtual = Thread.class.getMethod("isVirtual");
+      } catch (NoSuchMethodException e) {
+        //Nothing is virtual
+      }
+      boolean virtual = isVirtual != null
+          && SimpleAllocator.class.getProtectionDomain().getCodeSource().getLocation().getPath().endsWith(".jar");
+      for (Thread thread : relocatingThreads) {
+        assertNotSame("Should relocate on threads of its own", Thread.currentThread(), thread);
+        if (isVirtual != null) {
+          assertEquals(virtual ? "Should relocate on virtual threads" : "Should fall back to platform threads"
+              , virtual, isVirtual.invoke(thread));
+        }
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  private SimpleAllocator<Integer, Integer> async(HashSetValuedHashMap<Integer, Integer> dist, AtomicInteger discoveries
+      , AsyncShardRelocator<Integer, Integer> relocator) {
+    return new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 8))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            discoveries.incrementAndGet();
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .asyncRelocator(relocator)
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .build();
+  }
+
+  @Test
+  public void shouldRelocateAsynchronously() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    ScheduledExecutorService client = Executors.newSingleThreadScheduledExecutor();
+    HashSet<Thread> callers = new HashSet<Thread>();
+    SimpleAllocator<Integer, Integer> allocator = async(dist, new AtomicInteger(0), (move) -> {
+      CompletableFuture<Void> retval = new CompletableFuture<Void>();
+      synchronized(dist) { callers.add(Thread.currentThread()); }
+      client.schedule(() -> {
+        synchronized(dist) {
+          if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+          if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+        }
+        retval.complete(null);
+      }, 10, TimeUnit.MILLISECONDS);
+      return retval;
+    });
+    try {
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        assertEquals("Should be balanced", 4, dist.keySet().size());
+        assertEquals("Should own every shard once", 9, dist.size());
+        assertEquals("Should only start moves from the thread handing them out", 1, callers.size());
+      }
+    } finally {
+      allocator.close();
+      client.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldRediscoverWhenAsyncMoveFails() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 3);
+    AtomicInteger discoveries = new AtomicInteger(0);
+    AtomicInteger failures = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = async(dist, discoveries, (move) -> {
+      CompletableFuture<Void> retval = new CompletableFuture<Void>();
+      if (failures.getAndIncrement() == 0) {
+        retval.completeExceptionally(new IllegalStateException("Node didn't answer"));
+        return retval;
+      }
+      synchronized(dist) {
+        if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+        if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+      }
+      retval.complete(null);
+      return retval;
+    });
+    try {
+      allocator.awaitRebalance();
+      assertTrue("Should rediscover after a failed move", discoveries.get() > 0);
+      synchronized(dist) {
+        assertEquals("Should be balanced", 4, dist.keySet().size());
+        assertEquals("Should own every shard once", 9, dist.size());
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldRelocateInBatches() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = balancedDist(3, 30);
+    ArrayList<Integer> batchSizes = new ArrayList<Integer>();
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 2))
+        .shards(integers(0, 89))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .batchRelocator((fromNode, toNode, shards) -> {
+          synchronized(dist) {
+            batchSizes.add(shards.size());
+            for (Integer shard : shards) {
+              if (fromNode != null) { dist.removeMapping(fromNode, shard); }
+              if (toNode != null) { dist.put(toNode, shard); }
+            }
+          }
+        }, 8)
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .build();
+    try {
+      allocator.awaitRebalance();
+      synchronized(dist) { dist.remove(0); }
+      allocator.notifyNodesChange(integers(1, 2));
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        assertEquals("Should hand out everything node 0 had", 30, batchSizes.stream().mapToInt((size) -> { return size; }).sum());
+        assertEquals("Should fill batches to each node", 4, batchSizes.size());
+        batchSizes.forEach((size) -> { assertTrue("Should not go over the max batch size", size <= 8); });
+        assertEquals("Should own every shard once", 90, dist.size());
+        assertEquals("Should be balanced", 45, dist.get(1).size());
+        assertEquals("Should be balanced", 45, dist.get(2).size());
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldGiveSlowNodesFewerMoves() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(40, 40);
+    AtomicInteger slowActive = new AtomicInteger(0);
+    ArrayList<Integer> slowConcurrency = new ArrayList<Integer>();
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 79))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          //Node 3 takes far longer than the latency target
+          if (Integer.valueOf(3).equals(move.getToNode())) {
+            synchronized(slowConcurrency) { slowConcurrency.add(slowActive.incrementAndGet()); }
+            try {
+              Thread.sleep(30);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            slowActive.decrementAndGet();
+          }
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .relocatingThreadsPerNode(4)
+        .adaptiveConcurrency(1, 4, 5, TimeUnit.MILLISECONDS)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        assertEquals("Should be balanced", 20, dist.get(2).size());
+        assertEquals("Should be balanced", 20, dist.get(3).size());
+      }
+      synchronized(slowConcurrency) {
+        assertEquals("Should move everything to the slow node", 20, slowConcurrency.size());
+        assertEquals("Should start at relocatingThreadsPerNode", 4, Collections.max(slowConcurrency).intValue());
+        slowConcurrency.subList(10, 20).forEach((active) -> { assertEquals("Should cut the slow node to the minimum", 1, active.intValue()); });
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void adaptiveConcurrencyValidation() {
+    expectException("minPerNode must be positive", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().adaptiveConcurrency(0, 4, 5, TimeUnit.MILLISECONDS); });
+    expectException("maxPerNode cannot be less than minPerNode", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().adaptiveConcurrency(3, 2, 5, TimeUnit.MILLISECONDS); });
+    expectException("The latency target must be positive", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().adaptiveConcurrency(1, 4, 0, TimeUnit.MILLISECONDS); });
+  }
+
+  @Test
+  public void shouldUseGivenConstrainer() {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(40, 40);
+    AtomicInteger active = new AtomicInteger(0);
+    AtomicInteger mostActive = new AtomicInteger(0);
+    AtomicInteger made = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 79))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          mostActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+          active.decrementAndGet();
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .relocatingThreadsPerNode(4)
+        .constrainer(() -> {
+          made.incrementAndGet();
+          return new CompositeConstrainer.Builder<ShardRelocation<Integer, Integer>>()
+              .limit(4, ShardRelocation::getFromNode, ShardRelocation::getToNode)
+              .limit(2, (move) -> { return "cluster"; })
+              .build();
+        })
+        .build();
+    try {
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        dist.asMap().forEach((node, shards) -> { assertEquals("Should be balanced", 20, shards.size()); });
+      }
+      assertTrue("Should have used the constrainer", made.get() > 0);
+      assertEquals("Should hold the whole cluster to 2 moves at once", 2, mostActive.get());
+    } finally {
+      allocator.close();
+    }
+    expectException("Can only have one of constrainer and adaptiveConcurrency", IllegalArgumentException.class
+        , () -> {
+          new SimpleAllocator.Builder<Integer, Integer>()
+              .nodes(integers(0, 1))
+              .shards(integers(0, 1))
+              .distributionDiscoverer(() -> { return new HashMap<Integer, Collection<Integer>>(); })
+              .relocator((move) -> { })
+              .splitBrainResolver((shard, nodes, count) -> { return null; })
+              .adaptiveConcurrency(1, 4, 5, TimeUnit.MILLISECONDS)
+              .constrainer(() -> { return new CompositeConstrainer.Builder<ShardRelocation<Integer, Integer>>().limit(1, (move) -> { return "cluster"; }).build(); })
+              .build();
+        });
+  }
+
+  private SimpleAllocator.Builder<Integer, Integer> rateLimited(HashSetValuedHashMap<Integer, Integer> dist) {
+    return new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 1))
+        .shards(integers(0, 19))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .relocatingThreadsPerNode(10);
+  }
+
+  @Test
+  public void shouldLimitMovesPerSecond() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(20);
+    long start = System.nanoTime();
+    SimpleAllocator<Integer, Integer> allocator = rateLimited(dist).maxMovesPerSecond(20).build();
+    try {
+      allocator.awaitRebalance();
+      assertTrue("10 moves at 20 a second should take about half a second"
+          , System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+      assertEquals("Should be balanced", 10, dist.get(1).size());
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldLimitBytesPerSecond() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(20);
+    long start = System.nanoTime();
+    SimpleAllocator<Integer, Integer> allocator = rateLimited(dist)
+        .maxBytesPerSecond(20000, (shard) -> { return 1000; })
+        .build();
+    try {
+      allocator.awaitRebalance();
+      assertTrue("10kB at 20kB a second should take about half a second"
+          , System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+      assertEquals("Should be balanced", 10, dist.get(1).size());
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldChangeRateLimitsWhileRebalancing() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(20);
+    SimpleAllocator<Integer, Integer> allocator = rateLimited(dist)
+        .maxMovesPerSecond(1)
+        .maxBytesPerSecond(Double.POSITIVE_INFINITY, (shard) -> { return 1000; })
+        .build();
+    try {
+      Thread.sleep(1500);
+      synchronized(dist) {
+        assertTrue("Should only have made a move or two", dist.get(1).size() <= 2);
+      }
+      long start = System.nanoTime();
+      allocator.setMaxMovesPerSecond(Double.POSITIVE_INFINITY);
+      allocator.awaitRebalance();
+      assertTrue("Should finish right away once the limit is lifted"
+          , System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+      assertEquals("Should be balanced", 10, dist.get(1).size());
+      allocator.setMaxBytesPerSecond(1000);
+      expectException("Rates must be positive", IllegalArgumentException.class
+          , () -> { allocator.setMaxMovesPerSecond(0); });
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void bytesPerSecondNeedsShardSize() {
+    SimpleAllocator<Integer, Integer> allocator = rateLimited(dist(10, 10)).build();
+    try {
+      expectException("Limiting bytes needs a shardSize", IllegalStateException.class
+          , () -> { allocator.setMaxBytesPerSecond(1000); });
+    } finally {
+      allocator.close();
+    }
+    expectException("Rates must be positive", IllegalArgumentException.class
+        , () -> { rateLimited(dist(10, 10)).maxMovesPerSecond(-1).build(); });
+  }
+
+  private SimpleAllocator.Builder<Integer, Integer> flaky(HashSetValuedHashMap<Integer, Integer> dist
+      , ShardRelocator<Integer, Integer> fault) {
+    return new SimpleAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 1))
+        .shards(integers(0, 19))
+        .distribution(dist.asMap())
+        .distributionDiscoverer(() -> {
+          synchronized(dist) {
+            HashMap<Integer, Collection<Integer>> retval = new HashMap<Integer, Collection<Integer>>();
+            dist.asMap().forEach((node, shards) -> { retval.put(node, new ArrayList<Integer>(shards)); });
+            return retval;
+          }
+        })
+        .relocator((move) -> {
+          fault.relocate(move);
+          synchronized(dist) {
+            if (move.getFromNode() != null) { dist.removeMapping(move.getFromNode(), move.getShard()); }
+            if (move.getToNode() != null) { dist.put(move.getToNode(), move.getShard()); }
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .relocatingThreadsPerNode(2);
+  }
+
+  @Test
+  public void shouldRetryFailedMoves() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(20);
+    ConcurrentHashMap<Integer, AtomicInteger> attempts = new ConcurrentHashMap<Integer, AtomicInteger>();
+    SimpleAllocator<Integer, Integer> allocator = flaky(dist, (move) -> {
+          //Every move fails twice before it works
+          if (attempts.computeIfAbsent(move.getShard(), (shard) -> { return new AtomicInteger(0); }).incrementAndGet() < 3) {
+            throw new IllegalStateException("Flaky");
+          }
+        })
+        .retries(3, 1, 10, TimeUnit.MILLISECONDS)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        assertEquals("Should be balanced", 10, dist.get(1).size());
+      }
+      assertEquals("Should only move what it needs to", 10, attempts.size());
+      attempts.values().forEach((count) -> { assertEquals("Should try each move three times", 3, count.get()); });
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldTimeOutSlowMoves() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(20);
+    AtomicInteger timedOut = new AtomicInteger(0);
+    ConcurrentHashMap<Integer, Boolean> tried = new ConcurrentHashMap<Integer, Boolean>();
+    long start = System.nanoTime();
+    SimpleAllocator<Integer, Integer> allocator = flaky(dist, (move) -> {
+          //The first attempt at each move hangs
+          if (tried.putIfAbsent(move.getShard(), true) == null) {
+            try {
+              Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+              timedOut.incrementAndGet();
+              throw new IllegalStateException("Interrupted", e);
+            }
+          }
+        })
+        .relocationTimeout(50, TimeUnit.MILLISECONDS)
+        .retries(2, 1, 10, TimeUnit.MILLISECONDS)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      assertTrue("Shouldn't wait on hung moves", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+      assertEquals("Should time out the first attempt at every move", 10, timedOut.get());
+      synchronized(dist) {
+        assertEquals("Should be balanced", 10, dist.get(1).size());
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void shouldQuarantineFailingNodes() throws InterruptedException {
+    //Nothing is owned yet, so every move is to a node from none and only the node moved to can be blamed
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    AtomicInteger badAttempts = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = flaky(dist, (move) -> {
+          if (Integer.valueOf(1).equals(move.getToNode())) {
+            badAttempts.incrementAndGet();
+            throw new IllegalStateException("Node 1 is down");
+          }
+        })
+        .relocatingThreadsPerNode(1)
+        .retries(3, 1, 2, TimeUnit.MILLISECONDS)
+        .quarantine(3, 1, TimeUnit.MINUTES)
+        .build();
+    try {
+      for (int i = 0; i < 100; ++i) {
+        synchronized(dist) {
+          if (dist.get(0).size() == 10) { break; }
+        }
+        Thread.sleep(50);
+      }
+      synchronized(dist) {
+        assertEquals("Healthy node should get its shards", 10, dist.get(0).size());
+        assertEquals("Failing node shouldn't get any", 0, dist.get(1).size());
+      }
+      assertEquals("Should leave the failing node alone once quarantined", 3, badAttempts.get());
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void shouldRetryMovesKeptAcrossReplans() throws InterruptedException {
+    HashSetValuedHashMap<Integer, Integer> dist = dist(20);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch fail = new CountDownLatch(1);
+    AtomicInteger attempts = new AtomicInteger(0);
+    SimpleAllocator<Integer, Integer> allocator = flaky(dist, (move) -> {
+          //The first move is still being made when the next round plans, then fails
+          if (attempts.incrementAndGet() == 1) {
+            started.countDown();
+            try {
+              fail.await();
+            } catch (InterruptedException e) {
+              throw new IllegalStateException("Interrupted", e);
+            }
+            throw new IllegalStateException("Flaky");
+          }
+        })
+        .keepInFlightMoves(true)
+        .retries(3, 1, 10, TimeUnit.MILLISECONDS)
+        .build();
+    try {
+      started.await();
+      allocator.addShards(Arrays.asList(20, 21));
+      Thread.sleep(100);
+      fail.countDown();
+      allocator.awaitRebalance();
+      synchronized(dist) {
+        assertEquals("Should be balanced", 11, dist.get(1).size());
+        assertEquals("Should own every shard once", 22, dist.size());
+      }
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void retryValidation() {
+    expectException("Must make at least one attempt", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().retries(0, 1, 1, TimeUnit.MILLISECONDS); });
+    expectException("maxBackoff cannot be less than initialBackoff", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().retries(2, 2, 1, TimeUnit.MILLISECONDS); });
+    expectException("Timeouts must be positive", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().relocationTimeout(0, TimeUnit.MILLISECONDS); });
+    expectException("Must quarantine for some time", IllegalArgumentException.class
+        , () -> { new SimpleAllocator.Builder<Integer, Integer>().quarantine(1, 0, TimeUnit.MILLISECONDS); });
+  }
+
+  @Test
+  public void canOnlyHaveOneRelocator() {
+    expectException("Can only have one of relocator, asyncRelocator and batchRelocator", IllegalArgumentException.class
+        , () -> {
+          new SimpleAllocator.Builder<Integer, Integer>()
+              .nodes(integers(0, 2))
+              .shards(integers(0, 8))
+              .distributionDiscoverer(() -> { return new HashMap<Integer, Collection<Integer>>(); })
+              .relocator((move) -> { })
+              .batchRelocator((fromNode, toNode, shards) -> { }, 8)
+              .splitBrainResolver((shard, nodes, count) -> { return null; })
+              .build();
+        });
+  }
+
   @Test
   public void shouldBalanceRandomness() throws InterruptedException {
     Random rand = new Random();
@@ -282,4 +1220,33 @@ public class SimpleAllocatorTest extends TestClass {
       w.close();
     }
   }
+
+  @Test
+  public void shouldBalanceByCapacity() {
+    HashMap<Integer, HashSet<Integer>> dist = new HashMap<Integer, HashSet<Integer>>();
+    balancedDist(4, 25).asMap().forEach((node, shards) -> { dist.put(node, new HashSet<Integer>(shards)); });
+    //Node 0 is 8 times the size of the others and so should own 8 / 11ths
+    ArrayList<ShardRelocation<Integer, Integer>> moves = new ArrayList<ShardRelocation<Integer, Integer>>();
+    new SimplePlanner<Integer, Integer>(integers(0, 3), integers(0, 99), dist, (shard, nodes, count) -> { return null; }
+        , 1, (node) -> { return node == 0 ? 8 : 1; }).determineMoves().drainTo(moves);
+    HashSetValuedHashMap<Integer, Integer> after = new HashSetValuedHashMap<Integer, Integer>();
+    dist.forEach((node, shards) -> { after.putAll(node, shards); });
+    moves.forEach((move) -> { after.put(move.getToNode(), move.getShard()); });
+    assertEquals("Should only move what it needs to", 47, moves.size());
+    assertEquals("Should give the big node its share", 72, after.get(0).size());
+    for (int node = 1; node < 4; ++node) {
+      assertTrue("Should give the small nodes the floor or ceiling of their share", after.get(node).size() == 9
+          || after.get(node).size() == 10);
+    }
+    assertEquals("Should own every shard once", 100, after.size());
+  }
+
+  @Test
+  public void capacityMustBePositive() {
+    expectException("Capacity must be positive", IllegalArgumentException.class
+        , () -> {
+          new SimplePlanner<Integer, Integer>(integers(0, 1), integers(0, 9), new HashMap<Integer, HashSet<Integer>>()
+              , (shard, nodes, count) -> { return null; }, 1, (node) -> { return node - 1; }).determineMoves();
+      });
+  }
 }
@@ -0,0 +1,194 @@
+package org.shannon.ShardAllocator.test;
+
+import static org.junit.Assert.*;
+import static org.shannon.ShardAllocator.test.Fixtures.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.collections4.multimap.HashSetValuedHashMap;
+import org.junit.Test;
+import org.shannon.ShardAllocator.ShardRelocation;
+import org.shannon.ShardAllocator.Impl.WeightedAllocator;
+import org.shannon.ShardAllocator.Impl.WeightedPlanner;
+import org.shannon.util.TestClass;
+
+public class WeightedAllocatorTest extends TestClass {
+
+  private static HashMap<Integer, Double> weights(int shardCount, long seed) {
+    Random rand = new Random(seed);
+    HashMap<Integer, Double> retval = new HashMap<Integer, Double>();
+    for (int i = 0; i < shardCount; ++i) {
+      retval.put(i, 1.0 + rand.nextInt(100));
+    }
+    return retval;
+  }
+
+  //Plans against a copy of dist then applies the moves to dist
+  private ArrayList<ShardRelocation<Integer, Integer>> plan(HashSet<Integer> nodes, HashSet<Integer> shards
+      , HashSetValuedHashMap<Integer, Integer> dist, Map<Integer, Double> weights, double tolerance) {
+    HashMap<Integer, HashSet<Integer>> copy = new HashMap<Integer, HashSet<Integer>>();
+    dist.asMap().forEach((node, owned) -> { copy.put(node, new HashSet<Integer>(owned)); });
+    ArrayList<ShardRelocation<Integer, Integer>> retval = new ArrayList<ShardRelocation<Integer, Integer>>();
+    new WeightedPlanner<Integer, Integer>(nodes, shards, copy, (shard, myNodes, counts) -> { return null; }, 1
+        , weights::get, tolerance).determineMoves().drainTo(retval);
+    retval.forEach((move) -> { apply(move, dist); });
+    return retval;
+  }
+
+  private HashMap<Integer, Double> loads(HashSet<Integer> nodes, HashSetValuedHashMap<Integer, Integer> dist
+      , Map<Integer, Double> weights) {
+    HashMap<Integer, Double> retval = new HashMap<Integer, Double>();
+    nodes.forEach((node) -> { retval.put(node, 0.0); });
+    dist.entries().forEach((entry) -> { retval.merge(entry.getKey(), weights.get(entry.getValue()), Double::sum); });
+    return retval;
+  }
+
+  private void isWithinTolerance(HashSet<Integer> nodes, HashSetValuedHashMap<Integer, Integer> dist
+      , Map<Integer, Double> weights, double tolerance) {
+    HashSet<Integer> owned = new HashSet<Integer>(dist.values());
+    assertEquals("Every shard should be owned once", dist.size(), owned.size());
+    assertEquals("Every shard should be owned", weights.keySet(), owned);
+    double mean = weights.values().stream().mapToDouble(Double::doubleValue).sum() / nodes.size();
+    for (double load : loads(nodes, dist, weights).values()) {
+      assertTrue("Should be within tolerance of " + mean + " but was " + load, Math.abs(load - mean) <= mean * tolerance);
+    }
+  }
+
+  @Test
+  public void constructorValidation() {
+    expectException("Must have a weigher", NullPointerException.class
+        , () -> {
+          new WeightedAllocator.Builder<Integer, Integer>()
+            .nodes(integers(0, 1))
+            .shards(integers(0, 1))
+            .distributionDiscoverer(() -> { return new HashMap<Integer, Collection<Integer>>(); })
+            .relocator((move) -> { })
+            .splitBrainResolver((shard, nodes, count) -> { return null; })
+            .build();
+      });
+    expectException("Tolerance cannot be negative", IllegalArgumentException.class
+        , () -> {
+          new WeightedAllocator.Builder<Integer, Integer>()
+            .nodes(integers(0, 1))
+            .shards(integers(0, 1))
+            .distributionDiscoverer(() -> { return new HashMap<Integer, Collection<Integer>>(); })
+            .relocator((move) -> { })
+            .splitBrainResolver((shard, nodes, count) -> { return null; })
+            .weigher((shard) -> { return 1; })
+            .tolerance(-1)
+            .build();
+      });
+  }
+
+  @Test
+  public void initialBalancingIsWithinTolerance() {
+    HashMap<Integer, Double> weights = weights(10000, 0);
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    plan(integers(0, 9), integers(0, 9999), dist, weights, 0.01);
+    isWithinTolerance(integers(0, 9), dist, weights, 0.01);
+  }
+
+  @Test
+  public void countBalancedButHotGetsBalanced() {
+    HashMap<Integer, Double> weights = new HashMap<Integer, Double>();
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    for (int i = 0; i < 300; ++i) {
+      weights.put(i, i < 100 ? 100.0 : 1.0);
+      dist.put(i / 100, i);
+    }
+    ArrayList<ShardRelocation<Integer, Integer>> moves = plan(integers(0, 2), integers(0, 299), dist, weights, 0.05);
+    isWithinTolerance(integers(0, 2), dist, weights, 0.05);
+    assertTrue("Should not shuffle everything, but made " + moves.size(), moves.size() < 100);
+  }
+
+  @Test
+  public void balancedShouldNotMove() {
+    HashMap<Integer, Double> weights = weights(1000, 1);
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    plan(integers(0, 4), integers(0, 999), dist, weights, 0.02);
+    assertTrue("Should not move again", plan(integers(0, 4), integers(0, 999), dist, weights, 0.02).isEmpty());
+  }
+
+  @Test
+  public void heavyShardStaysPut() {
+    HashMap<Integer, Double> weights = new HashMap<Integer, Double>();
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    for (int i = 0; i < 100; ++i) {
+      weights.put(i, i == 0 ? 10000.0 : 1.0);
+      dist.put(i % 2, i);
+    }
+    plan(integers(0, 3), integers(0, 99), dist, weights, 0.05);
+    HashMap<Integer, Double> loads = loads(integers(0, 3), dist, weights);
+    assertEquals("The heavy shard should be alone", 1, dist.get(0).size());
+    assertEquals("The rest should be spread out", 33.0, loads.get(1), 1.0);
+    assertEquals("The rest should be spread out", 33.0, loads.get(2), 1.0);
+    assertEquals("The rest should be spread out", 33.0, loads.get(3), 1.0);
+  }
+
+  @Test
+  public void badWeightsAreRejected() {
+    HashMap<Integer, Double> weights = new HashMap<Integer, Double>();
+    weights.put(0, 1.0);
+    weights.put(1, -1.0);
+    expectException("Should reject negative weights", IllegalArgumentException.class
+        , () -> { plan(integers(0, 1), integers(0, 1), new HashSetValuedHashMap<Integer, Integer>(), weights, 0.05); });
+    weights.put(1, Double.NaN);
+    expectException("Should reject NaN", IllegalArgumentException.class
+        , () -> { plan(integers(0, 1), integers(0, 1), new HashSetValuedHashMap<Integer, Integer>(), weights, 0.05); });
+  }
+
+  @Test
+  public void allocatorRefreshesWeights() {
+    HashMap<Integer, Double> weights = weights(500, 2);
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    AtomicInteger weighings = new AtomicInteger(0);
+    Object sync = new Object();
+    WeightedAllocator<Integer, Integer> allocator = new WeightedAllocator.Builder<Integer, Integer>()
+        .nodes(integers(0, 3))
+        .shards(integers(0, 499))
+        .distributionDiscoverer(() -> {
+          synchronized(sync) {
+            return discover(dist);
+          }
+        })
+        .relocator((move) -> {
+          synchronized(sync) {
+            apply(move, dist);
+          }
+        })
+        .splitBrainResolver((shard, nodes, count) -> { return null; })
+        .weigherSupplier(() -> { weighings.incrementAndGet(); return weights::get; })
+        .tolerance(0.05)
+        .build();
+    try {
+      allocator.awaitRebalance();
+      isWithinTolerance(integers(0, 3), dist, weights, 0.05);
+      assertTrue("Should ask for weights every plan", weighings.get() >= 2);
+    } finally {
+      allocator.close();
+    }
+  }
+
+  @Test
+  public void bigNodesCarryMore() {
+    HashMap<Integer, Double> weights = weights(2000, 3);
+    HashSetValuedHashMap<Integer, Integer> dist = new HashSetValuedHashMap<Integer, Integer>();
+    HashMap<Integer, HashSet<Integer>> copy = new HashMap<Integer, HashSet<Integer>>();
+    ArrayList<ShardRelocation<Integer, Integer>> moves = new ArrayList<ShardRelocation<Integer, Integer>>();
+    new WeightedPlanner<Integer, Integer>(integers(0, 3), integers(0, 1999), copy, (shard, myNodes, counts) -> { return null; }
+        , 1, (node) -> { return node == 0 ? 4 : 1; }, weights::get, 0.02).determineMoves().drainTo(moves);
+    moves.forEach((move) -> { dist.put(move.getToNode(), move.getShard()); });
+    double total = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+    HashMap<Integer, Double> loads = loads(integers(0, 3), dist, weights);
+    assertEquals("Big node should carry 4 / 7ths", total * 4 / 7, loads.get(0), total * 4 / 7 * 0.02);
+    for (int node = 1; node < 4; ++node) {
+      assertEquals("Small nodes should carry 1 / 7th", total / 7, loads.get(node), total / 7 * 0.02);
+    }
+  }
+}